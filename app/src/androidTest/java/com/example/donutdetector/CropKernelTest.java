@@ -0,0 +1,55 @@
+package com.example.donutdetector;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.donutdetector.core.InputPreprocessor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the fused crop / resize / normalize kernel with the Bitmap crop,
+ * Bitmap.createScaledBitmap and getPixels path it replaces.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CropKernelTest {
+    private static final int SOURCE_SIZE = 320;
+    private static final int INPUT_SIZE = 100;
+
+    @Test
+    public void nearestKernel_matchesBitmapCropAndScale() {
+        Random random = new Random(7);
+        int[] source = new int[SOURCE_SIZE * SOURCE_SIZE];
+        for (int i = 0; i < source.length; i++) source[i] = random.nextInt() | 0xFF000000;
+        Bitmap bitmap = Bitmap.createBitmap(source, SOURCE_SIZE, SOURCE_SIZE, Bitmap.Config.ARGB_8888);
+
+        InputPreprocessor expected = new InputPreprocessor(INPUT_SIZE, 1, InputPreprocessor.Normalization.MOBILENET);
+        InputPreprocessor actual = new InputPreprocessor(INPUT_SIZE, 1, InputPreprocessor.Normalization.MOBILENET);
+
+        for (int n = 0; n < 50; n++) {
+            float[] bbox = new float[]{random.nextFloat() * 250, random.nextFloat() * 250,
+                    10 + random.nextFloat() * 150, 10 + random.nextFloat() * 150};
+            int width = (int) Math.min(Math.ceil(bbox[2]), SOURCE_SIZE - Math.ceil(bbox[0]));
+            int height = (int) Math.min(Math.ceil(bbox[3]), SOURCE_SIZE - Math.ceil(bbox[1]));
+            if (width <= 0 || height <= 0) continue;
+
+            // the previous three passes
+            Bitmap bt = Bitmap.createBitmap(bitmap, (int) Math.floor(bbox[0]), (int) Math.floor(bbox[1]), width, height);
+            bt = Bitmap.createScaledBitmap(bt, INPUT_SIZE, INPUT_SIZE, false);
+            bt.getPixels(expected.getPixels(), 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+            expected.process(0);
+
+            actual.processBox(source, SOURCE_SIZE, SOURCE_SIZE, bbox, 0, InputPreprocessor.Sampling.NEAREST);
+
+            for (int i = 0; i < expected.getSlotSize(); i++) {
+                assertEquals("box " + n + " value " + i, expected.getFloats().get(i), actual.getFloats().get(i), 0.0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.donutdetector;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.example.donutdetector.core.GalleryStore;
+import com.example.donutdetector.core.SimilarityEngine;
+import com.example.donutdetector.ml.Head;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.support.common.FileUtil;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the batched Head invocation gives the same scores as one Head call per pair,
+ * using the gallery shipped in embeds.csv.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SimilarityEngineTest {
+    private static final float TOLERANCE = 1e-4f;
+    private static final int EMBEDDING_SIZE = 256;
+
+    @Test
+    public void batchedScores_matchPerPairScores() throws IOException {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Interpreter interpreter = new Interpreter(FileUtil.loadMappedFile(appContext, SmartDetector.HEAD_MODEL_FILE));
+        SimilarityEngine similarityEngine = new SimilarityEngine(new TfliteModelRunner(interpreter), EMBEDDING_SIZE);
+        Head head = Head.newInstance(appContext);
+
+        // load the gallery like MainActivity does
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        List<float[]> embeds = readEmbeddings(appContext, "embeds.csv");
+        int start = 0;
+        for (String line : readLines(appContext, "classes.csv")) {
+            String[] str_line = line.split(",");
+            int end = Integer.parseInt(str_line[0]);
+            gallery.addClass(str_line[1], embeds.subList(start, end).toArray(new float[0][]));
+            start = end;
+        }
+        similarityEngine.setGallery(gallery);
+        assertEquals(embeds.size(), similarityEngine.getGalleryCount());
+
+        for (int q = 0; q < embeds.size(); q += 7) {
+            float[] query = embeds.get(q);
+            float[] batched = similarityEngine.score(query).clone();
+
+            // one Head call per gallery row, and the best score of each class
+            TensorBuffer baselineInput = TensorBuffer.createFixedSize(new int[]{1, EMBEDDING_SIZE}, DataType.FLOAT32);
+            baselineInput.loadArray(query);
+            float[] embed = new float[EMBEDDING_SIZE];
+            float[] classScores = similarityEngine.scoreClasses(query);
+            for (int c = 0; c < gallery.getClassCount(); c++) {
+                float max_score = 0.0F;
+                for (int i = gallery.getClassStart(c); i < gallery.getClassEnd(c); i++) {
+                    TensorBuffer comparedInput = TensorBuffer.createFixedSize(new int[]{1, EMBEDDING_SIZE}, DataType.FLOAT32);
+                    comparedInput.loadArray(gallery.get(i, embed));
+                    float expected = head.process(baselineInput, comparedInput).getOutputFeature0AsTensorBuffer().getFloatValue(0);
+                    assertEquals("query " + q + " gallery " + i, expected, batched[i], TOLERANCE);
+                    if (expected > max_score) max_score = expected;
+                }
+                assertEquals(gallery.getClassName(c), max_score, classScores[c], TOLERANCE);
+            }
+        }
+        head.close();
+        similarityEngine.close();
+    }
+
+    private static List<float[]> readEmbeddings(Context context, String file) throws IOException {
+        List<float[]> embeds = new ArrayList<>();
+        for (String line : readLines(context, file)) {
+            String[] str = line.split(",");
+            float[] arr = new float[str.length];
+            for (int i = 0; i < str.length; i++) arr[i] = Float.parseFloat(str[i]);
+            embeds.add(arr);
+        }
+        return embeds;
+    }
+
+    private static List<String> readLines(Context context, String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(context.getAssets().open(file)));
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        reader.close();
+        return lines;
+    }
+}
@@ -102,19 +102,20 @@ public class ImagePicker {
         return imageFile;
     }
 
-    private static Bitmap decodeBitmap(Context context, Uri theUri, int sampleSize) {
+    static Bitmap decodeBitmap(Context context, Uri theUri, int sampleSize) throws IOException {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inSampleSize = sampleSize;
 
-        AssetFileDescriptor fileDescriptor = null;
+        AssetFileDescriptor fileDescriptor = context.getContentResolver().openAssetFileDescriptor(theUri, "r");
+        if (fileDescriptor == null) throw new FileNotFoundException(theUri.toString());
+        Bitmap actuallyUsableBitmap;
         try {
-            fileDescriptor = context.getContentResolver().openAssetFileDescriptor(theUri, "r");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            actuallyUsableBitmap = BitmapFactory.decodeFileDescriptor(
+                    fileDescriptor.getFileDescriptor(), null, options);
+        } finally {
+            fileDescriptor.close();
         }
-
-        Bitmap actuallyUsableBitmap = BitmapFactory.decodeFileDescriptor(
-                fileDescriptor.getFileDescriptor(), null, options);
+        if (actuallyUsableBitmap == null) throw new IOException("Can not decode " + theUri);
 
         Log.d(TAG, options.inSampleSize + " sample method bitmap ... " +
                 actuallyUsableBitmap.getWidth() + " " + actuallyUsableBitmap.getHeight());
@@ -122,23 +123,46 @@ public class ImagePicker {
         return actuallyUsableBitmap;
     }
 
+    /**
+     * Reads the width and the height of an image without decoding its pixels
+     **/
+    static int[] getImageSize(Context context, Uri theUri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        AssetFileDescriptor fileDescriptor = context.getContentResolver().openAssetFileDescriptor(theUri, "r");
+        if (fileDescriptor == null) throw new FileNotFoundException(theUri.toString());
+        try {
+            BitmapFactory.decodeFileDescriptor(fileDescriptor.getFileDescriptor(), null, options);
+        } finally {
+            fileDescriptor.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) throw new IOException("Can not decode " + theUri);
+        return new int[]{options.outWidth, options.outHeight};
+    }
+
+    /**
+     * Largest sample size (a power of 2, the only ones BitmapFactory uses) keeping a width of minWidth pixels
+     **/
+    static int getSampleSize(int width, int minWidth) {
+        int sampleSize = 1;
+        while (width / (2 * sampleSize) >= minWidth) sampleSize *= 2;
+        return sampleSize;
+    }
+
     /**
      * Resize to avoid using too much memory loading big images (e.g.: 2560*1920)
+     * The sample size comes from the size of the image, so it is decoded once
      **/
-    private static Bitmap getImageResized(Context context, Uri selectedImage) {
-        Bitmap bm = null;
-        int[] sampleSizes = new int[]{5, 3, 2, 1};
-        int i = 0;
-        do {
-            bm = decodeBitmap(context, selectedImage, sampleSizes[i]);
-            Log.d(TAG, "resizer: new bitmap width = " + bm.getWidth());
-            i++;
-        } while (bm.getWidth() < minWidthQuality && i < sampleSizes.length);
+    static Bitmap getImageResized(Context context, Uri selectedImage) throws IOException {
+        int width = getImageSize(context, selectedImage)[0];
+        Bitmap bm = decodeBitmap(context, selectedImage, getSampleSize(width, minWidthQuality));
+        Log.d(TAG, "resizer: new bitmap width = " + bm.getWidth());
         return bm;
     }
 
 
-    private static int getRotation(Context context, Uri imageUri, boolean isCamera) {
+    static int getRotation(Context context, Uri imageUri, boolean isCamera) {
         int rotation;
         if (isCamera) {
             rotation = getRotationFromCamera(context, imageUri);
@@ -197,7 +221,7 @@ public class ImagePicker {
     }
 
 
-    private static Bitmap rotate(Bitmap bm, int rotation) {
+    static Bitmap rotate(Bitmap bm, int rotation) {
         if (rotation != 0) {
             Matrix matrix = new Matrix();
             matrix.postRotate(rotation);
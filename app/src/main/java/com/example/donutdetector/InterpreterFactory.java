@@ -0,0 +1,91 @@
+package com.example.donutdetector;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.example.donutdetector.core.ExecutionConfig;
+import com.example.donutdetector.core.ExecutionTuner;
+import com.example.donutdetector.core.ModelRunner;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+// This class is implemented to load a model of the ml folder with an ExecutionConfig
+// The model file is mapped once and shared by the interpreters of the ExecutionTuner candidates
+public class InterpreterFactory implements ExecutionTuner.ModelFactory {
+
+    private final MappedByteBuffer model;
+
+    public InterpreterFactory(Context context, String modelFile) throws IOException {
+        this.model = FileUtil.loadMappedFile(context, modelFile);
+    }
+
+    @Override
+    public TfliteModelRunner create(ExecutionConfig config) {
+        return new TfliteModelRunner(new Interpreter(model, options(config)));
+    }
+
+    private static Interpreter.Options options(ExecutionConfig config) {
+        Interpreter.Options interpreterOptions = new Interpreter.Options();
+        interpreterOptions.setNumThreads(config.getThreads());
+        switch (config.getDelegate()) {
+            case CPU:
+                interpreterOptions.setUseXNNPACK(false);
+                break;
+            case XNNPACK:
+                interpreterOptions.setUseXNNPACK(true);
+                break;
+            case NNAPI:
+                interpreterOptions.setUseNNAPI(true);
+                break;
+            case GPU:
+                // a delegate instance can't be shared between interpreters
+                interpreterOptions.addDelegate(new GpuDelegate());
+                break;
+        }
+        return interpreterOptions;
+    }
+
+    /**
+     * The configs worth timing on this device: the CPU ones, NNAPI from Android 8.1, and the GPU delegate
+     * when the device supports it.
+     */
+    public static List<ExecutionConfig> candidates(boolean gpu) {
+        List<ExecutionConfig> candidates = ExecutionConfig.cpuCandidates(Runtime.getRuntime().availableProcessors());
+        if (Build.VERSION.SDK_INT >= 27) { // Android 8.1
+            candidates.add(new ExecutionConfig(ExecutionConfig.Delegate.NNAPI, 1));
+        }
+        if (gpu) candidates.add(new ExecutionConfig(ExecutionConfig.Delegate.GPU, 1));
+        return candidates;
+    }
+
+    // Buffers of one call of the model with its default input shapes
+    @Override
+    public ByteBuffer[] inputs(ModelRunner runner) {
+        Interpreter interpreter = ((TfliteModelRunner) runner).getInterpreter();
+        ByteBuffer[] inputs = new ByteBuffer[interpreter.getInputTensorCount()];
+        for (int i = 0; i < inputs.length; i++) inputs[i] = allocate(interpreter.getInputTensor(i).numBytes());
+        return inputs;
+    }
+
+    @Override
+    public ByteBuffer[] outputs(ModelRunner runner) {
+        Interpreter interpreter = ((TfliteModelRunner) runner).getInterpreter();
+        ByteBuffer[] outputs = new ByteBuffer[interpreter.getOutputTensorCount()];
+        for (int i = 0; i < outputs.length; i++) outputs[i] = allocate(interpreter.getOutputTensor(i).numBytes());
+        return outputs;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.donutdetector;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.Size;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+import com.example.donutdetector.core.BoxTracker;
+import com.example.donutdetector.core.DetectionExecutor;
+import com.example.donutdetector.core.DetectionResult;
+import com.example.donutdetector.core.Detector;
+import com.example.donutdetector.core.FrameScheduler;
+import com.example.donutdetector.core.YuvToRgbConverter;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// This activity is implemented to detect the donuts of the camera stream
+// The YUV frames are converted straight into the RPN input and a frame is skipped while a detection runs
+// The boxes are tracked from one frame to the next, only the new boxes and the ones that drifted, changed
+// scale or got too old are embedded, the others keep the class of their track
+// The RPN input and its boxes are drawn in a bitmap created once
+// The detector is checked out of the pool on a background thread, it can wait for a detection of another activity
+public class LiveActivity extends AppCompatActivity {
+
+    // Live mode variables
+    final Size analysisSize = new Size(640, 480);
+
+    // UI variables
+    ImageView liveView = null;
+    TextView liveStats = null;
+    Bitmap display;
+    Canvas canvas;
+    Paint paint;
+
+    // Prediction variables
+    SmartDetector smartDetector;
+    Detector detector; // checked out of the pool while the activity lives
+    Thread acquireThread;
+    boolean destroyed = false; // only read and written on the main thread
+    YuvToRgbConverter converter;
+    FrameScheduler scheduler;
+    BoxTracker tracker;
+    DetectionExecutor detectionExecutor;
+    ExecutorService analysisExecutor;
+    int[] pixels;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_live);
+
+        // Define UI elements
+        liveView = findViewById(R.id.liveView);
+        liveStats = findViewById(R.id.liveStats);
+
+        // The detector is loaded by MainActivity
+        smartDetector = SmartDetector.get(getApplicationContext(), SmartDetector.MODEL_PROCESSING_MOBILENET,
+                SmartDetector.MODEL_PROCESSING_OTHERS);
+        if (smartDetector.getDetector() == null || ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            Log.e("Live", "The models or the camera permission are missing");
+            finish();
+            return;
+        }
+
+        // The stream starts on the main thread once a detector of the pool is free
+        acquireThread = new Thread(() -> {
+            Detector acquired;
+            try {
+                acquired = smartDetector.acquireDetector();
+            } catch (InterruptedException e) {
+                return;
+            }
+            runOnUiThread(() -> {
+                if (destroyed) {
+                    smartDetector.releaseDetector(acquired);
+                } else if (acquired == null) {
+                    finish();
+                } else {
+                    start_stream(acquired);
+                }
+            });
+        }, "LiveAcquire");
+        acquireThread.start();
+    }
+
+    // Runs on the main thread
+    private void start_stream(Detector acquired) {
+        detector = acquired;
+
+        // Buffers, created once for the whole stream
+        int inputSize = detector.getInputSize();
+        pixels = new int[inputSize * inputSize];
+        display = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(display);
+        paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.RED);
+        paint.setStyle(Paint.Style.STROKE);
+
+        converter = new YuvToRgbConverter(inputSize);
+        // the tracker decides which boxes are embedded, every processed frame runs the detection
+        scheduler = new FrameScheduler(1);
+        tracker = new BoxTracker();
+        detectionExecutor = new DetectionExecutor(runnable -> runOnUiThread(runnable));
+        analysisExecutor = Executors.newSingleThreadExecutor();
+
+        ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(this);
+        cameraProviderFuture.addListener(() -> {
+            try {
+                bind_camera(cameraProviderFuture.get());
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e("Live", "Starting the camera :" + e);
+            }
+        }, ContextCompat.getMainExecutor(this));
+    }
+
+    private void bind_camera(ProcessCameraProvider cameraProvider) {
+        // only the latest frame is kept by the camera, the scheduler drops the frames coming during a detection
+        ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
+                .setTargetResolution(analysisSize)
+                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                .build();
+        imageAnalysis.setAnalyzer(analysisExecutor, this::analyze);
+
+        cameraProvider.unbindAll();
+        cameraProvider.bindToLifecycle(this, CameraSelector.DEFAULT_BACK_CAMERA, imageAnalysis);
+    }
+
+    // Runs on the analysis thread for every camera frame
+    private void analyze(ImageProxy image) {
+        try {
+            if (!scheduler.tryAcquire()) return;
+            try {
+                ImageProxy.PlaneProxy[] planes = image.getPlanes();
+                converter.convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                        planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                        image.getWidth(), image.getHeight(), image.getImageInfo().getRotationDegrees(), pixels);
+            } catch (RuntimeException e) {
+                scheduler.release();
+                throw e;
+            }
+        } finally {
+            // the frame is given back to the camera before the detection starts
+            image.close();
+        }
+
+        detectionExecutor.submit(() -> detector.detect(pixels, tracker),
+                new DetectionExecutor.Callback<DetectionResult>() {
+                    @Override
+                    public void onResult(DetectionResult result, long queueWaitTime, long latency) {
+                        draw_detections(result);
+                        // the tracker is only updated by the detection thread, which waits for this release
+                        liveStats.setText(String.format(Locale.US, "%.1f fps, %d ms, %d frames skipped\n"
+                                        + "cache: %d%% hits, %.0f ms saved on this frame, %.0f ms in total",
+                                scheduler.getFps(), latency, scheduler.getSkippedCount(),
+                                Math.round(100 * tracker.getHitRate()), tracker.getLastFrameSavedTime(), tracker.getSavedTime()));
+                        // the pixels can be overwritten by the next frame once they are drawn
+                        scheduler.release();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e("Live", "Detecting the frame :" + e);
+                        scheduler.release();
+                    }
+                });
+    }
+
+    // Runs on the main thread
+    private void draw_detections(DetectionResult result) {
+        display.setPixels(pixels, 0, display.getWidth(), 0, 0, display.getWidth(), display.getHeight());
+        float[][] bboxes = result.getBoxes();
+        for (int index = 0; index < bboxes.length; index++) {
+            canvas.drawRect(bboxes[index][0], bboxes[index][1], bboxes[index][0] + bboxes[index][2], bboxes[index][1] + bboxes[index][3], paint);
+            canvas.drawText(((result.getClasses()[index] == Detector.NOT_SURE) ? Detector.NOT_SURE : result.getClasses()[index] + ":" + result.getScores()[index]),
+                    bboxes[index][0] - 5, bboxes[index][1] - 5, paint);
+        }
+        liveView.setImageBitmap(display);
+        liveView.invalidate();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        // a detector acquired from now on goes straight back to the pool
+        if (acquireThread != null) acquireThread.interrupt();
+        // the pending detection is dropped and the running one is not delivered
+        if (detectionExecutor != null) detectionExecutor.shutdown();
+        if (analysisExecutor != null) analysisExecutor.shutdown();
+
+        // the detector goes back to the pool once the running detection is over, never while it may still run:
+        // a detection stuck in the models keeps it out of the pool
+        final DetectionExecutor executor = detectionExecutor;
+        final Detector released = detector;
+        if (released == null) return;
+        new Thread(() -> {
+            try {
+                if (executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    smartDetector.releaseDetector(released);
+                } else {
+                    Log.e("Live", "The detection did not stop, the detector is not released");
+                }
+            } catch (InterruptedException e) {
+                Log.e("Live", "Waiting for the detection, the detector is not released");
+            }
+        }, "LiveRelease").start();
+    }
+}
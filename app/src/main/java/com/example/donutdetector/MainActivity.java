@@ -3,6 +3,7 @@ package com.example.donutdetector;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -19,9 +20,20 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
-import java.io.BufferedReader;
+import com.example.donutdetector.core.CsvLoader;
+import com.example.donutdetector.core.DetectionExecutor;
+import com.example.donutdetector.core.Detector;
+import com.example.donutdetector.core.DetectorMetrics;
+import com.example.donutdetector.core.DetectorStartup;
+import com.example.donutdetector.core.GalleryFile;
+import com.example.donutdetector.core.GalleryStore;
+
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.SortedMap;
 
@@ -32,22 +44,30 @@ public class MainActivity extends AppCompatActivity {
     private static final String[] permissionsWeNeed = {Manifest.permission.CAMERA};
     private ArrayList<String> permissionsDenied = null;
     private static final int PICK_IMAGE_ID = 234; // the number doesn't matter
+    private static final String METRICS_FILE = "metrics.json"; // in the external files of the app
 
     // UI variables
     Button select = null;
     Button predict = null;
+    Button live = null;
+    Button scan = null;
     ImageView imageView = null;
     Bitmap main_bitmap;
 
+    // Startup variables, the app start is approximated by the loading of this class
+    static final long START_TIME = System.nanoTime();
+    DetectorStartup startup;
+    volatile int[] anchors;
+    volatile GalleryStore gallery;
+
     // Prediction variables
-    SmartDetector smartDetector;
+    volatile SmartDetector smartDetector;
+    DetectionExecutor detectionExecutor;
     final float inputSizeRpn = 320.0f;
     final float cropSize = 900.0f;
 
-    // Embeddings variables
+    // Embedding variables
     final int embeddingSize = 256;
-    int classesNumber = 9;
-    int EmbeddingsCount = 162;
 
     // Anchors variables
     int anchorDimension = 20;
@@ -63,15 +83,59 @@ public class MainActivity extends AppCompatActivity {
         // Define UI elements
         select = findViewById(R.id.select);
         predict = findViewById(R.id.predict);
+        live = findViewById(R.id.live);
+        scan = findViewById(R.id.scan);
         imageView = findViewById(R.id.imageView);
 
-        // Get the Prediction class
-        smartDetector = SmartDetector.get(getApplicationContext(), SmartDetector.MODEL_PROCESSING_MOBILENET, SmartDetector.MODEL_PROCESSING_OTHERS);
+        // The detection buttons wait for the models
+        predict.setEnabled(false);
+        live.setEnabled(false);
+        scan.setEnabled(false);
+
+        // Load the models and the gallery in the background, see DetectorStartup
+        startup = new DetectorStartup(new DetectorStartup.Stages() {
+            @Override
+            public Detector loadModels() throws IOException {
+                smartDetector = SmartDetector.get(getApplicationContext(), SmartDetector.MODEL_PROCESSING_MOBILENET, SmartDetector.MODEL_PROCESSING_OTHERS);
+                if (smartDetector.getDetector() == null) throw new IOException("The models are not loaded");
+                return smartDetector.getDetector();
+            }
 
-        // load the anchors
-        smartDetector.load_anchors(load_anchors("anchors.csv"));
-        // load the classes and embeddings
-        load_data_from_csv("embeds.csv", "classes.csv");
+            @Override
+            public void loadGallery() {
+                // load the anchors, the classes and the embeddings
+                try {
+                    GalleryFile galleryFile = load_gallery_file("gallery.bin");
+                    anchors = galleryFile.getAnchors();
+                    gallery = galleryFile.getGallery();
+                } catch (IOException e) {
+                    Log.w("Gallery", "Loading the csv files instead of the gallery file :" + e);
+                    anchors = load_anchors("anchors.csv");
+                    gallery = load_data_from_csv("embeds.csv", "classes.csv");
+                }
+            }
+
+            @Override
+            public void prepare(Detector detector) {
+                smartDetector.load_anchors(anchors);
+                smartDetector.setGallery(gallery);
+                smartDetector.updateIndex();
+            }
+        }, START_TIME);
+        startup.start(new DetectorStartup.Listener() {
+            @Override
+            public void onReady(Detector detector, long readyTime) {
+                predict.setEnabled(true);
+                live.setEnabled(true);
+                scan.setEnabled(true);
+                Log.d("LOAD_TIME", startup.getReport());
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e("Startup", "Loading the detector :" + e);
+            }
+        }, runnable -> runOnUiThread(runnable));
 
         // Selection an image either from the gallery or the camera
         select.setOnClickListener(view -> {
@@ -80,155 +144,127 @@ public class MainActivity extends AppCompatActivity {
             startActivityForResult(chooseImageIntent, PICK_IMAGE_ID);
         });
 
-        predict.setOnClickListener(v ->
-                {
-
-                    long startTime = System.nanoTime();
-                    // Intialize the variables
-                    Pair<String, Float>[] results = null;
-                    float[][] bboxes = null;
-                    Pair output;
-
-                    // Make the prediction
-                    try {
-                        output = smartDetector.predict(main_bitmap);
-                        bboxes = (float[][]) output.first;
-                        results = (Pair<String, Float>[]) output.second;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Drawing the bounding boxes
-                    Bitmap dst = main_bitmap.copy(main_bitmap.getConfig(), true);
-                    float intermediate_h = cropSize, intermediate_w = cropSize;
-                    if (dst.getWidth() < cropSize || dst.getHeight() < cropSize) {
-                        intermediate_h = dst.getHeight();
-                        intermediate_w = dst.getWidth();
-                    }
-
-                    float factor_h = intermediate_h / inputSizeRpn;
-                    float factor_w = intermediate_w / inputSizeRpn;
-
-                    float shift_crop_h = (dst.getHeight() - intermediate_h) / 2;
-                    float shift_crop_w = (dst.getWidth() - intermediate_w) / 2;
-
-                    Canvas canvas = new Canvas(dst);
-                    Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        // Detection on the camera stream
+        live.setOnClickListener(view -> {
+            if (shouldRequestPermissions()) {
+                requestPermissionsWeNeed();
+                return;
+            }
+            startActivity(new Intent(this, LiveActivity.class));
+        });
 
-                    paint.setColor(Color.RED);
-                    paint.setStyle(Paint.Style.STROKE);
+        // Detection on all the photos of the device, see ScanActivity
+        scan.setOnClickListener(view -> {
+            if (shouldRequestPermissions()) {
+                requestPermissionsWeNeed();
+                return;
+            }
+            startActivity(new Intent(this, ScanActivity.class));
+        });
 
-                    for (int index = 0; index < bboxes.length; index++) {
-                        canvas.drawRect((bboxes[index][0] * factor_w) + shift_crop_w, (bboxes[index][1] * factor_h) + shift_crop_h , ((bboxes[index][0] + bboxes[index][2]) * factor_w) +shift_crop_w, ((bboxes[index][1] + bboxes[index][3]) * factor_h) + shift_crop_h, paint);
-                        canvas.drawText(((results[index].first == "Not sure") ? "Not sure" : results[index].first + ":" + results[index].second.toString()), (bboxes[index][0] * factor_w) +shift_crop_w - 5, (bboxes[index][1] * factor_h) + shift_crop_h - 5, paint);
-                    }
+        // The predictions run on the worker of the executor, the result is shown on the main thread
+        detectionExecutor = new DetectionExecutor(runnable -> runOnUiThread(runnable));
+        predict.setOnClickListener(v -> {
+            if (main_bitmap == null) return;
+            final Bitmap bitmap = main_bitmap;
+            detectionExecutor.submit(() -> draw_predictions(bitmap), new DetectionExecutor.Callback<Bitmap>() {
+                @Override
+                public void onResult(Bitmap dst, long queueWaitTime, long latency) {
                     imageView.setImageBitmap(dst);
+                    Log.d("QUEUE_TIME", String.valueOf(queueWaitTime));
+                    Log.d("FULL_TIME", String.valueOf(latency));
+                    Log.d("STAGE_TIME", smartDetector.getMetrics().toJson());
+                    if (startup.getFirstDetectionTime() < 0) {
+                        startup.recordDetection(latency);
+                        Log.d("FIRST_PREDICTION_TIME", startup.getReport());
+                    }
+                }
 
-                    long stopTime = System.nanoTime();
-                    Log.d("FULL_TIME", String.valueOf((stopTime - startTime) / 1_000_000));
+                @Override
+                public void onError(Exception e) {
+                    Log.e("Prediction", "Predicting the image :" + e);
                 }
+            });
+        });
 
-        );
+        // the UI is usable once its first frame is drawn, the models are still loading
+        imageView.post(() -> {
+            startup.markInteractive();
+            Log.d("INTERACTIVE_TIME", String.valueOf(startup.getInteractiveTime()));
+        });
     }
 
-    /* ***** Reading files from the assets folder ***** */
-
-    private void load_data_from_csv(String embeddingFile, String classesFile) {
-        // initialize some variables
-        int elmentsPerClass = 0;
-        String line = null;
-        int i = 0;
-
+    // Runs on the worker of the detection executor
+    private Bitmap draw_predictions(Bitmap bitmap) throws IOException {
+        // Intialize the variables
+        Pair<String, Float>[] results = null;
+        float[][] bboxes = null;
+        Pair output;
+
+        // Make the prediction
+        output = smartDetector.predict(bitmap);
+        bboxes = (float[][]) output.first;
+        results = (Pair<String, Float>[]) output.second;
+
+        // Drawing the bounding boxes
+        Bitmap dst = bitmap.copy(bitmap.getConfig(), true);
+        float intermediate_h = cropSize, intermediate_w = cropSize;
+        if (dst.getWidth() < cropSize || dst.getHeight() < cropSize) {
+            intermediate_h = dst.getHeight();
+            intermediate_w = dst.getWidth();
+        }
 
-        float[][] embeds = new float[EmbeddingsCount][embeddingSize];
-        String[] classes = new String[classesNumber];
-        int[] indices = new int[classesNumber];
+        float factor_h = intermediate_h / inputSizeRpn;
+        float factor_w = intermediate_w / inputSizeRpn;
 
-        // Reading the embeddings
-        try {
+        float shift_crop_h = (dst.getHeight() - intermediate_h) / 2;
+        float shift_crop_w = (dst.getWidth() - intermediate_w) / 2;
 
-            InputStreamReader isEmbds = new InputStreamReader(getAssets()
-                    .open(embeddingFile));
+        Canvas canvas = new Canvas(dst);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
-            BufferedReader readerEmbds = new BufferedReader(isEmbds);
-            while ((line = readerEmbds.readLine()) != null) {
-                embeds[i] = stringToArrayFloat(line);
-                i++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        // Reading the classes
-        try {
-            line = null;
-            i = 0;
-            InputStreamReader isClasses = new InputStreamReader(getAssets()
-                    .open(classesFile));
-            BufferedReader readerClasses = new BufferedReader(isClasses);
-            while (true) {
-                try {
-                    if ((line = readerClasses.readLine()) == null) break;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                assert line != null;
-                String[] str_line = line.split(",");
-                indices[i] = Integer.parseInt(str_line[0]);
-                classes[i] = str_line[1];
-                i++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        paint.setColor(Color.RED);
+        paint.setStyle(Paint.Style.STROKE);
 
-        // Load the data to the Detector
-        for (int a = 0; a < classes.length; a++) {
-            float[][] embeddingsClass = new float[indices[a] - elmentsPerClass][embeddingSize];
-            for (int b = 0; b < indices[a] - elmentsPerClass; b++) {
-                embeddingsClass[b] = embeds[elmentsPerClass + b];
-            }
-            elmentsPerClass = indices[a];
-            smartDetector.putClass(classes[a], embeddingsClass);
+        for (int index = 0; index < bboxes.length; index++) {
+            canvas.drawRect((bboxes[index][0] * factor_w) + shift_crop_w, (bboxes[index][1] * factor_h) + shift_crop_h , ((bboxes[index][0] + bboxes[index][2]) * factor_w) +shift_crop_w, ((bboxes[index][1] + bboxes[index][3]) * factor_h) + shift_crop_h, paint);
+            canvas.drawText(((results[index].first == "Not sure") ? "Not sure" : results[index].first + ":" + results[index].second.toString()), (bboxes[index][0] * factor_w) +shift_crop_w - 5, (bboxes[index][1] * factor_h) + shift_crop_h - 5, paint);
         }
+        return dst;
     }
 
-    private int[] load_anchors(String anchorsFile) {
-        String line;
-        int[] anchors = new int[anchorDimension * anchorDimension * numberAnchors * numberCoordinates];
-
-        // Reading the anchors
-        try {
-            InputStreamReader isEmbds = new InputStreamReader(getAssets()
-                    .open(anchorsFile));
-
-            BufferedReader readerEmbds = new BufferedReader(isEmbds);
-
-            line = readerEmbds.readLine();
-            anchors = stringToArray(line);
+    /* ***** Reading files from the assets folder ***** */
 
-        } catch (Exception ignored) {
+    private GalleryFile load_gallery_file(String galleryFile) throws IOException {
+        // the file is stored uncompressed (see noCompress), so it can be mapped straight from the apk
+        // the mapping stays valid once the descriptor and the channel are closed
+        MappedByteBuffer mapped;
+        try (AssetFileDescriptor fileDescriptor = getAssets().openFd(galleryFile);
+             FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            mapped = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
         }
-        return anchors;
+        return GalleryFile.read(mapped);
     }
 
-    private int[] stringToArray(String line) {
-        String[] str = line.split(",");
-        int size = str.length;
-        int[] arr = new int[size];
-        for (int i = 0; i < size; i++) {
-            arr[i] = Integer.parseInt(str[i]);
+    private GalleryStore load_data_from_csv(String embeddingFile, String classesFile) {
+        GalleryStore gallery = new GalleryStore(embeddingSize);
+        try {
+            CsvLoader.readGallery(new InputStreamReader(getAssets().open(embeddingFile)),
+                    new InputStreamReader(getAssets().open(classesFile)), gallery);
+        } catch (IOException e) {
+            Log.e("Gallery", "Reading the csv files :" + e);
         }
-        return arr;
+        return gallery;
     }
 
-    private float[] stringToArrayFloat(String line) {
-        String[] str = line.split(",");
-        int size = str.length;
-        float[] arr = new float[size];
-        for (int i = 0; i < size; i++) {
-            arr[i] = Float.parseFloat(str[i]);
+    private int[] load_anchors(String anchorsFile) {
+        try {
+            return CsvLoader.readAnchors(new InputStreamReader(getAssets().open(anchorsFile)));
+        } catch (IOException e) {
+            Log.e("Anchors", "Reading the csv file :" + e);
         }
-        return arr;
+        return new int[anchorDimension * anchorDimension * numberAnchors * numberCoordinates];
     }
 
     /* ***** Permisition functions ***** */
@@ -283,9 +319,23 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // the latencies of the session, see SmartDetector.getMetrics
+        if (smartDetector == null || smartDetector.getMetrics().getCount(DetectorMetrics.Counter.IMAGES) == 0) return;
+        try {
+            smartDetector.writeMetrics(new File(getExternalFilesDir(null), METRICS_FILE));
+        } catch (IOException e) {
+            Log.e("Metrics", "Writing the metrics :" + e);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // the pending prediction is dropped and the running one is not delivered
+        detectionExecutor.shutdown();
         smartDetector = null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package com.example.donutdetector;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import com.example.donutdetector.core.BatchScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// This class is implemented to give the images of the photo library or of a folder to the batch scan
+// The ids are the uris of the images, they are decoded subsampled (see ImagePicker), rotated upright
+// then turned into the pixels of the RPN input
+public class MediaImageSource implements BatchScanner.ImageSource {
+
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp"};
+
+    private final Context context;
+    private final SmartDetector smartDetector;
+
+    public MediaImageSource(Context context, SmartDetector smartDetector) {
+        this.context = context;
+        this.smartDetector = smartDetector;
+    }
+
+    /**
+     * The images of the photo library, oldest first. With a bucket, only the images of the folder of this name.
+     */
+    public static List<String> queryMediaStore(Context context, String bucket) {
+        List<String> ids = new ArrayList<>();
+        String[] columns = {MediaStore.Images.Media._ID};
+        String selection = (bucket == null) ? null : MediaStore.Images.Media.BUCKET_DISPLAY_NAME + " = ?";
+        String[] selectionArgs = (bucket == null) ? null : new String[]{bucket};
+        Cursor cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, columns,
+                selection, selectionArgs, MediaStore.Images.Media.DATE_TAKEN + " ASC");
+        if (cursor == null) return ids;
+        try {
+            int idColumnIndex = cursor.getColumnIndex(columns[0]);
+            while (cursor.moveToNext()) {
+                Uri uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, cursor.getLong(idColumnIndex));
+                ids.add(uri.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * The images of a folder, by name.
+     */
+    public static List<String> listFolder(File folder) {
+        List<String> ids = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files == null) return ids;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            for (String extension : EXTENSIONS) {
+                if (file.isFile() && name.endsWith(extension)) {
+                    ids.add(Uri.fromFile(file).toString());
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Runs on the decoding threads of the scan
+    @Override
+    public void load(String id, int[] argb) throws IOException {
+        Uri uri = Uri.parse(id);
+        int[] size = ImagePicker.getImageSize(context, uri);
+        int sampleSize = smartDetector.getSampleSize(size[0], size[1]);
+        Bitmap bitmap = ImagePicker.decodeBitmap(context, uri, sampleSize);
+
+        // the files carry their orientation in their EXIF data, the library in its database
+        int rotation = ImagePicker.getRotation(context, uri, "file".equals(uri.getScheme()));
+        Bitmap rotated = ImagePicker.rotate(bitmap, rotation);
+        if (rotated != bitmap) bitmap.recycle();
+
+        smartDetector.toPixels(rotated, sampleSize, argb);
+        rotated.recycle();
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.donutdetector;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+
+import com.example.donutdetector.core.BatchScanner;
+import com.example.donutdetector.core.Detector;
+import com.example.donutdetector.core.ScanResultsFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// This activity is implemented to scan all the photos of the device (or of one folder) in one go
+// The results are appended to scan_results.bin in the app files, leaving the activity stops the scan
+// and the next scan starts from the images which are not in the file yet
+// The EXTRA_FOLDER extra selects a folder: a path, or the name of a folder of the photo library
+// The list of the images, the results file and the detector are prepared on a background thread
+public class ScanActivity extends AppCompatActivity {
+
+    // Constants
+    public static final String EXTRA_FOLDER = "folder";
+    public static final String RESULTS_FILE = "scan_results.bin";
+
+    // Scan variables
+    final int decoders = 2;
+
+    // UI variables
+    TextView scanStatus = null;
+    Button scanStop = null;
+
+    // Scan variables
+    SmartDetector smartDetector;
+    Detector detector; // checked out of the pool for the whole scan
+    BatchScanner scanner;
+    ScanResultsFile results;
+    Thread prepareThread;
+    boolean destroyed = false; // only read and written on the main thread
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_scan);
+
+        // Define UI elements
+        scanStatus = findViewById(R.id.scanStatus);
+        scanStop = findViewById(R.id.scanStop);
+        scanStop.setOnClickListener(view -> {
+            if (scanner != null) scanner.cancel();
+        });
+
+        // The detector is loaded by MainActivity
+        smartDetector = SmartDetector.get(getApplicationContext(), SmartDetector.MODEL_PROCESSING_MOBILENET,
+                SmartDetector.MODEL_PROCESSING_OTHERS);
+        if (smartDetector.getDetector() == null || ActivityCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+            Log.e("Scan", "The models or the storage permission are missing");
+            finish();
+            return;
+        }
+
+        // The scan starts on the main thread once the images are listed and a detector of the pool is free
+        final String folder = getIntent().getStringExtra(EXTRA_FOLDER);
+        final File resultsFile = new File(getExternalFilesDir(null), RESULTS_FILE);
+        prepareThread = new Thread(() -> {
+            // The images of the folder or of the whole library
+            List<String> ids = (folder != null && new File(folder).isDirectory())
+                    ? MediaImageSource.listFolder(new File(folder))
+                    : MediaImageSource.queryMediaStore(getApplicationContext(), folder);
+
+            ScanResultsFile opened;
+            try {
+                opened = ScanResultsFile.open(resultsFile);
+            } catch (IOException e) {
+                Log.e("Scan", "Opening the results file :" + e);
+                runOnUiThread(this::finish);
+                return;
+            }
+            Detector acquired;
+            try {
+                acquired = smartDetector.acquireDetector();
+            } catch (InterruptedException e) {
+                acquired = null;
+            }
+            final Detector checkedOut = acquired;
+            runOnUiThread(() -> {
+                if (checkedOut == null || destroyed) {
+                    smartDetector.releaseDetector(checkedOut);
+                    close(opened);
+                    if (!destroyed) finish();
+                } else {
+                    start_scan(ids, opened, checkedOut);
+                }
+            });
+        }, "ScanPrepare");
+        prepareThread.start();
+    }
+
+    // Runs on the main thread
+    private void start_scan(List<String> ids, ScanResultsFile opened, Detector acquired) {
+        results = opened;
+        detector = acquired;
+        scanner = new BatchScanner(detector, new MediaImageSource(getApplicationContext(), smartDetector),
+                results, decoders, runnable -> runOnUiThread(runnable));
+        scanner.start(ids, new BatchScanner.Listener() {
+            @Override
+            public void onProgress(int done, int total, float imagesPerMinute) {
+                scanStatus.setText(String.format(Locale.US, "%d / %d images\n%.0f images/min, %d failed",
+                        done, total, imagesPerMinute, scanner.getFailedCount()));
+            }
+
+            @Override
+            public void onFinished(int done, int total, boolean cancelled) {
+                StringBuilder status = new StringBuilder(String.format(Locale.US, "%s: %d / %d images, %d failed\n",
+                        cancelled ? "Stopped" : "Done", done, total, results.getErrorCount()));
+                for (Map.Entry<String, Integer> entry : results.getClassCounts().entrySet()) {
+                    status.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+                }
+                scanStatus.setText(status.toString());
+                scanStop.setEnabled(false);
+                // the pipeline is over, the detector goes back to the pool
+                smartDetector.releaseDetector(detector);
+                detector = null;
+            }
+        });
+    }
+
+    private static void close(ScanResultsFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e("Scan", "Closing the results file :" + e);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        // a scan prepared from now on is not started
+        if (prepareThread != null) prepareThread.interrupt();
+        // the written images are kept, the next scan resumes after them
+        if (scanner != null) scanner.cancel();
+    }
+}
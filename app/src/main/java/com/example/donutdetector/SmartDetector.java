@@ -1,102 +1,148 @@
 package com.example.donutdetector;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
+import com.example.donutdetector.core.BoxTracker;
+import com.example.donutdetector.core.ClassPrototypes;
+import com.example.donutdetector.core.DetectionResult;
+import com.example.donutdetector.core.Detector;
+import com.example.donutdetector.core.DetectorMetrics;
+import com.example.donutdetector.core.DetectorPool;
+import com.example.donutdetector.core.ExecutionConfig;
+import com.example.donutdetector.core.ExecutionTuner;
+import com.example.donutdetector.core.GalleryIndex;
+import com.example.donutdetector.core.GalleryStore;
+import com.example.donutdetector.core.ModelRunner;
+import com.example.donutdetector.core.ResultCache;
 
-import com.example.donutdetector.ml.EmbeddingModel;
-import com.example.donutdetector.ml.Head;
-import com.example.donutdetector.ml.RpnModel;
-
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.gpu.CompatibilityList;
-import org.tensorflow.lite.support.model.Model.Device;
-import org.tensorflow.lite.support.model.Model.Options;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 /**
  * @author SmartPrints-KSA
  * <p>
  * The goal of this Class is to load deep leaning models then do the inference of a given bitmap.
+ * The detection itself is done by the Detector of the detector-core module, this class loads the
+ * TFLite interpreters and turns the bitmaps into the pixels the Detector expects.
+ * The predictions can be made from several threads: each one checks out a Detector of a DetectorPool.
  */
 public class SmartDetector {
 
     // Singleton
     private static SmartDetector smartDetector;
 
-    // Models
-    RpnModel rpn_model = null;
-    EmbeddingModel embedding_model = null;
-    Head head = null;
+    // Models, the settings are made on the template Detector of the pool
+    Detector detector = null;
+    DetectorPool pool = null;
+    String rpnModelFile;
+    String embeddingModelFile;
+    String rpnModelType;
+    String embdModelType;
+    private final Map<String, InterpreterFactory> modelFactories = new HashMap<>();
+
+    // Pool variables, a new set of interpreters is only loaded when all the Detectors are busy
+    int maxPoolSize = Runtime.getRuntime().availableProcessors();
+
+    // Models files (packaged as assets from the ml folder)
+    public final static String RPN_MODEL_FILE = "rpn_model.tflite";
+    public final static String EMBEDDING_MODEL_FILE = "embedding_model.tflite";
+    public final static String HEAD_MODEL_FILE = "head.tflite";
+
+    // Quantized variants of the RPN and embedding models, with UINT8 inputs and outputs
+    public final static String RPN_QUANT_MODEL_FILE = "rpn_model_quant.tflite";
+    public final static String EMBEDDING_QUANT_MODEL_FILE = "embedding_model_quant.tflite";
 
     // Constants
-    public final static String MODEL_PROCESSING_MOBILENET = "mobilenet";
-    public final static String MODEL_PROCESSING_VGG = "vgg";
-    public final static String MODEL_PROCESSING_OTHERS = "";
+    public final static String MODEL_PROCESSING_MOBILENET = Detector.MODEL_PROCESSING_MOBILENET;
+    public final static String MODEL_PROCESSING_VGG = Detector.MODEL_PROCESSING_VGG;
+    public final static String MODEL_PROCESSING_OTHERS = Detector.MODEL_PROCESSING_OTHERS;
 
     // Image variables
     final int cropSize = 900;
-    final int inputSizeRpn = 320;
-    final int inputSizeEMBD = 100;
-    final int pixelSize = 3;
-    final int BYTES_SIZE = 4;
 
     // Embedding variables
     final int embeddingSize = 256;
 
-    // Detection variables
-    float iou_threshold = 0.2f;
-    float iou_threshold_intra_class = 0.15f;
-    float confidence_threshold = 0.33f;
-    float class_confidence = 0.0f;
-
-    // Anchors variables
-    int anchorDimension = 20;
-    int numberAnchors = 9;
-    int numberCoordinates = 4;
-
-    // Models types variables
-    String rpnModelType = "";
-    String embdModelType = "";
-
-    // Data needed for prediction
-    Map<String, float[][]> classes = new HashMap<>();
-    int[] modelAnchors = null;
-
-    // Time variables
-    final int timeFactor = 1_000_000;
-    private long lastBBoxesGenerationTime;
-    private long lastEmbeddingGenerationTime;
-    private long lastHeadComparaisonTime;
+    // Result cache variables, the cache is in the app cache folder so the system can clear it
+    public final static String RESULT_CACHE_DIR = "results";
+    int resultCacheEntries = 500;
+    long resultCacheBytes = 2 * 1024 * 1024;
+
+    // Gallery storage, FLOAT16 or INT8 keep the embeddings 2 or 4 times smaller, see GalleryStore.Encoding
+    GalleryStore.Encoding galleryEncoding = GalleryStore.Encoding.FLOAT32;
+
+    // Gallery index variables, the small galleries are still compared as a whole, see Detector.setIndexing
+    int indexMinSize = 2000;
+    int indexCandidates = 64;
+    float indexTargetRecall = 0.95f;
+
+    // Class prefilter variables, the Head only compares the embeddings of the best classes, see Detector.setPrefilter
+    // The Head recall of ClassPrototypes.measureRecall on embeds.csv is 1.0 from 1 class (see ClassPrototypesTest),
+    // 2 classes keep a margin for the trained Head: about 40 Head pairs per box instead of 147
+    int prefilterClasses = 2;
+    int prefilterCentroids = 3;
+
+    // Execution variables, the first launch times each delegate on each model and keeps the fastest, see ExecutionTuner
+    // The configs are saved in these preferences, with the device and the install they were measured on
+    public final static String EXECUTION_PREFERENCES = "execution_configs";
+    private final static String EXECUTION_DEVICE_KEY = "device";
+    boolean tuneExecution = true;
+    private final Map<String, ExecutionConfig> executionConfigs = new LinkedHashMap<>();
+
+    // Embedding batching variables
+    public final static int EMBEDDING_BATCH_NONE = Detector.EMBEDDING_BATCH_NONE;
+    public final static int EMBEDDING_BATCH_ALL = Detector.EMBEDDING_BATCH_ALL;
+
+    // Last detection of any thread, for the timings, each DetectionResult has the timings of its own call
+    private volatile DetectionResult lastResult = null;
+
+    // Stage latencies of every detection of the pool, see getMetrics
+    private final DetectorMetrics metrics = new DetectorMetrics();
+
+    // Whether the quantized models are used
+    public boolean isQuantized() {
+        return detector != null && detector.isQuantized();
+    }
 
-    // Time getters
+    // Time getters, of the last detection of any thread: a concurrent caller reads the timings of its own DetectionResult
     public long getLastBBoxesGenerationTime() {
-        return lastBBoxesGenerationTime;
+        return lastResult == null ? 0 : lastResult.getBBoxesGenerationTime();
     }
 
     public long getLastEmbeddingGenerationTime() {
-        return lastEmbeddingGenerationTime;
+        return lastResult == null ? 0 : lastResult.getEmbeddingGenerationTime();
+    }
+
+    public long[] getLastEmbeddingBatchTimes() {
+        return lastResult == null ? new long[0] : lastResult.getEmbeddingBatchTimes();
+    }
+
+    public float getLastEmbeddingTimePerCrop() {
+        return lastResult == null ? 0 : lastResult.getEmbeddingTimePerCrop();
     }
 
     public long getLastHeadComparaisonTime() {
-        return lastHeadComparaisonTime;
+        return lastResult == null ? 0 : lastResult.getHeadComparaisonTime();
     }
 
     public long getLastTotalTime() {
-        return lastBBoxesGenerationTime + lastEmbeddingGenerationTime + lastHeadComparaisonTime;
+        return lastResult == null ? 0 : lastResult.getTotalTime();
     }
 
     /**
@@ -104,283 +150,337 @@ public class SmartDetector {
      */
     // Static call of the singleton
     public static SmartDetector get(Context context, String rpnModelType, String embdModelType) {
+        return get(context, rpnModelType, embdModelType, false);
+    }
+
+    // Synchronized, the startup creates it on a background thread while the activities may ask for it
+    public static synchronized SmartDetector get(Context context, String rpnModelType, String embdModelType, boolean quantized) {
         if (smartDetector == null)
-            smartDetector = new SmartDetector(context, rpnModelType, embdModelType);
+            smartDetector = new SmartDetector(context, rpnModelType, embdModelType, quantized);
         return smartDetector;
     }
 
     public SmartDetector(Context context, String rpnModelType, String embdModelType) {
+        this(context, rpnModelType, embdModelType, false);
+    }
+
+    /**
+     * @param quantized loads the quantized RPN and embedding models, run on the CPU with UINT8 tensors:
+     *                  4 times smaller inputs, for the devices without a GPU delegate
+     */
+    public SmartDetector(Context context, String rpnModelType, String embdModelType, boolean quantized) {
+        CompatibilityList compatList = new CompatibilityList();
+        boolean useGpu = compatList.isDelegateSupportedOnThisDevice();
+        Log.d("Device uses", useGpu ? "GPU" : "CPU");
+        this.rpnModelFile = quantized ? RPN_QUANT_MODEL_FILE : RPN_MODEL_FILE;
+        this.embeddingModelFile = quantized ? EMBEDDING_QUANT_MODEL_FILE : EMBEDDING_MODEL_FILE;
         this.rpnModelType = rpnModelType;
         this.embdModelType = embdModelType;
-        Options options;
-        CompatibilityList compatList = new CompatibilityList();
+        ExecutionTuner tuner = tuneExecution ? new ExecutionTuner(executionStore(context)) : null;
         try {
-            if (compatList.isDelegateSupportedOnThisDevice()) {
-                // if the device has a supported GPU, add the GPU delegate
-                options = new Options.Builder().setDevice(Device.GPU).build();
-                Log.d("Device uses", "GPU");
-            } else {
-                // if the GPU is not supported, run on 4 threads
-                options = new Options.Builder().setNumThreads(4).build();
-                Log.d("Device uses", "CPU");
-            }
-            rpn_model = RpnModel.newInstance(context, options);
-            embedding_model = EmbeddingModel.newInstance(context, options);
-            head = Head.newInstance(context, options);
+            prepareModel(context, tuner, rpnModelFile, useGpu && !quantized);
+            prepareModel(context, tuner, embeddingModelFile, useGpu && !quantized);
+            prepareModel(context, tuner, HEAD_MODEL_FILE, useGpu);
+            detector = createDetector();
+            pool = new DetectorPool(detector, new DetectorPool.Factory() {
+                public Detector create() {
+                    return createDetector();
+                }
+            }, maxPoolSize);
         } catch (Exception e) {
             Log.e(this.getClass().getName(), "Loading models :" + e);
+            return;
         }
-    }
 
-    public Pair predict(Bitmap bitmap) throws IOException {
-        // Intialize the variables
-        float[][] bboxes = null;
-        float[][] embeddings = null;
-        Pair<String, Float>[] res = null;
-        float[] similarities = null;
-        String[] classes = null;
-        int counter = 0;
-        int j = 0;
-
-        // Image preprocessing
-        bitmap = imagePreprocessing(bitmap, cropSize, inputSizeRpn);
-
-        // Bboxes generation
+        // the snapshots of several devices and releases are compared, so they say where they come from
+        metrics.setTag("device", Build.MANUFACTURER + " " + Build.MODEL);
+        metrics.setTag("android", Build.VERSION.RELEASE);
+        metrics.setTag("models", rpnModelFile + ", " + embeddingModelFile);
+        metrics.setTag("executions", String.valueOf(getExecutionConfigs()));
+        detector.setMetrics(metrics);
+
+        detector.setIndexing(indexMinSize, indexCandidates, indexTargetRecall);
+        detector.setPrefilter(prefilterClasses, prefilterCentroids);
+
+        // The same photo is not detected twice, until the app, the gallery or the settings change
         try {
-            bboxes = cxcy_to_x1y1(get_bboxes(bitmap));
-            for (int i = 0; i < bboxes.length; i++) if (bboxes[i] != null) counter++;
+            detector.setModelVersion(modelVersion(context, rpnModelFile, embeddingModelFile));
+            detector.setResultCache(new ResultCache(new File(context.getCacheDir(), RESULT_CACHE_DIR),
+                    resultCacheEntries, resultCacheBytes));
         } catch (IOException e) {
-            Log.e(this.getClass().getName(), "Generating the bboxes :" + e);
+            Log.e(this.getClass().getName(), "Opening the result cache :" + e);
         }
+    }
 
-        // Embeddings generation
+    // The models are packaged in the apk, so a new model comes with a new install of the app
+    private static String modelVersion(Context context, String rpnModelFile, String embeddingModelFile) {
+        long installTime = 0;
         try {
-            embeddings = get_embeddings(bitmap, bboxes, counter);
-        } catch (Exception e) {
-            Log.e(this.getClass().getName(), "Generating the embedding :" + e);
+            installTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e("SmartDetector", "Reading the package info :" + e);
         }
+        return rpnModelFile + "/" + embeddingModelFile + "/" + HEAD_MODEL_FILE + "/" + installTime;
+    }
 
-        // Similarities generation
-        res = new Pair[counter];
-        similarities = new float[counter];
-        classes = new String[counter];
-        Log.d("counter", String.valueOf(counter));
-        Log.d("counter", String.valueOf(embeddings.length));
-        Log.d("counter", String.valueOf(embeddings[0].length));
-        j = 0;
-        try {
-            for (float[] embedding : embeddings) {
-                res[j] = inference(embedding);
-                classes[j] = res[j].first;
-                similarities[j] = res[j].second;
-                j++;
+    // A new set of interpreters of the models, with their configs
+    private Detector createDetector() {
+        return new Detector(loadModel(rpnModelFile), loadModel(embeddingModelFile), loadModel(HEAD_MODEL_FILE),
+                rpnModelType, embdModelType);
+    }
+
+    private ModelRunner loadModel(String modelFile) {
+        return modelFactories.get(modelFile).create(executionConfigs.get(modelFile));
+    }
+
+    /**
+     * Maps a model and picks its tuned config. Without a tuner, or when no candidate could run it,
+     * the model runs on the GPU when the device supports it and on 4 CPU threads otherwise.
+     */
+    private void prepareModel(Context context, ExecutionTuner tuner, String modelFile, boolean useGpu)
+            throws IOException {
+        InterpreterFactory factory = new InterpreterFactory(context, modelFile);
+        ExecutionConfig config = null;
+        if (tuner != null) {
+            long startTime = System.nanoTime();
+            config = tuner.getConfig(modelFile, factory, InterpreterFactory.candidates(useGpu));
+            if (!tuner.getLastTimes().isEmpty()) {
+                Log.d("ExecutionTuner", modelFile + " tuned in " + (System.nanoTime() - startTime) / 1_000_000
+                        + " ms: " + tuner.getLastReport());
             }
-        } catch (IOException e) {
-            Log.e(this.getClass().getName(), "Generating the similarities :" + e);
         }
+        if (config == null) {
+            config = useGpu ? new ExecutionConfig(ExecutionConfig.Delegate.GPU, 1)
+                    : new ExecutionConfig(ExecutionConfig.Delegate.CPU, 4);
+        }
+        Log.d("ExecutionConfig", modelFile + " runs with " + config);
+        executionConfigs.put(modelFile, config);
+        modelFactories.put(modelFile, factory);
+    }
 
-        // overlapping bboxes elimination
-        bboxes = tool_nms(bboxes, similarities, iou_threshold_intra_class, classes);
+    // The saved configs only hold for the device and the models they were measured with
+    private static ExecutionTuner.Store executionStore(Context context) {
+        final SharedPreferences preferences = context.getSharedPreferences(EXECUTION_PREFERENCES, Context.MODE_PRIVATE);
+        long installTime = 0;
+        try {
+            installTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e("SmartDetector", "Reading the package info :" + e);
+        }
+        String device = Build.FINGERPRINT + "/" + installTime;
+        if (!device.equals(preferences.getString(EXECUTION_DEVICE_KEY, null))) {
+            preferences.edit().clear().putString(EXECUTION_DEVICE_KEY, device).apply();
+        }
+        return new ExecutionTuner.Store() {
+            public String get(String model) {
+                return preferences.getString(model, null);
+            }
 
-        return new Pair(bboxes, res);
+            public void put(String model, String config) {
+                preferences.edit().putString(model, config).apply();
+            }
+        };
     }
 
+    // The config each model file runs with
+    public Map<String, ExecutionConfig> getExecutionConfigs() {
+        return executionConfigs;
+    }
 
-    private float[][] get_bboxes(Bitmap bitmap) throws IOException {
+    // Forgets the tuned configs, the next launch times the delegates again
+    public static void clearExecutionConfigs(Context context) {
+        context.getSharedPreferences(EXECUTION_PREFERENCES, Context.MODE_PRIVATE).edit().clear().apply();
+    }
 
-        // IMG_MEAN_SUBSTRACTION = [103.939, 116.779, 123.68]
-        long startTime = System.nanoTime();
+    // The template Detector of the pool, to read the settings, see acquireDetector to detect with it
+    public Detector getDetector() {
+        return detector;
+    }
 
-        // Intialize some variables
-        float[][] bboxes = null;
-        float[] scores = null;
-        int starting_index = 0;
-        int entered = 0;
+    // The settings are changed on the template once no detection runs on it, see DetectorPool.configure
+    private void configure(DetectorPool.Settings settings) {
+        if (pool == null) return;
+        try {
+            pool.configure(settings);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e("SmartDetector", "Interrupted while changing the settings");
+        }
+    }
 
-        // prepare the input
-        ByteBuffer imgData = convertBitmapToByteBuffer(bitmap, false, inputSizeRpn, rpnModelType);
-        TensorBuffer inputFeature0 = TensorBuffer.createFixedSize(new int[]
-                {1, inputSizeRpn, inputSizeRpn, pixelSize}, DataType.FLOAT32);
-        inputFeature0.loadBuffer(imgData);
+    /**
+     * Checks out a Detector of the pool for a long use, e.g. the pipeline of the live or the scan mode.
+     * It must be given back with releaseDetector. null when the models are not loaded.
+     */
+    public Detector acquireDetector() throws InterruptedException {
+        return pool == null ? null : pool.acquire();
+    }
 
-        // Runs model inference and gets result.
-        RpnModel.Outputs output = rpn_model.process(inputFeature0);
-        float[] obj = output.getOutputFeature0AsTensorBuffer().getFloatArray();
-        float[] box = output.getOutputFeature1AsTensorBuffer().getFloatArray();
+    public void releaseDetector(Detector detector) {
+        if (pool != null && detector != null) pool.release(detector);
+    }
 
-        // prepare the output
-        for (int i = 0; i < anchorDimension; i++)
-            for (int j = 0; j < anchorDimension; j++) {
-                int obj_idx = numberAnchors * (i * anchorDimension + j);
-                int box_idx = numberAnchors * numberCoordinates * (i * anchorDimension + j);
-                float[] obj_ij = Arrays.copyOfRange(obj, obj_idx, obj_idx + numberAnchors);
-                float[] box_ij = Arrays.copyOfRange(box, box_idx, box_idx + numberAnchors * numberCoordinates);
-                ArrayList<Integer> indices = new ArrayList<>();
+    public DetectorPool getPool() {
+        return pool;
+    }
 
-                for (int z = 0; z < obj_ij.length; z++) {
-                    if (obj_ij[z] > confidence_threshold) indices.add(z);
-                }
-                if (!indices.isEmpty()) {
-                    if (entered == 0) {
-                        scores = new float[indices.size()];
-                        bboxes = new float[indices.size()][numberCoordinates];
-                        entered = 1;
-                    } else {
-                        scores = Arrays.copyOf(scores, scores.length + indices.size());
-                        bboxes = Arrays.copyOf(bboxes, bboxes.length + indices.size());
-                        for (int t = starting_index; t < bboxes.length; t++)
-                            bboxes[t] = new float[numberCoordinates];
-                    }
-
-                    for (int z = 0; z < indices.size(); z++) {
-                        scores[starting_index + z] = obj_ij[indices.get(z)];
-
-                        bboxes[starting_index + z][0] = box_ij[indices.get(z) * numberCoordinates] * modelAnchors[box_idx + indices.get(z) * numberCoordinates + 2] + modelAnchors[box_idx + indices.get(z) * numberCoordinates];
-                        bboxes[starting_index + z][1] = box_ij[indices.get(z) * numberCoordinates + 1] * modelAnchors[box_idx + indices.get(z) * numberCoordinates + 3] + modelAnchors[box_idx + indices.get(z) * numberCoordinates + 1];
-                        bboxes[starting_index + z][2] = (float) Math.exp(box_ij[indices.get(z) * numberCoordinates + 2] + Math.log(modelAnchors[box_idx + indices.get(z) * numberCoordinates + 2]));
-                        bboxes[starting_index + z][3] = (float) Math.exp(box_ij[indices.get(z) * numberCoordinates + 3] + Math.log(modelAnchors[box_idx + indices.get(z) * numberCoordinates + 3]));
-                    }
-                    starting_index += indices.size();
-                }
-            }
-        lastBBoxesGenerationTime = ((System.nanoTime() - startTime) / timeFactor);
-        return tool_nms(bboxes, scores, iou_threshold, null);
-    }
-
-    private float[][] get_embeddings(Bitmap bitmap, float[][] bboxes, int counter) {
-        long startTime = System.nanoTime();
-
-        // Intialize some variables
-        float[][] embeddings = new float[counter][embeddingSize];
-        int j = 0;
-        Bitmap bt = null;
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        for (int i = 0; i < bboxes.length; i++) {
-            // crop the needed part of the image
-            bt = Bitmap.createBitmap(bitmap, (int) Math.max(Math.floor(bboxes[i][0]),0), (int) Math.max(Math.floor(bboxes[i][1]),0), (int) Math.min(Math.ceil(bboxes[i][2]),width - Math.ceil(bboxes[i][0])), (int) Math.min(Math.ceil(bboxes[i][3]), height - Math.ceil(bboxes[i][1])) );
-            bt = Bitmap.createScaledBitmap(bt, inputSizeEMBD, inputSizeEMBD, false);
-
-            // prepare the input
-            ByteBuffer imgData = convertBitmapToByteBuffer(bt, false, inputSizeEMBD, embdModelType);
-            TensorBuffer inputFeature0 = TensorBuffer.createFixedSize(new int[]
-                    {1, inputSizeEMBD, inputSizeEMBD, pixelSize}, DataType.FLOAT32);
-            inputFeature0.loadBuffer(imgData);
-
-            // Runs model inference and gets result.
-            embeddings[j] = embedding_model.process(inputFeature0).getOutputFeature0AsTensorBuffer().getFloatArray();
-            j++;
+    /* ***** Metrics ***** */
+
+    // Percentiles of each stage and counters, over the detections of every thread since the start
+    public DetectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Writes the snapshot of the metrics as a JSON file, e.g. to pull it from the device with adb
+    public void writeMetrics(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(metrics.toJson());
         }
-        lastEmbeddingGenerationTime = ((System.nanoTime() - startTime) / timeFactor);
-        return embeddings;
     }
 
-    private Pair<String, Float> inference(float[] embedding) throws IOException {
-        long startTime = System.nanoTime();
+    /**
+     * Sets how many crops are packed in one embedding interpreter call, see Detector.setEmbeddingBatchSize.
+     */
+    public void setEmbeddingBatchSize(int embeddingBatchSize) {
+        configure(template -> template.setEmbeddingBatchSize(embeddingBatchSize));
+    }
 
-        // Intialize some variables
-        TreeMap<String, Float> predictions = new TreeMap<>();
+    // The result cache of predict, null when it could not be opened
+    public ResultCache getResultCache() {
+        return detector == null ? null : detector.getResultCache();
+    }
 
-        // prepare the frist input
-        TensorBuffer baselineInput = TensorBuffer.createFixedSize(new int[]{1, embeddingSize}, DataType.FLOAT32);
-        baselineInput.loadArray(embedding);
+    // Caps the number of RPN proposals of a frame, 0 keeps every proposal
+    public void setMaxProposals(int maxProposals) {
+        configure(template -> template.setMaxProposals(maxProposals));
+    }
 
-        for (Object className : classes.keySet()) {
-            float max_score = 0.0F;
-            for (float[] embed : classes.get(className)) {
-                // prepare the second input
-                TensorBuffer comparedInput = TensorBuffer.createFixedSize(new int[]{1, embeddingSize}, DataType.FLOAT32);
-                comparedInput.loadArray(embed);
+    public Pair predict(Bitmap bitmap) throws IOException {
+        return predict(bitmap, null);
+    }
 
-                // Runs model inference and gets result.
-                float similarityScore = head.process(baselineInput, comparedInput).getOutputFeature0AsTensorBuffer().getFloatValue(0);
-                if (similarityScore > max_score) max_score = similarityScore;
-            }
-            // save predictions
-            predictions.put((String) className, max_score);
+    /**
+     * Predicts a frame of a video: the boxes are followed by the tracker and only the new or changed boxes
+     * are embedded, see Detector.detect(int[], BoxTracker). A null tracker embeds every box.
+     */
+    public Pair predict(Bitmap bitmap, BoxTracker tracker) throws IOException {
+        DetectionResult result = detect(bitmap, tracker);
+        Pair<String, Float>[] res = new Pair[result.size()];
+        for (int j = 0; j < res.length; j++) {
+            res[j] = new Pair(result.getClasses()[j], result.getScores()[j]);
         }
-        // sort the classes by highest similarity
-        SortedMap sortedPredictions = (SortedMap) valueSort(predictions);
+        return new Pair(result.getBoxes(), res);
+    }
 
-        lastHeadComparaisonTime = ((System.nanoTime() - startTime) / timeFactor);
+    /**
+     * Detects a bitmap on a Detector of the pool, it can be called from several threads at the same time.
+     * The result has the boxes, the classes, the scores and the timings of this call.
+     */
+    public DetectionResult detect(Bitmap bitmap, BoxTracker tracker) throws IOException {
+        if (pool == null) throw new IOException("The models are not loaded");
+        Detector detector;
+        try {
+            detector = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a detector");
+        }
+        try {
+            return detect(detector, bitmap, tracker);
+        } finally {
+            pool.release(detector);
+        }
+    }
 
-        Map.Entry<String, Float> entry = (Map.Entry<String, Float>) sortedPredictions.entrySet().iterator().next();
-        if (entry.getValue() < class_confidence){
-            return new Pair("Not sure", entry.getValue());
+    private DetectionResult detect(Detector detector, Bitmap bitmap, BoxTracker tracker) {
+        // Image preprocessing, in the pixels of this detector
+        bitmap = imagePreprocessing(bitmap, cropSize, detector.getInputSize());
+        int[] pixels = detector.getPixels();
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+
+        // Detection
+        DetectionResult result = tracker == null ? detector.detect(pixels) : detector.detect(pixels, tracker);
+        lastResult = result;
+        Log.d("counter", String.valueOf(result.size()));
+        ResultCache resultCache = detector.getResultCache();
+        if (tracker == null && resultCache != null) {
+            Log.d("cache", (result.isCached() ? "hit" : "miss") + String.format(Locale.US,
+                    " in %.2f ms, %.0f%% hits, %d entries, %d evictions", resultCache.getLastLookupTime(),
+                    100 * resultCache.getHitRate(), resultCache.getEntryCount(), resultCache.getEvictionCount()));
         }
-        return new Pair(entry.getKey(), entry.getValue());
+        return result;
     }
 
     /*  ***** load the data needed for the predictions ***** */
 
     public void load_anchors(int[] anchors) {
-        modelAnchors = anchors;
+        configure(template -> template.setAnchors(anchors));
     }
 
     public void putClass(String className, float[][] embeds) {
-        classes.put(className, embeds);
-    }
-
-    /* ***** Bboxes operations  ***** */
-
-    private float[][] tool_nms(float[][] bboxes, float[] scores, float threshold, String[] classes) {
-
-        int y = 0;
-        int counter = 0;
-        double iou_result;
-        String thisClass = "";
-
-        // Intialize some variables
-        int[] indexes = ArrayUtils.argsort(scores);
-        int[] complete_bool = new int[indexes.length];
-        Arrays.fill(complete_bool, 0);
-
-        // Detecting the non-necessary bboxes using the iou metric
-        for (int index = indexes.length - 1; index >= 0; index--) {
-            int i = indexes[index];
-            if(classes != null) thisClass = classes[i];
-            if (complete_bool[i] == 0) {
-                complete_bool[i] = 2;
-                counter++;
-
-                BoundingBox bbox = new BoundingBox(Math.round(bboxes[i][0]), Math.round(bboxes[i][1]),
-                        Math.round(bboxes[i][2]), Math.round(bboxes[i][3]));
-                for (int j = 0; j < complete_bool.length; j++) {
-                    if (complete_bool[j] == 1 || complete_bool[j] == 2) continue;
-                    BoundingBox compare_bbox = new BoundingBox(Math.round(bboxes[j][0]), Math.round(bboxes[j][1]),
-                            Math.round(bboxes[j][2]), Math.round(bboxes[j][3]));
-                    iou_result = BoundingBox.IOU(bbox, compare_bbox);
-                    if (iou_result > threshold && complete_bool[j] == 0) {
-                        if(classes == null || classes[j] == thisClass) complete_bool[j] = 1;
-                    }
-                }
-            }
-        }
+        configure(template -> template.putClass(className, embeds));
+    }
 
-        // saving the main bboxes
-        float[][] res = new float[counter][];
-        for (int i = 0; i < indexes.length; i++) {
-            if (complete_bool[i] == 2) {
-                res[y] = bboxes[i];
-                y++;
-            }
-        }
-        return res;
+    // The embeddings can also be streamed straight into the store
+    public GalleryStore getGallery() {
+        return detector == null ? new GalleryStore(embeddingSize) : detector.getGallery();
     }
 
-    private float[][] cxcy_to_x1y1(float[][] bboxes) {
-        for (int i = 0; i < bboxes.length; i++) {
-            if (bboxes[i] != null) {
-                bboxes[i][0] = bboxes[i][0] - bboxes[i][2] / 2;
-                bboxes[i][1] = bboxes[i][1] - bboxes[i][3] / 2;
+    // Replaces the whole gallery, e.g. with the store of a memory-mapped gallery file
+    public void setGallery(GalleryStore gallery) {
+        configure(template -> template.setGallery(encoded(gallery)));
+    }
+
+    // Stores the gallery in another encoding, the embeddings added next are quantized as they come
+    public void setGalleryEncoding(GalleryStore.Encoding encoding) {
+        galleryEncoding = encoding;
+        configure(template -> template.setGallery(encoded(template.getGallery())));
+    }
+
+    private GalleryStore encoded(GalleryStore gallery) {
+        return gallery.getEncoding() == galleryEncoding ? gallery : gallery.quantize(galleryEncoding);
+    }
+
+    // Builds the gallery index, or the class prototypes for a smaller gallery, ahead of the first detection
+    public void updateIndex() {
+        configure(template -> {
+            long startTime = System.nanoTime();
+            GalleryIndex index = template.updateIndex();
+            if (index != null) {
+                Log.d("GalleryIndex", index.getListCount() + " lists, " + index.getProbes() + " probes, built in "
+                        + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+                return;
             }
-        }
-        return bboxes;
+            ClassPrototypes prototypes = template.updatePrototypes();
+            if (prototypes != null) {
+                Log.d("ClassPrototypes", prototypes.getPrototypeCount() + " prototypes, built in "
+                        + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+            }
+        });
     }
 
     /* ***** Bitmap operations  ***** */
 
+    /**
+     * Sample size to decode an image of this size with, see ImagePicker.decodeBitmap:
+     * the part of the image used by predict keeps at least the input size of the RPN once subsampled.
+     */
+    public int getSampleSize(int width, int height) {
+        int usedSize = (width > cropSize && height > cropSize) ? cropSize : Math.min(width, height);
+        return ImagePicker.getSampleSize(usedSize, detector.getInputSize());
+    }
+
+    /**
+     * Turns an image decoded with a sample size into the pixels of the RPN input, cropped like predict
+     * crops the full size image.
+     */
+    public void toPixels(Bitmap bitmap, int sampleSize, int[] pixels) {
+        int inputSize = detector.getInputSize();
+        Bitmap input = imagePreprocessing(bitmap, cropSize / sampleSize, inputSize);
+        input.getPixels(pixels, 0, inputSize, 0, 0, inputSize, inputSize);
+        if (input != bitmap) input.recycle();
+    }
+
     private Bitmap imagePreprocessing(Bitmap bitmap, int cropSize, int inputSize) {
         if (bitmap.getWidth() > cropSize && bitmap.getHeight() > cropSize) {
             bitmap = Bitmap.createBitmap(bitmap,
@@ -389,60 +489,4 @@ public class SmartDetector {
         }
         return Bitmap.createScaledBitmap(bitmap, inputSize, inputSize, false);
     }
-
-    private ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap, Boolean quant, int inputSize, String modelType) {
-        ByteBuffer byteBuffer;
-        int pixel = 0;
-        int[] intValues = new int[inputSize * inputSize];
-
-        if (quant) {
-            byteBuffer = ByteBuffer.allocateDirect(inputSize * inputSize * pixelSize);
-        } else {
-            byteBuffer = ByteBuffer.allocateDirect(BYTES_SIZE * inputSize * inputSize * pixelSize);
-        }
-        byteBuffer.order(ByteOrder.nativeOrder());
-
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        for (int i = 0; i < inputSize; ++i) {
-            for (int j = 0; j < inputSize; ++j) {
-                final int val = intValues[pixel++];
-                if (quant) {
-                    byteBuffer.put((byte) ((val >> 16) & 0xFF));
-                    byteBuffer.put((byte) ((val >> 8) & 0xFF));
-                    byteBuffer.put((byte) (val & 0xFF));
-                } else {
-                    if (modelType.equals(SmartDetector.MODEL_PROCESSING_MOBILENET)) {
-                        byteBuffer.putFloat(((((val >> 16) & 0xFF)) / 127.5f) - 1.0f);
-                        byteBuffer.putFloat(((((val >> 8) & 0xFF)) / 127.5f) - 1.0f);
-                        byteBuffer.putFloat(((((val) & 0xFF)) / 127.5f) - 1.0f);
-                    } else if (modelType.equals(SmartDetector.MODEL_PROCESSING_VGG)) {
-                        byteBuffer.putFloat(((((val >> 16) & 0xFF)) / 255.0f));
-                        byteBuffer.putFloat(((((val >> 8) & 0xFF)) / 255.0f));
-                        byteBuffer.putFloat(((((val) & 0xFF)) / 255.0f));
-                    } else {
-                        byteBuffer.putFloat((((val >> 16) & 0xFF)) * 1.0f);
-                        byteBuffer.putFloat((((val >> 8) & 0xFF)) * 1.0f);
-                        byteBuffer.putFloat((((val) & 0xFF)) * 1.0f);
-                    }
-                }
-            }
-        }
-        return byteBuffer;
-    }
-
-    /* ***** Map operations  ***** */
-
-    private static <K, V extends Comparable<V>> Map<K, V> valueSort(final Map<K, V> map) {
-        Comparator<K> valueComparator = new Comparator<K>() {
-            public int compare(K k1, K k2) {
-                int comp = map.get(k2).compareTo(map.get(k1));
-                if (comp == 0) return 1;
-                else return comp;
-            }
-        };
-        Map<K, V> sorted = new TreeMap<K, V>(valueComparator);
-        sorted.putAll(map);
-        return sorted;
-    }
 }
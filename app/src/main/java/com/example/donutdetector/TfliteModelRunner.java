@@ -0,0 +1,67 @@
+package com.example.donutdetector;
+
+import com.example.donutdetector.core.ModelRunner;
+import com.example.donutdetector.core.Quantization;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// This class is implemented to run a model of the detector core with a TFLite Interpreter
+// The UINT8 tensors of a quantized model are described by their TFLite quantization parameters
+public class TfliteModelRunner implements ModelRunner, Quantization.Model {
+
+    private final Interpreter interpreter;
+    private final Map<Integer, Object> outputs = new HashMap<>();
+
+    public TfliteModelRunner(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    // The tensors are allocated here, so a shape the model does not accept fails now and not in the next run
+    @Override
+    public void resizeInput(int index, int[] shape) {
+        try {
+            interpreter.resizeInput(index, shape);
+            interpreter.allocateTensors();
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException("Cannot resize input " + index + " : " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+        // the output map is reused, so a call does not allocate
+        for (int i = 0; i < outputs.length; i++) this.outputs.put(i, outputs[i]);
+        interpreter.runForMultipleInputsOutputs(inputs, this.outputs);
+    }
+
+    @Override
+    public Quantization getInputQuantization(int index) {
+        return quantization(interpreter.getInputTensor(index));
+    }
+
+    @Override
+    public Quantization getOutputQuantization(int index) {
+        return quantization(interpreter.getOutputTensor(index));
+    }
+
+    private static Quantization quantization(Tensor tensor) {
+        if (tensor.dataType() != DataType.UINT8) return null;
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return new Quantization(params.getScale(), params.getZeroPoint());
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.donutdetector.core;
+
+import java.util.Arrays;
+
+// This class is implemented to add some functionalities to the array class
+// The main function here is the argsort function
+// The indexes are sorted as primitive longs: the sortable bits of the value in the high half
+// and the index in the low half, so equal values keep their index order like a stable sort
+public final class ArrayUtils {
+
+    private ArrayUtils() {
+    }
+
+    public static int[] argsort(final float[] a) {
+        return argsort(a, true);
+    }
+
+    public static int[] argsort(final float[] a, final boolean ascending) {
+        int[] indexes = new int[a.length];
+        argsort(a, a.length, ascending, indexes, new long[a.length]);
+        return indexes;
+    }
+
+    /**
+     * Sorts the indexes of the first n values into the indexes array, using keys as scratch space.
+     * Both arrays can be reused from one call to the other, so nothing is allocated.
+     */
+    public static void argsort(final float[] a, final int n, final boolean ascending, final int[] indexes, final long[] keys) {
+        for (int i = 0; i < n; i++) {
+            int key = sortableBits(a[i]);
+            keys[i] = ((long) (ascending ? key : ~key) << 32) | i;
+        }
+        Arrays.sort(keys, 0, n);
+        for (int i = 0; i < n; i++) {
+            indexes[i] = (int) keys[i];
+        }
+    }
+
+    /**
+     * Indexes of the k highest values, from the highest to the lowest (equal values by index order).
+     * It keeps a bounded min-heap, so it costs O(n log k) instead of sorting all the values.
+     */
+    public static int[] topK(final float[] a, final int k) {
+        return topK(a, a.length, k);
+    }
+
+    public static int[] topK(final float[] a, final int n, final int k) {
+        int size = Math.min(k, n);
+        long[] heap = new long[size];
+        if (size == 0) return new int[0];
+
+        for (int i = 0; i < n; i++) {
+            // a higher key is a better value, and a lower index for equal values
+            long key = ((long) sortableBits(a[i]) << 32) | (Integer.MAX_VALUE - i);
+            if (i < size) {
+                heap[i] = key;
+                siftUp(heap, i);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, size);
+            }
+        }
+
+        Arrays.sort(heap);
+        int[] res = new int[size];
+        for (int i = 0; i < size; i++) {
+            res[i] = Integer.MAX_VALUE - (int) heap[size - 1 - i];
+        }
+        return res;
+    }
+
+    // Maps a float to an int with the same order as Float.compare
+    static int sortableBits(final float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    // Min-heap of keys, also used by the proposals selection of RpnDecoder
+    static void siftUp(long[] heap, int i) {
+        long key = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    static void siftDown(long[] heap, int size) {
+        long key = heap[0];
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+            if (key <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+
+    public static <T extends Number> int[] asArray(final T... a) {
+        int[] b = new int[a.length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = a[i].intValue();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.donutdetector.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// This class is implemented to scan a whole list of images (a folder, a photo library) without any user action
+// A few decoding threads turn the images into pixels and a PipelinedDetector detects them, the results are
+// appended to a ScanResultsFile as they come, so the images already in the file are skipped when a scan is resumed
+// The pixel buffers are taken from a fixed pool and given back once their result is written,
+// so the memory stays flat whatever the number of images
+public class BatchScanner {
+
+    /**
+     * Loads the images of the scan.
+     */
+    public interface ImageSource {
+        // Decodes an image into the ARGB pixels of the RPN input, square images of Detector.getInputSize() pixels
+        void load(String id, int[] argb) throws IOException;
+    }
+
+    /**
+     * Follows the scan, on the callback executor.
+     */
+    public interface Listener {
+        // done counts the images of the list already in the results file, including the ones of a previous scan
+        void onProgress(int done, int total, float imagesPerMinute);
+
+        void onFinished(int done, int total, boolean cancelled);
+    }
+
+    // Time variables
+    private final static long WAIT_STEP = 100; // ms
+
+    private final Detector detector;
+    private final ImageSource source;
+    private final ScanResultsFile results;
+    private final int decoders;
+    private final Executor callbackExecutor;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean running = false;
+    private final AtomicInteger scannedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private volatile int skippedCount = 0;
+    private volatile long startTime = 0;
+    private volatile long lastTime = 0;
+
+    /**
+     * @param decoders         threads decoding the images, the detection has its own threads
+     * @param callbackExecutor receives the progress, e.g. the main thread
+     */
+    public BatchScanner(Detector detector, ImageSource source, ScanResultsFile results, int decoders,
+                        Executor callbackExecutor) {
+        this.detector = detector;
+        this.source = source;
+        this.results = results;
+        this.decoders = Math.max(decoders, 1);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Scans the images of the list which are not in the results file yet, on a background thread.
+     * The results file is closed at the end of the scan.
+     */
+    public void start(final List<String> ids, final Listener listener) {
+        if (running) throw new IllegalStateException("The scan is running");
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                scan(ids, listener);
+            }
+        }, "BatchScanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the scan, the images already written stay in the results file for the next scan.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void scan(List<String> ids, final Listener listener) {
+        final int total = ids.size();
+        List<String> pending = new ArrayList<>();
+        for (String id : ids) {
+            if (!results.isDone(id)) pending.add(id);
+        }
+        skippedCount = total - pending.size();
+
+        // one buffer per image in flight: in a decoder, in a queue or in a stage of the pipeline
+        int queueCapacity = 1;
+        int buffers = decoders + 3 * (queueCapacity + 1);
+        final BlockingQueue<int[]> freeBuffers = new ArrayBlockingQueue<>(buffers);
+        int inputSize = detector.getInputSize();
+        for (int i = 0; i < buffers; i++) freeBuffers.add(new int[inputSize * inputSize]);
+
+        final PipelinedDetector pipeline = new PipelinedDetector(detector, queueCapacity, new Executor() {
+            public void execute(Runnable runnable) {
+                // the results are written by the last stage
+                runnable.run();
+            }
+        });
+        ExecutorService decoderPool = Executors.newFixedThreadPool(decoders);
+        startTime = System.nanoTime();
+        try {
+            for (final String id : pending) {
+                if (cancelled) break;
+                final int[] argb = takeBuffer(freeBuffers);
+                if (argb == null) break;
+                decoderPool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (cancelled) {
+                                freeBuffers.add(argb);
+                                return;
+                            }
+                            source.load(id, argb);
+                            pipeline.submit(argb, new DetectionExecutor.Callback<DetectionResult>() {
+                                public void onResult(DetectionResult result, long queueWaitTime, long latency) {
+                                    write(id, result, null, freeBuffers, argb, total, listener);
+                                }
+
+                                public void onError(Exception e) {
+                                    write(id, null, e, freeBuffers, argb, total, listener);
+                                }
+                            });
+                        } catch (InterruptedException e) {
+                            freeBuffers.add(argb);
+                        } catch (Exception e) {
+                            // an image which can not be decoded is recorded, it is not retried by the next scans,
+                            // unless the failure comes from the cancel, see write
+                            write(id, null, e, freeBuffers, argb, total, listener);
+                        }
+                    }
+                });
+            }
+
+            // all the buffers come back once the last result is written
+            while (!cancelled && freeBuffers.size() < buffers) waitStep();
+        } finally {
+            decoderPool.shutdownNow();
+            pipeline.shutdown();
+            try {
+                decoderPool.awaitTermination(1, TimeUnit.MINUTES);
+                pipeline.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                // closing anyway
+            }
+            try {
+                results.close();
+            } catch (IOException e) {
+                // the written records are already flushed
+            }
+            running = false;
+            final boolean wasCancelled = cancelled;
+            final int done = getDoneCount();
+            callbackExecutor.execute(new Runnable() {
+                public void run() {
+                    listener.onFinished(done, total, wasCancelled);
+                }
+            });
+        }
+    }
+
+    private int[] takeBuffer(BlockingQueue<int[]> freeBuffers) {
+        try {
+            int[] argb = null;
+            while (argb == null && !cancelled) argb = freeBuffers.poll(WAIT_STEP, TimeUnit.MILLISECONDS);
+            return argb;
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private void waitStep() {
+        try {
+            Thread.sleep(WAIT_STEP);
+        } catch (InterruptedException e) {
+            cancelled = true;
+        }
+    }
+
+    // Runs on the last stage of the pipeline or on a decoder
+    private void write(String id, DetectionResult result, Exception error, BlockingQueue<int[]> freeBuffers, int[] argb,
+                       final int total, final Listener listener) {
+        if (result == null && isCancellation(error)) {
+            // the image was only stopped, it is not written so the next scan does it again
+            freeBuffers.add(argb);
+            return;
+        }
+        try {
+            if (result != null) {
+                results.writeResult(id, result);
+                scannedCount.incrementAndGet();
+            } else {
+                results.writeError(id, String.valueOf(error));
+                failedCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // the results file is not writable anymore, e.g. the storage is full
+            cancelled = true;
+        } finally {
+            freeBuffers.add(argb);
+        }
+        lastTime = System.nanoTime();
+        final int done = getDoneCount();
+        final float imagesPerMinute = getImagesPerMinute();
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                listener.onProgress(done, total, imagesPerMinute);
+            }
+        });
+    }
+
+    // A failure caused by the cancel: the decoders are interrupted and the pipeline rejects the images
+    private boolean isCancellation(Exception error) {
+        if (cancelled || Thread.currentThread().isInterrupted()) return true;
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+                    || cause instanceof ClosedByInterruptException || cause instanceof RejectedExecutionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ***** Metrics ***** */
+
+    // Images of the list in the results file
+    public int getDoneCount() {
+        return skippedCount + scannedCount.get() + failedCount.get();
+    }
+
+    // Images detected by this scan
+    public int getScannedCount() {
+        return scannedCount.get();
+    }
+
+    // Images of this scan which could not be decoded or detected
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    // Images already in the results file
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    // Images of this scan per minute, from the start to the last result
+    public float getImagesPerMinute() {
+        long elapsed = lastTime - startTime;
+        int count = scannedCount.get() + failedCount.get();
+        return (startTime == 0 || elapsed <= 0) ? 0 : count * 60_000_000_000f / elapsed;
+    }
+}
@@ -1,4 +1,4 @@
-package com.example.donutdetector;
+package com.example.donutdetector.core;
 
 import java.util.List;
 
@@ -56,4 +56,13 @@ public class BoundingBox {
         return (double) areaOverlap / (areaA + areaB - areaOverlap);
     }
 
+    // Moves the (cx, cy, w, h) boxes of the RPN to their top left corner (x, y, w, h), in place
+    public static float[][] cxcy_to_x1y1(float[][] bboxes) {
+        for (int i = 0; i < bboxes.length; i++) {
+            bboxes[i][0] = bboxes[i][0] - bboxes[i][2] / 2;
+            bboxes[i][1] = bboxes[i][1] - bboxes[i][3] / 2;
+        }
+        return bboxes;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package com.example.donutdetector.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// This class is implemented to follow the boxes of a video from one frame to the next
+// Each box gets a track, matched by IOU (or by centroid distance for the small boxes moving fast),
+// and a track keeps the embedding and the class of its last embedded box
+// The class of a track is reused until its box drifts, changes scale or gets too old, so a donut
+// sitting still is embedded and compared with the gallery once instead of every frame
+// The boxes are (x, y, w, h) like the ones of DetectionResult
+public class BoxTracker {
+
+    // Matching variables
+    float minIou = 0.3f;
+    float maxCentroidDistance = 0.5f; // relative to the size of the track box
+
+    // Re-embedding variables
+    float maxDrift = 0.15f; // centroid shift since the embedding, relative to the size of the embedded box
+    float maxScale = 0.2f; // relative change of the width or the height since the embedding
+    int maxAge = 30; // frames since the embedding
+
+    // Frames a track survives without a matching box
+    int maxMissed = 5;
+
+    // A followed box
+    private static class Track {
+        final int id;
+        final float[] box = new float[4];
+        final float[] embeddedBox = new float[4];
+        float[] embedding = null;
+        String className = null;
+        float score;
+        int age = 0;
+        int missed = 0;
+        boolean matched;
+
+        Track(int id, float[] box) {
+            this.id = id;
+            System.arraycopy(box, 0, this.box, 0, 4);
+        }
+    }
+
+    // A candidate pair of a track and a box
+    private static class Match {
+        final double rank;
+        final Track track;
+        final int box;
+
+        Match(double rank, Track track, int box) {
+            this.rank = rank;
+            this.track = track;
+            this.box = box;
+        }
+    }
+
+    private final Map<Integer, Track> tracks = new HashMap<>();
+    private int nextId = 0;
+
+    // Statistics
+    private long frameCount = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private int lastFrameHits = 0;
+    private int lastFrameMisses = 0;
+    private float costPerBox = 0; // embedding and Head time of one box (ms), smoothed
+    private float savedTime = 0; // estimated time saved by the cache (ms)
+
+    public BoxTracker() {
+    }
+
+    /* ***** Settings ***** */
+
+    public void setMinIou(float minIou) {
+        this.minIou = minIou;
+    }
+
+    public void setMaxCentroidDistance(float maxCentroidDistance) {
+        this.maxCentroidDistance = maxCentroidDistance;
+    }
+
+    public void setMaxDrift(float maxDrift) {
+        this.maxDrift = maxDrift;
+    }
+
+    public void setMaxScale(float maxScale) {
+        this.maxScale = maxScale;
+    }
+
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public void setMaxMissed(int maxMissed) {
+        this.maxMissed = maxMissed;
+    }
+
+    /* ***** Tracking ***** */
+
+    /**
+     * Matches the boxes of a new frame with the tracks, the boxes without a track start a new one.
+     * The tracks without a box for more than maxMissed frames are dropped.
+     *
+     * @return the track id of each box
+     */
+    public int[] update(float[][] boxes) {
+        frameCount++;
+        int[] trackIds = new int[boxes.length];
+        Arrays.fill(trackIds, -1);
+        for (Track track : tracks.values()) track.matched = false;
+
+        // candidate pairs, the best IOU first (the centroid matches come after all the IOU matches)
+        List<Match> matches = new ArrayList<>();
+        for (Track track : tracks.values()) {
+            for (int i = 0; i < boxes.length; i++) {
+                double iou = DetectionResult.iou(track.box, boxes[i]);
+                if (iou >= minIou) {
+                    matches.add(new Match(iou + 1, track, i));
+                } else if (centroidDistance(track.box, boxes[i]) <= maxCentroidDistance) {
+                    matches.add(new Match(iou, track, i));
+                }
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            public int compare(Match a, Match b) {
+                return Double.compare(b.rank, a.rank);
+            }
+        });
+
+        for (Match match : matches) {
+            Track track = match.track;
+            int i = match.box;
+            if (track.matched || trackIds[i] >= 0) continue;
+            track.matched = true;
+            track.missed = 0;
+            track.age++;
+            System.arraycopy(boxes[i], 0, track.box, 0, 4);
+            trackIds[i] = track.id;
+        }
+
+        // the new boxes
+        for (int i = 0; i < boxes.length; i++) {
+            if (trackIds[i] >= 0) continue;
+            Track track = new Track(nextId++, boxes[i]);
+            track.matched = true;
+            tracks.put(track.id, track);
+            trackIds[i] = track.id;
+        }
+
+        // the lost tracks
+        for (Iterator<Track> iterator = tracks.values().iterator(); iterator.hasNext(); ) {
+            Track track = iterator.next();
+            if (!track.matched && ++track.missed > maxMissed) iterator.remove();
+        }
+        return trackIds;
+    }
+
+    /**
+     * Whether the class of the track can be reused for its current box:
+     * it has been embedded, it is not too old and its box has not drifted or changed scale since.
+     */
+    public boolean isCached(int trackId) {
+        Track track = tracks.get(trackId);
+        if (track == null || track.className == null || track.age >= maxAge) return false;
+        float[] box = track.box;
+        float[] embedded = track.embeddedBox;
+        if (centroidDistance(embedded, box) > maxDrift) return false;
+        return Math.abs(box[2] / embedded[2] - 1) <= maxScale && Math.abs(box[3] / embedded[3] - 1) <= maxScale;
+    }
+
+    /**
+     * Saves the embedding and the class of the current box of a track.
+     */
+    public void store(int trackId, float[] embedding, String className, float score) {
+        Track track = tracks.get(trackId);
+        if (track == null) return;
+        System.arraycopy(track.box, 0, track.embeddedBox, 0, 4);
+        track.embedding = embedding;
+        track.className = className;
+        track.score = score;
+        track.age = 0;
+    }
+
+    public String getClassName(int trackId) {
+        Track track = tracks.get(trackId);
+        return track == null ? null : track.className;
+    }
+
+    public float getScore(int trackId) {
+        Track track = tracks.get(trackId);
+        return track == null ? 0 : track.score;
+    }
+
+    public float[] getEmbedding(int trackId) {
+        Track track = tracks.get(trackId);
+        return track == null ? null : track.embedding;
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    // Drops all the tracks, e.g. when the camera moves to another scene
+    public void clear() {
+        tracks.clear();
+    }
+
+    // Distance between the centers, relative to the largest side of the first box
+    private static float centroidDistance(float[] a, float[] b) {
+        float dx = (b[0] + b[2] / 2) - (a[0] + a[2] / 2);
+        float dy = (b[1] + b[3] / 2) - (a[1] + a[3] / 2);
+        return (float) Math.sqrt(dx * dx + dy * dy) / Math.max(Math.max(a[2], a[3]), 1e-6f);
+    }
+
+    /* ***** Statistics ***** */
+
+    /**
+     * Records the outcome of a frame: the boxes served from the cache, the embedded ones and the time
+     * the embedded ones took, used to estimate the time the cache saves.
+     */
+    public void endFrame(int hits, int misses, long embeddingTime) {
+        lastFrameHits = hits;
+        lastFrameMisses = misses;
+        hitCount += hits;
+        missCount += misses;
+        if (misses > 0) {
+            float cost = (float) embeddingTime / 1_000_000 / misses;
+            costPerBox = (costPerBox == 0) ? cost : costPerBox + 0.1f * (cost - costPerBox);
+        }
+        savedTime += hits * costPerBox;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    // Share of the boxes served from the cache
+    public float getHitRate() {
+        long boxes = hitCount + missCount;
+        return boxes == 0 ? 0 : (float) hitCount / boxes;
+    }
+
+    public int getLastFrameHits() {
+        return lastFrameHits;
+    }
+
+    public int getLastFrameMisses() {
+        return lastFrameMisses;
+    }
+
+    // Estimated embedding and Head time saved on the last frame (ms)
+    public float getLastFrameSavedTime() {
+        return lastFrameHits * costPerBox;
+    }
+
+    // Estimated embedding and Head time saved since the start (ms)
+    public float getSavedTime() {
+        return savedTime;
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.donutdetector.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// This class is implemented to pick the few classes of the gallery worth comparing with the Head
+// Each class is summed up by a few prototypes: the mean of its embeddings and the centroids of a small k-means,
+// a query is compared with the prototypes by dot products and only the embeddings of the best classes go to the Head
+// The share of the queries which keep the class the Head gives with the whole gallery (the class recall) is measured
+// by measureRecall, and tune picks the smallest number of classes reaching a target recall
+public class ClassPrototypes {
+
+    // Clustering variables
+    private final static int ITERATIONS = 10;
+
+    private final GalleryStore gallery;
+    private final int galleryVersion;
+    private final int embeddingSize;
+    private final int classCount;
+
+    // Prototypes of all the classes one after the other, with their class
+    private final int prototypeCount;
+    private final float[] prototypes;
+    private final int[] prototypeClasses;
+
+    // Class sizes, the largest first, to size the candidate rows
+    private final int[] sortedSizes;
+
+    // Selection variables
+    private final float[] classScores;
+    private long[] heap;
+
+    private ClassPrototypes(GalleryStore gallery, int prototypeCount, float[] prototypes, int[] prototypeClasses) {
+        this.gallery = gallery;
+        this.galleryVersion = gallery.getVersion();
+        this.embeddingSize = gallery.getEmbeddingSize();
+        this.classCount = gallery.getClassCount();
+        this.prototypeCount = prototypeCount;
+        this.prototypes = prototypes;
+        this.prototypeClasses = prototypeClasses;
+        this.classScores = new float[classCount];
+        this.heap = new long[classCount];
+
+        sortedSizes = new int[classCount];
+        for (int c = 0; c < classCount; c++) sortedSizes[c] = gallery.getClassEnd(c) - gallery.getClassStart(c);
+        Arrays.sort(sortedSizes);
+        for (int i = 0; i < classCount / 2; i++) {
+            int swap = sortedSizes[i];
+            sortedSizes[i] = sortedSizes[classCount - 1 - i];
+            sortedSizes[classCount - 1 - i] = swap;
+        }
+    }
+
+    /**
+     * Computes the mean of each class and the centroids of up to centroids clusters of its embeddings.
+     * A class with no more embeddings than centroids keeps its embeddings as they are.
+     */
+    public static ClassPrototypes build(GalleryStore gallery, int centroids, long seed) {
+        // Intialize some variables
+        int d = gallery.getEmbeddingSize();
+        int classCount = gallery.getClassCount();
+        int max = 0;
+        for (int c = 0; c < classCount; c++) {
+            max += 1 + Math.min(centroids, gallery.getClassEnd(c) - gallery.getClassStart(c));
+        }
+        float[] prototypes = new float[max * d];
+        int[] prototypeClasses = new int[max];
+        Random random = new Random(seed);
+
+        int count = 0;
+        float[] row = new float[d];
+        for (int c = 0; c < classCount; c++) {
+            int start = gallery.getClassStart(c);
+            int n = gallery.getClassEnd(c) - start;
+            if (n == 0) continue;
+            float[] data = new float[n * d];
+            for (int i = 0; i < n; i++) System.arraycopy(gallery.get(start + i, row), 0, data, i * d, d);
+
+            // the mean, its dot product with a query is the mean of the dot products of the class
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < d; k++) prototypes[count * d + k] += data[i * d + k] / n;
+            }
+            prototypeClasses[count++] = c;
+
+            // the centroids, for the classes made of several looks
+            int k = Math.min(centroids, n);
+            if (k <= 0) continue;
+            float[] centers = kmeans(data, n, d, k, random);
+            System.arraycopy(centers, 0, prototypes, count * d, k * d);
+            for (int i = 0; i < k; i++) prototypeClasses[count++] = c;
+        }
+        return new ClassPrototypes(gallery, count, prototypes, prototypeClasses);
+    }
+
+    // Lloyd's k-means, the first centers are k distinct embeddings
+    private static float[] kmeans(float[] data, int n, int d, int k, Random random) {
+        float[] centers = new float[k * d];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(n - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            System.arraycopy(data, order[i] * d, centers, i * d, d);
+        }
+        if (k == n) return centers;
+
+        int[] assignments = new int[n];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                int best = 0;
+                float bestDistance = Float.POSITIVE_INFINITY;
+                for (int c = 0; c < k; c++) {
+                    float distance = 0;
+                    for (int j = 0; j < d; j++) {
+                        float diff = data[i * d + j] - centers[c * d + j];
+                        distance += diff * diff;
+                    }
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = c;
+                    }
+                }
+                if (iteration == 0 || best != assignments[i]) changed = true;
+                assignments[i] = best;
+            }
+            if (!changed) break;
+
+            // an empty cluster keeps its center
+            Arrays.fill(sizes, 0);
+            for (int i = 0; i < n; i++) sizes[assignments[i]]++;
+            for (int c = 0; c < k; c++) {
+                if (sizes[c] > 0) Arrays.fill(centers, c * d, (c + 1) * d, 0.0f);
+            }
+            for (int i = 0; i < n; i++) {
+                int c = assignments[i];
+                for (int j = 0; j < d; j++) centers[c * d + j] += data[i * d + j] / sizes[c];
+            }
+        }
+        return centers;
+    }
+
+    /* ***** Settings ***** */
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    public int getPrototypeCount() {
+        return prototypeCount;
+    }
+
+    // Embeddings of the m largest classes: the most rows the Head can get for m classes
+    public int getMaxRows(int m) {
+        int rows = 0;
+        for (int i = 0; i < Math.min(m, classCount); i++) rows += sortedSizes[i];
+        return rows;
+    }
+
+    // Whether the gallery changed since the prototypes were computed
+    public boolean isStale(GalleryStore gallery) {
+        return gallery != this.gallery || gallery.getVersion() != galleryVersion;
+    }
+
+    /* ***** Selection ***** */
+
+    /**
+     * Keeps the m classes whose best prototype has the highest dot product with the query.
+     *
+     * @param result receives the class indexes, from the best to the worst
+     * @return the number of classes
+     */
+    public int select(float[] query, int m, int[] result) {
+        Arrays.fill(classScores, Float.NEGATIVE_INFINITY);
+        for (int p = 0; p < prototypeCount; p++) {
+            float sum = 0;
+            for (int k = 0; k < embeddingSize; k++) sum += prototypes[p * embeddingSize + k] * query[k];
+            int c = prototypeClasses[p];
+            if (sum > classScores[c]) classScores[c] = sum;
+        }
+
+        // a higher key is a better score, and a lower class for equal scores
+        int size = 0;
+        for (int c = 0; c < classCount; c++) {
+            if (classScores[c] == Float.NEGATIVE_INFINITY) continue;
+            long key = ((long) ArrayUtils.sortableBits(classScores[c]) << 32) | (Integer.MAX_VALUE - c);
+            if (size < m) {
+                heap[size] = key;
+                ArrayUtils.siftUp(heap, size++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                ArrayUtils.siftDown(heap, m);
+            }
+        }
+        Arrays.sort(heap, 0, size);
+        for (int i = 0; i < size; i++) result[i] = Integer.MAX_VALUE - (int) heap[size - 1 - i];
+        return size;
+    }
+
+    /* ***** Recall ***** */
+
+    /**
+     * Share of the queries classified by the Head with the m classes selected as with the whole gallery:
+     * the recall of the classifier itself, not of the dot products of the prototypes.
+     *
+     * @param engine the Head, its gallery is set to the gallery of the prototypes
+     */
+    public float measureRecall(SimilarityEngine engine, float[][] queries, int m) {
+        return measureRecall(engine, queries, exactClasses(engine, queries), m);
+    }
+
+    // The class of each query by the Head on the whole gallery
+    private int[] exactClasses(SimilarityEngine engine, float[][] queries) {
+        if (engine.isStale(gallery)) engine.setGallery(gallery);
+        int[] exact = new int[queries.length];
+        for (int q = 0; q < queries.length; q++) exact[q] = engine.bestClass(engine.scoreClasses(queries[q]));
+        return exact;
+    }
+
+    private float measureRecall(SimilarityEngine engine, float[][] queries, int[] exact, int m) {
+        if (queries.length == 0 || classCount == 0) return 1;
+        int hits = 0;
+        for (int q = 0; q < queries.length; q++) {
+            if (engine.bestClass(engine.scoreClasses(queries[q], this, m)) == exact[q]) hits++;
+        }
+        return (float) hits / queries.length;
+    }
+
+    /**
+     * Smallest number of classes reaching the target recall of the Head on the queries.
+     */
+    public int tune(SimilarityEngine engine, float[][] queries, float targetRecall) {
+        int[] exact = exactClasses(engine, queries);
+        for (int m = 1; m < classCount; m++) {
+            if (measureRecall(engine, queries, exact, m) >= targetRecall) return m;
+        }
+        return classCount;
+    }
+}
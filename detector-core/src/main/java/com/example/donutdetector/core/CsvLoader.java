@@ -0,0 +1,92 @@
+package com.example.donutdetector.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// This class is implemented to read the csv files of the assets folder
+// embeds.csv has one embedding per line, classes.csv has "end index,class name" lines
+// and anchors.csv has all the anchors coordinates on one line
+public final class CsvLoader {
+
+    private CsvLoader() {
+    }
+
+    /**
+     * Streams the embeddings into the store, class by class, without keeping a second copy.
+     */
+    public static void readGallery(Reader embeddings, Reader classes, GalleryStore gallery) throws IOException {
+        // initialize some variables
+        String line;
+        int i = 0;
+        int a = 0;
+        List<String> classNames = new ArrayList<>();
+        int[] indices = readClasses(classes, classNames);
+        float[] embedding = new float[gallery.getEmbeddingSize()];
+        if (indices.length == 0) return;
+
+        BufferedReader readerEmbds = new BufferedReader(embeddings);
+        gallery.beginClass(classNames.get(a));
+        while ((line = readerEmbds.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            // the indices of classes.csv are the end of each class
+            while (i >= indices[a] && a < indices.length - 1) {
+                a++;
+                gallery.beginClass(classNames.get(a));
+            }
+            gallery.add(parseFloats(line, embedding));
+            i++;
+        }
+        readerEmbds.close();
+    }
+
+    /**
+     * Reads classes.csv, the names are added to classNames and the end indices are returned.
+     */
+    public static int[] readClasses(Reader classes, List<String> classNames) throws IOException {
+        String line;
+        List<Integer> indices = new ArrayList<>();
+        BufferedReader readerClasses = new BufferedReader(classes);
+        while ((line = readerClasses.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            int comma = line.indexOf(',');
+            indices.add(Integer.parseInt(line.substring(0, comma).trim()));
+            classNames.add(line.substring(comma + 1));
+        }
+        readerClasses.close();
+
+        int[] res = new int[indices.size()];
+        for (int i = 0; i < res.length; i++) res[i] = indices.get(i);
+        return res;
+    }
+
+    public static int[] readAnchors(Reader anchors) throws IOException {
+        BufferedReader readerAnchors = new BufferedReader(anchors);
+        String line = readerAnchors.readLine();
+        readerAnchors.close();
+        if (line == null) throw new IOException("The anchors file is empty");
+        return parseInts(line);
+    }
+
+    public static float[] parseFloats(String line, float[] arr) {
+        String[] str = line.split(",");
+        if (str.length != arr.length)
+            throw new IllegalArgumentException("Expected " + arr.length + " values, found " + str.length);
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = Float.parseFloat(str[i]);
+        }
+        return arr;
+    }
+
+    public static int[] parseInts(String line) {
+        String[] str = line.split(",");
+        int size = str.length;
+        int[] arr = new int[size];
+        for (int i = 0; i < size; i++) {
+            arr[i] = Integer.parseInt(str[i].trim());
+        }
+        return arr;
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.donutdetector.core;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This class is implemented to run the predictions on a worker thread instead of the UI thread
+// There is one worker and at most one pending request: a new request replaces the pending one,
+// which is cancelled, so a slow prediction never builds a backlog of stale images (latest wins)
+// The results are delivered on the callback executor (e.g. the main thread) with their queue wait and latency
+public class DetectionExecutor {
+
+    /**
+     * Receives the outcome of a request, on the callback executor.
+     * A cancelled or dropped request calls neither method.
+     */
+    public interface Callback<R> {
+        // queueWaitTime: from the submission to the start, latency: from the submission to the result (ms)
+        void onResult(R result, long queueWaitTime, long latency);
+
+        void onError(Exception e);
+    }
+
+    // Time variables
+    final int timeFactor = 1_000_000;
+    private volatile long lastQueueWaitTime;
+    private volatile long lastLatency;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor worker;
+
+    public DetectionExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        // one worker and one pending slot, the pending request is dropped when a new one comes
+        this.worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DetectionExecutor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    ((Future<?>) runnable).cancel(false);
+                    return;
+                }
+                Runnable stale = executor.getQueue().poll();
+                if (stale != null) {
+                    ((Future<?>) stale).cancel(false);
+                    droppedCount.incrementAndGet();
+                }
+                executor.execute(runnable);
+            }
+        });
+    }
+
+    /**
+     * Queues a prediction. The pending request, if any, is cancelled and replaced.
+     * The returned future can be used to cancel this request or to wait for its result.
+     */
+    public <R> Future<R> submit(Callable<R> task, Callback<R> callback) {
+        Request<R> request = new Request<>(task, callback);
+        worker.execute(request);
+        return request;
+    }
+
+    /**
+     * Cancels the pending and the running requests, e.g. when the activity is destroyed.
+     * The running prediction is interrupted and its result is not delivered.
+     */
+    public void shutdown() {
+        List<Runnable> pending = worker.shutdownNow();
+        for (Runnable runnable : pending) ((Future<?>) runnable).cancel(false);
+    }
+
+    public boolean isShutdown() {
+        return worker.isShutdown();
+    }
+
+    // Waits for the worker to stop after a shutdown
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /* ***** Metrics ***** */
+
+    public long getLastQueueWaitTime() {
+        return lastQueueWaitTime;
+    }
+
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    // Requests replaced by a newer one before they started
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // A prediction with its submission and start times
+    private class Request<R> extends FutureTask<R> {
+        private final Callback<R> callback;
+        private final long submitTime = System.nanoTime();
+        private volatile long startTime;
+
+        Request(Callable<R> task, Callback<R> callback) {
+            super(task);
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || callback == null) return;
+            final long queueWaitTime = (startTime - submitTime) / timeFactor;
+            final long latency = (System.nanoTime() - submitTime) / timeFactor;
+            try {
+                final R result = get();
+                lastQueueWaitTime = queueWaitTime;
+                lastLatency = latency;
+                completedCount.incrementAndGet();
+                callbackExecutor.execute(new Runnable() {
+                    public void run() {
+                        if (!worker.isShutdown()) callback.onResult(result, queueWaitTime, latency);
+                    }
+                });
+            } catch (final Exception e) {
+                final Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                callbackExecutor.execute(new Runnable() {
+                    public void run() {
+                        if (!worker.isShutdown()) callback.onError(cause);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.donutdetector.core;
+
+// This class is implemented to hold the output of one detection
+// The boxes are (x, y, w, h) in the coordinates of the RPN input,
+// the class and the score of a box are at the same index, and so is its track id when the frame was tracked
+public class DetectionResult {
+
+    private final float[][] boxes;
+    private final String[] classes;
+    private final float[] scores;
+    private final int[] trackIds; // null when the detection is not tracked
+    private final boolean cached; // read from a ResultCache, without any model call
+
+    // Time variables, in milliseconds
+    private final long bboxesGenerationTime;
+    private final long embeddingGenerationTime;
+    private final long headComparaisonTime;
+    private final long[] embeddingBatchTimes;
+    private final float embeddingTimePerCrop;
+    long[] stageTimes = new long[0]; // ns by DetectorMetrics.Stage, set by the Detector
+
+    DetectionResult(float[][] boxes, String[] classes, float[] scores,
+                    long bboxesGenerationTime, long embeddingGenerationTime, long headComparaisonTime,
+                    long[] embeddingBatchTimes, float embeddingTimePerCrop, int[] trackIds) {
+        this.boxes = boxes;
+        this.classes = classes;
+        this.scores = scores;
+        this.bboxesGenerationTime = bboxesGenerationTime;
+        this.embeddingGenerationTime = embeddingGenerationTime;
+        this.headComparaisonTime = headComparaisonTime;
+        this.embeddingBatchTimes = embeddingBatchTimes;
+        this.embeddingTimePerCrop = embeddingTimePerCrop;
+        this.trackIds = trackIds;
+        this.cached = false;
+    }
+
+    // A result read from a ResultCache, it has no timings
+    DetectionResult(float[][] boxes, String[] classes, float[] scores) {
+        this.boxes = boxes;
+        this.classes = classes;
+        this.scores = scores;
+        this.bboxesGenerationTime = 0;
+        this.embeddingGenerationTime = 0;
+        this.headComparaisonTime = 0;
+        this.embeddingBatchTimes = new long[0];
+        this.embeddingTimePerCrop = 0;
+        this.trackIds = null;
+        this.cached = true;
+    }
+
+    // Number of detected boxes
+    public int size() {
+        return boxes.length;
+    }
+
+    public float[][] getBoxes() {
+        return boxes;
+    }
+
+    public String[] getClasses() {
+        return classes;
+    }
+
+    public float[] getScores() {
+        return scores;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    // Track id of each box, see BoxTracker, or null
+    public int[] getTrackIds() {
+        return trackIds;
+    }
+
+    // Time getters
+    public long getBBoxesGenerationTime() {
+        return bboxesGenerationTime;
+    }
+
+    public long getEmbeddingGenerationTime() {
+        return embeddingGenerationTime;
+    }
+
+    public long getHeadComparaisonTime() {
+        return headComparaisonTime;
+    }
+
+    public long[] getEmbeddingBatchTimes() {
+        return embeddingBatchTimes;
+    }
+
+    public float getEmbeddingTimePerCrop() {
+        return embeddingTimePerCrop;
+    }
+
+    public long getTotalTime() {
+        return bboxesGenerationTime + embeddingGenerationTime + headComparaisonTime;
+    }
+
+    // Time of one stage of this detection in ns, -1 when it did not run, e.g. for a cached result
+    public long getStageTime(DetectorMetrics.Stage stage) {
+        return stage.ordinal() < stageTimes.length ? stageTimes[stage.ordinal()] : -1;
+    }
+
+    /**
+     * Copy of this result where each box takes the class and the score of the box of the previous result
+     * it overlaps the most, when their IOU is over minIou. Used to label the boxes of the frames without embeddings.
+     */
+    public DetectionResult withLabelsFrom(DetectionResult previous, float minIou) {
+        String[] labels = classes.clone();
+        float[] labelScores = scores.clone();
+        if (previous != null) {
+            for (int i = 0; i < boxes.length; i++) {
+                double best = minIou;
+                for (int j = 0; j < previous.boxes.length; j++) {
+                    double iou = iou(boxes[i], previous.boxes[j]);
+                    if (iou > best) {
+                        best = iou;
+                        labels[i] = previous.classes[j];
+                        labelScores[i] = previous.scores[j];
+                    }
+                }
+            }
+        }
+        DetectionResult labelled = new DetectionResult(boxes, labels, labelScores, bboxesGenerationTime,
+                embeddingGenerationTime, headComparaisonTime, embeddingBatchTimes, embeddingTimePerCrop, trackIds);
+        labelled.stageTimes = stageTimes;
+        return labelled;
+    }
+
+    // IOU of two (x, y, w, h) boxes
+    static double iou(float[] a, float[] b) {
+        float wOverlap = Math.min(a[0] + a[2], b[0] + b[2]) - Math.max(a[0], b[0]);
+        float hOverlap = Math.min(a[1] + a[3], b[1] + b[3]) - Math.max(a[1], b[1]);
+        if (wOverlap <= 0 || hOverlap <= 0) return 0;
+        double areaOverlap = (double) wOverlap * hOverlap;
+        return areaOverlap / ((double) a[2] * a[3] + (double) b[2] * b[3] - areaOverlap);
+    }
+}
@@ -0,0 +1,772 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// This class is implemented to detect and classify the donuts of an image
+// It runs the whole pipeline on the ARGB pixels of the RPN input: the RPN, the decoding, the NMS,
+// the embeddings of the crops, the Head comparison with the gallery and the NMS of each class
+// The three models are behind ModelRunner, so it runs on Android as well as on a plain JVM
+// The buffers are created once and reused by every detection
+// Each stage (RPN, embeddings, Head) only uses its own model and buffers, see PipelinedDetector
+public class Detector {
+
+    // Constants
+    public final static String MODEL_PROCESSING_MOBILENET = "mobilenet";
+    public final static String MODEL_PROCESSING_VGG = "vgg";
+    public final static String MODEL_PROCESSING_OTHERS = "";
+    public final static String NOT_SURE = "Not sure";
+
+    // Embedding batching variables
+    public final static int EMBEDDING_BATCH_NONE = 0; // one model call per crop
+    public final static int EMBEDDING_BATCH_ALL = -1; // one model call for all the crops
+    int embeddingBatchSize = 8;
+    int embeddingBatchShape = 0;
+    private final boolean embeddingBatchSupported; // whether the embedding model accepts a batch dimension
+
+    // Models
+    private final ModelRunner rpnRunner;
+    private final ModelRunner embeddingRunner;
+    private final SimilarityEngine similarityEngine;
+
+    // Image variables
+    final int inputSizeRpn = 320;
+    final int inputSizeEMBD = 100;
+    final int pixelSize = 3;
+    final int BYTES_SIZE = 4;
+
+    // Embedding variables
+    final int embeddingSize = 256;
+
+    // The crops are resized like Bitmap.createScaledBitmap without filtering
+    InputPreprocessor.Sampling embeddingSampling = InputPreprocessor.Sampling.NEAREST;
+
+    // Detection variables
+    float iou_threshold = 0.2f;
+    float iou_threshold_intra_class = 0.15f;
+    float confidence_threshold = 0.33f;
+    float class_confidence = 0.0f;
+
+    // Anchors variables
+    int anchorDimension = 20;
+    int numberAnchors = 9;
+    int numberCoordinates = 4;
+
+    // Preprocessing variables
+    final InputPreprocessor rpnPreprocessor;
+    final InputPreprocessor embdPreprocessor;
+    final float[] rpnObj;
+    final float[] rpnBox;
+    final FloatBuffer rpnObjFloats;
+    final FloatBuffer rpnBoxFloats;
+    final ByteBuffer[] rpnInputs = new ByteBuffer[1];
+    final ByteBuffer[] rpnOutputs = new ByteBuffer[2];
+    final ByteBuffer[] embdInputs = new ByteBuffer[1];
+    final ByteBuffer[] embdOutputs = new ByteBuffer[1];
+
+    // Quantization variables: the real values of the UINT8 outputs of quantized models, null for float outputs
+    final float[] rpnObjTable;
+    final float[] rpnBoxTable;
+    final float[] embdTable;
+
+    // Decoding variables, the decoder is created with the anchors
+    int[] anchors = null;
+    RpnDecoder rpnDecoder = null;
+    int maxProposals = 0; // 0 keeps every proposal over the confidence threshold
+
+    // Non maximum suppression variables, the proposals (stage 1) and the classes (stage 3) have their own
+    final NmsEngine nmsEngine;
+    int[] nmsKept = new int[0];
+    final NmsEngine classNmsEngine = new NmsEngine();
+    float[] nmsBoxes = null;
+    int[] classKept = new int[0];
+
+    // Data needed for prediction
+    GalleryStore gallery = new GalleryStore(embeddingSize);
+
+    // Gallery index variables, see setIndexing
+    final static long INDEX_SEED = 42;
+    final static int INDEX_SAMPLE = 100;
+    GalleryIndex galleryIndex = null;
+    int indexMinSize = 0; // 0 always compares with the whole gallery
+    int indexCandidates = 64;
+    float indexTargetRecall = 0.95f;
+    int[] candidateRows = new int[0];
+
+    // Class prefilter variables, see setPrefilter
+    ClassPrototypes prototypes = null;
+    int prefilterClasses = 0; // 0 compares with every class
+    int prefilterCentroids = 0;
+
+    // Result cache variables, see getCacheVersion
+    ResultCache resultCache = null;
+    String modelVersion = "";
+    String rpnModelType;
+    String embdModelType;
+    long anchorsHash = 0;
+    private boolean cacheVersionValid = false; // cleared by the setters of the settings
+    private GalleryStore versionGallery = null;
+    private int versionGalleryVersion = -1;
+    private long cacheVersion = 0;
+
+    // Time variables, the timings of a detection are in its DetectionResult
+    final int timeFactor = 1_000_000;
+    DetectorMetrics metrics = null; // see setMetrics
+
+    public Detector(ModelRunner rpnRunner, ModelRunner embeddingRunner, ModelRunner headRunner,
+                    String rpnModelType, String embdModelType) {
+        this.rpnRunner = rpnRunner;
+        this.embeddingRunner = embeddingRunner;
+        this.similarityEngine = new SimilarityEngine(headRunner, embeddingSize);
+        this.rpnModelType = rpnModelType;
+        this.embdModelType = embdModelType;
+        // a quantized model gets UINT8 pixels, see InputPreprocessor
+        this.rpnPreprocessor = new InputPreprocessor(inputSizeRpn, 1, InputPreprocessor.Normalization.of(rpnModelType),
+                Quantization.input(rpnRunner, 0));
+        this.embdPreprocessor = new InputPreprocessor(inputSizeEMBD, 1, InputPreprocessor.Normalization.of(embdModelType),
+                Quantization.input(embeddingRunner, 0));
+        this.rpnObj = new float[anchorDimension * anchorDimension * numberAnchors];
+        this.rpnBox = new float[anchorDimension * anchorDimension * numberAnchors * numberCoordinates];
+        this.nmsEngine = new NmsEngine(rpnObj.length);
+
+        Quantization objQuantization = Quantization.output(rpnRunner, 0);
+        Quantization boxQuantization = Quantization.output(rpnRunner, 1);
+        if ((objQuantization == null) != (boxQuantization == null)) {
+            throw new IllegalArgumentException("The RPN outputs must be both float or both UINT8");
+        }
+        Quantization embdQuantization = Quantization.output(embeddingRunner, 0);
+        this.rpnObjTable = objQuantization == null ? null : objQuantization.table();
+        this.rpnBoxTable = boxQuantization == null ? null : boxQuantization.table();
+        this.embdTable = embdQuantization == null ? null : embdQuantization.table();
+
+        // The model writes the RPN outputs in buffers allocated once
+        ByteBuffer objData = allocate(rpnObj.length, rpnObjTable != null);
+        ByteBuffer boxData = allocate(rpnBox.length, rpnBoxTable != null);
+        rpnObjFloats = rpnObjTable == null ? objData.asFloatBuffer() : null;
+        rpnBoxFloats = rpnBoxTable == null ? boxData.asFloatBuffer() : null;
+        rpnOutputs[0] = objData;
+        rpnOutputs[1] = boxData;
+
+        // a model without a batch dimension runs one call per crop, whatever setEmbeddingBatchSize asks
+        embeddingBatchSupported = acceptsBatch(embeddingRunner);
+        if (!embeddingBatchSupported) embeddingBatchSize = EMBEDDING_BATCH_NONE;
+    }
+
+    // Checked once with the models, the shape is set again by the first detection
+    private boolean acceptsBatch(ModelRunner runner) {
+        try {
+            runner.resizeInput(0, new int[]{2, inputSizeEMBD, inputSizeEMBD, pixelSize});
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /* ***** Settings ***** */
+
+    // Side of the square ARGB image expected by detect
+    public int getInputSize() {
+        return inputSizeRpn;
+    }
+
+    // Whether the RPN or the embedding model is a quantized one, fed with UINT8 pixels
+    public boolean isQuantized() {
+        return rpnPreprocessor.isQuantized() || embdPreprocessor.isQuantized() || rpnObjTable != null || embdTable != null;
+    }
+
+    // ARGB pixels of the RPN input, it can be filled by the caller then passed to detect
+    public int[] getPixels() {
+        return rpnPreprocessor.getPixels();
+    }
+
+    /**
+     * Sets how many crops are packed in one embedding model call.
+     * EMBEDDING_BATCH_NONE runs one call per crop, EMBEDDING_BATCH_ALL runs one call for all the crops
+     * and any positive value runs fixed size chunks (the last chunk is padded so the input shape never changes).
+     * An embedding model without a batch dimension stays at EMBEDDING_BATCH_NONE.
+     */
+    public void setEmbeddingBatchSize(int embeddingBatchSize) {
+        this.embeddingBatchSize = embeddingBatchSupported ? embeddingBatchSize : EMBEDDING_BATCH_NONE;
+    }
+
+    public int getEmbeddingBatchSize() {
+        return embeddingBatchSize;
+    }
+
+    /**
+     * Caps the number of RPN proposals of a frame to the best scores, which bounds the NMS and embedding costs
+     * when the confidence threshold is lowered. 0 keeps every proposal.
+     */
+    public void setMaxProposals(int maxProposals) {
+        this.maxProposals = maxProposals;
+        if (rpnDecoder != null) rpnDecoder.setMaxProposals(maxProposals);
+        cacheVersionValid = false;
+    }
+
+    /* ***** load the data needed for the predictions ***** */
+
+    public void setAnchors(int[] anchors) {
+        this.anchors = anchors;
+        anchorsHash = Arrays.hashCode(anchors);
+        rpnDecoder = new RpnDecoder(anchors);
+        rpnDecoder.setMaxProposals(maxProposals);
+        cacheVersionValid = false;
+    }
+
+    public void putClass(String className, float[][] embeds) {
+        gallery.addClass(className, embeds);
+    }
+
+    // The embeddings can also be streamed straight into the store
+    public GalleryStore getGallery() {
+        return gallery;
+    }
+
+    // Replaces the whole gallery, e.g. with the store of a memory-mapped gallery file
+    public void setGallery(GalleryStore gallery) {
+        this.gallery = gallery;
+    }
+
+    public SimilarityEngine getSimilarityEngine() {
+        return similarityEngine;
+    }
+
+    /**
+     * Takes the anchors, the gallery and the settings of another Detector of the same models, see DetectorPool.
+     * The gallery store and the result cache are shared, the decoder, the index and the prototypes are its own.
+     */
+    void copySettings(Detector other) {
+        if (other.anchors != anchors && other.anchors != null) setAnchors(other.anchors);
+        gallery = other.gallery;
+        setEmbeddingBatchSize(other.embeddingBatchSize);
+        embeddingSampling = other.embeddingSampling;
+        if (maxProposals != other.maxProposals) setMaxProposals(other.maxProposals);
+        iou_threshold = other.iou_threshold;
+        iou_threshold_intra_class = other.iou_threshold_intra_class;
+        confidence_threshold = other.confidence_threshold;
+        class_confidence = other.class_confidence;
+        if (indexMinSize != other.indexMinSize || indexCandidates != other.indexCandidates
+                || indexTargetRecall != other.indexTargetRecall) {
+            setIndexing(other.indexMinSize, other.indexCandidates, other.indexTargetRecall);
+        }
+        if (prefilterClasses != other.prefilterClasses || prefilterCentroids != other.prefilterCentroids) {
+            setPrefilter(other.prefilterClasses, other.prefilterCentroids);
+        }
+        resultCache = other.resultCache;
+        modelVersion = other.modelVersion;
+        metrics = other.metrics;
+        cacheVersionValid = false;
+    }
+
+    /* ***** Gallery index ***** */
+
+    /**
+     * Compares the embeddings with the candidates of a GalleryIndex instead of the whole gallery once the gallery has
+     * minSize embeddings: the index picks the candidates closest embeddings (dot product) and the Head scores them.
+     * The probes of the index are tuned so that for at least targetRecall of the queries, the class the Head gives with
+     * the whole gallery is among the classes of the candidates, see GalleryIndex.measureRecall. 0 disables the index.
+     */
+    public void setIndexing(int minSize, int candidates, float targetRecall) {
+        this.indexMinSize = minSize;
+        this.indexCandidates = Math.max(candidates, 1);
+        this.indexTargetRecall = targetRecall;
+        galleryIndex = null;
+        cacheVersionValid = false;
+    }
+
+    /**
+     * Builds the index when the gallery reached the minimum size or changed, and returns it, null when the whole
+     * gallery is compared. The detection calls it, it can also be called once the gallery is loaded so the first
+     * detection does not pay for the clustering.
+     */
+    public GalleryIndex updateIndex() {
+        if (indexMinSize <= 0 || gallery.size() < indexMinSize) {
+            galleryIndex = null;
+        } else if (galleryIndex == null || galleryIndex.isStale(gallery)) {
+            GalleryIndex index = GalleryIndex.build(gallery, 0, INDEX_SEED);
+
+            // the probes are tuned on gallery embeddings spread over the classes, against the classes of the Head
+            int n = Math.min(INDEX_SAMPLE, gallery.size());
+            float[][] queries = new float[n][];
+            for (int i = 0; i < n; i++) {
+                queries[i] = gallery.get((int) ((long) i * gallery.size() / n), new float[embeddingSize]);
+            }
+            index.tune(similarityEngine, queries, indexCandidates, indexTargetRecall);
+            galleryIndex = index;
+        }
+        return galleryIndex;
+    }
+
+    /* ***** Class prefilter ***** */
+
+    /**
+     * Compares each embedding with the prototypes of the classes first (their mean and up to centroids k-means centroids,
+     * by dot products) and runs the Head only on the embeddings of the topClasses best classes.
+     * More classes is a better class recall, see ClassPrototypes.measureRecall. 0 disables the prefilter.
+     * The gallery index, when it is used, comes first.
+     */
+    public void setPrefilter(int topClasses, int centroids) {
+        this.prefilterClasses = topClasses;
+        this.prefilterCentroids = centroids;
+        prototypes = null;
+        cacheVersionValid = false;
+    }
+
+    /**
+     * Computes the prototypes when the gallery changed, e.g. after the putClass calls, and returns them, null when
+     * the prefilter is disabled. The detection calls it, it can also be called once the gallery is loaded.
+     */
+    public ClassPrototypes updatePrototypes() {
+        if (prefilterClasses <= 0) {
+            prototypes = null;
+        } else if (prototypes == null || prototypes.isStale(gallery)) {
+            prototypes = ClassPrototypes.build(gallery, prefilterCentroids, INDEX_SEED);
+        }
+        return prototypes;
+    }
+
+    /* ***** Metrics ***** */
+
+    /**
+     * Records the time of each stage and the counters of every detection, null to stop.
+     * The Detectors of a pool share the metrics of the template.
+     */
+    public void setMetrics(DetectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DetectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* ***** Result cache ***** */
+
+    /**
+     * Makes detect(int[]) look the image up in the cache before running the models, and store its result after.
+     * The tracked detections of a video and the pipelined ones do not use the cache. null removes the cache.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    // Identifies the model files, e.g. their names and sizes with the app version: the models are not hashed
+    public void setModelVersion(String modelVersion) {
+        this.modelVersion = modelVersion;
+        cacheVersionValid = false;
+    }
+
+    /**
+     * Hash of everything the result of an image depends on: the models, the anchors, the gallery content and
+     * the detection settings. It is computed again only after a setter or a change of the gallery, whose
+     * fingerprint is kept by the store for all the Detectors of a pool.
+     */
+    public long getCacheVersion() {
+        if (!cacheVersionValid || versionGallery != gallery || versionGalleryVersion != gallery.getVersion()) {
+            versionGallery = gallery;
+            versionGalleryVersion = gallery.getVersion();
+            cacheVersion = ResultCache.mix(getSettingsHash(), gallery.getFingerprint());
+            cacheVersionValid = true;
+        }
+        return cacheVersion;
+    }
+
+    private long getSettingsHash() {
+        long h = ResultCache.mix(0, modelVersion);
+        h = ResultCache.mix(h, rpnModelType);
+        h = ResultCache.mix(h, embdModelType);
+        h = ResultCache.mix(h, isQuantized() ? 1 : 0);
+        h = ResultCache.mix(h, embeddingSampling.name());
+        h = ResultCache.mix(h, anchorsHash);
+        h = ResultCache.mix(h, maxProposals);
+        h = ResultCache.mix(h, Float.floatToIntBits(iou_threshold));
+        h = ResultCache.mix(h, Float.floatToIntBits(iou_threshold_intra_class));
+        h = ResultCache.mix(h, Float.floatToIntBits(confidence_threshold));
+        h = ResultCache.mix(h, Float.floatToIntBits(class_confidence));
+        h = ResultCache.mix(h, indexMinSize);
+        h = ResultCache.mix(h, indexCandidates);
+        h = ResultCache.mix(h, Float.floatToIntBits(indexTargetRecall));
+        h = ResultCache.mix(h, prefilterClasses);
+        return ResultCache.mix(h, prefilterCentroids);
+    }
+
+    /* ***** Detection ***** */
+
+    // One image going through the stages, with the outputs and the timings of each stage
+    // The stages only share the Frame, so the pipelined mode can run them on different threads
+    static class Frame {
+        final int[] argb;
+        float[][] bboxes;
+        float[][] embeddings;
+        String[] classes;
+        float[] similarities;
+        int[] trackIds = null;
+        DetectionResult result;
+
+        // Time variables
+        long bboxesGenerationTime;
+        long embeddingGenerationTime;
+        long headComparaisonTime;
+        long[] embeddingBatchTimes = new long[0];
+        float embeddingTimePerCrop;
+        final long startTime = System.nanoTime();
+        final long[] stageTimes = new long[DetectorMetrics.Stage.values().length]; // ns, -1 for a stage not run
+        int proposals;
+        boolean measured = true; // false for the warm-up
+
+        Frame(int[] argb) {
+            this.argb = argb;
+            Arrays.fill(stageTimes, -1);
+        }
+
+        // Adds to the time of a stage, e.g. for each batch of crops or each box compared with the gallery
+        void addTime(DetectorMetrics.Stage stage, long time) {
+            int s = stage.ordinal();
+            stageTimes[s] = Math.max(stageTimes[s], 0) + time;
+        }
+    }
+
+    /**
+     * Detects the donuts of a square image of getInputSize() pixels.
+     *
+     * @param argb the ARGB pixels, row by row
+     */
+    public DetectionResult detect(int[] argb) {
+        // a cache lookup hashes the pixels on every call, the version is only computed again after a change
+        long key = 0;
+        if (resultCache != null) {
+            key = ResultCache.key(ResultCache.hash(argb), getCacheVersion());
+            DetectionResult cached = resultCache.get(key);
+            if (cached != null) {
+                if (metrics != null) metrics.add(DetectorMetrics.Counter.CACHE_HITS, 1);
+                return cached;
+            }
+        }
+
+        Frame frame = new Frame(argb);
+        run_rpn(frame);
+        run_embedding(frame);
+        run_head(frame);
+        if (resultCache != null) resultCache.put(key, frame.result);
+        return frame.result;
+    }
+
+    /**
+     * Detects the donuts of a video frame, the boxes are followed by the tracker from one frame to the next.
+     * Only the boxes whose track has no reusable class are embedded and compared with the gallery,
+     * see BoxTracker.isCached, the other boxes keep the class and the score of their track.
+     *
+     * @param argb the ARGB pixels, row by row
+     */
+    public DetectionResult detect(int[] argb, BoxTracker tracker) {
+        Frame frame = new Frame(argb);
+        run_rpn(frame);
+        float[][] bboxes = frame.bboxes;
+        int counter = bboxes.length;
+        int[] trackIds = tracker.update(bboxes);
+
+        // the boxes without a cached class
+        int[] missed = new int[counter];
+        int misses = 0;
+        for (int j = 0; j < counter; j++) {
+            if (!tracker.isCached(trackIds[j])) missed[misses++] = j;
+        }
+        float[][] missedBoxes = new float[misses][];
+        for (int k = 0; k < misses; k++) missedBoxes[k] = bboxes[missed[k]];
+
+        // Embeddings and similarities generation of these boxes only
+        long startTime = System.nanoTime();
+        float[][] embeddings = get_embeddings(frame, missedBoxes, misses);
+        String[] classes = new String[counter];
+        float[] similarities = new float[counter];
+        for (int k = 0; k < misses; k++) {
+            int j = missed[k];
+            inference(frame, embeddings[k], classes, similarities, j);
+            tracker.store(trackIds[j], embeddings[k], classes[j], similarities[j]);
+        }
+        long embeddingTime = System.nanoTime() - startTime;
+
+        // the other boxes keep the class of their track
+        for (int j = 0; j < counter; j++) {
+            if (classes[j] != null) continue;
+            classes[j] = tracker.getClassName(trackIds[j]);
+            similarities[j] = tracker.getScore(trackIds[j]);
+        }
+        tracker.endFrame(counter - misses, misses, embeddingTime);
+
+        frame.classes = classes;
+        frame.similarities = similarities;
+        frame.trackIds = trackIds;
+        class_nms(frame);
+        return frame.result;
+    }
+
+    /**
+     * Detects the boxes only, without the embeddings and the Head: the classes are NOT_SURE and the scores 0.
+     * Used by the live mode on the frames between two full detections, see DetectionResult.withLabelsFrom.
+     */
+    public DetectionResult detectBoxes(int[] argb) {
+        Frame frame = new Frame(argb);
+        run_rpn(frame);
+        String[] classes = new String[frame.bboxes.length];
+        Arrays.fill(classes, NOT_SURE);
+        frame.result = new DetectionResult(frame.bboxes, classes, new float[frame.bboxes.length],
+                frame.bboxesGenerationTime, 0, 0, new long[0], 0, null);
+        finish(frame);
+        return frame.result;
+    }
+
+    /**
+     * Runs each model once on a blank image, so the first detection does not pay for the initialization of the
+     * delegates, the first allocations and the gallery index. The result cache is not used.
+     *
+     * @return the time it took in ms
+     */
+    public long warmUp() {
+        long startTime = System.nanoTime();
+        Frame frame = new Frame(new int[inputSizeRpn * inputSizeRpn]);
+        frame.measured = false;
+        run_rpn(frame);
+
+        // one crop of the whole image, in a batch of the usual shape
+        frame.bboxes = new float[][]{{0, 0, inputSizeRpn, inputSizeRpn}};
+        run_embedding(frame);
+        if (gallery.size() > 0) run_head(frame);
+        return (System.nanoTime() - startTime) / timeFactor;
+    }
+
+    /* ***** Stages ***** */
+
+    // Stage 1: the RPN, the decoding and the NMS of the proposals
+    void run_rpn(Frame frame) {
+        if (rpnDecoder == null) throw new IllegalStateException("The anchors are not loaded");
+        frame.bboxes = BoundingBox.cxcy_to_x1y1(get_bboxes(frame));
+    }
+
+    // Stage 2: the embeddings of the crops
+    void run_embedding(Frame frame) {
+        frame.embeddings = get_embeddings(frame, frame.bboxes, frame.bboxes.length);
+    }
+
+    // Stage 3: the Head comparison with the gallery and the NMS of each class
+    void run_head(Frame frame) {
+        int counter = frame.bboxes.length;
+        frame.classes = new String[counter];
+        frame.similarities = new float[counter];
+        for (int j = 0; j < counter; j++) {
+            inference(frame, frame.embeddings[j], frame.classes, frame.similarities, j);
+        }
+        class_nms(frame);
+    }
+
+    private float[][] get_bboxes(Frame frame) {
+        long startTime = System.nanoTime();
+
+        // prepare the input, in the buffers of the preprocessor
+        rpnPreprocessor.process(frame.argb, 0);
+        long preprocessTime = System.nanoTime();
+        frame.addTime(DetectorMetrics.Stage.PREPROCESS, preprocessTime - startTime);
+
+        // Runs model inference and gets result.
+        rpnInputs[0] = rpnPreprocessor.getInput(1);
+        rpnOutputs[0].rewind();
+        rpnOutputs[1].rewind();
+        rpnRunner.run(rpnInputs, rpnOutputs);
+        long rpnTime = System.nanoTime();
+        frame.addTime(DetectorMetrics.Stage.RPN, rpnTime - preprocessTime);
+
+        // prepare the output, the decoder and the NMS work on flat arrays
+        int n;
+        if (rpnObjTable != null) {
+            // the UINT8 outputs are dequantized by the decoder, for the candidates only
+            n = rpnDecoder.decode(rpnOutputs[0], rpnObjTable, rpnOutputs[1], rpnBoxTable, confidence_threshold);
+        } else {
+            rpnObjFloats.rewind();
+            rpnObjFloats.get(rpnObj);
+            rpnBoxFloats.rewind();
+            rpnBoxFloats.get(rpnBox);
+            n = rpnDecoder.decode(rpnObj, rpnBox, confidence_threshold);
+        }
+        long decodeTime = System.nanoTime();
+        frame.addTime(DetectorMetrics.Stage.DECODE, decodeTime - rpnTime);
+        frame.bboxesGenerationTime = ((decodeTime - startTime) / timeFactor);
+        frame.proposals = n;
+        if (nmsKept.length < n) nmsKept = new int[n];
+        int counter = nmsEngine.run(rpnDecoder.getBoxes(), rpnDecoder.getScores(), n, iou_threshold, null, nmsKept);
+
+        // saving the main bboxes
+        float[] decoded = rpnDecoder.getBoxes();
+        float[][] bboxes = new float[counter][];
+        for (int y = 0; y < counter; y++) {
+            bboxes[y] = Arrays.copyOfRange(decoded, numberCoordinates * nmsKept[y], numberCoordinates * (nmsKept[y] + 1));
+        }
+        frame.addTime(DetectorMetrics.Stage.NMS, System.nanoTime() - decodeTime);
+        return bboxes;
+    }
+
+    // The crops are sampled from the pixels of the RPN input
+    private float[][] get_embeddings(Frame frame, float[][] bboxes, int counter) {
+        long startTime = System.nanoTime();
+
+        // Intialize some variables
+        int batchSize = (embeddingBatchSize == EMBEDDING_BATCH_ALL) ? counter
+                : (embeddingBatchSize == EMBEDDING_BATCH_NONE) ? 1 : embeddingBatchSize;
+        batchSize = Math.max(batchSize, 1);
+        int batches = (counter + batchSize - 1) / batchSize;
+        float[][] embeddings = new float[counter][embeddingSize];
+        long[] batchTimes = new long[batches];
+
+        // the input shape only changes when the batch size does
+        if (batches > 0 && embeddingBatchShape != batchSize) {
+            embeddingBatchShape = 0;
+            embeddingRunner.resizeInput(0, new int[]{batchSize, inputSizeEMBD, inputSizeEMBD, pixelSize});
+            embdOutputs[0] = allocate(batchSize * embeddingSize, embdTable != null);
+            embeddingBatchShape = batchSize;
+        }
+        embdPreprocessor.ensureBatchSize(batchSize);
+
+        for (int b = 0; b < batches; b++) {
+            long batchStartTime = System.nanoTime();
+            int first = b * batchSize;
+            int size = Math.min(batchSize, counter - first);
+
+            // pack the crops of this batch one after the other
+            for (int i = first; i < first + size; i++) {
+                embdPreprocessor.processBox(frame.argb, inputSizeRpn, inputSizeRpn, bboxes[i], i - first, embeddingSampling);
+            }
+            // pad the last chunk so the model keeps its shape
+            embdPreprocessor.clear(size, batchSize);
+            long cropTime = System.nanoTime();
+            frame.addTime(DetectorMetrics.Stage.CROP, cropTime - batchStartTime);
+
+            // Runs model inference and gets result.
+            embdInputs[0] = embdPreprocessor.getInput(batchSize);
+            embdOutputs[0].rewind();
+            embeddingRunner.run(embdInputs, embdOutputs);
+            if (embdTable != null) {
+                ByteBuffer output = embdOutputs[0];
+                for (int i = first; i < first + size; i++) {
+                    int base = (i - first) * embeddingSize;
+                    for (int k = 0; k < embeddingSize; k++) embeddings[i][k] = embdTable[output.get(base + k) & 0xFF];
+                }
+            } else {
+                FloatBuffer output = embdOutputs[0].asFloatBuffer();
+                for (int i = first; i < first + size; i++) output.get(embeddings[i]);
+            }
+
+            long batchEndTime = System.nanoTime();
+            frame.addTime(DetectorMetrics.Stage.EMBED, batchEndTime - cropTime);
+            batchTimes[b] = (batchEndTime - batchStartTime) / timeFactor;
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        frame.embeddingBatchTimes = batchTimes;
+        frame.embeddingGenerationTime = elapsedTime / timeFactor;
+        frame.embeddingTimePerCrop = counter == 0 ? 0 : (float) elapsedTime / timeFactor / counter;
+        return embeddings;
+    }
+
+    // Keeps the best class of one embedding, like the value sorted map of the previous implementation:
+    // the highest score, and the first class name in alphabetical order for equal scores
+    private void inference(Frame frame, float[] embedding, String[] classes, float[] similarities, int j) {
+        long startTime = System.nanoTime();
+
+        // one Head call for the whole gallery, for the candidates of the index or for the classes of the prefilter
+        if (similarityEngine.isStale(gallery)) similarityEngine.setGallery(gallery);
+        GalleryIndex index = updateIndex();
+        ClassPrototypes filter = index == null ? updatePrototypes() : null;
+        float[] classScores;
+        if (index != null) {
+            if (candidateRows.length != indexCandidates) candidateRows = new int[indexCandidates];
+            int n = index.search(embedding, indexCandidates, candidateRows);
+            classScores = similarityEngine.scoreClasses(embedding, candidateRows, n, indexCandidates);
+        } else if (filter != null) {
+            classScores = similarityEngine.scoreClasses(embedding, filter, prefilterClasses);
+        } else {
+            classScores = similarityEngine.scoreClasses(embedding);
+        }
+        int best = similarityEngine.bestClass(classScores);
+
+        // the boxes of an image add up, so the time is the one of the whole image
+        frame.addTime(DetectorMetrics.Stage.HEAD, System.nanoTime() - startTime);
+        frame.headComparaisonTime = frame.stageTimes[DetectorMetrics.Stage.HEAD.ordinal()] / timeFactor;
+
+        similarities[j] = best < 0 ? 0.0f : classScores[best];
+        if (best < 0 || classScores[best] < class_confidence) {
+            classes[j] = NOT_SURE;
+        } else {
+            classes[j] = similarityEngine.getClassName(best);
+        }
+    }
+
+    /* ***** Bboxes operations  ***** */
+
+    // overlapping bboxes elimination, the classes, scores and track ids follow their boxes
+    private void class_nms(Frame frame) {
+        long startTime = System.nanoTime();
+        float[][] bboxes = frame.bboxes;
+        int kept = tool_nms(bboxes, frame.similarities, iou_threshold_intra_class, frame.classes);
+        float[][] resBoxes = new float[kept][];
+        String[] resClasses = new String[kept];
+        float[] resScores = new float[kept];
+        int[] resTrackIds = frame.trackIds == null ? null : new int[kept];
+        for (int y = 0; y < kept; y++) {
+            resBoxes[y] = bboxes[classKept[y]];
+            resClasses[y] = frame.classes[classKept[y]];
+            resScores[y] = frame.similarities[classKept[y]];
+            if (resTrackIds != null) resTrackIds[y] = frame.trackIds[classKept[y]];
+        }
+        frame.result = new DetectionResult(resBoxes, resClasses, resScores,
+                frame.bboxesGenerationTime, frame.embeddingGenerationTime, frame.headComparaisonTime,
+                frame.embeddingBatchTimes, frame.embeddingTimePerCrop, resTrackIds);
+        frame.addTime(DetectorMetrics.Stage.CLASS_NMS, System.nanoTime() - startTime);
+        finish(frame);
+    }
+
+    // Gives the stage times to the result and to the metrics, once the result is made
+    private void finish(Frame frame) {
+        frame.stageTimes[DetectorMetrics.Stage.TOTAL.ordinal()] = System.nanoTime() - frame.startTime;
+        frame.result.stageTimes = frame.stageTimes;
+        DetectorMetrics metrics = this.metrics;
+        if (metrics == null || !frame.measured) return;
+        metrics.record(frame.stageTimes);
+        metrics.add(DetectorMetrics.Counter.IMAGES, 1);
+        metrics.add(DetectorMetrics.Counter.PROPOSALS, frame.proposals);
+        metrics.add(DetectorMetrics.Counter.BOXES, frame.bboxes.length);
+        metrics.add(DetectorMetrics.Counter.DETECTIONS, frame.result.size());
+    }
+
+    // Keeps the indexes of the main bboxes in classKept and returns their number
+    private int tool_nms(float[][] bboxes, float[] scores, float threshold, String[] classes) {
+        // Intialize some variables
+        int n = bboxes.length;
+        int[] classIds = null;
+        if (classKept.length < n) classKept = new int[n];
+        nmsBoxes = NmsEngine.flatten(bboxes, nmsBoxes);
+
+        // the boxes of one class only remove each other
+        if (classes != null) {
+            classIds = new int[n];
+            for (int i = 0; i < n; i++) classIds[i] = gallery.indexOf(classes[i]);
+        }
+        return classNmsEngine.run(nmsBoxes, scores, n, threshold, classIds, classKept);
+    }
+
+    // Releases the models
+    public void close() {
+        rpnRunner.close();
+        embeddingRunner.close();
+        similarityEngine.close();
+    }
+
+    // A UINT8 tensor takes a byte per value
+    private static ByteBuffer allocate(int values, boolean quantized) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((quantized ? 1 : 4) * values);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
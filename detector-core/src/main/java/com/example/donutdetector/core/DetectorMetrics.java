@@ -0,0 +1,127 @@
+package com.example.donutdetector.core;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// This class is implemented to collect the latency of each stage of the detections, over many images
+// Each stage has a LatencyHistogram in ns, so the p50, p95 and p99 of a device can be compared between releases,
+// with counters of the images, of the proposals of the RPN and of the boxes kept
+// One instance is shared by the Detectors of a pool, the recording is thread-safe
+// The snapshot is a JSON object, with tags such as the device or the model version to tell the snapshots apart
+public class DetectorMetrics {
+
+    /**
+     * The timed stages of a detection, in the order they run.
+     */
+    public enum Stage {
+        PREPROCESS, // the resize and the normalization of the RPN input
+        RPN,        // the RPN inference only
+        DECODE,     // the copy of the RPN outputs and the decoding of the anchors
+        NMS,        // the NMS of the proposals
+        CROP,       // the crops of the embedding inputs
+        EMBED,      // the embedding inference and the copy of its outputs
+        HEAD,       // the comparisons with the gallery, all the boxes of the image
+        CLASS_NMS,  // the NMS of each class and the result
+        TOTAL;      // from the image to the result
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The counters, summed over the images.
+     */
+    public enum Counter {
+        IMAGES,     // the detections which ran the models
+        CACHE_HITS, // the detections read from the result cache
+        PROPOSALS,  // the boxes decoded from the RPN, before the NMS
+        BOXES,      // the boxes kept by the NMS, i.e. the crops to embed
+        DETECTIONS; // the boxes of the results
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final Map<String, String> tags = new LinkedHashMap<>();
+
+    public DetectorMetrics() {
+        for (int s = 0; s < histograms.length; s++) histograms[s] = new LatencyHistogram();
+    }
+
+    public void record(Stage stage, long time) {
+        histograms[stage.ordinal()].record(time);
+    }
+
+    // The stage times of one image, in ns by Stage ordinal; a stage which did not run is negative
+    void record(long[] stageTimes) {
+        for (int s = 0; s < stageTimes.length; s++) {
+            if (stageTimes[s] >= 0) histograms[s].record(stageTimes[s]);
+        }
+    }
+
+    public void add(Counter counter, long value) {
+        counters.addAndGet(counter.ordinal(), value);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    // e.g. the device, the Android release or the model version, written with the snapshot
+    public synchronized void setTag(String key, String value) {
+        tags.put(key, value);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+        for (int c = 0; c < counters.length(); c++) counters.set(c, 0);
+    }
+
+    /**
+     * The tags, the counters and the summary of the histogram of each stage, in ns, as a JSON object.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"tags\":{");
+        synchronized (this) {
+            boolean first = true;
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                json.append(quote(tag.getKey())).append(':').append(quote(tag.getValue()));
+            }
+        }
+        json.append("},\"counters\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) json.append(',');
+            json.append('"').append(counter.key()).append("\":").append(getCount(counter));
+        }
+        json.append("},\"unit\":\"ns\",\"stages\":{");
+        for (Stage stage : Stage.values()) {
+            if (stage.ordinal() > 0) json.append(',');
+            json.append('"').append(stage.key()).append("\":").append(getHistogram(stage).toJson());
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.donutdetector.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// This class is implemented to let several threads detect images at the same time
+// A Detector reuses its buffers and its models for every detection, so it can only run one detection at a time:
+// the pool holds several Detectors, each with its own model instances, and a detection checks one out and gives it back
+// The Detectors are created on demand, up to the maximum size, so the memory only grows with the concurrent calls
+// The settings are made on the template Detector through configure, the others take them each time they are checked out
+// configure takes the template out of the pool first, so a setting never changes under a running detection,
+// and the copies are made under the same lock, so a Detector never takes half of a change
+public class DetectorPool {
+
+    /**
+     * Loads a new set of the models of the template, e.g. new interpreters of the same model files.
+     */
+    public interface Factory {
+        Detector create() throws Exception;
+    }
+
+    /**
+     * Changes the settings of the template, e.g. calls its setters.
+     */
+    public interface Settings {
+        void apply(Detector template);
+    }
+
+    private final Detector template;
+    private final Factory factory;
+    private final int maxSize;
+    private final Object settingsLock = new Object();
+
+    private final List<Detector> detectors = new ArrayList<>();
+    private final ArrayDeque<Detector> idle = new ArrayDeque<>();
+    private int creating = 0;
+    private boolean closed = false;
+    private Exception creationError = null;
+
+    // Statistics
+    private long acquireCount = 0;
+    private long waitCount = 0;
+
+    /**
+     * @param template the first Detector of the pool, the one the settings are made on
+     * @param maxSize  maximum number of Detectors, e.g. the number of cores
+     */
+    public DetectorPool(Detector template, Factory factory, int maxSize) {
+        this.template = template;
+        this.factory = factory;
+        this.maxSize = Math.max(maxSize, 1);
+        detectors.add(template);
+        idle.add(template);
+    }
+
+    // The Detector holding the anchors, the gallery and the settings of the pool, they are changed through configure
+    public Detector getTemplate() {
+        return template;
+    }
+
+    /**
+     * Changes the settings of the pool. The call waits until no detection runs on the template, and the other
+     * Detectors take the new settings when they are checked out next.
+     */
+    public void configure(Settings settings) throws InterruptedException {
+        synchronized (this) {
+            while (!idle.remove(template)) {
+                if (closed) throw new IllegalStateException("The pool is closed");
+                wait();
+            }
+        }
+        try {
+            synchronized (settingsLock) {
+                settings.apply(template);
+            }
+        } finally {
+            release(template);
+        }
+    }
+
+    /**
+     * Checks out an idle Detector, with the settings of the template. A new one is created when none is idle and
+     * the pool is not full, otherwise the call waits for a release. It must be given back with release.
+     */
+    public Detector acquire() throws InterruptedException {
+        Detector detector = null;
+        synchronized (this) {
+            acquireCount++;
+            boolean waited = false;
+            while (idle.isEmpty()) {
+                if (closed) throw new IllegalStateException("The pool is closed");
+                if (creationError == null && detectors.size() + creating < maxSize) break;
+                waited = true;
+                wait();
+            }
+            if (waited) waitCount++;
+            // the template is left idle when another Detector is, so configure seldom waits for it
+            if (idle.size() > 1 && idle.peek() == template) detector = idle.pollLast();
+            else if (!idle.isEmpty()) detector = idle.poll();
+            else creating++;
+        }
+
+        // the models are loaded out of the lock, the other threads go on meanwhile
+        if (detector == null) detector = create();
+        if (detector != template) {
+            synchronized (settingsLock) {
+                detector.copySettings(template);
+            }
+        }
+        return detector;
+    }
+
+    private Detector create() throws InterruptedException {
+        Detector detector = null;
+        Exception error = null;
+        try {
+            detector = factory.create();
+        } catch (Exception e) {
+            error = e;
+        }
+        synchronized (this) {
+            creating--;
+            if (detector != null) {
+                detectors.add(detector);
+                return detector;
+            }
+            // the pool stops growing, e.g. out of memory for another set of models, and waits for the others
+            creationError = error;
+            notifyAll();
+        }
+        return acquireIdle();
+    }
+
+    private synchronized Detector acquireIdle() throws InterruptedException {
+        while (idle.isEmpty()) {
+            if (closed) throw new IllegalStateException("The pool is closed");
+            wait();
+        }
+        return idle.poll();
+    }
+
+    // Gives back a Detector of acquire, a closed pool closes it instead
+    public void release(Detector detector) {
+        boolean close;
+        synchronized (this) {
+            close = closed;
+            if (!close) {
+                idle.push(detector);
+                notifyAll();
+            }
+        }
+        if (close) detector.close();
+    }
+
+    /**
+     * Detects an image on an idle Detector, from any thread. The result holds the timings of this call.
+     */
+    public DetectionResult detect(int[] argb) throws InterruptedException {
+        Detector detector = acquire();
+        try {
+            return detector.detect(argb);
+        } finally {
+            release(detector);
+        }
+    }
+
+    // Number of Detectors created so far
+    public synchronized int getSize() {
+        return detectors.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    // Calls of acquire which had to wait for a release
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    // Why the pool stopped growing, null when it did not
+    public synchronized Exception getCreationError() {
+        return creationError;
+    }
+
+    // Releases the models of the idle Detectors, the checked out ones are closed when they are given back
+    public void close() {
+        List<Detector> idleDetectors;
+        synchronized (this) {
+            closed = true;
+            idleDetectors = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Detector detector : idleDetectors) detector.close();
+    }
+}
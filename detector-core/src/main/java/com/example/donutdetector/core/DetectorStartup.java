@@ -0,0 +1,187 @@
+package com.example.donutdetector.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// This class is implemented to load the detector in the background, so the UI is usable right away
+// The models and the gallery load at the same time on two threads, then the gallery is given to the detector
+// and each model runs a warm-up inference; the readiness future completes after the warm-up
+// The duration of each stage is kept, with the time to interactive, the time to ready and the first detection latency
+public class DetectorStartup {
+
+    /**
+     * The stages of the startup, they run on the background threads.
+     */
+    public interface Stages {
+        // Loads the models, on the models thread
+        Detector loadModels() throws Exception;
+
+        // Reads the anchors and the gallery, on the gallery thread at the same time as the models
+        void loadGallery() throws Exception;
+
+        // Gives the anchors and the gallery to the detector, e.g. builds the index, once both are loaded
+        void prepare(Detector detector) throws Exception;
+    }
+
+    /**
+     * Receives the end of the startup, on the callback executor.
+     */
+    public interface Listener {
+        // readyTime: from the start of the app to the end of the warm-up (ms)
+        void onReady(Detector detector, long readyTime);
+
+        void onError(Exception e);
+    }
+
+    // Time variables, -1 until the stage is over
+    final int timeFactor = 1_000_000;
+    private final long startTime;
+    private volatile long modelsTime = -1;
+    private volatile long galleryTime = -1;
+    private volatile long prepareTime = -1;
+    private volatile long warmUpTime = -1;
+    private volatile long readyTime = -1;
+    private volatile long interactiveTime = -1;
+    private volatile long firstDetectionTime = -1;
+
+    private final Stages stages;
+    private FutureTask<Detector> ready = null;
+
+    /**
+     * @param startTime System.nanoTime() when the app started, the times to interactive and to ready count from it
+     */
+    public DetectorStartup(Stages stages, long startTime) {
+        this.stages = stages;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Starts the loading threads, once: the next calls return the same future.
+     * The future gives the warmed up detector, or the exception of the first stage which failed.
+     */
+    public synchronized Future<Detector> start(final Listener listener, final Executor callbackExecutor) {
+        if (ready != null) return ready;
+        final FutureTask<Void> gallery = new FutureTask<>(new Callable<Void>() {
+            public Void call() throws Exception {
+                long stageTime = System.nanoTime();
+                stages.loadGallery();
+                galleryTime = (System.nanoTime() - stageTime) / timeFactor;
+                return null;
+            }
+        });
+        ready = new FutureTask<Detector>(new Callable<Detector>() {
+            public Detector call() throws Exception {
+                long stageTime = System.nanoTime();
+                Detector detector = stages.loadModels();
+                modelsTime = (System.nanoTime() - stageTime) / timeFactor;
+
+                // the gallery is most likely loaded meanwhile
+                try {
+                    gallery.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                stageTime = System.nanoTime();
+                stages.prepare(detector);
+                prepareTime = (System.nanoTime() - stageTime) / timeFactor;
+
+                warmUpTime = detector.warmUp();
+                readyTime = (System.nanoTime() - startTime) / timeFactor;
+                return detector;
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (listener == null || isCancelled()) return;
+                Detector detector = null;
+                Exception error = null;
+                try {
+                    detector = get();
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } catch (InterruptedException e) {
+                    error = e;
+                }
+                final Detector result = detector;
+                final Exception failure = error;
+                callbackExecutor.execute(new Runnable() {
+                    public void run() {
+                        if (failure == null) listener.onReady(result, readyTime);
+                        else listener.onError(failure);
+                    }
+                });
+            }
+        };
+        startThread(gallery, "StartupGallery");
+        startThread(ready, "StartupModels");
+        return ready;
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The readiness future, null before start
+    public synchronized Future<Detector> getReady() {
+        return ready;
+    }
+
+    public boolean isReady() {
+        Future<Detector> future = getReady();
+        return future != null && future.isDone() && readyTime >= 0;
+    }
+
+    /* ***** Metrics ***** */
+
+    // The UI is usable, e.g. at the end of onCreate; only the first call counts
+    public void markInteractive() {
+        if (interactiveTime < 0) interactiveTime = (System.nanoTime() - startTime) / timeFactor;
+    }
+
+    // Latency of a detection, from the request to the result (ms); only the first one counts
+    public void recordDetection(long latency) {
+        if (firstDetectionTime < 0) firstDetectionTime = latency;
+    }
+
+    public long getModelsTime() {
+        return modelsTime;
+    }
+
+    public long getGalleryTime() {
+        return galleryTime;
+    }
+
+    public long getPrepareTime() {
+        return prepareTime;
+    }
+
+    public long getWarmUpTime() {
+        return warmUpTime;
+    }
+
+    // From the start of the app to the warmed up detector
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    // From the start of the app to the usable UI
+    public long getInteractiveTime() {
+        return interactiveTime;
+    }
+
+    public long getFirstDetectionTime() {
+        return firstDetectionTime;
+    }
+
+    // The times in ms, for the logs, -1 for the stages not over yet
+    public String getReport() {
+        return "interactive " + interactiveTime + " ms, ready " + readyTime + " ms (models " + modelsTime
+                + ", gallery " + galleryTime + ", prepare " + prepareTime + ", warm-up " + warmUpTime
+                + "), first detection " + firstDetectionTime + " ms";
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.donutdetector.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// This class is implemented to describe how a model is executed: the delegate of the interpreter and its CPU threads
+// A config is saved as a short string, e.g. "XNNPACK:4", so the ExecutionTuner can keep the best one of each model
+public final class ExecutionConfig {
+
+    public enum Delegate {
+        CPU,     // the builtin kernels, without XNNPACK
+        XNNPACK, // the XNNPACK CPU kernels
+        NNAPI,   // the Android Neural Networks API, Android 8.1 and later
+        GPU      // the GPU delegate
+    }
+
+    private final Delegate delegate;
+    private final int threads;
+
+    /**
+     * @param threads CPU threads of the interpreter, ignored by the GPU delegate
+     */
+    public ExecutionConfig(Delegate delegate, int threads) {
+        this.delegate = delegate;
+        this.threads = Math.max(threads, 1);
+    }
+
+    public Delegate getDelegate() {
+        return delegate;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * The CPU configs, builtin kernels and XNNPACK, with 1, 2, 4... threads up to maxThreads.
+     */
+    public static List<ExecutionConfig> cpuCandidates(int maxThreads) {
+        List<ExecutionConfig> candidates = new ArrayList<>();
+        for (Delegate delegate : new Delegate[]{Delegate.CPU, Delegate.XNNPACK}) {
+            for (int threads = 1; threads <= Math.max(maxThreads, 1); threads *= 2) {
+                candidates.add(new ExecutionConfig(delegate, threads));
+            }
+        }
+        return candidates;
+    }
+
+    // The config of a string of toString, null when it is not one
+    public static ExecutionConfig parse(String value) {
+        if (value == null) return null;
+        int separator = value.indexOf(':');
+        if (separator < 0) return null;
+        try {
+            return new ExecutionConfig(Delegate.valueOf(value.substring(0, separator)),
+                    Integer.parseInt(value.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return delegate.name() + ":" + threads;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ExecutionConfig)) return false;
+        ExecutionConfig other = (ExecutionConfig) o;
+        return delegate == other.delegate && threads == other.threads;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * delegate.hashCode() + threads;
+    }
+}
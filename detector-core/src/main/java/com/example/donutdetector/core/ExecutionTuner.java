@@ -0,0 +1,154 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// This class is implemented to pick the fastest ExecutionConfig of each model on the device it runs on
+// The first time a model is asked for, each candidate config loads the model and times a few calls of it,
+// the fastest config is saved in the Store, and the next launches read it back without timing anything
+// A candidate which can't load or run the model (a missing delegate, an unsupported operation) is skipped
+public class ExecutionTuner {
+
+    /**
+     * Loads a model with a config.
+     */
+    public interface ModelFactory {
+        // Throws when the config is not supported for this model on this device
+        ModelRunner create(ExecutionConfig config) throws Exception;
+
+        // Buffers of one call of the model loaded by the runner, their content does not matter
+        ByteBuffer[] inputs(ModelRunner runner);
+
+        ByteBuffer[] outputs(ModelRunner runner);
+    }
+
+    /**
+     * Keeps the chosen configs between launches, e.g. in the SharedPreferences.
+     */
+    public interface Store {
+        // null when the model was never tuned
+        String get(String model);
+
+        void put(String model, String config);
+    }
+
+    // Time variables
+    final int timeFactor = 1_000_000;
+
+    private final Store store;
+    private int warmupRuns = 2;
+    private int timedRuns = 5;
+
+    // Median time of each candidate of the last tuned model, in ns
+    private final Map<ExecutionConfig, Long> lastTimes = new LinkedHashMap<>();
+
+    // Buffers of the model being tuned, allocated with the first candidate which loads it
+    private ByteBuffer[] inputs = null;
+    private ByteBuffer[] outputs = null;
+
+    public ExecutionTuner(Store store) {
+        this.store = store;
+    }
+
+    /**
+     * @param warmupRuns calls before the timing, the first calls of a delegate are much slower
+     * @param timedRuns  timed calls, the median is kept
+     */
+    public void setRuns(int warmupRuns, int timedRuns) {
+        this.warmupRuns = Math.max(warmupRuns, 0);
+        this.timedRuns = Math.max(timedRuns, 1);
+    }
+
+    /**
+     * The saved config of the model when it is one of the candidates, otherwise the fastest candidate, which is saved.
+     *
+     * @return null when no candidate could run the model, nothing is saved then
+     */
+    public ExecutionConfig getConfig(String model, ModelFactory factory, List<ExecutionConfig> candidates) {
+        ExecutionConfig saved = getSavedConfig(model, candidates);
+        if (saved != null) return saved;
+
+        ExecutionConfig best = tune(factory, candidates);
+        if (best != null) store.put(model, best.toString());
+        return best;
+    }
+
+    // The saved config of the model, null when there is none or it is not one of the candidates anymore
+    public ExecutionConfig getSavedConfig(String model, List<ExecutionConfig> candidates) {
+        ExecutionConfig saved = ExecutionConfig.parse(store.get(model));
+        return saved != null && candidates.contains(saved) ? saved : null;
+    }
+
+    /**
+     * Times every candidate and returns the fastest one, null when none could run the model.
+     * The times are kept until the next call, see getLastTimes.
+     */
+    public ExecutionConfig tune(ModelFactory factory, List<ExecutionConfig> candidates) {
+        lastTimes.clear();
+        inputs = null;
+        outputs = null;
+        ExecutionConfig best = null;
+        long bestTime = Long.MAX_VALUE;
+        for (ExecutionConfig config : candidates) {
+            long time = time(factory, config);
+            if (time < 0) continue;
+            lastTimes.put(config, time);
+            if (time < bestTime) {
+                bestTime = time;
+                best = config;
+            }
+        }
+        inputs = null;
+        outputs = null;
+        return best;
+    }
+
+    // Median time of a call of the model with the config, -1 when it fails
+    private long time(ModelFactory factory, ExecutionConfig config) {
+        ModelRunner runner = null;
+        long[] times = new long[timedRuns];
+        try {
+            runner = factory.create(config);
+            if (inputs == null) {
+                inputs = factory.inputs(runner);
+                outputs = factory.outputs(runner);
+            }
+            for (int i = 0; i < warmupRuns; i++) run(runner, inputs, outputs);
+            for (int i = 0; i < timedRuns; i++) {
+                long startTime = System.nanoTime();
+                run(runner, inputs, outputs);
+                times[i] = System.nanoTime() - startTime;
+            }
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (runner != null) runner.close();
+        }
+        Arrays.sort(times);
+        return times[timedRuns / 2];
+    }
+
+    private static void run(ModelRunner runner, ByteBuffer[] inputs, ByteBuffer[] outputs) {
+        for (ByteBuffer input : inputs) input.rewind();
+        for (ByteBuffer output : outputs) output.rewind();
+        runner.run(inputs, outputs);
+    }
+
+    // Median time in ns of each candidate which could run the last tuned model, in the order of the candidates
+    public Map<ExecutionConfig, Long> getLastTimes() {
+        return lastTimes;
+    }
+
+    // The last times in ms, for the logs
+    public String getLastReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<ExecutionConfig, Long> entry : lastTimes.entrySet()) {
+            if (report.length() > 0) report.append(", ");
+            report.append(entry.getKey()).append(' ').append((float) entry.getValue() / timeFactor).append(" ms");
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.donutdetector.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// This class is implemented to pace the detections of a camera stream
+// Only one frame is processed at a time: the frames coming while a detection runs are skipped
+// instead of queued, so the latency and the memory stay bounded whatever the camera rate
+// The RPN runs on every processed frame, the embeddings only on one processed frame out of embeddingInterval
+public class FrameScheduler {
+
+    // Time variables
+    final int timeFactor = 1_000_000;
+    private final static float FPS_SMOOTHING = 0.1f;
+
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private int embeddingInterval;
+
+    // Counters, updated by the frame thread and the detection thread
+    private volatile long frameCount = 0;
+    private volatile long skippedCount = 0;
+    private volatile long processedCount = 0;
+    private volatile long embeddedCount = 0;
+
+    // Frame rate of the processed frames, smoothed
+    private volatile float fps = 0;
+    private long lastReleaseTime = 0;
+
+    public FrameScheduler(int embeddingInterval) {
+        setEmbeddingInterval(embeddingInterval);
+    }
+
+    // 1 embeds every processed frame
+    public void setEmbeddingInterval(int embeddingInterval) {
+        this.embeddingInterval = Math.max(embeddingInterval, 1);
+    }
+
+    public int getEmbeddingInterval() {
+        return embeddingInterval;
+    }
+
+    /**
+     * Called for every camera frame. Returns false when a detection is still running,
+     * the frame must then be dropped. Otherwise the frame is processed and release must be called.
+     */
+    public boolean tryAcquire() {
+        frameCount++;
+        if (!busy.compareAndSet(false, true)) {
+            skippedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the acquired frame also runs the embeddings. It is called once per acquired frame,
+     * the first processed frame is always embedded.
+     */
+    public boolean shouldEmbed() {
+        boolean embed = processedCount % embeddingInterval == 0;
+        if (embed) embeddedCount++;
+        return embed;
+    }
+
+    /**
+     * Ends the processing of the acquired frame, the next frame can be processed.
+     */
+    public void release() {
+        long now = System.nanoTime();
+        if (lastReleaseTime != 0) {
+            float instantFps = 1_000_000_000f / Math.max(now - lastReleaseTime, 1);
+            fps = (fps == 0) ? instantFps : fps + FPS_SMOOTHING * (instantFps - fps);
+        }
+        lastReleaseTime = now;
+        processedCount++;
+        busy.set(false);
+    }
+
+    public boolean isBusy() {
+        return busy.get();
+    }
+
+    /* ***** Metrics ***** */
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public long getProcessedCount() {
+        return processedCount;
+    }
+
+    public long getEmbeddedCount() {
+        return embeddedCount;
+    }
+
+    // Processed frames per second
+    public float getFps() {
+        return fps;
+    }
+}
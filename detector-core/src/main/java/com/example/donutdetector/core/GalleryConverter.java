@@ -0,0 +1,39 @@
+package com.example.donutdetector.core;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+// This class is implemented to convert the csv files of the assets folder to the binary gallery file
+// It runs offline on any JVM:
+// java com.example.donutdetector.core.GalleryConverter embeds.csv classes.csv anchors.csv gallery.bin
+public final class GalleryConverter {
+
+    // Embedding variables
+    final static int embeddingSize = 256;
+
+    private GalleryConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: GalleryConverter <embeds.csv> <classes.csv> <anchors.csv> <gallery.bin>");
+            System.exit(1);
+        }
+        GalleryStore gallery = new GalleryStore(embeddingSize);
+        CsvLoader.readGallery(new InputStreamReader(new FileInputStream(args[0])),
+                new InputStreamReader(new FileInputStream(args[1])), gallery);
+        int[] anchors = CsvLoader.readAnchors(new InputStreamReader(new FileInputStream(args[2])));
+
+        OutputStream out = new FileOutputStream(args[3]);
+        try {
+            GalleryFile.write(out, gallery, anchors);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + gallery.size() + " embeddings, " + gallery.getClassCount() + " classes and "
+                + anchors.length + " anchors to " + args[3]);
+    }
+}
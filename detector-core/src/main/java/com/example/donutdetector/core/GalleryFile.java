@@ -0,0 +1,133 @@
+package com.example.donutdetector.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Binary gallery format, written offline by {@link GalleryConverter} and memory-mapped at runtime.
+ * <p>
+ * Everything is little endian:
+ * <pre>
+ * header       magic "DNUT", version, embeddingSize, stride, embeddingCount, classCount, anchorCount,
+ *              embeddingsOffset, anchorsOffset (9 ints)
+ * class table  classCount times: end index (int), name length (short), UTF-8 name
+ * embeddings   at embeddingsOffset (a multiple of 64), embeddingCount rows of stride floats
+ * anchors      at anchorsOffset, anchorCount ints
+ * </pre>
+ * The rows use the same padded layout as {@link GalleryStore}, so the store wraps the mapped bytes without copying them.
+ */
+public final class GalleryFile {
+
+    // Constants
+    public final static int MAGIC = 0x544E5544; // "DNUT" read as a little endian int
+    public final static int VERSION = 1;
+    private final static int HEADER_SIZE = 9 * 4;
+    private final static int BYTES_SIZE = 4;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final GalleryStore gallery;
+    private final int[] anchors;
+
+    private GalleryFile(GalleryStore gallery, int[] anchors) {
+        this.gallery = gallery;
+        this.anchors = anchors;
+    }
+
+    public GalleryStore getGallery() {
+        return gallery;
+    }
+
+    public int[] getAnchors() {
+        return anchors;
+    }
+
+    /**
+     * Reads a gallery file, the embeddings stay in the given (usually mapped) buffer.
+     */
+    public static GalleryFile read(ByteBuffer buffer) throws IOException {
+        ByteBuffer file = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        // header
+        if (file.remaining() < HEADER_SIZE || file.getInt() != MAGIC)
+            throw new IOException("Not a gallery file");
+        int version = file.getInt();
+        if (version != VERSION) throw new IOException("Unsupported gallery file version " + version);
+        int embeddingSize = file.getInt();
+        int stride = file.getInt();
+        int embeddingCount = file.getInt();
+        int classCount = file.getInt();
+        int anchorCount = file.getInt();
+        int embeddingsOffset = file.getInt();
+        int anchorsOffset = file.getInt();
+
+        // class table
+        String[] classNames = new String[classCount];
+        int[] classEnds = new int[classCount];
+        for (int c = 0; c < classCount; c++) {
+            classEnds[c] = file.getInt();
+            byte[] name = new byte[file.getShort()];
+            file.get(name);
+            classNames[c] = new String(name, UTF_8);
+        }
+
+        // embeddings, wrapped in place
+        file.position(embeddingsOffset).limit(embeddingsOffset + embeddingCount * stride * BYTES_SIZE);
+        ByteBuffer rows = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+        GalleryStore gallery = GalleryStore.wrap(rows, embeddingSize, stride, embeddingCount, classNames, classEnds);
+
+        // anchors
+        file.limit(file.capacity()).position(anchorsOffset);
+        int[] anchors = new int[anchorCount];
+        file.asIntBuffer().get(anchors);
+
+        return new GalleryFile(gallery, anchors);
+    }
+
+    public static void write(OutputStream outputStream, GalleryStore gallery, int[] anchors) throws IOException {
+        // class table size
+        byte[][] names = new byte[gallery.getClassCount()][];
+        int tableSize = 0;
+        for (int c = 0; c < names.length; c++) {
+            names[c] = gallery.getClassName(c).getBytes(UTF_8);
+            tableSize += 4 + 2 + names[c].length;
+        }
+        int stride = gallery.getStride();
+        int embeddingsOffset = align(HEADER_SIZE + tableSize, GalleryStore.ALIGNMENT);
+        int anchorsOffset = embeddingsOffset + gallery.size() * stride * BYTES_SIZE;
+
+        ByteBuffer file = ByteBuffer.allocate(anchorsOffset + anchors.length * BYTES_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // header
+        file.putInt(MAGIC).putInt(VERSION).putInt(gallery.getEmbeddingSize()).putInt(stride)
+                .putInt(gallery.size()).putInt(names.length).putInt(anchors.length)
+                .putInt(embeddingsOffset).putInt(anchorsOffset);
+
+        // class table
+        for (int c = 0; c < names.length; c++) {
+            file.putInt(gallery.getClassEnd(c));
+            file.putShort((short) names[c].length);
+            file.put(names[c]);
+        }
+
+        // embeddings, the padding floats stay at 0
+        float[] embedding = new float[gallery.getEmbeddingSize()];
+        for (int i = 0; i < gallery.size(); i++) {
+            file.position(embeddingsOffset + i * stride * BYTES_SIZE);
+            for (float value : gallery.get(i, embedding)) file.putFloat(value);
+        }
+
+        // anchors
+        file.position(anchorsOffset);
+        for (int anchor : anchors) file.putInt(anchor);
+
+        outputStream.write(file.array());
+        outputStream.flush();
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
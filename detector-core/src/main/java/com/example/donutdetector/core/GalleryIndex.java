@@ -0,0 +1,278 @@
+package com.example.donutdetector.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// This class is implemented to find the gallery embeddings closest to a query without reading the whole gallery
+// It is an inverted file index (IVF): the embeddings are clustered by k-means into about sqrt(N) lists, a query is
+// compared with the centers of the lists then only with the embeddings of the probes closest lists,
+// so a query costs about sqrt(N) dot products instead of N
+// The lists only choose the candidates: their Head scores are computed by SimilarityEngine.scoreClasses, and the share
+// of the queries whose class by the Head on the whole gallery is among the classes of the candidates (the class
+// recall) is measured by measureRecall and tuned by tune
+// The index only keeps the centers and the rows of each list: the embeddings are read from the GalleryStore,
+// off-heap and in its encoding, so the index adds no copy of the gallery
+public class GalleryIndex {
+
+    // Clustering variables
+    private final static int ITERATIONS = 10;
+
+    private final int count;
+    private final int galleryVersion;
+    private final GalleryStore gallery;
+
+    // Lists: the centers, then the gallery rows of each list one after the other
+    private final int listCount;
+    private final float[][] centers;
+    private final int[] listStarts;
+    private final int[] rows;
+
+    // Search variables
+    private int probes = 1;
+    private float[] centerScores;
+    private long[] heap = new long[0];
+    private long[] listHeap;
+    private int lastScanned = 0;
+
+    private GalleryIndex(GalleryStore gallery, int listCount, float[][] centers, int[] listStarts, int[] rows) {
+        this.gallery = gallery;
+        this.galleryVersion = gallery.getVersion();
+        this.count = gallery.size();
+        this.listCount = listCount;
+        this.centers = centers;
+        this.listStarts = listStarts;
+        this.rows = rows;
+        this.centerScores = new float[listCount];
+        this.listHeap = new long[listCount];
+    }
+
+    /**
+     * Clusters the gallery embeddings into lists, 0 lists picks sqrt(N).
+     * The centers are normalized, so an embedding goes to the list with the closest direction (spherical k-means).
+     */
+    public static GalleryIndex build(GalleryStore gallery, int listCount, long seed) {
+        // Intialize some variables
+        int n = gallery.size();
+        int d = gallery.getEmbeddingSize();
+        if (listCount <= 0) listCount = (int) Math.ceil(Math.sqrt(n));
+        listCount = Math.max(1, Math.min(listCount, n));
+        float[] row = new float[d];
+
+        // the first centers are random embeddings
+        float[][] centers = new float[listCount][d];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        for (int c = 0; c < listCount; c++) gallery.get(order[c], centers[c]);
+        normalize(centers);
+
+        int[] assignments = new int[n];
+        int[] sizes = new int[listCount];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            // assign each embedding to its closest center
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                int best = closest(gallery, i, centers);
+                if (iteration == 0 || best != assignments[i]) changed = true;
+                assignments[i] = best;
+            }
+            if (!changed) break;
+
+            // move the centers to the mean direction of their embeddings, an empty list takes a random embedding
+            for (float[] center : centers) Arrays.fill(center, 0.0f);
+            Arrays.fill(sizes, 0);
+            for (int i = 0; i < n; i++) {
+                float[] center = centers[assignments[i]];
+                sizes[assignments[i]]++;
+                gallery.get(i, row);
+                for (int k = 0; k < d; k++) center[k] += row[k];
+            }
+            for (int c = 0; c < listCount; c++) {
+                if (sizes[c] == 0) gallery.get(random.nextInt(n), centers[c]);
+            }
+            normalize(centers);
+        }
+
+        // the rows of a list are stored together, so a probe reads them in order
+        int[] listStarts = new int[listCount + 1];
+        for (int i = 0; i < n; i++) listStarts[assignments[i] + 1]++;
+        for (int c = 0; c < listCount; c++) listStarts[c + 1] += listStarts[c];
+        int[] next = Arrays.copyOf(listStarts, listCount);
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) rows[next[assignments[i]]++] = i;
+        return new GalleryIndex(gallery, listCount, centers, listStarts, rows);
+    }
+
+    /* ***** Settings ***** */
+
+    // Number of lists read by a query, more probes is a better recall and a slower query
+    public void setProbes(int probes) {
+        this.probes = Math.max(1, Math.min(probes, listCount));
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    public int getListCount() {
+        return listCount;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Whether the gallery changed since the index was built
+    public boolean isStale(GalleryStore gallery) {
+        return gallery != this.gallery || gallery.getVersion() != galleryVersion;
+    }
+
+    /* ***** Search ***** */
+
+    /**
+     * Finds the k embeddings of the probed lists with the highest dot product with the query.
+     *
+     * @param result receives their gallery rows, from the best to the worst
+     * @return the number of rows, less than k when the probed lists are smaller
+     */
+    public int search(float[] query, int k, int[] result) {
+        // the probes closest lists
+        for (int c = 0; c < listCount; c++) centerScores[c] = dot(centers[c], query);
+        int lists = selectBest(centerScores, listCount, probes, listHeap);
+
+        // the k best embeddings of these lists
+        if (heap.length < k) heap = new long[k];
+        int size = 0;
+        lastScanned = listCount;
+        for (int l = 0; l < lists; l++) {
+            int c = Integer.MAX_VALUE - (int) listHeap[l];
+            lastScanned += listStarts[c + 1] - listStarts[c];
+            for (int p = listStarts[c]; p < listStarts[c + 1]; p++) {
+                float score = gallery.dot(rows[p], query);
+                // a higher key is a better score, and a lower row for equal scores
+                long key = ((long) ArrayUtils.sortableBits(score) << 32) | (Integer.MAX_VALUE - rows[p]);
+                if (size < k) {
+                    heap[size] = key;
+                    ArrayUtils.siftUp(heap, size++);
+                } else if (key > heap[0]) {
+                    heap[0] = key;
+                    ArrayUtils.siftDown(heap, k);
+                }
+            }
+        }
+        Arrays.sort(heap, 0, size);
+        for (int i = 0; i < size; i++) result[i] = Integer.MAX_VALUE - (int) heap[size - 1 - i];
+        return size;
+    }
+
+    // Keeps the k best values in the heap, as keys, and returns their number
+    private static int selectBest(float[] values, int n, int k, long[] heap) {
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            long key = ((long) ArrayUtils.sortableBits(values[i]) << 32) | (Integer.MAX_VALUE - i);
+            if (size < k) {
+                heap[size] = key;
+                ArrayUtils.siftUp(heap, size++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                ArrayUtils.siftDown(heap, k);
+            }
+        }
+        return size;
+    }
+
+    // Dot products of the last search, the centers included: a brute force search computes size() of them
+    public int getLastScanned() {
+        return lastScanned;
+    }
+
+    /* ***** Recall ***** */
+
+    /**
+     * Share of the queries whose class by the Head on the whole gallery has an embedding among the k candidates
+     * of search, so the Head on the candidates can still give it. The dot product ranks the candidates, the Head
+     * decides the class, a candidate list can miss rows of the dot product top K and still keep the class.
+     *
+     * @param engine the Head, its gallery is set to the gallery of the index
+     */
+    public float measureRecall(SimilarityEngine engine, float[][] queries, int k) {
+        return measureRecall(queries, exactClasses(engine, queries), k);
+    }
+
+    // The class of each query by the Head on the whole gallery
+    private int[] exactClasses(SimilarityEngine engine, float[][] queries) {
+        if (engine.isStale(gallery)) engine.setGallery(gallery);
+        int[] exact = new int[queries.length];
+        for (int q = 0; q < queries.length; q++) exact[q] = engine.bestClass(engine.scoreClasses(queries[q]));
+        return exact;
+    }
+
+    private float measureRecall(float[][] queries, int[] exact, int k) {
+        if (queries.length == 0 || count == 0) return 1;
+        int[] found = new int[k];
+        int hits = 0;
+        for (int q = 0; q < queries.length; q++) {
+            int n = search(queries[q], k, found);
+            // the rows of a class are contiguous in the gallery
+            int start = gallery.getClassStart(exact[q]);
+            int end = gallery.getClassEnd(exact[q]);
+            for (int i = 0; i < n; i++) {
+                if (found[i] >= start && found[i] < end) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return (float) hits / queries.length;
+    }
+
+    /**
+     * Sets the smallest number of probes reaching the target class recall on the queries, e.g. a sample of
+     * the gallery embeddings or of real crops, and returns it. The classes by the Head are only computed once.
+     */
+    public int tune(SimilarityEngine engine, float[][] queries, int k, float targetRecall) {
+        int[] exact = exactClasses(engine, queries);
+        for (int p = 1; p <= listCount; p++) {
+            setProbes(p);
+            if (measureRecall(queries, exact, k) >= targetRecall) return p;
+        }
+        return probes;
+    }
+
+    /* ***** Vector operations ***** */
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int k = 0; k < a.length; k++) sum += a[k] * b[k];
+        return sum;
+    }
+
+    private static int closest(GalleryStore gallery, int row, float[][] centers) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < centers.length; c++) {
+            float score = gallery.dot(row, centers[c]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static void normalize(float[][] vectors) {
+        for (float[] vector : vectors) {
+            float norm = 0;
+            for (float value : vector) norm += value * value;
+            norm = (float) Math.sqrt(norm);
+            if (norm == 0) continue;
+            for (int k = 0; k < vector.length; k++) vector[k] /= norm;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.donutdetector.core;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// This class is implemented to keep the gallery embeddings in one contiguous direct buffer
+// The embeddings of a class are consecutive rows, and classOffsets[c]..classOffsets[c + 1] is the range of class c
+// Every row starts on a 64 bytes boundary so the scoring loops stream over the memory linearly
+// The rows can be stored quantized (see Encoding): the dot products read the quantized values as they are,
+// and get dequantizes a row for the Head
+public class GalleryStore {
+
+    /**
+     * Storage of the embedding values.
+     */
+    public enum Encoding {
+        FLOAT32(4), // the floats as they are
+        FLOAT16(2), // IEEE half floats, 11 significant bits
+        INT8(1); // bytes times a scale per row, the largest absolute value of the row is stored as 127
+
+        final int bytes;
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // Constants
+    public final static int ALIGNMENT = 64;
+    private final static int DEFAULT_CAPACITY = 256;
+    private final static float INT8_MAX = 127.0f;
+
+    // Layout variables
+    private final int embeddingSize;
+    private final Encoding encoding;
+    private final int stride;
+    private final int rowBytes;
+
+    // Data, the scales are only used by INT8
+    private ByteBuffer data;
+    private FloatBuffer floats;
+    private float[] scales = new float[0];
+    private int capacity;
+    private int count = 0;
+
+    // Classes variables
+    private String[] classNames = new String[0];
+    private int[] classOffsets = new int[]{0};
+    private int classCount = 0;
+
+    // Incremented on every change, so the users of the store know when to refresh
+    private int version = 0;
+    private int fingerprintVersion = -1;
+    private long fingerprint = 0;
+
+    public GalleryStore(int embeddingSize) {
+        this(embeddingSize, DEFAULT_CAPACITY);
+    }
+
+    public GalleryStore(int embeddingSize, int initialCapacity) {
+        this(embeddingSize, initialCapacity, Encoding.FLOAT32);
+    }
+
+    public GalleryStore(int embeddingSize, int initialCapacity, Encoding encoding) {
+        this.embeddingSize = embeddingSize;
+        this.encoding = encoding;
+        // pad the rows to a multiple of the alignment
+        int valuesPerLine = ALIGNMENT / encoding.bytes;
+        this.stride = (embeddingSize + valuesPerLine - 1) / valuesPerLine * valuesPerLine;
+        this.rowBytes = stride * encoding.bytes;
+        this.capacity = Math.max(initialCapacity, 1);
+        this.data = allocateAligned(capacity * rowBytes);
+        this.floats = data.asFloatBuffer();
+        if (encoding == Encoding.INT8) scales = new float[capacity];
+    }
+
+    private GalleryStore(ByteBuffer rows, int embeddingSize, int stride, int count) {
+        this.embeddingSize = embeddingSize;
+        this.encoding = Encoding.FLOAT32;
+        this.stride = stride;
+        this.rowBytes = stride * Encoding.FLOAT32.bytes;
+        this.capacity = count;
+        this.count = count;
+        this.data = rows;
+        this.floats = data.asFloatBuffer();
+    }
+
+    /**
+     * Copies the store into another encoding, e.g. a FLOAT32 gallery into an INT8 one 4 times smaller.
+     */
+    public GalleryStore quantize(Encoding encoding) {
+        GalleryStore store = new GalleryStore(embeddingSize, count, encoding);
+        float[] row = new float[embeddingSize];
+        for (int c = 0; c < classCount; c++) {
+            store.beginClass(classNames[c]);
+            for (int i = classOffsets[c]; i < classOffsets[c + 1]; i++) store.add(get(i, row));
+        }
+        return store;
+    }
+
+    /**
+     * Wraps rows that already have the store layout, like a memory-mapped gallery file.
+     * The rows are not copied, unless the store is modified while the buffer is read-only.
+     */
+    static GalleryStore wrap(ByteBuffer rows, int embeddingSize, int stride, int count, String[] classNames, int[] classEnds) {
+        GalleryStore store = new GalleryStore(rows, embeddingSize, stride, count);
+        store.classNames = classNames.clone();
+        store.classCount = classNames.length;
+        store.classOffsets = new int[classNames.length + 1];
+        System.arraycopy(classEnds, 0, store.classOffsets, 1, classEnds.length);
+        return store;
+    }
+
+    /**
+     * Builds a store the way classes.csv describes it: classEnds[c] is the index after the last embedding of class c.
+     */
+    public static GalleryStore fromIndices(String[] classNames, int[] classEnds, float[][] embeds, int embeddingSize) {
+        GalleryStore store = new GalleryStore(embeddingSize, embeds.length);
+        int start = 0;
+        for (int c = 0; c < classNames.length; c++) {
+            store.beginClass(classNames[c]);
+            for (int i = start; i < classEnds[c]; i++) store.add(embeds[i]);
+            start = classEnds[c];
+        }
+        return store;
+    }
+
+    /* ***** Filling the store ***** */
+
+    /**
+     * Adds a whole class, an existing class with the same name is replaced.
+     */
+    public int addClass(String className, float[][] embeds) {
+        ensureCapacity(count + embeds.length);
+        beginClass(className);
+        for (float[] embed : embeds) add(embed);
+        return classCount - 1;
+    }
+
+    /**
+     * Starts a new class, the next added embeddings belong to it.
+     * An existing class with the same name is removed first.
+     */
+    public void beginClass(String className) {
+        int existing = indexOf(className);
+        if (existing >= 0) removeClass(existing);
+        if (classCount == classNames.length) {
+            classNames = Arrays.copyOf(classNames, Math.max(2 * classCount, 8));
+            classOffsets = Arrays.copyOf(classOffsets, classNames.length + 1);
+        }
+        classNames[classCount] = className;
+        classCount++;
+        classOffsets[classCount] = count;
+        version++;
+    }
+
+    /**
+     * Appends an embedding to the last started class.
+     */
+    public void add(float[] embedding) {
+        add(embedding, 0);
+    }
+
+    public void add(float[] src, int offset) {
+        if (classCount == 0) throw new IllegalStateException("beginClass must be called before adding embeddings");
+        ensureCapacity(count + 1);
+        int base = count * stride;
+        switch (encoding) {
+            case FLOAT32: {
+                // a view of its own, the position of the shared buffer is never moved
+                FloatBuffer view = floats.duplicate();
+                view.position(base);
+                view.put(src, offset, embeddingSize);
+                break;
+            }
+            case FLOAT16:
+                for (int k = 0; k < embeddingSize; k++) data.putShort(2 * (base + k), toHalf(src[offset + k]));
+                break;
+            case INT8:
+                float max = 0.0f;
+                for (int k = 0; k < embeddingSize; k++) max = Math.max(max, Math.abs(src[offset + k]));
+                float scale = max / INT8_MAX;
+                float inverse = scale == 0.0f ? 0.0f : 1.0f / scale;
+                for (int k = 0; k < embeddingSize; k++) data.put(base + k, (byte) Math.round(src[offset + k] * inverse));
+                scales[count] = scale;
+                break;
+        }
+        count++;
+        classOffsets[classCount] = count;
+        version++;
+    }
+
+    public void clear() {
+        count = 0;
+        classCount = 0;
+        classOffsets[0] = 0;
+        version++;
+    }
+
+    private void removeClass(int classIndex) {
+        if (data.isReadOnly()) reallocate(capacity);
+        int start = classOffsets[classIndex];
+        int end = classOffsets[classIndex + 1];
+        int removed = end - start;
+
+        // move the following rows down
+        ByteBuffer src = data.duplicate();
+        src.position(end * rowBytes).limit(count * rowBytes);
+        ByteBuffer dst = data.duplicate();
+        dst.position(start * rowBytes);
+        dst.put(src);
+        if (encoding == Encoding.INT8) System.arraycopy(scales, end, scales, start, count - end);
+        count -= removed;
+
+        for (int c = classIndex; c < classCount - 1; c++) {
+            classNames[c] = classNames[c + 1];
+            classOffsets[c + 1] = classOffsets[c + 2] - removed;
+        }
+        classCount--;
+        version++;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= capacity) return;
+        reallocate(Math.max(rows, 2 * capacity));
+    }
+
+    private void reallocate(int newCapacity) {
+        ByteBuffer newData = allocateAligned(newCapacity * rowBytes);
+        ByteBuffer old = data.duplicate();
+        old.position(0).limit(count * rowBytes);
+        newData.put(old);
+        newData.rewind();
+        data = newData;
+        floats = data.asFloatBuffer();
+        if (encoding == Encoding.INT8) scales = Arrays.copyOf(scales, newCapacity);
+        capacity = newCapacity;
+    }
+
+    /* ***** Reading the store ***** */
+
+    public int size() {
+        return count;
+    }
+
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    // Number of values between the start of two consecutive rows
+    public int getStride() {
+        return stride;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    // Memory used by the rows, with the scales
+    public long getBytes() {
+        return (long) count * rowBytes + (encoding == Encoding.INT8 ? 4L * count : 0);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Hash of the classes and of the values as the Head sees them, so a quantized copy is another fingerprint.
+     * It is computed once per version, for all the Detectors sharing the store, see Detector.getCacheVersion.
+     */
+    public synchronized long getFingerprint() {
+        if (fingerprintVersion != version) {
+            long h = ResultCache.mix(0, count);
+            for (int c = 0; c < classCount; c++) {
+                h = ResultCache.mix(h, classNames[c]);
+                h = ResultCache.mix(h, classOffsets[c + 1]);
+            }
+            h = ResultCache.mix(h, encoding.name());
+            float[] row = new float[embeddingSize];
+            for (int i = 0; i < count; i++) {
+                for (float value : get(i, row)) h = ResultCache.mix(h, Float.floatToIntBits(value));
+            }
+            fingerprintVersion = version;
+            fingerprint = h;
+        }
+        return fingerprint;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    public String getClassName(int classIndex) {
+        return classNames[classIndex];
+    }
+
+    public int getClassStart(int classIndex) {
+        return classOffsets[classIndex];
+    }
+
+    public int getClassEnd(int classIndex) {
+        return classOffsets[classIndex + 1];
+    }
+
+    public int indexOf(String className) {
+        for (int c = 0; c < classCount; c++) {
+            if (classNames[c].equals(className)) return c;
+        }
+        return -1;
+    }
+
+    // Row as floats, dequantized
+    public float[] get(int row, float[] dst) {
+        int base = row * stride;
+        switch (encoding) {
+            case FLOAT16:
+                for (int k = 0; k < embeddingSize; k++) dst[k] = fromHalf(data.getShort(2 * (base + k)));
+                break;
+            case INT8:
+                float scale = scales[row];
+                for (int k = 0; k < embeddingSize; k++) dst[k] = data.get(base + k) * scale;
+                break;
+            default:
+                // the Detectors of a pool read the same store at once, each call reads through its own view
+                FloatBuffer view = floats.duplicate();
+                view.position(base);
+                view.get(dst, 0, embeddingSize);
+        }
+        return dst;
+    }
+
+    public float get(int row, int index) {
+        int position = row * stride + index;
+        switch (encoding) {
+            case FLOAT16:
+                return fromHalf(data.getShort(2 * position));
+            case INT8:
+                return data.get(position) * scales[row];
+            default:
+                return floats.get(position);
+        }
+    }
+
+    /**
+     * Dot product between a row and a query, read straight from the buffer in the encoding of the store.
+     * The quantized loops keep 4 independent sums, so consecutive values do not wait for each other.
+     */
+    public float dot(int row, float[] query) {
+        int base = row * stride;
+        switch (encoding) {
+            case FLOAT16: {
+                float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+                int k = 0;
+                int position = 2 * base;
+                for (; k + 3 < embeddingSize; k += 4, position += 8) {
+                    s0 += fromHalf(data.getShort(position)) * query[k];
+                    s1 += fromHalf(data.getShort(position + 2)) * query[k + 1];
+                    s2 += fromHalf(data.getShort(position + 4)) * query[k + 2];
+                    s3 += fromHalf(data.getShort(position + 6)) * query[k + 3];
+                }
+                for (; k < embeddingSize; k++, position += 2) s0 += fromHalf(data.getShort(position)) * query[k];
+                return (s0 + s1) + (s2 + s3);
+            }
+            case INT8: {
+                // the scale of the row is applied once, at the end
+                float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+                int k = 0;
+                for (; k + 3 < embeddingSize; k += 4) {
+                    s0 += data.get(base + k) * query[k];
+                    s1 += data.get(base + k + 1) * query[k + 1];
+                    s2 += data.get(base + k + 2) * query[k + 2];
+                    s3 += data.get(base + k + 3) * query[k + 3];
+                }
+                for (; k < embeddingSize; k++) s0 += data.get(base + k) * query[k];
+                return ((s0 + s1) + (s2 + s3)) * scales[row];
+            }
+            default: {
+                float sum = 0.0f;
+                for (int k = 0; k < embeddingSize; k++) sum += floats.get(base + k) * query[k];
+                return sum;
+            }
+        }
+    }
+
+    /**
+     * Direct view of the rows [from, to), in the native order and in the encoding of the store.
+     * With FLOAT32 rows whose stride equals the embedding size this is a dense [to - from, embeddingSize] tensor.
+     */
+    public ByteBuffer rows(int from, int to) {
+        ByteBuffer view = data.duplicate();
+        view.position(from * rowBytes).limit(to * rowBytes);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    // The values of a FLOAT32 store
+    public FloatBuffer floats() {
+        if (encoding != Encoding.FLOAT32) throw new IllegalStateException("The store is " + encoding);
+        return floats.duplicate();
+    }
+
+    /* ***** Half floats ***** */
+
+    // Rounds a float to the closest half float, ties to even, like the IEEE conversion
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (floatExponent == 0xff) return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0)); // infinity, NaN
+
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 0x1f) return (short) (sign | 0x7c00); // too large, infinity
+        if (exponent <= 0) {
+            // subnormal half float, the implicit bit of the float becomes explicit
+            if (exponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (rest > midpoint || (rest == midpoint && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+        // a carry of the rounding goes into the exponent, which is the right value
+        int half = (exponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) half++;
+        return (short) (sign | half);
+    }
+
+    static float fromHalf(short value) {
+        int half = value & 0xffff;
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        if (exponent != 0) return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+        // zero or subnormal
+        float subnormal = mantissa * (1.0f / (1 << 24));
+        return sign != 0 ? -subnormal : subnormal;
+    }
+
+    /* ***** Buffer allocation ***** */
+
+    private static Method alignedSlice = null;
+
+    static {
+        // ByteBuffer.alignedSlice is only there on Java 9+ and recent Android versions
+        try {
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (NoSuchMethodException ignored) {
+        }
+    }
+
+    static ByteBuffer allocateAligned(int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes + 2 * ALIGNMENT);
+        if (alignedSlice != null) {
+            try {
+                buffer = (ByteBuffer) alignedSlice.invoke(buffer, ALIGNMENT);
+            } catch (Exception ignored) {
+                // keep the allocator alignment
+            }
+        }
+        buffer.limit(bytes);
+        buffer = buffer.slice();
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+// This class is implemented to prepare the float input tensor of one model
+// or the UINT8 one of a quantized model, whose bytes come from a second table (see Quantization)
+// It is created once per model input and owns its pixels array and its direct buffer,
+// so preparing an input does not allocate anything
+// The normalization is picked at construction as a lookup table of the 256 channel values
+// It can also crop, resize and normalize a box of a bigger image in one pass (processBox)
+public class InputPreprocessor {
+
+    // Constants
+    private final static int BYTES_SIZE = 4;
+    private final static int PIXEL_SIZE = 3;
+
+    // Normalization strategies, named after the model types of Detector
+    public enum Normalization {
+        MOBILENET("mobilenet") {
+            float apply(int value) {
+                return (value / 127.5f) - 1.0f;
+            }
+        },
+        VGG("vgg") {
+            float apply(int value) {
+                return value / 255.0f;
+            }
+        },
+        RAW("") {
+            float apply(int value) {
+                return value * 1.0f;
+            }
+        };
+
+        private final String modelType;
+
+        Normalization(String modelType) {
+            this.modelType = modelType;
+        }
+
+        abstract float apply(int value);
+
+        public float[] table() {
+            float[] table = new float[256];
+            for (int i = 0; i < table.length; i++) table[i] = apply(i);
+            return table;
+        }
+
+        public static Normalization of(String modelType) {
+            for (Normalization normalization : values()) {
+                if (normalization.modelType.equals(modelType)) return normalization;
+            }
+            return RAW;
+        }
+    }
+
+    // Sampling used to resize the crops
+    public enum Sampling {
+        NEAREST, // like Bitmap.createScaledBitmap(..., false)
+        BILINEAR // like Bitmap.createScaledBitmap(..., true)
+    }
+
+    private final int inputSize;
+    private final int slotSize;
+    private final float[] table;
+    private final byte[] bytes; // null for a float input
+    private final int valueSize;
+    private final int[] pixels;
+
+    // Source columns / rows of the last crop and their bilinear weights, kept to avoid allocating
+    private final int[] xLow;
+    private final int[] xHigh;
+    private final float[] xFrac;
+    private final int[] yLow;
+    private final int[] yHigh;
+    private final float[] yFrac;
+
+    private ByteBuffer buffer;
+    private FloatBuffer floats;
+    private int batchSize;
+
+    // The last input view handed out, reused while the batch size does not change
+    private ByteBuffer input = null;
+    private int inputBatch = 0;
+
+    public InputPreprocessor(int inputSize, int batchSize, Normalization normalization) {
+        this(inputSize, batchSize, normalization, null);
+    }
+
+    /**
+     * @param quantization parameters of a UINT8 input, the normalized values are quantized once in a table;
+     *                     null for a float input
+     */
+    public InputPreprocessor(int inputSize, int batchSize, Normalization normalization, Quantization quantization) {
+        this.inputSize = inputSize;
+        this.slotSize = inputSize * inputSize * PIXEL_SIZE;
+        this.table = normalization.table();
+        this.bytes = quantization == null ? null : quantization.quantize(table);
+        this.valueSize = quantization == null ? BYTES_SIZE : 1;
+        this.pixels = new int[inputSize * inputSize];
+        this.xLow = new int[inputSize];
+        this.xHigh = new int[inputSize];
+        this.xFrac = new float[inputSize];
+        this.yLow = new int[inputSize];
+        this.yHigh = new int[inputSize];
+        this.yFrac = new float[inputSize];
+        allocate(Math.max(batchSize, 1));
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    // Number of values of one image
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public boolean isQuantized() {
+        return bytes != null;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // ARGB pixels of one image, to be filled by the caller (e.g. with Bitmap.getPixels)
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public float[] getTable() {
+        return table;
+    }
+
+    /**
+     * Grows the buffer so it holds batchSize images. It never shrinks, so a steady batch size does not allocate.
+     */
+    public void ensureBatchSize(int batchSize) {
+        if (batchSize > this.batchSize) allocate(batchSize);
+    }
+
+    /**
+     * Normalizes the pixels array into the given slot of the batch.
+     */
+    public void process(int slot) {
+        process(pixels, slot);
+    }
+
+    public void process(int[] argb, int slot) {
+        int index = slot * slotSize;
+        for (int i = 0; i < inputSize * inputSize; i++) {
+            final int val = argb[i];
+            put(index++, (val >> 16) & 0xFF);
+            put(index++, (val >> 8) & 0xFF);
+            put(index++, val & 0xFF);
+        }
+    }
+
+    /**
+     * Crops the box (x, y, w, h) out of the source pixels, resizes it to the input size and normalizes it
+     * into the given slot in one pass, without intermediate bitmaps.
+     * The rectangle is the one the Bitmap.createBitmap crop used, clamped to the image.
+     */
+    public void processBox(int[] src, int srcWidth, int srcHeight, float[] bbox, int slot, Sampling sampling) {
+        int x = (int) Math.max(Math.floor(bbox[0]), 0);
+        int y = (int) Math.max(Math.floor(bbox[1]), 0);
+        int w = (int) Math.min(Math.ceil(bbox[2]), srcWidth - Math.ceil(bbox[0]));
+        int h = (int) Math.min(Math.ceil(bbox[3]), srcHeight - Math.ceil(bbox[1]));
+
+        // boxes going out of the image are clamped instead of failing
+        x = Math.min(x, srcWidth - 1);
+        y = Math.min(y, srcHeight - 1);
+        w = Math.max(1, Math.min(w, srcWidth - x));
+        h = Math.max(1, Math.min(h, srcHeight - y));
+        processCrop(src, srcWidth, x, y, w, h, slot, sampling);
+    }
+
+    public void processCrop(int[] src, int srcWidth, int x, int y, int w, int h, int slot, Sampling sampling) {
+        // source coordinates of the centers of the destination pixels
+        samplingPositions(x, w, xLow, xHigh, xFrac);
+        samplingPositions(y, h, yLow, yHigh, yFrac);
+
+        int index = slot * slotSize;
+        if (sampling == Sampling.NEAREST) {
+            for (int i = 0; i < inputSize; i++) {
+                int row = (yFrac[i] < 0.5f ? yLow[i] : yHigh[i]) * srcWidth;
+                for (int j = 0; j < inputSize; j++) {
+                    final int val = src[row + (xFrac[j] < 0.5f ? xLow[j] : xHigh[j])];
+                    put(index++, (val >> 16) & 0xFF);
+                    put(index++, (val >> 8) & 0xFF);
+                    put(index++, val & 0xFF);
+                }
+            }
+        } else {
+            for (int i = 0; i < inputSize; i++) {
+                int top = yLow[i] * srcWidth;
+                int bottom = yHigh[i] * srcWidth;
+                float fy = yFrac[i];
+                for (int j = 0; j < inputSize; j++) {
+                    int tl = src[top + xLow[j]], tr = src[top + xHigh[j]];
+                    int bl = src[bottom + xLow[j]], br = src[bottom + xHigh[j]];
+                    float fx = xFrac[j];
+                    for (int shift = 16; shift >= 0; shift -= 8) {
+                        float t = ((tl >> shift) & 0xFF) + fx * (((tr >> shift) & 0xFF) - ((tl >> shift) & 0xFF));
+                        float b = ((bl >> shift) & 0xFF) + fx * (((br >> shift) & 0xFF) - ((bl >> shift) & 0xFF));
+                        put(index++, (int) (t + fy * (b - t) + 0.5f));
+                    }
+                }
+            }
+        }
+    }
+
+    // Writes a channel value, normalized as a float or quantized as a byte
+    private void put(int index, int value) {
+        if (bytes != null) buffer.put(index, bytes[value]);
+        else floats.put(index, table[value]);
+    }
+
+    // For each destination pixel: the two neighbouring source pixels and the weight of the second one
+    // The nearest sampling takes the second one when the weight is at least 0.5
+    private void samplingPositions(int start, int length, int[] low, int[] high, float[] frac) {
+        float scale = (float) length / inputSize;
+        for (int i = 0; i < inputSize; i++) {
+            float position = (i + 0.5f) * scale - 0.5f;
+            if (position <= 0) {
+                low[i] = start;
+                high[i] = start;
+                frac[i] = 0;
+            } else {
+                int floor = (int) position;
+                low[i] = start + floor;
+                high[i] = start + Math.min(floor + 1, length - 1);
+                frac[i] = position - floor;
+            }
+        }
+    }
+
+    // Zeroes the slots [from, to), used to pad a partial batch
+    public void clear(int from, int to) {
+        if (bytes != null) {
+            for (int i = from * slotSize; i < to * slotSize; i++) buffer.put(i, (byte) 0);
+        } else {
+            for (int i = from * slotSize; i < to * slotSize; i++) floats.put(i, 0.0f);
+        }
+    }
+
+    // The values of a float input
+    public FloatBuffer getFloats() {
+        return floats;
+    }
+
+    /**
+     * Input tensor holding the first batch images, its capacity is exactly their size.
+     */
+    public ByteBuffer getInput(int batch) {
+        if (input == null || inputBatch != batch) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(0).limit(batch * slotSize * valueSize);
+            input = view.slice().order(ByteOrder.nativeOrder());
+            inputBatch = batch;
+        }
+        input.rewind();
+        return input;
+    }
+
+    private void allocate(int batchSize) {
+        buffer = ByteBuffer.allocateDirect(valueSize * batchSize * slotSize);
+        buffer.order(ByteOrder.nativeOrder());
+        floats = buffer.asFloatBuffer();
+        this.batchSize = batchSize;
+        input = null;
+    }
+}
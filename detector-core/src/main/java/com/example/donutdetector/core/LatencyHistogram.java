@@ -0,0 +1,90 @@
+package com.example.donutdetector.core;
+
+// This class is implemented to keep the distribution of a latency without keeping every value, like an HdrHistogram
+// The values are counted in log-linear buckets: each power of two is split in HALF linear buckets,
+// so a percentile is known within 1 / HALF (about 3%) of its value, whatever the range, with a fixed memory
+// The values are in ns, every method is synchronized so the detections of several threads can record at once
+public class LatencyHistogram {
+
+    // Buckets variables
+    private final static int SUB_BITS = 6;
+    private final static int SUB_COUNT = 1 << SUB_BITS; // values under it have their own bucket
+    private final static int HALF = SUB_COUNT / 2;
+    private final static int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    // Bucket of a value: the value itself under SUB_COUNT, then HALF buckets per power of two
+    static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // Highest value of a bucket
+    static long highest(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * The value under which percentile % of the values are, e.g. 50, 95 or 99, within the precision of the buckets.
+     * 0 when nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.max(min, Math.min(highest(i), max));
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public synchronized void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    // The summary as a JSON object, in ns
+    public synchronized String toJson() {
+        return "{\"count\":" + count + ",\"min\":" + getMin() + ",\"mean\":" + Math.round(getMean())
+                + ",\"p50\":" + getPercentile(50) + ",\"p95\":" + getPercentile(95) + ",\"p99\":" + getPercentile(99)
+                + ",\"max\":" + max + "}";
+    }
+}
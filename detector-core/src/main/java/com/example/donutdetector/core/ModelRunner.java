@@ -0,0 +1,26 @@
+package com.example.donutdetector.core;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+// This interface is implemented to run one model of the detector
+// The tensors are direct buffers in native order, the runner reads the inputs and fills the outputs
+// On Android it wraps a TFLite Interpreter, on a server it can wrap TFLite Java or a stub
+public interface ModelRunner extends Closeable {
+
+    /**
+     * Changes the shape of an input, e.g. its batch dimension. The outputs follow the new shape.
+     *
+     * @throws IllegalArgumentException when the model does not accept the shape
+     */
+    void resizeInput(int index, int[] shape);
+
+    /**
+     * Runs the model once, the outputs are written from their position 0.
+     */
+    void run(ByteBuffer[] inputs, ByteBuffer[] outputs);
+
+    // Releases the native resources of the model
+    @Override
+    void close();
+}
@@ -0,0 +1,140 @@
+package com.example.donutdetector.core;
+
+// This class is implemented to remove the overlapping bounding boxes (non maximum suppression)
+// The boxes are a flat array of (x, y, w, h) and no object is created per box or per pair
+// The boxes are swept in x order, so a kept box is only compared with the boxes that can overlap it
+// It keeps the behaviour of the previous tool_nms: the coordinates are rounded like the BoundingBox ints,
+// the boxes are visited by decreasing score and a box is removed when its IOU is over the threshold
+public class NmsEngine {
+
+    // Boxes status
+    private final static byte UNDECIDED = 0;
+    private final static byte REMOVED = 1;
+    private final static byte KEPT = 2;
+
+    // Work arrays, they only grow
+    private int capacity = 0;
+    private int[] coordinates;
+    private byte[] status;
+    private int[] scoreOrder;
+    private int[] xOrder;
+    private int[] xSorted;
+    private long[] keys;
+    private float[] xValues;
+
+    public NmsEngine() {
+        this(64);
+    }
+
+    public NmsEngine(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Runs the suppression on the first n boxes.
+     *
+     * @param boxes     n boxes, 4 floats each (x, y, w, h)
+     * @param classes   class of each box, a box only removes boxes of its class; null removes across classes
+     * @param kept      receives the indexes of the kept boxes, in index order
+     * @return the number of kept boxes
+     */
+    public int run(float[] boxes, float[] scores, int n, float threshold, int[] classes, int[] kept) {
+        ensureCapacity(n);
+        if (n == 0) return 0;
+
+        // rounded coordinates, like the BoundingBox of the previous implementation
+        int maxWidth = 0;
+        boolean sweepable = threshold >= 0;
+        for (int i = 0; i < n; i++) {
+            int w = Math.round(boxes[4 * i + 2]);
+            int h = Math.round(boxes[4 * i + 3]);
+            coordinates[4 * i] = Math.round(boxes[4 * i]);
+            coordinates[4 * i + 1] = Math.round(boxes[4 * i + 1]);
+            coordinates[4 * i + 2] = w;
+            coordinates[4 * i + 3] = h;
+            if (w < 0 || h < 0) sweepable = false;
+            if (w > maxWidth) maxWidth = w;
+            status[i] = UNDECIDED;
+        }
+
+        // visiting order: ascending scores read backwards, so equal scores go from the highest index
+        ArrayUtils.argsort(scores, n, true, scoreOrder, keys);
+
+        // x order, to find the boxes that can overlap a kept box
+        for (int i = 0; i < n; i++) xValues[i] = coordinates[4 * i];
+        ArrayUtils.argsort(xValues, n, true, xOrder, keys);
+        for (int i = 0; i < n; i++) xSorted[i] = coordinates[4 * xOrder[i]];
+
+        for (int index = n - 1; index >= 0; index--) {
+            int i = scoreOrder[index];
+            if (status[i] != UNDECIDED) continue;
+            status[i] = KEPT;
+
+            int from = 0;
+            int to = n;
+            if (sweepable) {
+                // a positive IOU needs x_j + w_j > x_i and x_j < x_i + w_i
+                from = lowerBound(xSorted, n, coordinates[4 * i] - maxWidth + 1);
+                to = lowerBound(xSorted, n, coordinates[4 * i] + coordinates[4 * i + 2]);
+            }
+            for (int s = from; s < to; s++) {
+                int j = sweepable ? xOrder[s] : s;
+                if (status[j] != UNDECIDED) continue;
+                if (classes != null && classes[j] != classes[i]) continue;
+                if (iou(i, j) > threshold) status[j] = REMOVED;
+            }
+        }
+
+        // saving the main bboxes
+        int counter = 0;
+        for (int i = 0; i < n; i++) {
+            if (status[i] == KEPT) kept[counter++] = i;
+        }
+        return counter;
+    }
+
+    // Same arithmetic as BoundingBox.IOU
+    private double iou(int a, int b) {
+        int ax = coordinates[4 * a], ay = coordinates[4 * a + 1], aw = coordinates[4 * a + 2], ah = coordinates[4 * a + 3];
+        int bx = coordinates[4 * b], by = coordinates[4 * b + 1], bw = coordinates[4 * b + 2], bh = coordinates[4 * b + 3];
+        int areaA = ah * aw, areaB = bh * bw;
+        int wTotal = Math.max(ax + aw, bx + bw) - Math.min(ax, bx),
+                hTotal = Math.max(ay + ah, by + bh) - Math.min(ay, by),
+                wOverlap = wTotal - aw - bw, hOverlap = hTotal - ah - bh,
+                areaOverlap = (wOverlap >= 0 || hOverlap >= 0) ? 0 : wOverlap * hOverlap;
+        return (double) areaOverlap / (areaA + areaB - areaOverlap);
+    }
+
+    // First position whose value is at least the key
+    private static int lowerBound(int[] sorted, int n, int key) {
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= capacity) return;
+        capacity = Math.max(n, 2 * capacity);
+        coordinates = new int[4 * capacity];
+        status = new byte[capacity];
+        scoreOrder = new int[capacity];
+        xOrder = new int[capacity];
+        xSorted = new int[capacity];
+        keys = new long[capacity];
+        xValues = new float[capacity];
+    }
+
+    /* ***** Helpers for the float[][] boxes ***** */
+
+    // Flattens n boxes of 4 coordinates into dst, growing it when needed
+    public static float[] flatten(float[][] bboxes, float[] dst) {
+        if (dst == null || dst.length < 4 * bboxes.length) dst = new float[4 * bboxes.length];
+        for (int i = 0; i < bboxes.length; i++) System.arraycopy(bboxes[i], 0, dst, 4 * i, 4);
+        return dst;
+    }
+}
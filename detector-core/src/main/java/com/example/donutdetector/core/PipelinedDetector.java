@@ -0,0 +1,271 @@
+package com.example.donutdetector.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This class is implemented to run the detections of a stream of images (gallery import, camera) in a pipeline
+// The three stages of the Detector (RPN, embeddings, Head) each run on their own thread with their own model,
+// so the RPN of an image runs while the previous image is embedded and the one before is compared with the gallery
+// The stages are connected by bounded queues: a full queue blocks the stage before it, so the number of images
+// in flight and the memory stay bounded, and the results are delivered in the order of submission
+// The pixels of an image must not be modified until its result or its error is delivered
+public class PipelinedDetector {
+
+    // Time variables
+    final int timeFactor = 1_000_000;
+    private final AtomicLong completedCount = new AtomicLong();
+    private volatile long firstSubmitTime = 0;
+    private volatile long lastCompletionTime = 0;
+    private volatile long lastLatency;
+
+    private final Detector detector;
+    private final Executor callbackExecutor;
+    private volatile boolean shutdown = false;
+
+    // Stages and the queues in front of them
+    private final BlockingQueue<Job> rpnQueue;
+    private final BlockingQueue<Job> embeddingQueue;
+    private final BlockingQueue<Job> headQueue;
+    private final Stage rpnStage;
+    private final Stage embeddingStage;
+    private final Stage headStage;
+
+    /**
+     * @param queueCapacity    images waiting in front of each stage
+     * @param callbackExecutor receives the results, e.g. the main thread
+     */
+    public PipelinedDetector(final Detector detector, int queueCapacity, Executor callbackExecutor) {
+        this.detector = detector;
+        this.callbackExecutor = callbackExecutor;
+        this.rpnQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.embeddingQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.headQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+        rpnStage = new Stage("PipelinedDetector-rpn", rpnQueue, embeddingQueue) {
+            void process(Detector.Frame frame) {
+                detector.run_rpn(frame);
+            }
+        };
+        embeddingStage = new Stage("PipelinedDetector-embedding", embeddingQueue, headQueue) {
+            void process(Detector.Frame frame) {
+                detector.run_embedding(frame);
+            }
+        };
+        headStage = new Stage("PipelinedDetector-head", headQueue, null) {
+            void process(Detector.Frame frame) {
+                detector.run_head(frame);
+            }
+        };
+        rpnStage.start();
+        embeddingStage.start();
+        headStage.start();
+    }
+
+    public Detector getDetector() {
+        return detector;
+    }
+
+    /**
+     * Queues an image, waiting while the first queue is full.
+     *
+     * @param argb the ARGB pixels of a square image of getDetector().getInputSize() pixels
+     */
+    public void submit(int[] argb, DetectionExecutor.Callback<DetectionResult> callback) throws InterruptedException {
+        Job job = newJob(argb, callback);
+        rpnQueue.put(job);
+        // the queue may have been drained by a shutdown while waiting
+        if (shutdown) rpnQueue.remove(job);
+    }
+
+    /**
+     * Queues an image when the first queue has room, otherwise returns false and the image is dropped,
+     * e.g. for the camera frames.
+     */
+    public boolean offer(int[] argb, DetectionExecutor.Callback<DetectionResult> callback) {
+        return rpnQueue.offer(newJob(argb, callback));
+    }
+
+    private Job newJob(int[] argb, DetectionExecutor.Callback<DetectionResult> callback) {
+        if (shutdown) throw new RejectedExecutionException("The pipeline is shut down");
+        Job job = new Job(argb, callback);
+        if (firstSubmitTime == 0) firstSubmitTime = job.submitTime;
+        return job;
+    }
+
+    /**
+     * Drops the queued images and stops the stages, the running images are not delivered.
+     */
+    public void shutdown() {
+        shutdown = true;
+        rpnQueue.clear();
+        embeddingQueue.clear();
+        headQueue.clear();
+        rpnStage.interrupt();
+        embeddingStage.interrupt();
+        headStage.interrupt();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    // Waits for the stages to stop after a shutdown, the models can then be closed
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Stage stage : new Stage[]{rpnStage, embeddingStage, headStage}) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) stage.join(Math.max(TimeUnit.NANOSECONDS.toMillis(remaining), 1));
+            if (stage.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /* ***** Metrics ***** */
+
+    // Duration of the last image in each stage (ms)
+    public long getLastBBoxesGenerationTime() {
+        return rpnStage.lastTime;
+    }
+
+    public long getLastEmbeddingGenerationTime() {
+        return embeddingStage.lastTime;
+    }
+
+    public long getLastHeadComparaisonTime() {
+        return headStage.lastTime;
+    }
+
+    // Images waiting in front of each stage
+    public int getRpnQueueDepth() {
+        return rpnQueue.size();
+    }
+
+    public int getEmbeddingQueueDepth() {
+        return embeddingQueue.size();
+    }
+
+    public int getHeadQueueDepth() {
+        return headQueue.size();
+    }
+
+    // Share of the time each stage spent working since the first image, the slowest stage bounds the throughput
+    public float getRpnOccupancy() {
+        return occupancy(rpnStage);
+    }
+
+    public float getEmbeddingOccupancy() {
+        return occupancy(embeddingStage);
+    }
+
+    public float getHeadOccupancy() {
+        return occupancy(headStage);
+    }
+
+    private float occupancy(Stage stage) {
+        long elapsed = System.nanoTime() - firstSubmitTime;
+        return (firstSubmitTime == 0 || elapsed <= 0) ? 0 : (float) stage.busyTime / elapsed;
+    }
+
+    // From the submission to the result of the last image (ms)
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    // Images per second, from the first submission to the last result
+    public float getThroughput() {
+        long elapsed = lastCompletionTime - firstSubmitTime;
+        return (firstSubmitTime == 0 || elapsed <= 0) ? 0 : completedCount.get() * 1_000_000_000f / elapsed;
+    }
+
+    // An image going through the pipeline
+    private static class Job {
+        final Detector.Frame frame;
+        final DetectionExecutor.Callback<DetectionResult> callback;
+        final long submitTime = System.nanoTime();
+        long queuedTime = submitTime;
+        long queueWaitTime = 0;
+
+        Job(int[] argb, DetectionExecutor.Callback<DetectionResult> callback) {
+            this.frame = new Detector.Frame(argb);
+            this.callback = callback;
+        }
+    }
+
+    // A thread taking the images of its queue, the queues hand the frames over between the threads
+    private abstract class Stage extends Thread {
+        private final BlockingQueue<Job> input;
+        private final BlockingQueue<Job> output;
+        volatile long lastTime;
+        volatile long busyTime;
+
+        Stage(String name, BlockingQueue<Job> input, BlockingQueue<Job> output) {
+            super(name);
+            setDaemon(true);
+            this.input = input;
+            this.output = output;
+        }
+
+        abstract void process(Detector.Frame frame);
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    Job job = input.take();
+                    long startTime = System.nanoTime();
+                    job.queueWaitTime += startTime - job.queuedTime;
+                    try {
+                        process(job.frame);
+                    } catch (RuntimeException e) {
+                        deliverError(job, e);
+                        continue;
+                    } finally {
+                        long elapsedTime = System.nanoTime() - startTime;
+                        lastTime = elapsedTime / timeFactor;
+                        busyTime += elapsedTime;
+                    }
+                    if (output != null) {
+                        job.queuedTime = System.nanoTime();
+                        output.put(job);
+                    } else {
+                        deliver(job);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            }
+        }
+    }
+
+    private void deliver(final Job job) {
+        long now = System.nanoTime();
+        final long queueWaitTime = job.queueWaitTime / timeFactor;
+        final long latency = (now - job.submitTime) / timeFactor;
+        lastLatency = latency;
+        lastCompletionTime = now;
+        completedCount.incrementAndGet();
+        if (job.callback == null) return;
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                if (!shutdown) job.callback.onResult(job.frame.result, queueWaitTime, latency);
+            }
+        });
+    }
+
+    private void deliverError(final Job job, final Exception e) {
+        if (job.callback == null) return;
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                if (!shutdown) job.callback.onError(e);
+            }
+        });
+    }
+}
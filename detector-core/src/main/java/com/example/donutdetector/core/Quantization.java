@@ -0,0 +1,68 @@
+package com.example.donutdetector.core;
+
+// This class is implemented to describe a UINT8 tensor of a quantized model
+// A byte q of the tensor is the real value scale * (q - zeroPoint), like the quantization parameters of TFLite
+// As a byte only has 256 values, the conversions are done with lookup tables
+public class Quantization {
+
+    /**
+     * Implemented by the ModelRunners of quantized models, to give the parameters of their tensors.
+     */
+    public interface Model {
+        // null when the input is a float tensor
+        Quantization getInputQuantization(int index);
+
+        // null when the output is a float tensor
+        Quantization getOutputQuantization(int index);
+    }
+
+    private final float scale;
+    private final int zeroPoint;
+
+    public Quantization(float scale, int zeroPoint) {
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    // Parameters of an input of the runner, null when it is float or the runner does not say
+    public static Quantization input(ModelRunner runner, int index) {
+        return runner instanceof Model ? ((Model) runner).getInputQuantization(index) : null;
+    }
+
+    public static Quantization output(ModelRunner runner, int index) {
+        return runner instanceof Model ? ((Model) runner).getOutputQuantization(index) : null;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getZeroPoint() {
+        return zeroPoint;
+    }
+
+    // Real value of a byte of the tensor
+    public float dequantize(byte value) {
+        return scale * ((value & 0xFF) - zeroPoint);
+    }
+
+    // Closest byte of a real value, clamped to [0, 255]
+    public byte quantize(float value) {
+        int q = Math.round(value / scale) + zeroPoint;
+        return (byte) Math.max(0, Math.min(255, q));
+    }
+
+    // Real values of the 256 bytes, indexed by the unsigned byte
+    public float[] table() {
+        float[] table = new float[256];
+        for (int i = 0; i < table.length; i++) table[i] = scale * (i - zeroPoint);
+        return table;
+    }
+
+    // Bytes of the values of a normalization table, e.g. the channel values of InputPreprocessor
+    public byte[] quantize(float[] values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = quantize(values[i]);
+        return bytes;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.donutdetector.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// This class is implemented to keep the detections of the images already seen, on disk, between two app runs
+// A result is stored under a 64 bits hash of the pixels of the RPN input mixed with the version of the Detector
+// (models, gallery, thresholds, see Detector.getCacheVersion), so changing any of them misses the old results
+// Each result is a small file of the cache folder, the folder is read once and the entries are then indexed in memory
+// in access order: a lookup which misses does not touch the disk, and the least recently used files are evicted
+// when the entries or the bytes go over the limits
+public class ResultCache {
+
+    // Constants
+    private final static int MAGIC = 0x444E5243; // "DNRC"
+    private final static String SUFFIX = ".res";
+    private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final File directory;
+    private int maxEntries;
+    private long maxBytes;
+
+    // Entries, the least recently used first, with the size of their file
+    private final LinkedHashMap<Long, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    // Statistics
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long putCount = 0;
+    private long evictionCount = 0;
+    private long lastLookupTime = 0; // ns
+
+    /**
+     * Opens the cache folder, created when needed, and indexes its entries.
+     */
+    public ResultCache(File directory, int maxEntries, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can not create " + directory);
+
+        // the access order of the previous runs is kept in the modification dates of the files
+        File[] files = directory.listFiles();
+        if (files == null) files = new File[0];
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (int i : order) {
+            String name = files[i].getName();
+            if (!name.endsWith(SUFFIX)) continue;
+            try {
+                long key = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                entries.put(key, files[i].length());
+                bytes += files[i].length();
+            } catch (NumberFormatException e) {
+                // not an entry
+            }
+        }
+        trim();
+    }
+
+    /* ***** Keys ***** */
+
+    // Hash of the pixels of an image, FNV-1a over the ints
+    public static long hash(int[] argb) {
+        long h = FNV_OFFSET;
+        for (int pixel : argb) h = mix(h, pixel);
+        return h;
+    }
+
+    // Adds a value to a hash
+    public static long mix(long h, long value) {
+        return (h ^ value) * FNV_PRIME;
+    }
+
+    public static long mix(long h, String value) {
+        return mix(h, value == null ? 0 : value.hashCode());
+    }
+
+    // Key of the result of an image for a version of the Detector
+    public static long key(long pixelsHash, long version) {
+        long h = mix(mix(FNV_OFFSET, pixelsHash), version);
+        // final avalanche, the file names spread over the whole range
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /* ***** Settings ***** */
+
+    // The least recently used entries are evicted until both limits are met
+    public synchronized void setLimits(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /* ***** Lookups ***** */
+
+    /**
+     * Returns the result stored under the key, or null. A result is only read from the disk when the key is indexed.
+     */
+    public synchronized DetectionResult get(long key) {
+        long startTime = System.nanoTime();
+        try {
+            if (!entries.containsKey(key)) {
+                missCount++;
+                return null;
+            }
+            File file = file(key);
+            try {
+                DetectionResult result = read(file, key);
+                // the modification date keeps the access order for the next runs
+                file.setLastModified(System.currentTimeMillis());
+                entries.get(key);
+                hitCount++;
+                return result;
+            } catch (IOException e) {
+                // a broken entry is dropped
+                remove(key);
+                missCount++;
+                return null;
+            }
+        } finally {
+            lastLookupTime = System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Stores a result, a failure to write only loses the entry.
+     */
+    public synchronized void put(long key, DetectionResult result) {
+        File file = file(key);
+        try {
+            write(file, key, result);
+        } catch (IOException e) {
+            file.delete();
+            return;
+        }
+        Long previous = entries.put(key, file.length());
+        if (previous != null) bytes -= previous;
+        bytes += file.length();
+        putCount++;
+        trim();
+    }
+
+    // Removes every entry
+    public synchronized void clear() {
+        for (Iterator<Long> iterator = entries.keySet().iterator(); iterator.hasNext(); ) {
+            file(iterator.next()).delete();
+            iterator.remove();
+        }
+        bytes = 0;
+    }
+
+    private void remove(long key) {
+        Long size = entries.remove(key);
+        if (size != null) bytes -= size;
+        file(key).delete();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Long, Long>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<Long, Long> eldest = iterator.next();
+            file(eldest.getKey()).delete();
+            bytes -= eldest.getValue();
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private File file(long key) {
+        return new File(directory, Long.toHexString(key) + SUFFIX);
+    }
+
+    /* ***** Entries ***** */
+
+    // magic, key, box count, then for each box: class (UTF), score, x, y, w, h (floats)
+    private static void write(File file, long key, DetectionResult result) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeLong(key);
+            output.writeInt(result.size());
+            for (int i = 0; i < result.size(); i++) {
+                output.writeUTF(result.getClasses()[i]);
+                output.writeFloat(result.getScores()[i]);
+                for (int k = 0; k < 4; k++) output.writeFloat(result.getBoxes()[i][k]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static DetectionResult read(File file, long key) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readLong() != key) throw new IOException("Not the entry " + key);
+            int n = input.readInt();
+            float[][] boxes = new float[n][4];
+            String[] classes = new String[n];
+            float[] scores = new float[n];
+            for (int i = 0; i < n; i++) {
+                classes[i] = input.readUTF();
+                // the constant is shared, like the one of a detection
+                if (Detector.NOT_SURE.equals(classes[i])) classes[i] = Detector.NOT_SURE;
+                scores[i] = input.readFloat();
+                for (int k = 0; k < 4; k++) boxes[i][k] = input.readFloat();
+            }
+            return new DetectionResult(boxes, classes, scores);
+        } finally {
+            input.close();
+        }
+    }
+
+    /* ***** Statistics ***** */
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized float getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0 : (float) hitCount / lookups;
+    }
+
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    // Size of the files of the entries
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Duration of the last lookup (ms)
+    public synchronized float getLastLookupTime() {
+        return lastLookupTime / 1_000_000f;
+    }
+}
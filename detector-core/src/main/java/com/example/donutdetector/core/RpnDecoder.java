@@ -0,0 +1,151 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// This class is implemented to decode the raw outputs of the RPN model into scored boxes
+// The obj output has one score per anchor and the box output 4 offsets per anchor,
+// both in the (row, column, anchor) order of the anchors file, so the decoding is one linear pass
+// The anchor constants (cx, cy, w, h, log w, log h) are computed once and the outputs are flat
+// arrays allocated once, so decoding a frame does not allocate anything
+// The boxes are (cx, cy, w, h) with the same arithmetic as the previous get_bboxes loop
+public class RpnDecoder {
+
+    // Constants
+    private final static int COORDINATES = 4;
+
+    // Anchors constants
+    private final int size;
+    private final int[] anchors;
+    private final double[] logSizes;
+
+    // Outputs, they hold the proposals of the last decode
+    private final float[] boxes;
+    private final float[] scores;
+    private final int[] candidates;
+    private final float[] values; // dequantized scores, by anchor, of the candidates of a quantized decode
+
+    // Top scores selection, used when there are more candidates than the cap
+    private final long[] heap;
+    private int maxProposals;
+
+    /**
+     * @param anchors the anchors file, 4 ints (cx, cy, w, h) per anchor
+     */
+    public RpnDecoder(int[] anchors) {
+        this.size = anchors.length / COORDINATES;
+        this.anchors = anchors.clone();
+        this.logSizes = new double[2 * size];
+        for (int k = 0; k < size; k++) {
+            logSizes[2 * k] = Math.log(anchors[COORDINATES * k + 2]);
+            logSizes[2 * k + 1] = Math.log(anchors[COORDINATES * k + 3]);
+        }
+        this.boxes = new float[COORDINATES * size];
+        this.scores = new float[size];
+        this.candidates = new int[size];
+        this.values = new float[size];
+        this.heap = new long[size];
+        this.maxProposals = size;
+    }
+
+    // Number of anchors, i.e. the largest number of proposals
+    public int getSize() {
+        return size;
+    }
+
+    public int getMaxProposals() {
+        return maxProposals;
+    }
+
+    /**
+     * Keeps at most the maxProposals best scores of a frame, the others are dropped before being decoded.
+     * A value out of [1, size] keeps every proposal.
+     */
+    public void setMaxProposals(int maxProposals) {
+        this.maxProposals = (maxProposals <= 0 || maxProposals > size) ? size : maxProposals;
+    }
+
+    /**
+     * Decodes the anchors whose score is over the threshold.
+     * The proposals are written in anchor order in getBoxes() and getScores().
+     *
+     * @return the number of proposals
+     */
+    public int decode(float[] obj, float[] box, float threshold) {
+        // the candidates, in one pass over the scores
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            if (obj[k] > threshold) candidates[n++] = k;
+        }
+        if (n > maxProposals) n = selectBest(obj, n);
+
+        // the boxes of the candidates only
+        for (int i = 0; i < n; i++) {
+            final int k = candidates[i];
+            final int a = COORDINATES * k;
+            scores[i] = obj[k];
+            boxes[COORDINATES * i] = box[a] * anchors[a + 2] + anchors[a];
+            boxes[COORDINATES * i + 1] = box[a + 1] * anchors[a + 3] + anchors[a + 1];
+            boxes[COORDINATES * i + 2] = (float) Math.exp(box[a + 2] + logSizes[2 * k]);
+            boxes[COORDINATES * i + 3] = (float) Math.exp(box[a + 3] + logSizes[2 * k + 1]);
+        }
+        return n;
+    }
+
+    /**
+     * Decodes the UINT8 outputs of a quantized RPN, like decode(float[], float[], float).
+     * Only the scores and the offsets of the candidates are dequantized, with the tables of their Quantization.
+     */
+    public int decode(ByteBuffer obj, float[] objTable, ByteBuffer box, float[] boxTable, float threshold) {
+        // the candidates, in one pass over the scores
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            float score = objTable[obj.get(k) & 0xFF];
+            if (score > threshold) {
+                values[k] = score;
+                candidates[n++] = k;
+            }
+        }
+        if (n > maxProposals) n = selectBest(values, n);
+
+        // the boxes of the candidates only
+        for (int i = 0; i < n; i++) {
+            final int k = candidates[i];
+            final int a = COORDINATES * k;
+            scores[i] = values[k];
+            boxes[COORDINATES * i] = boxTable[box.get(a) & 0xFF] * anchors[a + 2] + anchors[a];
+            boxes[COORDINATES * i + 1] = boxTable[box.get(a + 1) & 0xFF] * anchors[a + 3] + anchors[a + 1];
+            boxes[COORDINATES * i + 2] = (float) Math.exp(boxTable[box.get(a + 2) & 0xFF] + logSizes[2 * k]);
+            boxes[COORDINATES * i + 3] = (float) Math.exp(boxTable[box.get(a + 3) & 0xFF] + logSizes[2 * k + 1]);
+        }
+        return n;
+    }
+
+    // Keeps the maxProposals best candidates (equal scores by anchor order), back in anchor order
+    private int selectBest(float[] obj, int n) {
+        int k = maxProposals;
+        for (int i = 0; i < n; i++) {
+            // a higher key is a better score, and a lower anchor for equal scores
+            long key = ((long) ArrayUtils.sortableBits(obj[candidates[i]]) << 32) | (Integer.MAX_VALUE - candidates[i]);
+            if (i < k) {
+                heap[i] = key;
+                ArrayUtils.siftUp(heap, i);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                ArrayUtils.siftDown(heap, k);
+            }
+        }
+        for (int i = 0; i < k; i++) candidates[i] = Integer.MAX_VALUE - (int) heap[i];
+        Arrays.sort(candidates, 0, k);
+        return k;
+    }
+
+    // Proposals of the last decode, 4 floats (cx, cy, w, h) each
+    public float[] getBoxes() {
+        return boxes;
+    }
+
+    public float[] getScores() {
+        return scores;
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.donutdetector.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Results file of a batch scan, appended one image at a time so the scan can be resumed after an interruption.
+ * <p>
+ * Everything is big endian (DataOutputStream):
+ * <pre>
+ * header   magic "DNSR", version (2 ints)
+ * records  'C' class: name (UTF), the classes are numbered in the order of their record
+ *          'I' image: id (UTF), box count (short), then for each box:
+ *              class number (short), score (float), x, y, w, h (shorts, pixels of the RPN input)
+ *          'E' error: id (UTF), message (UTF)
+ * </pre>
+ * A record cut by the end of the app is dropped when the file is opened again, and its image is scanned again.
+ */
+public final class ScanResultsFile implements Closeable {
+
+    // Constants
+    public final static int MAGIC = 0x444E5352; // "DNSR"
+    public final static int VERSION = 1;
+    private final static int HEADER_SIZE = 2 * 4;
+    private final static byte CLASS = 'C';
+    private final static byte IMAGE = 'I';
+    private final static byte ERROR = 'E';
+
+    /**
+     * Receives the records of a results file, see read.
+     */
+    public interface Visitor {
+        void onImage(String id, String[] classes, float[] scores, float[][] boxes);
+
+        void onError(String id, String message);
+    }
+
+    private final File file;
+    private DataOutputStream output;
+
+    // Content of the file
+    private final List<String> classNames = new ArrayList<>();
+    private final Map<String, Integer> classNumbers = new HashMap<>();
+    private final Map<String, Integer> classCounts = new HashMap<>();
+    private final Set<String> doneIds = new HashSet<>();
+    private int imageCount = 0;
+    private int errorCount = 0;
+    private int boxCount = 0;
+
+    private ScanResultsFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a results file to append to it, after reading the images it already holds.
+     * The file is created when it does not exist.
+     */
+    public static ScanResultsFile open(File file) throws IOException {
+        final ScanResultsFile results = new ScanResultsFile(file);
+        if (file.length() < HEADER_SIZE) {
+            DataOutputStream header = new DataOutputStream(new FileOutputStream(file));
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+            } finally {
+                header.close();
+            }
+        } else {
+            long valid = read(file, new Visitor() {
+                public void onImage(String id, String[] classes, float[] scores, float[][] boxes) {
+                    results.count(id, classes);
+                }
+
+                public void onError(String id, String message) {
+                    results.doneIds.add(id);
+                    results.errorCount++;
+                }
+            }, results.classNames);
+            for (int c = 0; c < results.classNames.size(); c++) results.classNumbers.put(results.classNames.get(c), c);
+
+            // drop the record cut by an interruption
+            if (valid < file.length()) {
+                RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+                try {
+                    truncated.setLength(valid);
+                } finally {
+                    truncated.close();
+                }
+            }
+        }
+        results.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        return results;
+    }
+
+    /**
+     * Reads the records of a results file, a record cut by an interruption is ignored.
+     */
+    public static void read(File file, Visitor visitor) throws IOException {
+        read(file, visitor, new ArrayList<String>());
+    }
+
+    // Returns the length of the complete records
+    private static long read(File file, Visitor visitor, List<String> classNames) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream input = new DataInputStream(counter);
+        try {
+            if (input.readInt() != MAGIC) throw new IOException("Not a scan results file");
+            int version = input.readInt();
+            if (version != VERSION) throw new IOException("Unsupported scan results file version " + version);
+
+            long valid = counter.count;
+            while (true) {
+                int type = input.read();
+                if (type < 0) return valid;
+                try {
+                    if (type == CLASS) {
+                        classNames.add(input.readUTF());
+                    } else if (type == IMAGE) {
+                        String id = input.readUTF();
+                        int n = input.readShort();
+                        String[] classes = new String[n];
+                        float[] scores = new float[n];
+                        float[][] boxes = new float[n][4];
+                        for (int i = 0; i < n; i++) {
+                            int number = input.readShort();
+                            if (number >= classNames.size()) throw new IOException("Unknown class " + number);
+                            classes[i] = classNames.get(number);
+                            scores[i] = input.readFloat();
+                            for (int k = 0; k < 4; k++) boxes[i][k] = input.readShort();
+                        }
+                        visitor.onImage(id, classes, scores, boxes);
+                    } else if (type == ERROR) {
+                        visitor.onError(input.readUTF(), input.readUTF());
+                    } else {
+                        throw new IOException("Unknown record " + type + " at " + valid);
+                    }
+                } catch (EOFException e) {
+                    return valid;
+                }
+                valid = counter.count;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void count(String id, String[] classes) {
+        doneIds.add(id);
+        imageCount++;
+        boxCount += classes.length;
+        for (String className : classes) {
+            Integer count = classCounts.get(className);
+            classCounts.put(className, count == null ? 1 : count + 1);
+        }
+    }
+
+    /* ***** Writing ***** */
+
+    public synchronized void writeResult(String id, DetectionResult result) throws IOException {
+        // the new classes are declared before the image
+        String[] classes = result.getClasses();
+        for (String className : classes) {
+            if (classNumbers.containsKey(className)) continue;
+            output.writeByte(CLASS);
+            output.writeUTF(className);
+            classNumbers.put(className, classNames.size());
+            classNames.add(className);
+        }
+
+        output.writeByte(IMAGE);
+        output.writeUTF(id);
+        output.writeShort(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            output.writeShort(classNumbers.get(classes[i]));
+            output.writeFloat(result.getScores()[i]);
+            for (int k = 0; k < 4; k++) output.writeShort(Math.round(result.getBoxes()[i][k]));
+        }
+        // one record at a time, so an interruption only loses the current image
+        output.flush();
+        count(id, classes);
+    }
+
+    public synchronized void writeError(String id, String message) throws IOException {
+        output.writeByte(ERROR);
+        output.writeUTF(id);
+        output.writeUTF(message == null ? "" : message);
+        output.flush();
+        doneIds.add(id);
+        errorCount++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    /* ***** Content ***** */
+
+    public File getFile() {
+        return file;
+    }
+
+    // Whether the image has a result or an error in the file
+    public synchronized boolean isDone(String id) {
+        return doneIds.contains(id);
+    }
+
+    public synchronized int getDoneCount() {
+        return doneIds.size();
+    }
+
+    public synchronized int getImageCount() {
+        return imageCount;
+    }
+
+    public synchronized int getErrorCount() {
+        return errorCount;
+    }
+
+    public synchronized int getBoxCount() {
+        return boxCount;
+    }
+
+    // Number of boxes of each class over all the images of the file
+    public synchronized Map<String, Integer> getClassCounts() {
+        return new HashMap<>(classCounts);
+    }
+
+    // Counts the bytes read, to find the end of the last complete record
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+// This class is implemented to compare one embedding with the whole gallery
+// The Head model is invoked once with a [N, embeddingSize] batch of pairs
+// instead of once per gallery embedding
+// With a GalleryIndex or ClassPrototypes, only the candidate rows are given to the Head, in batches of a fixed size
+// A quantized gallery is not copied as floats: its rows are dequantized batch by batch
+public class SimilarityEngine {
+
+    // Rows of a quantized gallery given to the Head at once
+    final static int STREAM_BATCH = 64;
+    // Rows of the classes selected by ClassPrototypes given to the Head at once, it bounds the padding of a box
+    final static int PREFILTER_BATCH = 16;
+
+    private final ModelRunner head;
+    private final int embeddingSize;
+
+    // Gallery variables
+    private GalleryStore gallery = null;
+    private String[] classNames = new String[0];
+    private int[] classOffsets = new int[]{0};
+    private int galleryCount = 0;
+    private int galleryVersion = -1;
+    private int[] rowClasses = new int[0];
+    private boolean streamed = false;
+    private int[] allRows = new int[0];
+
+    // Buffers, they are only reallocated when the gallery size changes
+    private ByteBuffer queryData = null;
+    private ByteBuffer galleryData = null;
+    private ByteBuffer scoresData = null;
+    private float[] scores = new float[0];
+    private float[] classScores = new float[0];
+    private final ByteBuffer[] inputs = new ByteBuffer[2];
+    private final ByteBuffer[] outputs = new ByteBuffer[1];
+
+    // Candidate buffers, the Head keeps the shape of the last call
+    private int headShape = -1;
+    private ByteBuffer candidateQueryData = null;
+    private ByteBuffer candidateGalleryData = null;
+    private ByteBuffer candidateScoresData = null;
+    private float[] candidateScores = new float[0];
+    private final ByteBuffer[] candidateInputs = new ByteBuffer[2];
+    private final ByteBuffer[] candidateOutputs = new ByteBuffer[1];
+    private float[] candidateRowScores = new float[0];
+    private final float[] candidateRow;
+    private int[] candidateRows = new int[0];
+    private int[] selectedClasses = new int[0];
+
+    // Statistics
+    private int lastPairCount = 0;
+    private long pairCount = 0;
+    private int lastHeadPairCount = 0;
+    private long headPairCount = 0;
+
+    public SimilarityEngine(ModelRunner head, int embeddingSize) {
+        this.head = head;
+        this.embeddingSize = embeddingSize;
+        this.candidateRow = new float[embeddingSize];
+    }
+
+    /**
+     * Points the engine to the gallery rows. When the rows are not padded the store buffer
+     * is fed to the Head as it is, otherwise the embeddings are packed once.
+     * The rows of a quantized store are read by batches of STREAM_BATCH instead.
+     */
+    public void setGallery(GalleryStore gallery) {
+        // Intialize some variables
+        int count = gallery.size();
+        this.gallery = gallery;
+        streamed = gallery.getEncoding() != GalleryStore.Encoding.FLOAT32;
+
+        classNames = new String[gallery.getClassCount()];
+        classOffsets = new int[gallery.getClassCount() + 1];
+        for (int c = 0; c < classNames.length; c++) {
+            classNames[c] = gallery.getClassName(c);
+            classOffsets[c + 1] = gallery.getClassEnd(c);
+        }
+        resize(count);
+
+        if (streamed) {
+            galleryData = null;
+            allRows = new int[count];
+            for (int i = 0; i < count; i++) allRows[i] = i;
+        } else if (count > 0 && gallery.getStride() == embeddingSize) {
+            galleryData = gallery.rows(0, count);
+        } else {
+            galleryData = allocate(Math.max(count, 1) * embeddingSize);
+            FloatBuffer packed = galleryData.asFloatBuffer();
+            float[] embed = new float[embeddingSize];
+            for (int i = 0; i < count; i++) packed.put(gallery.get(i, embed));
+        }
+        inputs[1] = galleryData;
+        galleryVersion = gallery.getVersion();
+
+        // class of each row, for the candidates
+        rowClasses = new int[count];
+        for (int c = 0; c < classNames.length; c++) {
+            for (int i = classOffsets[c]; i < classOffsets[c + 1]; i++) rowClasses[i] = c;
+        }
+    }
+
+    // Whether the gallery changed since the last setGallery, or is another store
+    public boolean isStale(GalleryStore gallery) {
+        return gallery != this.gallery || galleryVersion != gallery.getVersion();
+    }
+
+    public int getClassCount() {
+        return classNames.length;
+    }
+
+    public String getClassName(int classIndex) {
+        return classNames[classIndex];
+    }
+
+    public int getGalleryCount() {
+        return galleryCount;
+    }
+
+    /**
+     * Scores the query against every gallery embedding in one Head invocation, in batches for a quantized gallery.
+     * The returned array is reused by the next call.
+     */
+    public float[] score(float[] query) {
+        if (galleryCount == 0) {
+            countPairs(0, 0);
+            return scores;
+        }
+        if (streamed) {
+            int batchSize = Math.min(galleryCount, STREAM_BATCH);
+            countPairs(galleryCount, padded(galleryCount, batchSize));
+            scoreRows(query, allRows, galleryCount, batchSize, scores);
+            return scores;
+        }
+        countPairs(galleryCount, galleryCount);
+
+        // the Head takes pairs, so the query is repeated for every gallery embedding
+        FloatBuffer queries = queryData.asFloatBuffer();
+        for (int i = 0; i < galleryCount; i++) queries.put(query, 0, embeddingSize);
+        queryData.rewind();
+        galleryData.rewind();
+        scoresData.rewind();
+
+        reshape(Math.max(galleryCount, 1));
+        head.run(inputs, outputs);
+
+        scoresData.rewind();
+        scoresData.asFloatBuffer().get(scores);
+        return scores;
+    }
+
+    /**
+     * Scores the query against the gallery and keeps the best score of each class.
+     * Like the per-pair path, the scores start at 0.
+     */
+    public float[] scoreClasses(float[] query) {
+        float[] scores = score(query);
+        for (int c = 0; c < classNames.length; c++) {
+            float max_score = 0.0F;
+            for (int i = classOffsets[c]; i < classOffsets[c + 1]; i++) {
+                if (scores[i] > max_score) max_score = scores[i];
+            }
+            classScores[c] = max_score;
+        }
+        return classScores;
+    }
+
+    /**
+     * Scores the query against some gallery rows only, e.g. the candidates of a GalleryIndex, and keeps the best
+     * score of each class, 0 for the classes without a candidate. The rows are scored in batches of batchSize pairs,
+     * the last batch is padded so the Head keeps its shape.
+     */
+    public float[] scoreClasses(float[] query, int[] rows, int n, int batchSize) {
+        Arrays.fill(classScores, 0.0f);
+        countPairs(n, padded(n, batchSize));
+        if (n == 0) return classScores;
+        if (candidateRowScores.length < n) candidateRowScores = new float[n];
+        scoreRows(query, rows, n, batchSize, candidateRowScores);
+        for (int i = 0; i < n; i++) {
+            int c = rowClasses[rows[i]];
+            if (candidateRowScores[i] > classScores[c]) classScores[c] = candidateRowScores[i];
+        }
+        return classScores;
+    }
+
+    // Scores the rows in batches of batchSize pairs, the last batch is padded so the Head keeps its shape
+    private void scoreRows(float[] query, int[] rows, int n, int batchSize, float[] rowScores) {
+        ensureCandidates(batchSize);
+        FloatBuffer queries = candidateQueryData.asFloatBuffer();
+        for (int i = 0; i < batchSize; i++) queries.put(query, 0, embeddingSize);
+        for (int first = 0; first < n; first += batchSize) {
+            int size = Math.min(batchSize, n - first);
+
+            // the candidate embeddings, dequantized, then zeros
+            FloatBuffer candidates = candidateGalleryData.asFloatBuffer();
+            for (int i = 0; i < size; i++) candidates.put(gallery.get(rows[first + i], candidateRow), 0, embeddingSize);
+            while (candidates.hasRemaining()) candidates.put(0.0f);
+            candidateQueryData.rewind();
+            candidateGalleryData.rewind();
+            candidateScoresData.rewind();
+
+            reshape(batchSize);
+            head.run(candidateInputs, candidateOutputs);
+
+            candidateScoresData.rewind();
+            candidateScoresData.asFloatBuffer().get(candidateScores);
+            System.arraycopy(candidateScores, 0, rowScores, first, size);
+        }
+    }
+
+    /**
+     * Scores the query against the embeddings of the m classes selected by the prototypes only, the other classes
+     * score 0. The rows are scored in batches of PREFILTER_BATCH pairs, so the shape of the Head does not depend
+     * on the selected classes and only the last batch is padded.
+     */
+    public float[] scoreClasses(float[] query, ClassPrototypes prototypes, int m) {
+        int maxRows = prototypes.getMaxRows(m);
+        int batchSize = Math.max(Math.min(maxRows, PREFILTER_BATCH), 1);
+        if (candidateRows.length < maxRows) candidateRows = new int[maxRows];
+        if (selectedClasses.length != prototypes.getClassCount()) selectedClasses = new int[prototypes.getClassCount()];
+
+        int selected = prototypes.select(query, m, selectedClasses);
+        int n = 0;
+        for (int i = 0; i < selected; i++) {
+            int c = selectedClasses[i];
+            for (int row = classOffsets[c]; row < classOffsets[c + 1]; row++) candidateRows[n++] = row;
+        }
+        return scoreClasses(query, candidateRows, n, batchSize);
+    }
+
+    /**
+     * The class of the highest score, like the value sorted map of the previous implementation:
+     * the first class name in alphabetical order for equal scores, -1 without any class.
+     */
+    public int bestClass(float[] classScores) {
+        int best = -1;
+        for (int c = 0; c < classScores.length; c++) {
+            int comp = best < 0 ? 1 : Float.compare(classScores[c], classScores[best]);
+            if (comp > 0 || (comp == 0 && classNames[c].compareTo(classNames[best]) < 0)) best = c;
+        }
+        return best;
+    }
+
+    // Pairs the Head computes for n rows in batches of batchSize, the last batch being padded
+    private static int padded(int n, int batchSize) {
+        return (n + batchSize - 1) / batchSize * batchSize;
+    }
+
+    private void countPairs(int n, int headPairs) {
+        lastPairCount = n;
+        pairCount += n;
+        lastHeadPairCount = headPairs;
+        headPairCount += headPairs;
+    }
+
+    // Gallery embeddings compared by the Head in the last call, the padding of the batches excluded
+    public int getLastPairCount() {
+        return lastPairCount;
+    }
+
+    // Gallery embeddings compared by the Head since the engine was created
+    public long getPairCount() {
+        return pairCount;
+    }
+
+    // Pairs the Head computed in the last call, the padding of the batches included: the work of the model
+    public int getLastHeadPairCount() {
+        return lastHeadPairCount;
+    }
+
+    public long getHeadPairCount() {
+        return headPairCount;
+    }
+
+    private void ensureCandidates(int batchSize) {
+        if (candidateScores.length == batchSize) return;
+        candidateQueryData = allocate(batchSize * embeddingSize);
+        candidateGalleryData = allocate(batchSize * embeddingSize);
+        candidateScoresData = allocate(batchSize);
+        candidateScores = new float[batchSize];
+        candidateInputs[0] = candidateQueryData;
+        candidateInputs[1] = candidateGalleryData;
+        candidateOutputs[0] = candidateScoresData;
+    }
+
+    // The Head is only resized when the number of pairs changes
+    private void reshape(int shape) {
+        if (shape == headShape) return;
+        head.resizeInput(0, new int[]{shape, embeddingSize});
+        head.resizeInput(1, new int[]{shape, embeddingSize});
+        headShape = shape;
+    }
+
+    private void resize(int count) {
+        if (streamed) {
+            // no buffer of the size of the gallery, see scoreRows
+            queryData = null;
+            scoresData = null;
+            if (scores.length != count) scores = new float[count];
+            galleryCount = count;
+        } else if (count != galleryCount || queryData == null) {
+            int shape = Math.max(count, 1);
+            queryData = allocate(shape * embeddingSize);
+            scoresData = allocate(shape);
+            scores = new float[count];
+            inputs[0] = queryData;
+            outputs[0] = scoresData;
+            reshape(shape);
+            galleryCount = count;
+        }
+        classScores = new float[classNames.length];
+    }
+
+    // Releases the Head model
+    public void close() {
+        head.close();
+    }
+
+    private static ByteBuffer allocate(int floats) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * floats);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.donutdetector.core;
+
+import java.nio.ByteBuffer;
+
+// This class is implemented to turn a YUV_420_888 camera frame into the ARGB pixels of the RPN input
+// It crops the centered square of the frame, rotates it upright and resizes it (nearest sampling) in one pass,
+// so there is no JPEG round trip and no full size bitmap
+// The source index of every output pixel is computed when the frame geometry changes,
+// then converting a frame does not allocate anything
+// The colors use the full range BT.601 (JFIF) equations of the camera YUV frames, in fixed point
+public class YuvToRgbConverter {
+
+    // Fixed point factors of the conversion, scaled by 2^16
+    private final static int SHIFT = 16;
+    private final static int R_V = 91881;  // 1.402
+    private final static int G_U = 22554;  // 0.344136
+    private final static int G_V = 46802;  // 0.714136
+    private final static int B_U = 116130; // 1.772
+
+    private final int outputSize;
+
+    // Geometry of the last frame, the tables below are valid for it
+    private int width = -1;
+    private int height = -1;
+    private int yRowStride = -1;
+    private int uvRowStride = -1;
+    private int uvPixelStride = -1;
+    private int rotation = -1;
+    private int cropX;
+    private int cropY;
+    private int cropSize;
+
+    // Index in the Y plane and in the U / V planes of each output pixel
+    private final int[] yIndex;
+    private final int[] uvIndex;
+    private final int[] samples;
+
+    public YuvToRgbConverter(int outputSize) {
+        this.outputSize = outputSize;
+        this.yIndex = new int[outputSize * outputSize];
+        this.uvIndex = new int[outputSize * outputSize];
+        this.samples = new int[outputSize];
+    }
+
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    // The centered square of the last frame, in the coordinates of the (not rotated) frame
+    public int getCropX() {
+        return cropX;
+    }
+
+    public int getCropY() {
+        return cropY;
+    }
+
+    public int getCropSize() {
+        return cropSize;
+    }
+
+    /**
+     * Converts one frame into outputSize x outputSize ARGB pixels.
+     *
+     * @param y               the Y plane, one byte per pixel (pixel stride 1)
+     * @param u               the U plane
+     * @param v               the V plane, with the same strides as the U plane
+     * @param rotationDegrees clockwise rotation that makes the frame upright (0, 90, 180 or 270)
+     * @param argb            receives the pixels, row by row
+     */
+    public void convert(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                        int width, int height, int rotationDegrees, int[] argb) {
+        if (width != this.width || height != this.height || yRowStride != this.yRowStride
+                || uvRowStride != this.uvRowStride || uvPixelStride != this.uvPixelStride || rotationDegrees != this.rotation) {
+            configure(width, height, yRowStride, uvRowStride, uvPixelStride, rotationDegrees);
+        }
+
+        for (int i = 0; i < argb.length && i < yIndex.length; i++) {
+            int luma = y.get(yIndex[i]) & 0xFF;
+            int cb = (u.get(uvIndex[i]) & 0xFF) - 128;
+            int cr = (v.get(uvIndex[i]) & 0xFF) - 128;
+
+            int yScaled = (luma << SHIFT) + (1 << (SHIFT - 1));
+            int r = (yScaled + R_V * cr) >> SHIFT;
+            int g = (yScaled - G_U * cb - G_V * cr) >> SHIFT;
+            int b = (yScaled + B_U * cb) >> SHIFT;
+            r = r < 0 ? 0 : (r > 255 ? 255 : r);
+            g = g < 0 ? 0 : (g > 255 ? 255 : g);
+            b = b < 0 ? 0 : (b > 255 ? 255 : b);
+            argb[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    // Source indexes of the output pixels for a frame geometry
+    private void configure(int width, int height, int yRowStride, int uvRowStride, int uvPixelStride, int rotationDegrees) {
+        if (rotationDegrees % 90 != 0) throw new IllegalArgumentException("Rotation of " + rotationDegrees + " degrees");
+        this.width = width;
+        this.height = height;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.rotation = rotationDegrees;
+        cropSize = Math.min(width, height);
+        cropX = (width - cropSize) / 2;
+        cropY = (height - cropSize) / 2;
+
+        // nearest sampling, like Bitmap.createScaledBitmap without filtering
+        float scale = (float) cropSize / outputSize;
+        for (int i = 0; i < outputSize; i++) samples[i] = Math.min((int) ((i + 0.5f) * scale), cropSize - 1);
+
+        int last = outputSize - 1;
+        int normalized = ((rotationDegrees % 360) + 360) % 360;
+        for (int oy = 0; oy < outputSize; oy++) {
+            for (int ox = 0; ox < outputSize; ox++) {
+                // the source pixel shown at (ox, oy) once the frame is rotated clockwise
+                int sx, sy;
+                switch (normalized) {
+                    case 90:
+                        sx = samples[oy];
+                        sy = samples[last - ox];
+                        break;
+                    case 180:
+                        sx = samples[last - ox];
+                        sy = samples[last - oy];
+                        break;
+                    case 270:
+                        sx = samples[last - oy];
+                        sy = samples[ox];
+                        break;
+                    default:
+                        sx = samples[ox];
+                        sy = samples[oy];
+                }
+                sx += cropX;
+                sy += cropY;
+                yIndex[oy * outputSize + ox] = sy * yRowStride + sx;
+                uvIndex[oy * outputSize + ox] = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+            }
+        }
+    }
+}
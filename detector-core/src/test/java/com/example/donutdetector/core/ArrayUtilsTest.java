@@ -0,0 +1,67 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the primitive argsort and topK against the boxed stable sort ArrayUtils used before.
+ */
+public class ArrayUtilsTest {
+
+    @Test
+    public void argsort_matchesBoxedStableSort() {
+        Random random = new Random(3);
+        for (int n : new int[]{0, 1, 2, 17, 1000}) {
+            float[] a = randomScores(random, n);
+            assertArrayEquals(boxedArgsort(a, true), ArrayUtils.argsort(a, true));
+            assertArrayEquals(boxedArgsort(a, false), ArrayUtils.argsort(a, false));
+        }
+    }
+
+    @Test
+    public void topK_matchesDescendingArgsort() {
+        Random random = new Random(5);
+        for (int n : new int[]{0, 3, 100, 5000}) {
+            float[] a = randomScores(random, n);
+            int[] sorted = boxedArgsort(a, false);
+            for (int k : new int[]{0, 1, 10, n + 5}) {
+                int[] expected = Arrays.copyOf(sorted, Math.min(k, n));
+                assertArrayEquals("n=" + n + " k=" + k, expected, ArrayUtils.topK(a, k));
+            }
+        }
+    }
+
+    // Scores with ties, signed zeros and NaN
+    private static float[] randomScores(Random random, int n) {
+        float[] a = new float[n];
+        for (int i = 0; i < n; i++) {
+            switch (random.nextInt(10)) {
+                case 0: a[i] = 0.5f; break;
+                case 1: a[i] = -0.0f; break;
+                case 2: a[i] = 0.0f; break;
+                case 3: a[i] = Float.NaN; break;
+                default: a[i] = random.nextFloat() * 2 - 1;
+            }
+        }
+        return a;
+    }
+
+    private static int[] boxedArgsort(final float[] a, final boolean ascending) {
+        Integer[] indexes = new Integer[a.length];
+        for (int i = 0; i < indexes.length; i++) indexes[i] = i;
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return (ascending ? 1 : -1) * Float.compare(a[i1], a[i2]);
+            }
+        });
+        int[] res = new int[indexes.length];
+        for (int i = 0; i < res.length; i++) res[i] = indexes[i];
+        return res;
+    }
+}
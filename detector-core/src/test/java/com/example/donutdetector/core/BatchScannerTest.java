@@ -0,0 +1,186 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scans lists of images with the stub models of DetectorTest, every image being the red and green one.
+ */
+public class BatchScannerTest {
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DetectorTest fixture;
+    private File file;
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new DetectorTest();
+        fixture.setUp();
+        file = new File(folder.getRoot(), "scan.bin");
+    }
+
+    private Detector detector() {
+        return fixture.detector(fixture.new StubRpn(new float[]{0.9f, 0.8f}),
+                new DetectorTest.StubEmbedding(false), new DetectorTest.StubHead());
+    }
+
+    // Copies the test image, the ids starting with "broken" can not be decoded
+    private final BatchScanner.ImageSource source = new BatchScanner.ImageSource() {
+        public void load(String id, int[] argb) throws IOException {
+            loads.incrementAndGet();
+            if (id.startsWith("broken")) throw new IOException("Can not decode " + id);
+            System.arraycopy(fixture.pixels, 0, argb, 0, argb.length);
+        }
+    };
+
+    private static List<String> ids(String prefix, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) ids.add(prefix + i);
+        return ids;
+    }
+
+    @Test
+    public void scan_writesEveryImage() throws Exception {
+        List<String> ids = ids("image", 40);
+        ids.add("broken");
+        Listener listener = new Listener();
+        BatchScanner scanner = new BatchScanner(detector(), source, ScanResultsFile.open(file), 2, DIRECT);
+        scanner.start(ids, listener);
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+
+        assertFalse(listener.cancelled);
+        assertEquals(41, listener.done);
+        assertEquals(41, listener.progress.get());
+        assertEquals(40, scanner.getScannedCount());
+        assertEquals(1, scanner.getFailedCount());
+        assertTrue(scanner.getImagesPerMinute() > 0);
+
+        ScanResultsFile results = ScanResultsFile.open(file);
+        assertEquals(40, results.getImageCount());
+        assertEquals(1, results.getErrorCount());
+        assertEquals(40, (int) results.getClassCounts().get("Red"));
+        assertEquals(40, (int) results.getClassCounts().get("Green"));
+        results.close();
+    }
+
+    @Test
+    public void scan_resumesAfterAnInterruption() throws Exception {
+        List<String> ids = ids("image", 30);
+        // the first scan stops after a few images
+        final Listener first = new Listener();
+        final BatchScanner scanner = new BatchScanner(detector(), source, ScanResultsFile.open(file), 1, DIRECT);
+        scanner.start(ids, new Listener() {
+            @Override
+            public void onProgress(int done, int total, float imagesPerMinute) {
+                if (done == 5) scanner.cancel();
+                first.onProgress(done, total, imagesPerMinute);
+            }
+
+            @Override
+            public void onFinished(int done, int total, boolean cancelled) {
+                first.onFinished(done, total, cancelled);
+            }
+        });
+        assertTrue(first.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(first.cancelled);
+        assertTrue(first.done >= 5 && first.done < 30);
+
+        // the second scan only decodes the missing images
+        loads.set(0);
+        Listener second = new Listener();
+        BatchScanner resumed = new BatchScanner(detector(), source, ScanResultsFile.open(file), 2, DIRECT);
+        resumed.start(ids, second);
+        assertTrue(second.finished.await(10, TimeUnit.SECONDS));
+        assertFalse(second.cancelled);
+        assertEquals(30, second.done);
+        assertEquals(first.done, resumed.getSkippedCount());
+        assertEquals(30 - first.done, loads.get());
+
+        ScanResultsFile results = ScanResultsFile.open(file);
+        assertEquals(30, results.getImageCount());
+        results.close();
+    }
+
+    @Test
+    public void cancel_doesNotRecordTheImagesItStopped() throws Exception {
+        List<String> ids = ids("image", 30);
+        // a slow decoder which fails when it is interrupted, like a file read on Android
+        BatchScanner.ImageSource slowSource = new BatchScanner.ImageSource() {
+            public void load(String id, int[] argb) throws IOException {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new IOException("Decoding " + id, e);
+                }
+                source.load(id, argb);
+            }
+        };
+        final Listener first = new Listener();
+        final BatchScanner scanner = new BatchScanner(detector(), slowSource, ScanResultsFile.open(file), 4, DIRECT);
+        scanner.start(ids, new Listener() {
+            @Override
+            public void onProgress(int done, int total, float imagesPerMinute) {
+                if (done == 5) scanner.cancel();
+            }
+
+            @Override
+            public void onFinished(int done, int total, boolean cancelled) {
+                first.onFinished(done, total, cancelled);
+            }
+        });
+        assertTrue(first.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(first.cancelled);
+        assertEquals(0, scanner.getFailedCount());
+
+        // the next scan detects every image the cancel stopped
+        Listener second = new Listener();
+        BatchScanner resumed = new BatchScanner(detector(), source, ScanResultsFile.open(file), 2, DIRECT);
+        resumed.start(ids, second);
+        assertTrue(second.finished.await(10, TimeUnit.SECONDS));
+        assertEquals(30, second.done);
+        assertEquals(0, resumed.getFailedCount());
+
+        ScanResultsFile results = ScanResultsFile.open(file);
+        assertEquals(30, results.getImageCount());
+        assertEquals(0, results.getErrorCount());
+        results.close();
+    }
+
+    private static class Listener implements BatchScanner.Listener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger progress = new AtomicInteger();
+        volatile int done;
+        volatile boolean cancelled;
+
+        public void onProgress(int done, int total, float imagesPerMinute) {
+            progress.incrementAndGet();
+        }
+
+        public void onFinished(int done, int total, boolean cancelled) {
+            this.done = done;
+            this.cancelled = cancelled;
+            finished.countDown();
+        }
+    }
+}
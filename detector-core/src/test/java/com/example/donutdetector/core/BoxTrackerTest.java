@@ -0,0 +1,97 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoxTrackerTest {
+
+    private static float[] box(float x, float y, float w, float h) {
+        return new float[]{x, y, w, h};
+    }
+
+    @Test
+    public void update_keepsTheIdsOfTheMatchedBoxes() {
+        BoxTracker tracker = new BoxTracker();
+        int[] first = tracker.update(new float[][]{box(10, 10, 50, 50), box(200, 200, 40, 40)});
+        assertNotEquals(first[0], first[1]);
+
+        // the boxes moved a little and came in another order, a third one appeared
+        int[] second = tracker.update(new float[][]{box(205, 202, 40, 40), box(100, 100, 30, 30), box(12, 11, 50, 50)});
+        assertEquals(first[1], second[0]);
+        assertEquals(first[0], second[2]);
+        assertNotEquals(first[0], second[1]);
+        assertNotEquals(first[1], second[1]);
+        assertEquals(3, tracker.getTrackCount());
+    }
+
+    @Test
+    public void update_matchesTheSmallFastBoxesByCentroid() {
+        BoxTracker tracker = new BoxTracker();
+        int id = tracker.update(new float[][]{box(10, 10, 30, 30)})[0];
+        // an IOU of 0.29, but the center only moved by 0.47 box
+        assertEquals(id, tracker.update(new float[][]{box(20, 20, 30, 30)})[0]);
+        // too far
+        assertNotEquals(id, tracker.update(new float[][]{box(50, 20, 30, 30)})[0]);
+    }
+
+    @Test
+    public void update_dropsTheLostTracks() {
+        BoxTracker tracker = new BoxTracker();
+        tracker.setMaxMissed(2);
+        int id = tracker.update(new float[][]{box(10, 10, 50, 50)})[0];
+        tracker.update(new float[0][]);
+        tracker.update(new float[0][]);
+        assertEquals(id, tracker.update(new float[][]{box(10, 10, 50, 50)})[0]);
+
+        tracker.update(new float[0][]);
+        tracker.update(new float[0][]);
+        tracker.update(new float[0][]);
+        assertEquals(0, tracker.getTrackCount());
+        assertNotEquals(id, tracker.update(new float[][]{box(10, 10, 50, 50)})[0]);
+    }
+
+    @Test
+    public void isCached_untilTheBoxDriftsScalesOrAges() {
+        BoxTracker tracker = new BoxTracker();
+        tracker.setMaxAge(3);
+        int id = tracker.update(new float[][]{box(100, 100, 50, 50)})[0];
+        assertFalse(tracker.isCached(id));
+        tracker.store(id, new float[]{1}, "Red", 0.9f);
+        assertTrue(tracker.isCached(id));
+        assertEquals("Red", tracker.getClassName(id));
+        assertEquals(0.9f, tracker.getScore(id), 0.0f);
+
+        // small moves are still cached, the drift is measured from the embedded box
+        tracker.update(new float[][]{box(104, 100, 50, 50)});
+        assertTrue(tracker.isCached(id));
+        tracker.update(new float[][]{box(110, 100, 50, 50)});
+        assertFalse(tracker.isCached(id));
+
+        // scale change
+        tracker.store(id, new float[]{1}, "Red", 0.9f);
+        tracker.update(new float[][]{box(110, 100, 62, 62)});
+        assertFalse(tracker.isCached(id));
+
+        // age
+        tracker.store(id, new float[]{1}, "Red", 0.9f);
+        tracker.update(new float[][]{box(110, 100, 62, 62)});
+        tracker.update(new float[][]{box(110, 100, 62, 62)});
+        assertTrue(tracker.isCached(id));
+        tracker.update(new float[][]{box(110, 100, 62, 62)});
+        assertFalse(tracker.isCached(id));
+    }
+
+    @Test
+    public void endFrame_reportsTheHitRateAndTheSavedTime() {
+        BoxTracker tracker = new BoxTracker();
+        tracker.endFrame(0, 4, 40_000_000L);
+        assertEquals(0, tracker.getLastFrameSavedTime(), 0.0f);
+        tracker.endFrame(3, 1, 10_000_000L);
+        assertEquals(3, tracker.getLastFrameHits());
+        assertEquals(1, tracker.getLastFrameMisses());
+        assertEquals(3f / 8, tracker.getHitRate(), 1e-6f);
+        assertEquals(30, tracker.getLastFrameSavedTime(), 1e-3f);
+        assertEquals(30, tracker.getSavedTime(), 1e-3f);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Computes the prototypes of the gallery of the app, 147 embeddings in 9 classes, and selects classes for
+ * queries made of its embeddings with some noise.
+ */
+public class ClassPrototypesTest {
+    private static final File ASSETS = new File("../app/src/main/assets");
+
+    private GalleryStore gallery;
+    private float[][] queries;
+
+    @Before
+    public void setUp() throws IOException {
+        gallery = new GalleryStore(256);
+        CsvLoader.readGallery(new InputStreamReader(new FileInputStream(new File(ASSETS, "embeds.csv"))),
+                new InputStreamReader(new FileInputStream(new File(ASSETS, "classes.csv"))), gallery);
+
+        Random random = new Random(1);
+        queries = new float[100][];
+        float[] row = new float[gallery.getEmbeddingSize()];
+        for (int i = 0; i < queries.length; i++) {
+            gallery.get(random.nextInt(gallery.size()), row);
+            queries[i] = new float[row.length];
+            for (int k = 0; k < row.length; k++) queries[i][k] = row[k] * (1 + 0.2f * (float) random.nextGaussian());
+        }
+    }
+
+    @Test
+    public void build_keepsTheMeanAndTheCentroidsOfEachClass() {
+        ClassPrototypes prototypes = ClassPrototypes.build(gallery, 3, 7);
+        assertEquals(9, prototypes.getClassCount());
+        assertEquals(9 * 4, prototypes.getPrototypeCount());
+        assertEquals(gallery.size(), prototypes.getMaxRows(9));
+        // the largest class is Donut, 28 embeddings
+        assertEquals(28, prototypes.getMaxRows(1));
+    }
+
+    @Test
+    public void select_returnsTheBestClassesFirst() {
+        ClassPrototypes prototypes = ClassPrototypes.build(gallery, 0, 7);
+        int[] classes = new int[9];
+        assertEquals(9, prototypes.select(queries[0], 9, classes));
+        boolean[] seen = new boolean[9];
+        for (int c : classes) seen[c] = true;
+        for (boolean s : seen) assertTrue(s);
+
+        // with only the means, the first class is the closest mean
+        float[] row = new float[gallery.getEmbeddingSize()];
+        float[] scores = new float[9];
+        for (int c = 0; c < 9; c++) {
+            int n = gallery.getClassEnd(c) - gallery.getClassStart(c);
+            for (int i = gallery.getClassStart(c); i < gallery.getClassEnd(c); i++) {
+                gallery.get(i, row);
+                for (int k = 0; k < row.length; k++) scores[c] += row[k] * queries[0][k] / n;
+            }
+        }
+        for (int i = 1; i < 9; i++) assertTrue(scores[classes[i - 1]] >= scores[classes[i]] - 1e-4f);
+    }
+
+    @Test
+    public void recall_growsWithTheSelectedClasses() {
+        ClassPrototypes prototypes = ClassPrototypes.build(gallery, 3, 7);
+        SimilarityEngine engine = new SimilarityEngine(new DetectorTest.StubHead(), gallery.getEmbeddingSize());
+        float previous = 0;
+        for (int m = 1; m <= 9; m++) {
+            float recall = prototypes.measureRecall(engine, queries, m);
+            assertTrue(recall >= previous);
+            previous = recall;
+        }
+        assertEquals(1.0f, previous, 0.0f);
+
+        // the app compares 2 classes, one more than the full recall needs
+        assertEquals(1, prototypes.tune(engine, queries, 1.0f));
+        assertEquals(1.0f, prototypes.measureRecall(engine, queries, 2), 0.0f);
+    }
+
+    @Test
+    public void headPairs_includeThePaddingOfTheBatch() {
+        ClassPrototypes prototypes = ClassPrototypes.build(gallery, 3, 7);
+        SimilarityEngine engine = new SimilarityEngine(new DetectorTest.StubHead(), gallery.getEmbeddingSize());
+        engine.setGallery(gallery);
+        engine.scoreClasses(queries[0]);
+        assertEquals(gallery.size(), engine.getLastHeadPairCount());
+
+        // the selected rows go in batches of PREFILTER_BATCH, only the last one is padded
+        for (int m = 1; m <= 3; m++) {
+            engine.scoreClasses(queries[0], prototypes, m);
+            int pairs = engine.getLastPairCount();
+            assertTrue(pairs <= prototypes.getMaxRows(m));
+            assertEquals(0, engine.getLastHeadPairCount() % SimilarityEngine.PREFILTER_BATCH);
+            assertTrue(engine.getLastHeadPairCount() - pairs < SimilarityEngine.PREFILTER_BATCH);
+        }
+    }
+}
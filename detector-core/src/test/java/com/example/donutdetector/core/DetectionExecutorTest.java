@@ -0,0 +1,150 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the executor keeps only the latest pending request and drops the others,
+ * and that nothing is delivered after a shutdown.
+ */
+public class DetectionExecutorTest {
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Test
+    public void pendingRequests_areReplacedByTheLatest() throws Exception {
+        DetectionExecutor executor = new DetectionExecutor(DIRECT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder(2);
+
+        Future<Integer> first = executor.submit(blocking(1, started, release), recorder);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Integer> second = executor.submit(value(2), recorder);
+        Future<Integer> third = executor.submit(value(3), recorder);
+        Future<Integer> fourth = executor.submit(value(4), recorder);
+        release.countDown();
+
+        assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(4), fourth.get(5, TimeUnit.SECONDS));
+        assertTrue(second.isCancelled());
+        assertTrue(third.isCancelled());
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 4), recorder.results);
+        assertEquals(2, executor.getDroppedCount());
+        assertEquals(2, executor.getCompletedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void metrics_includeTheQueueWait() throws Exception {
+        DetectionExecutor executor = new DetectionExecutor(DIRECT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder(2);
+
+        executor.submit(blocking(1, started, release), recorder);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Integer> waiting = executor.submit(value(2), recorder);
+        Thread.sleep(50);
+        release.countDown();
+        waiting.get(5, TimeUnit.SECONDS);
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+
+        assertTrue(recorder.queueWaitTimes.get(1) >= 40);
+        assertTrue(recorder.latencies.get(1) >= recorder.queueWaitTimes.get(1));
+        assertEquals((long) recorder.latencies.get(1), executor.getLastLatency());
+        executor.shutdown();
+    }
+
+    @Test
+    public void errors_areDeliveredToTheCallback() throws Exception {
+        DetectionExecutor executor = new DetectionExecutor(DIRECT);
+        Recorder recorder = new Recorder(1);
+        executor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                throw new IOException("no model");
+            }
+        }, recorder);
+
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals("no model", recorder.errors.get(0).getMessage());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shutdown_cancelsThePendingAndRunningRequests() throws Exception {
+        DetectionExecutor executor = new DetectionExecutor(DIRECT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder(1);
+
+        executor.submit(blocking(1, started, release), recorder);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Integer> pending = executor.submit(value(2), recorder);
+        executor.shutdown();
+
+        assertTrue(pending.isCancelled());
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(recorder.results.isEmpty());
+        assertTrue(executor.submit(value(3), recorder).isCancelled());
+    }
+
+    private static Callable<Integer> value(final int value) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                return value;
+            }
+        };
+    }
+
+    // Holds the worker until released, the shutdown interrupts it
+    private static Callable<Integer> blocking(final int value, final CountDownLatch started, final CountDownLatch release) {
+        return new Callable<Integer>() {
+            public Integer call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return value;
+            }
+        };
+    }
+
+    private static class Recorder implements DetectionExecutor.Callback<Integer> {
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> queueWaitTimes = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch done;
+
+        Recorder(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        public void onResult(Integer result, long queueWaitTime, long latency) {
+            results.add(result);
+            queueWaitTimes.add(queueWaitTime);
+            latencies.add(latency);
+            done.countDown();
+        }
+
+        public void onError(Exception e) {
+            errors.add(e);
+            done.countDown();
+        }
+    }
+}
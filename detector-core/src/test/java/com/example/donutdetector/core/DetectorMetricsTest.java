@@ -0,0 +1,109 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the precision of the histograms, and the metrics of detections with the stub models of DetectorTest.
+ */
+public class DetectorMetricsTest {
+
+    private DetectorTest fixture;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new DetectorTest();
+        fixture.setUp();
+    }
+
+    @Test
+    public void percentiles_areWithinThePrecisionOfTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) histogram.record(value * 1000);
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100_000_000, histogram.getMax());
+        assertEquals(50_000_500, histogram.getMean(), 1);
+        for (double percentile : new double[]{50, 95, 99, 99.9}) {
+            double expected = percentile * 1_000_000;
+            assertEquals(expected, histogram.getPercentile(percentile), expected / 32);
+        }
+        assertEquals(100_000_000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void buckets_coverEveryValue() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.highest(index));
+            assertTrue(index == 0 || value > LatencyHistogram.highest(index - 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highest(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void detections_recordEachStage() {
+        Detector detector = fixture.detector(fixture.new StubRpn(new float[]{0.9f, 0.8f}),
+                new DetectorTest.StubEmbedding(false), new DetectorTest.StubHead());
+        DetectorMetrics metrics = new DetectorMetrics();
+        detector.setMetrics(metrics);
+        detector.warmUp();
+        assertEquals(0, metrics.getCount(DetectorMetrics.Counter.IMAGES));
+
+        DetectionResult result = null;
+        for (int i = 0; i < 5; i++) result = detector.detect(fixture.pixels);
+        assertEquals(5, metrics.getCount(DetectorMetrics.Counter.IMAGES));
+        assertEquals(5 * result.size(), metrics.getCount(DetectorMetrics.Counter.DETECTIONS));
+        assertTrue(metrics.getCount(DetectorMetrics.Counter.PROPOSALS) >= metrics.getCount(DetectorMetrics.Counter.BOXES));
+        for (DetectorMetrics.Stage stage : DetectorMetrics.Stage.values()) {
+            assertEquals(stage.name(), 5, metrics.getHistogram(stage).getCount());
+            assertTrue(stage.name(), result.getStageTime(stage) >= 0);
+        }
+        assertTrue(result.getStageTime(DetectorMetrics.Stage.TOTAL) >= result.getStageTime(DetectorMetrics.Stage.RPN)
+                + result.getStageTime(DetectorMetrics.Stage.EMBED) + result.getStageTime(DetectorMetrics.Stage.HEAD));
+
+        // the boxes only run the RPN stages
+        DetectionResult boxes = detector.detectBoxes(fixture.pixels);
+        assertEquals(-1, boxes.getStageTime(DetectorMetrics.Stage.HEAD));
+        assertEquals(6, metrics.getHistogram(DetectorMetrics.Stage.RPN).getCount());
+        assertEquals(5, metrics.getHistogram(DetectorMetrics.Stage.HEAD).getCount());
+
+        // the pooled Detectors share the metrics
+        Detector other = fixture.detector(fixture.new StubRpn(new float[]{0.9f, 0.8f}),
+                new DetectorTest.StubEmbedding(false), new DetectorTest.StubHead());
+        other.copySettings(detector);
+        assertSame(metrics, other.getMetrics());
+
+        metrics.setTag("device", "Pixel \"7\"");
+        String json = metrics.toJson();
+        assertTrue(json, json.startsWith("{\"tags\":{\"device\":\"Pixel \\\"7\\\"\"},\"counters\":{\"images\":6,"));
+        assertTrue(json, json.contains("\"stages\":{\"preprocess\":{\"count\":6,"));
+        assertTrue(json, json.contains("\"head\":{\"count\":5,"));
+    }
+
+    @Test
+    public void headTime_addsUpTheBoxes() {
+        Detector detector = fixture.detector(fixture.new StubRpn(new float[]{0.9f, 0.8f}),
+                new DetectorTest.StubEmbedding(false), new PipelinedDetectorTest.SlowRunner(new DetectorTest.StubHead()));
+        DetectorMetrics metrics = new DetectorMetrics();
+        detector.setMetrics(metrics);
+        DetectionResult result = detector.detect(fixture.pixels);
+
+        // one Head call per box kept by the RPN NMS, not the last one only
+        long boxes = metrics.getCount(DetectorMetrics.Counter.BOXES);
+        assertTrue(boxes > 1);
+        assertTrue(result.getHeadComparaisonTime() >= 20 * boxes);
+        assertEquals(result.getHeadComparaisonTime(), result.getStageTime(DetectorMetrics.Stage.HEAD) / 1_000_000);
+    }
+}
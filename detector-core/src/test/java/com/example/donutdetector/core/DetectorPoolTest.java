@@ -0,0 +1,275 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs concurrent detections through a pool of Detectors of the stub models of DetectorTest.
+ * The overlap test delays each model call like PipelinedDetectorTest and counts the calls running at the same time,
+ * the throughput of 1 to 8 threads is measured by PoolBenchmark of the jmh module.
+ */
+public class DetectorPoolTest {
+    private static final int MAX_SIZE = 4;
+    private static final int IMAGES = 16;
+
+    private DetectorTest fixture;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new DetectorTest();
+        fixture.setUp();
+    }
+
+    private Detector detector(boolean slow) {
+        ModelRunner rpn = fixture.new StubRpn(new float[]{0.9f, 0.8f});
+        ModelRunner embedding = new DetectorTest.StubEmbedding(false);
+        ModelRunner head = new DetectorTest.StubHead();
+        if (slow) {
+            rpn = new OverlapCounter(new PipelinedDetectorTest.SlowRunner(rpn));
+            embedding = new OverlapCounter(new PipelinedDetectorTest.SlowRunner(embedding));
+            head = new OverlapCounter(new PipelinedDetectorTest.SlowRunner(head));
+        }
+        return fixture.detector(rpn, embedding, head);
+    }
+
+    private DetectorPool pool(final boolean slow, final AtomicInteger created) {
+        return new DetectorPool(detector(slow), new DetectorPool.Factory() {
+            public Detector create() {
+                created.incrementAndGet();
+                return detector(slow);
+            }
+        }, MAX_SIZE);
+    }
+
+    @Test
+    public void concurrentDetections_matchTheSequentialOne() throws InterruptedException {
+        DetectionResult expected = detector(false).detect(fixture.pixels);
+        AtomicInteger created = new AtomicInteger();
+        DetectorPool pool = pool(false, created);
+
+        List<DetectionResult> results = detectConcurrently(pool, 8, IMAGES);
+        assertEquals(IMAGES, results.size());
+        for (DetectionResult result : results) assertResultEquals(expected, result);
+        assertTrue(pool.getSize() <= MAX_SIZE);
+        assertEquals(pool.getSize() - 1, created.get());
+        assertEquals(pool.getSize(), pool.getIdleCount());
+        assertEquals(IMAGES, pool.getAcquireCount());
+    }
+
+    @Test
+    public void concurrentDetections_withThePrefilterAndTheIndex_matchTheSequentialOne() throws InterruptedException {
+        for (boolean indexed : new boolean[]{false, true}) {
+            // the Detectors share the gallery store, the prefilter and the index read its rows at the same time
+            Detector template = detector(false);
+            Random random = new Random(7);
+            for (int c = 0; c < 40; c++) {
+                float[][] embeds = new float[5][256];
+                for (float[] embed : embeds) for (int k = 0; k < embed.length; k++) embed[k] = 0.05f * random.nextFloat();
+                template.putClass("Noise" + c, embeds);
+            }
+            if (indexed) template.setIndexing(100, 8, 1.0f);
+            else template.setPrefilter(2, 2);
+            DetectionResult expected = template.detect(fixture.pixels);
+            DetectorPool pool = new DetectorPool(template, new DetectorPool.Factory() {
+                public Detector create() {
+                    return detector(false);
+                }
+            }, MAX_SIZE);
+
+            List<DetectionResult> results = detectConcurrently(pool, 8, 4 * IMAGES);
+            assertEquals(4 * IMAGES, results.size());
+            for (DetectionResult result : results) assertResultEquals(expected, result);
+            assertTrue(pool.getSize() > 1);
+        }
+    }
+
+    @Test
+    public void acquire_copiesTheSettingsOfTheTemplate() throws InterruptedException {
+        DetectorPool pool = pool(false, new AtomicInteger());
+        Detector template = pool.getTemplate();
+        pool.configure(new DetectorPool.Settings() {
+            public void apply(Detector template) {
+                template.setMaxProposals(5);
+                template.setEmbeddingBatchSize(Detector.EMBEDDING_BATCH_ALL);
+                template.setPrefilter(1, 0);
+            }
+        });
+        GalleryStore gallery = template.getGallery();
+
+        Detector first = pool.acquire();
+        Detector second = pool.acquire();
+        assertSame(template, first);
+        assertNotSame(template, second);
+        assertEquals(2, pool.getSize());
+        assertSame(gallery, second.getGallery());
+        assertEquals(5, second.maxProposals);
+        assertEquals(5, second.rpnDecoder.getMaxProposals());
+        assertEquals(Detector.EMBEDDING_BATCH_ALL, second.getEmbeddingBatchSize());
+        assertEquals(1, second.prefilterClasses);
+        assertEquals(template.getCacheVersion(), second.getCacheVersion());
+        pool.release(second);
+        pool.release(first);
+
+        // an idle Detector is reused instead of a new one
+        pool.release(pool.acquire());
+        assertEquals(2, pool.getSize());
+    }
+
+    @Test
+    public void configure_waitsForTheDetectionOfTheTemplate() throws InterruptedException {
+        final DetectorPool pool = pool(false, new AtomicInteger());
+        Detector template = pool.acquire();
+        assertSame(pool.getTemplate(), template);
+
+        final CountDownLatch configured = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.configure(new DetectorPool.Settings() {
+                        public void apply(Detector template) {
+                            template.setMaxProposals(5);
+                        }
+                    });
+                    configured.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+
+        // the other Detectors are checked out meanwhile, with the previous settings
+        Detector other = pool.acquire();
+        assertNotSame(template, other);
+        assertFalse(configured.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, template.maxProposals);
+        pool.release(other);
+
+        pool.release(template);
+        assertTrue(configured.await(5, TimeUnit.SECONDS));
+        thread.join();
+        Detector next = pool.acquire();
+        assertNotSame(template, next);
+        assertEquals(5, next.maxProposals);
+        pool.release(next);
+    }
+
+    @Test
+    public void failedCreation_keepsThePoolAtItsSize() throws InterruptedException {
+        DetectorPool pool = new DetectorPool(detector(false), new DetectorPool.Factory() {
+            public Detector create() throws Exception {
+                throw new Exception("Out of memory");
+            }
+        }, MAX_SIZE);
+
+        List<DetectionResult> results = detectConcurrently(pool, 4, 8);
+        assertEquals(8, results.size());
+        assertEquals(1, pool.getSize());
+        assertNotNull(pool.getCreationError());
+    }
+
+    @Test
+    public void slowDetections_overlapUpToThePoolSize() throws InterruptedException {
+        DetectorPool pool = pool(true, new AtomicInteger());
+        assertEquals(IMAGES, detectConcurrently(pool, 1, IMAGES).size());
+        assertEquals(1, maxRunning.get());
+
+        // the models of the pool run at the same time, one call per Detector at most
+        assertEquals(IMAGES, detectConcurrently(pool, 8, IMAGES).size());
+        assertEquals(MAX_SIZE, pool.getSize());
+        assertTrue(pool.getWaitCount() > 0);
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= MAX_SIZE);
+    }
+
+    @Test
+    public void close_closesTheReleasedDetectors() throws InterruptedException {
+        DetectorPool pool = pool(false, new AtomicInteger());
+        Detector detector = pool.acquire();
+        pool.close();
+        pool.release(detector);
+        assertEquals(0, pool.getIdleCount());
+        try {
+            pool.acquire();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // Counts the model calls running at the same time, over every Detector of the test
+    private class OverlapCounter implements ModelRunner {
+        private final ModelRunner runner;
+
+        OverlapCounter(ModelRunner runner) {
+            this.runner = runner;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            runner.resizeInput(index, shape);
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            int count = running.incrementAndGet();
+            while (true) {
+                int max = maxRunning.get();
+                if (count <= max || maxRunning.compareAndSet(max, count)) break;
+            }
+            try {
+                runner.run(inputs, outputs);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        public void close() {
+            runner.close();
+        }
+    }
+
+    private static void assertResultEquals(DetectionResult expected, DetectionResult result) {
+        assertEquals(expected.size(), result.size());
+        for (int j = 0; j < result.size(); j++) {
+            assertArrayEquals(expected.getBoxes()[j], result.getBoxes()[j], 0.0f);
+            assertEquals(expected.getClasses()[j], result.getClasses()[j]);
+            assertEquals(expected.getScores()[j], result.getScores()[j], 0.0f);
+        }
+    }
+
+    // Detects the images on the threads, each thread taking the next image until there is none
+    private List<DetectionResult> detectConcurrently(final DetectorPool pool, int threads, final int images)
+            throws InterruptedException {
+        final List<DetectionResult> results = Collections.synchronizedList(new ArrayList<DetectionResult>());
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (next.getAndIncrement() < images) results.add(pool.detect(fixture.pixels));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        return results;
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Starts the stub models of DetectorTest in the background, the models and the gallery taking LOAD_TIME ms each.
+ */
+public class DetectorStartupTest {
+    private static final long LOAD_TIME = 150;
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private DetectorTest fixture;
+    private CountingRunner rpn;
+    private CountingRunner embedding;
+    private CountingRunner head;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new DetectorTest();
+        fixture.setUp();
+        rpn = new CountingRunner(fixture.new StubRpn(new float[]{0.9f, 0.8f}));
+        embedding = new CountingRunner(new DetectorTest.StubEmbedding(false));
+        head = new CountingRunner(new DetectorTest.StubHead());
+    }
+
+    private DetectorStartup startup(final boolean failingGallery) {
+        return new DetectorStartup(new DetectorStartup.Stages() {
+            public Detector loadModels() throws InterruptedException {
+                Thread.sleep(LOAD_TIME);
+                return fixture.detector(rpn, embedding, head);
+            }
+
+            public void loadGallery() throws Exception {
+                Thread.sleep(LOAD_TIME);
+                if (failingGallery) throw new IOException("No gallery file");
+            }
+
+            public void prepare(Detector detector) {
+                detector.setMaxProposals(10);
+            }
+        }, System.nanoTime());
+    }
+
+    @Test
+    public void modelsAndGallery_loadAtTheSameTime() throws Exception {
+        DetectorStartup startup = startup(false);
+        startup.markInteractive();
+        Recorder recorder = new Recorder();
+        Future<Detector> ready = startup.start(recorder, DIRECT);
+        assertSame(ready, startup.start(recorder, DIRECT));
+
+        Detector detector = ready.get(5, TimeUnit.SECONDS);
+        assertTrue(recorder.await());
+        assertSame(detector, recorder.detector.get());
+        assertTrue(startup.isReady());
+        assertEquals(10, detector.maxProposals);
+
+        // the two loads overlap, and the UI was usable long before
+        assertTrue(startup.getModelsTime() >= LOAD_TIME);
+        assertTrue(startup.getGalleryTime() >= LOAD_TIME);
+        assertTrue(startup.getReport(), startup.getReadyTime() < startup.getModelsTime() + startup.getGalleryTime()
+                + startup.getPrepareTime() + startup.getWarmUpTime());
+        assertTrue(startup.getInteractiveTime() < startup.getReadyTime());
+    }
+
+    @Test
+    public void warmUp_runsEachModelOnce() throws Exception {
+        DetectorStartup startup = startup(false);
+        Detector detector = startup.start(null, DIRECT).get(5, TimeUnit.SECONDS);
+        assertEquals(1, rpn.runs);
+        assertEquals(1, embedding.runs);
+        assertEquals(1, head.runs);
+        assertTrue(startup.getWarmUpTime() >= 0);
+
+        // the first detection keeps the shapes of the warm-up, and the warm-up is not a detection
+        int resizes = embedding.resizes;
+        DetectionResult result = detector.detect(fixture.pixels);
+        assertEquals(resizes, embedding.resizes);
+        assertTrue(result.size() > 0);
+        startup.recordDetection(result.getTotalTime());
+        startup.recordDetection(Long.MAX_VALUE);
+        assertEquals(result.getTotalTime(), startup.getFirstDetectionTime());
+    }
+
+    @Test
+    public void failedStage_failsTheReadiness() throws InterruptedException {
+        DetectorStartup startup = startup(true);
+        Recorder recorder = new Recorder();
+        Future<Detector> ready = startup.start(recorder, DIRECT);
+        try {
+            ready.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } catch (Exception e) {
+            fail(e.toString());
+        }
+        assertTrue(recorder.await());
+        assertTrue(recorder.error.get() instanceof IOException);
+        assertFalse(startup.isReady());
+        assertEquals(-1, startup.getWarmUpTime());
+    }
+
+    // Counts the calls of a model
+    private static class CountingRunner implements ModelRunner {
+        private final ModelRunner runner;
+        volatile int runs = 0;
+        volatile int resizes = 0;
+
+        CountingRunner(ModelRunner runner) {
+            this.runner = runner;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            resizes++;
+            runner.resizeInput(index, shape);
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            runs++;
+            runner.run(inputs, outputs);
+        }
+
+        public void close() {
+            runner.close();
+        }
+    }
+
+    private static class Recorder implements DetectorStartup.Listener {
+        final AtomicReference<Detector> detector = new AtomicReference<>();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        public void onReady(Detector detector, long readyTime) {
+            this.detector.set(detector);
+            latch.countDown();
+        }
+
+        public void onError(Exception e) {
+            error.set(e);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the whole pipeline on the JVM with stub models: the RPN proposes two anchors painted in red and green,
+ * the embedding is the mean color of the crop and the Head is a dot product.
+ */
+public class DetectorTest {
+    private static final File ASSETS = new File("../app/src/main/assets");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private static final int INPUT_SIZE = 320;
+    private static final int EMBEDDING_SIZE = 256;
+    private static final int EMBEDDING_INPUT_SIZE = 100;
+
+    private int[] anchors;
+    private int red;
+    private int green;
+    int[] pixels;
+
+    @Before
+    public void setUp() throws IOException {
+        anchors = CsvLoader.readAnchors(new InputStreamReader(new FileInputStream(new File(ASSETS, "anchors.csv"))));
+
+        // two big anchors inside the image which do not overlap
+        red = -1;
+        green = -1;
+        for (int k = 0; k < anchors.length / 4 && green < 0; k++) {
+            if (!inside(k) || anchors[4 * k + 2] < 40 || anchors[4 * k + 3] < 40) continue;
+            if (red < 0) red = k;
+            else if (!overlap(red, k)) green = k;
+        }
+        assertTrue(green >= 0);
+
+        pixels = new int[INPUT_SIZE * INPUT_SIZE];
+        Arrays.fill(pixels, 0xFF000000);
+        paint(red, 0xFFFF0000);
+        paint(green, 0xFF00FF00);
+    }
+
+    @Test
+    public void detect_classifiesTheProposedBoxes() {
+        Detector detector = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        DetectionResult result = detector.detect(pixels);
+
+        assertEquals(2, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            float[] box = result.getBoxes()[i];
+            int anchor = (Math.abs(box[0] - x1(red)) < 1 && Math.abs(box[1] - y1(red)) < 1) ? red : green;
+            assertEquals(x1(anchor), box[0], 1e-3f);
+            assertEquals(y1(anchor), box[1], 1e-3f);
+            assertEquals(anchor == red ? "Red" : "Green", result.getClasses()[i]);
+            assertTrue(result.getScores()[i] > 0.9f);
+        }
+    }
+
+    @Test
+    public void batchSizes_giveTheSameDetections() {
+        DetectionResult expected = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f}).detect(pixels);
+        for (int batchSize : new int[]{Detector.EMBEDDING_BATCH_NONE, 1, 8, Detector.EMBEDDING_BATCH_ALL}) {
+            Detector detector = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+            detector.setEmbeddingBatchSize(batchSize);
+            assertResultEquals(expected, detector.detect(pixels));
+            assertResultEquals(expected, detector.detect(pixels));
+        }
+    }
+
+    @Test
+    public void fixedShapeEmbeddingModel_fallsBackToOneCallPerCrop() {
+        DetectionResult expected = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f}).detect(pixels);
+        Detector detector = detector(new StubEmbedding(true), new float[]{0.9f, 0.8f});
+        assertEquals(Detector.EMBEDDING_BATCH_NONE, detector.getEmbeddingBatchSize());
+        detector.setEmbeddingBatchSize(Detector.EMBEDDING_BATCH_ALL);
+
+        assertEquals(Detector.EMBEDDING_BATCH_NONE, detector.getEmbeddingBatchSize());
+        assertResultEquals(expected, detector.detect(pixels));
+    }
+
+    @Test
+    public void embeddingModelFailure_isNotTakenForAFixedShape() {
+        Detector detector = detector(new StubEmbedding(false) {
+            @Override
+            public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+                throw new IllegalStateException("model failure");
+            }
+        }, new float[]{0.9f, 0.8f});
+        detector.setEmbeddingBatchSize(Detector.EMBEDDING_BATCH_ALL);
+
+        try {
+            detector.detect(pixels);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("model failure", e.getMessage());
+        }
+        assertEquals(Detector.EMBEDDING_BATCH_ALL, detector.getEmbeddingBatchSize());
+    }
+
+    @Test
+    public void detectBoxes_keepsTheLabelsOfTheOverlappingBoxes() {
+        Detector detector = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        DetectionResult labelled = detector.detect(pixels);
+        DetectionResult boxes = detector.detectBoxes(pixels);
+
+        assertEquals(labelled.size(), boxes.size());
+        assertEquals(0, boxes.getEmbeddingGenerationTime());
+        for (int i = 0; i < boxes.size(); i++) assertEquals(Detector.NOT_SURE, boxes.getClasses()[i]);
+
+        DetectionResult relabelled = boxes.withLabelsFrom(labelled, 0.3f);
+        for (int i = 0; i < boxes.size(); i++) {
+            int j = Arrays.asList(labelled.getBoxes()).indexOf(findBox(labelled, boxes.getBoxes()[i]));
+            assertEquals(labelled.getClasses()[j], relabelled.getClasses()[i]);
+            assertEquals(labelled.getScores()[j], relabelled.getScores()[i], 0.0f);
+        }
+        assertEquals(Detector.NOT_SURE, boxes.withLabelsFrom(null, 0.3f).getClasses()[0]);
+    }
+
+    @Test
+    public void trackedDetection_reusesTheClassesOfTheStillBoxes() {
+        StubEmbedding embedding = new StubEmbedding(false);
+        Detector detector = detector(embedding, new float[]{0.9f, 0.8f});
+        detector.setEmbeddingBatchSize(Detector.EMBEDDING_BATCH_NONE);
+        BoxTracker tracker = new BoxTracker();
+
+        DetectionResult expected = detector.detect(pixels);
+        int runs = embedding.runs;
+        DetectionResult first = detector.detect(pixels, tracker);
+        assertEquals(2 * runs, embedding.runs);
+        assertEquals(0, tracker.getLastFrameHits());
+
+        // the boxes did not move, nothing is embedded again
+        DetectionResult second = detector.detect(pixels, tracker);
+        assertEquals(2 * runs, embedding.runs);
+        assertEquals(expected.size(), tracker.getLastFrameHits());
+        assertEquals(0, tracker.getLastFrameMisses());
+        assertEquals(0.5f, tracker.getHitRate(), 1e-6f);
+        assertArrayEquals(first.getTrackIds(), second.getTrackIds());
+        assertNull(expected.getTrackIds());
+        for (int i = 0; i < second.size(); i++) {
+            int j = Arrays.asList(expected.getBoxes()).indexOf(findBox(expected, second.getBoxes()[i]));
+            assertEquals(expected.getClasses()[j], second.getClasses()[i]);
+            assertEquals(expected.getScores()[j], second.getScores()[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void resultCache_isMissedWhenTheGalleryChanges() throws IOException {
+        StubEmbedding embedding = new StubEmbedding(false);
+        Detector detector = detector(embedding, new float[]{0.9f, 0.8f});
+        detector.setResultCache(new ResultCache(folder.newFolder("results"), 10, 1 << 20));
+
+        DetectionResult first = detector.detect(pixels);
+        assertFalse(first.isCached());
+        int runs = embedding.runs;
+        DetectionResult second = detector.detect(pixels);
+        assertTrue(second.isCached());
+        assertEquals(runs, embedding.runs);
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertArrayEquals(first.getBoxes()[i], second.getBoxes()[i], 0.0f);
+            assertEquals(first.getClasses()[i], second.getClasses()[i]);
+            assertEquals(first.getScores()[i], second.getScores()[i], 0.0f);
+        }
+
+        // a new class and a new model version are new keys
+        long version = detector.getCacheVersion();
+        detector.putClass("Blue", new float[][]{new float[EMBEDDING_SIZE]});
+        assertNotEquals(version, detector.getCacheVersion());
+        assertFalse(detector.detect(pixels).isCached());
+        version = detector.getCacheVersion();
+        detector.setModelVersion("v2");
+        assertNotEquals(version, detector.getCacheVersion());
+
+        // the version is kept until a setter changes a setting
+        version = detector.getCacheVersion();
+        assertEquals(version, detector.getCacheVersion());
+        detector.setMaxProposals(5);
+        assertNotEquals(version, detector.getCacheVersion());
+    }
+
+    @Test
+    public void indexedGallery_givesTheSameDetections() {
+        Detector exhaustive = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        Detector indexed = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        // weak embeddings in random directions around the red and green ones
+        Random random = new Random(5);
+        for (int c = 0; c < 40; c++) {
+            float[][] embeds = new float[5][EMBEDDING_SIZE];
+            for (float[] embed : embeds) for (int k = 0; k < EMBEDDING_SIZE; k++) embed[k] = 0.05f * random.nextFloat();
+            exhaustive.putClass("Noise" + c, embeds);
+            indexed.putClass("Noise" + c, embeds);
+        }
+        indexed.setIndexing(100, 8, 1.0f);
+
+        assertResultEquals(exhaustive.detect(pixels), indexed.detect(pixels));
+        assertNotNull(indexed.updateIndex());
+        assertNotEquals(exhaustive.getCacheVersion(), indexed.getCacheVersion());
+    }
+
+    @Test
+    public void prefilter_runsTheHeadOnTheSelectedClassesOnly() {
+        Detector exhaustive = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        Detector prefiltered = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f});
+        Random random = new Random(6);
+        for (int c = 0; c < 40; c++) {
+            float[][] embeds = new float[5][EMBEDDING_SIZE];
+            for (float[] embed : embeds) for (int k = 0; k < EMBEDDING_SIZE; k++) embed[k] = 0.05f * random.nextFloat();
+            exhaustive.putClass("Noise" + c, embeds);
+            prefiltered.putClass("Noise" + c, embeds);
+        }
+        prefiltered.setPrefilter(2, 2);
+
+        DetectionResult expected = exhaustive.detect(pixels);
+        assertResultEquals(expected, prefiltered.detect(pixels));
+        assertEquals(202, exhaustive.getSimilarityEngine().getLastPairCount());
+        assertTrue(prefiltered.getSimilarityEngine().getLastPairCount() <= 10);
+        assertNotEquals(exhaustive.getCacheVersion(), prefiltered.getCacheVersion());
+    }
+
+    @Test
+    public void quantizedModels_giveTheSameDetections() {
+        DetectionResult expected = detector(new StubEmbedding(false), new float[]{0.9f, 0.8f}).detect(pixels);
+
+        // the RPN input is normalized for mobilenet, the embedding input is raw
+        Quantization rpnInput = new Quantization(1 / 127.5f, 127);
+        Quantization score = new Quantization(1 / 255.0f, 0);
+        Quantization offset = new Quantization(0.01f, 128);
+        Quantization embeddingInput = new Quantization(1.0f, 0);
+        Detector detector = detector(
+                new QuantizedRunner(new StubRpn(new float[]{0.9f, 0.8f}), new Quantization[]{rpnInput}, new Quantization[]{score, offset}),
+                new QuantizedRunner(new StubEmbedding(false), new Quantization[]{embeddingInput}, new Quantization[]{score}),
+                new StubHead());
+        assertTrue(detector.isQuantized());
+        DetectionResult actual = detector.detect(pixels);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.getBoxes()[i], actual.getBoxes()[i], 0.0f);
+            assertEquals(expected.getClasses()[i], actual.getClasses()[i]);
+            assertEquals(expected.getScores()[i], actual.getScores()[i], 0.01f);
+        }
+    }
+
+    @Test
+    public void emptyFrame_hasNoDetection() {
+        Detector detector = detector(new StubEmbedding(false), new float[]{0.1f, 0.1f});
+        DetectionResult result = detector.detect(pixels);
+        assertEquals(0, result.size());
+        assertEquals(0, result.getClasses().length);
+    }
+
+    private Detector detector(StubEmbedding embedding, float[] scores) {
+        return detector(new StubRpn(scores), embedding, new StubHead());
+    }
+
+    // Also used by PipelinedDetectorTest, after setUp
+    Detector detector(ModelRunner rpn, ModelRunner embedding, ModelRunner head) {
+        Detector detector = new Detector(rpn, embedding, head,
+                Detector.MODEL_PROCESSING_MOBILENET, Detector.MODEL_PROCESSING_OTHERS);
+        detector.setAnchors(anchors);
+        float[] redEmbedding = new float[EMBEDDING_SIZE];
+        float[] greenEmbedding = new float[EMBEDDING_SIZE];
+        redEmbedding[0] = 1.0f;
+        greenEmbedding[1] = 1.0f;
+        detector.putClass("Red", new float[][]{redEmbedding});
+        detector.putClass("Green", new float[][]{greenEmbedding});
+        return detector;
+    }
+
+    private static float[] findBox(DetectionResult result, float[] box) {
+        for (float[] candidate : result.getBoxes()) if (Arrays.equals(candidate, box)) return candidate;
+        fail("box not found");
+        return null;
+    }
+
+    private static void assertResultEquals(DetectionResult expected, DetectionResult actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.getBoxes()[i], actual.getBoxes()[i], 0.0f);
+            assertEquals(expected.getClasses()[i], actual.getClasses()[i]);
+            assertEquals(expected.getScores()[i], actual.getScores()[i], 1e-6f);
+        }
+    }
+
+    /* ***** Anchors of the test image ***** */
+
+    private float x1(int k) {
+        return anchors[4 * k] - anchors[4 * k + 2] / 2.0f;
+    }
+
+    private float y1(int k) {
+        return anchors[4 * k + 1] - anchors[4 * k + 3] / 2.0f;
+    }
+
+    private boolean inside(int k) {
+        return x1(k) >= 0 && y1(k) >= 0 && x1(k) + anchors[4 * k + 2] <= INPUT_SIZE && y1(k) + anchors[4 * k + 3] <= INPUT_SIZE;
+    }
+
+    private boolean overlap(int a, int b) {
+        return x1(a) < x1(b) + anchors[4 * b + 2] + 2 && x1(b) < x1(a) + anchors[4 * a + 2] + 2
+                && y1(a) < y1(b) + anchors[4 * b + 3] + 2 && y1(b) < y1(a) + anchors[4 * a + 3] + 2;
+    }
+
+    private void paint(int k, int color) {
+        for (int y = (int) Math.ceil(y1(k)); y < y1(k) + anchors[4 * k + 3]; y++) {
+            for (int x = (int) Math.ceil(x1(k)); x < x1(k) + anchors[4 * k + 2]; x++) pixels[y * INPUT_SIZE + x] = color;
+        }
+    }
+
+    /* ***** Stub models ***** */
+
+    // Runs a float stub as a quantized model: the UINT8 inputs are dequantized and the outputs quantized
+    static class QuantizedRunner implements ModelRunner, Quantization.Model {
+        private final ModelRunner runner;
+        private final Quantization[] inputs;
+        private final Quantization[] outputs;
+
+        QuantizedRunner(ModelRunner runner, Quantization[] inputs, Quantization[] outputs) {
+            this.runner = runner;
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+
+        public Quantization getInputQuantization(int index) {
+            return inputs[index];
+        }
+
+        public Quantization getOutputQuantization(int index) {
+            return outputs[index];
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            runner.resizeInput(index, shape);
+        }
+
+        public void run(ByteBuffer[] inputBytes, ByteBuffer[] outputBytes) {
+            ByteBuffer[] inputFloats = new ByteBuffer[inputBytes.length];
+            for (int i = 0; i < inputBytes.length; i++) {
+                inputFloats[i] = ByteBuffer.allocateDirect(4 * inputBytes[i].capacity()).order(ByteOrder.nativeOrder());
+                for (int k = 0; k < inputBytes[i].capacity(); k++) {
+                    inputFloats[i].putFloat(4 * k, inputs[i].dequantize(inputBytes[i].get(k)));
+                }
+            }
+            ByteBuffer[] outputFloats = new ByteBuffer[outputBytes.length];
+            for (int i = 0; i < outputBytes.length; i++) {
+                outputFloats[i] = ByteBuffer.allocateDirect(4 * outputBytes[i].capacity()).order(ByteOrder.nativeOrder());
+            }
+            runner.run(inputFloats, outputFloats);
+            for (int i = 0; i < outputBytes.length; i++) {
+                for (int k = 0; k < outputBytes[i].capacity(); k++) {
+                    outputBytes[i].put(k, outputs[i].quantize(outputFloats[i].getFloat(4 * k)));
+                }
+            }
+        }
+
+        public void close() {
+            runner.close();
+        }
+    }
+
+    // Proposes the red and green anchors with the given scores, the box offsets are 0
+    class StubRpn implements ModelRunner {
+        private final float[] scores;
+
+        StubRpn(float[] scores) {
+            this.scores = scores;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            throw new IllegalArgumentException("fixed shape");
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            FloatBuffer obj = outputs[0].asFloatBuffer();
+            FloatBuffer box = outputs[1].asFloatBuffer();
+            for (int k = 0; k < obj.capacity(); k++) obj.put(k, k == red ? scores[0] : k == green ? scores[1] : 0.0f);
+            for (int i = 0; i < box.capacity(); i++) box.put(i, 0.0f);
+        }
+
+        public void close() {
+        }
+    }
+
+    // The embedding of a crop is its mean (r, g, b) color, normalized
+    static class StubEmbedding implements ModelRunner {
+        private final boolean fixedShape;
+        private int batchSize = 1;
+        private int runs = 0;
+
+        StubEmbedding(boolean fixedShape) {
+            this.fixedShape = fixedShape;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            if (fixedShape && shape[0] != 1) throw new IllegalArgumentException("fixed shape");
+            batchSize = shape[0];
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            runs++;
+            FloatBuffer input = inputs[0].asFloatBuffer();
+            FloatBuffer output = outputs[0].asFloatBuffer();
+            assertEquals(batchSize * EMBEDDING_INPUT_SIZE * EMBEDDING_INPUT_SIZE * 3, input.capacity());
+            int slot = EMBEDDING_INPUT_SIZE * EMBEDDING_INPUT_SIZE * 3;
+            for (int b = 0; b < batchSize; b++) {
+                float[] mean = new float[3];
+                for (int i = 0; i < slot; i++) mean[i % 3] += input.get(b * slot + i);
+                float norm = (float) Math.sqrt(mean[0] * mean[0] + mean[1] * mean[1] + mean[2] * mean[2]);
+                for (int i = 0; i < EMBEDDING_SIZE; i++) {
+                    output.put(b * EMBEDDING_SIZE + i, (i < 3 && norm > 0) ? mean[i] / norm : 0.0f);
+                }
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    // Scores each pair with a dot product
+    static class StubHead implements ModelRunner {
+        private int count = 1;
+
+        public void resizeInput(int index, int[] shape) {
+            count = shape[0];
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            FloatBuffer queries = inputs[0].asFloatBuffer();
+            FloatBuffer gallery = inputs[1].asFloatBuffer();
+            FloatBuffer scores = outputs[0].asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                float dot = 0;
+                for (int j = 0; j < EMBEDDING_SIZE; j++) dot += queries.get(i * EMBEDDING_SIZE + j) * gallery.get(i * EMBEDDING_SIZE + j);
+                scores.put(i, dot);
+            }
+        }
+
+        public void close() {
+        }
+    }
+}
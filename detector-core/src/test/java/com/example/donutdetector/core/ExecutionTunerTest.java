@@ -0,0 +1,144 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tunes a stub model with the CPU candidates: the more threads the faster it runs, and XNNPACK can't load it,
+ * like a model with an operation XNNPACK does not support.
+ */
+public class ExecutionTunerTest {
+
+    private Map<String, String> saved;
+    private ExecutionTuner tuner;
+    private StubFactory factory;
+
+    @Before
+    public void setUp() {
+        saved = new HashMap<>();
+        tuner = new ExecutionTuner(new ExecutionTuner.Store() {
+            public String get(String model) {
+                return saved.get(model);
+            }
+
+            public void put(String model, String config) {
+                saved.put(model, config);
+            }
+        });
+        tuner.setRuns(1, 3);
+        factory = new StubFactory();
+    }
+
+    @Test
+    public void config_roundTrips() {
+        for (ExecutionConfig.Delegate delegate : ExecutionConfig.Delegate.values()) {
+            ExecutionConfig config = new ExecutionConfig(delegate, 2);
+            assertEquals(config, ExecutionConfig.parse(config.toString()));
+        }
+        assertNull(ExecutionConfig.parse(null));
+        assertNull(ExecutionConfig.parse("CPU"));
+        assertNull(ExecutionConfig.parse("TPU:1"));
+        assertNull(ExecutionConfig.parse("CPU:four"));
+        assertEquals(6, ExecutionConfig.cpuCandidates(4).size());
+        assertEquals(2, ExecutionConfig.cpuCandidates(1).size());
+    }
+
+    @Test
+    public void tune_picksTheFastestCandidateThatRuns() {
+        ExecutionConfig best = tuner.tune(factory, ExecutionConfig.cpuCandidates(4));
+
+        assertEquals(new ExecutionConfig(ExecutionConfig.Delegate.CPU, 4), best);
+        assertTrue(tuner.getLastReport(), tuner.getLastReport().contains(best + " "));
+        // the XNNPACK candidates are skipped
+        assertEquals(3, tuner.getLastTimes().size());
+        assertEquals(factory.created, factory.closed);
+        // the buffers of the first runner are used by every candidate
+        assertEquals(1, factory.allocations);
+    }
+
+    @Test
+    public void getConfig_tunesOnceThenReadsTheSavedConfig() {
+        List<ExecutionConfig> candidates = ExecutionConfig.cpuCandidates(4);
+        ExecutionConfig best = tuner.getConfig("rpn", factory, candidates);
+        assertEquals("CPU:4", saved.get("rpn"));
+
+        int created = factory.created;
+        assertEquals(best, tuner.getConfig("rpn", factory, candidates));
+        assertEquals(created, factory.created);
+
+        // another model is tuned on its own
+        assertEquals(best, tuner.getConfig("head", factory, candidates));
+        assertTrue(factory.created > created);
+    }
+
+    @Test
+    public void savedConfigOutOfTheCandidates_isTunedAgain() {
+        saved.put("rpn", "GPU:1");
+        assertEquals(new ExecutionConfig(ExecutionConfig.Delegate.CPU, 2),
+                tuner.getConfig("rpn", factory, ExecutionConfig.cpuCandidates(2)));
+        assertEquals("CPU:2", saved.get("rpn"));
+
+        saved.put("rpn", "garbage");
+        assertEquals(new ExecutionConfig(ExecutionConfig.Delegate.CPU, 2),
+                tuner.getConfig("rpn", factory, ExecutionConfig.cpuCandidates(2)));
+    }
+
+    @Test
+    public void noCandidateRuns_savesNothing() {
+        List<ExecutionConfig> candidates = new ArrayList<>();
+        candidates.add(new ExecutionConfig(ExecutionConfig.Delegate.XNNPACK, 1));
+        candidates.add(new ExecutionConfig(ExecutionConfig.Delegate.GPU, 1));
+        assertNull(tuner.getConfig("rpn", factory, candidates));
+        assertTrue(saved.isEmpty());
+        assertEquals(factory.created, factory.closed);
+    }
+
+    // A model taking 8 ms on one thread, which XNNPACK can't load and the GPU can't run
+    static class StubFactory implements ExecutionTuner.ModelFactory {
+        int created = 0;
+        int closed = 0;
+        int allocations = 0;
+
+        public ModelRunner create(final ExecutionConfig config) {
+            if (config.getDelegate() == ExecutionConfig.Delegate.XNNPACK) {
+                throw new UnsupportedOperationException("XNNPACK");
+            }
+            created++;
+            return new ModelRunner() {
+                public void resizeInput(int index, int[] shape) {
+                }
+
+                public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+                    if (config.getDelegate() == ExecutionConfig.Delegate.GPU) throw new IllegalStateException("GPU");
+                    assertEquals(1, inputs.length);
+                    try {
+                        Thread.sleep(8 / config.getThreads());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                public void close() {
+                    closed++;
+                }
+            };
+        }
+
+        public ByteBuffer[] inputs(ModelRunner runner) {
+            allocations++;
+            return new ByteBuffer[]{ByteBuffer.allocateDirect(16)};
+        }
+
+        public ByteBuffer[] outputs(ModelRunner runner) {
+            return new ByteBuffer[]{ByteBuffer.allocateDirect(4)};
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the frames coming during a detection are skipped and that the embeddings run every Nth frame.
+ */
+public class FrameSchedulerTest {
+
+    @Test
+    public void framesDuringADetection_areSkipped() {
+        FrameScheduler scheduler = new FrameScheduler(1);
+        assertTrue(scheduler.tryAcquire());
+        assertFalse(scheduler.tryAcquire());
+        assertFalse(scheduler.tryAcquire());
+        scheduler.release();
+        assertTrue(scheduler.tryAcquire());
+        scheduler.release();
+
+        assertEquals(4, scheduler.getFrameCount());
+        assertEquals(2, scheduler.getSkippedCount());
+        assertEquals(2, scheduler.getProcessedCount());
+        assertFalse(scheduler.isBusy());
+    }
+
+    @Test
+    public void embeddings_runEveryNthProcessedFrame() {
+        FrameScheduler scheduler = new FrameScheduler(3);
+        StringBuilder pattern = new StringBuilder();
+        for (int frame = 0; frame < 14; frame++) {
+            // every other camera frame comes during a detection
+            if (!scheduler.tryAcquire()) continue;
+            pattern.append(scheduler.shouldEmbed() ? 'E' : 'R');
+            assertFalse(scheduler.tryAcquire());
+            scheduler.release();
+        }
+        assertEquals("ERRERRERRERRER", pattern.toString());
+        assertEquals(5, scheduler.getEmbeddedCount());
+        assertEquals(14, scheduler.getSkippedCount());
+        assertTrue(scheduler.getFps() > 0);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the binary gallery file against the csv files of the assets folder, see GalleryLoadingBenchmark for their times.
+ */
+public class GalleryFileTest {
+    private static final File ASSETS = new File("../app/src/main/assets");
+    private static final int EMBEDDING_SIZE = 256;
+
+    @Test
+    public void galleryFile_matchesCsvFiles() throws IOException {
+        GalleryStore csv = loadCsv();
+        int[] csvAnchors = CsvLoader.readAnchors(new InputStreamReader(new FileInputStream(new File(ASSETS, "anchors.csv"))));
+        GalleryFile file = loadMapped(new File(ASSETS, "gallery.bin"));
+
+        assertGalleryEquals(csv, file.getGallery());
+        assertArrayEquals(csvAnchors, file.getAnchors());
+    }
+
+    @Test
+    public void writeThenRead_roundTrips() throws IOException {
+        GalleryStore csv = loadCsv();
+        int[] anchors = new int[]{0, 0, 16, 16, 8, 8, 11, 22};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GalleryFile.write(out, csv, anchors);
+        GalleryFile file = GalleryFile.read(ByteBuffer.wrap(out.toByteArray()));
+
+        assertGalleryEquals(csv, file.getGallery());
+        assertArrayEquals(anchors, file.getAnchors());
+    }
+
+    @Test
+    public void mappedGallery_copiesOnWrite() throws IOException {
+        GalleryStore gallery = loadMapped(new File(ASSETS, "gallery.bin")).getGallery();
+        int size = gallery.size();
+        float[] embedding = gallery.get(0, new float[EMBEDDING_SIZE]);
+
+        gallery.addClass("Extra", new float[][]{embedding});
+        assertEquals(size + 1, gallery.size());
+        assertEquals(embedding[3], gallery.get(size, 3), 0.0f);
+    }
+
+    private static GalleryStore loadCsv() throws IOException {
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        CsvLoader.readGallery(new InputStreamReader(new FileInputStream(new File(ASSETS, "embeds.csv"))),
+                new InputStreamReader(new FileInputStream(new File(ASSETS, "classes.csv"))), gallery);
+        return gallery;
+    }
+
+    private static GalleryFile loadMapped(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel fileChannel = randomAccessFile.getChannel();
+        MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        randomAccessFile.close();
+        return GalleryFile.read(mapped);
+    }
+
+    private static void assertGalleryEquals(GalleryStore expected, GalleryStore actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getClassCount(), actual.getClassCount());
+        for (int c = 0; c < expected.getClassCount(); c++) {
+            assertEquals(expected.getClassName(c), actual.getClassName(c));
+            assertEquals(expected.getClassStart(c), actual.getClassStart(c));
+            assertEquals(expected.getClassEnd(c), actual.getClassEnd(c));
+        }
+        float[] a = new float[EMBEDDING_SIZE];
+        float[] b = new float[EMBEDDING_SIZE];
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i, a), actual.get(i, b), 0.0f);
+        }
+    }
+}
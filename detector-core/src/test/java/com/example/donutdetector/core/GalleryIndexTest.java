@@ -0,0 +1,143 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds the index over synthetic galleries: each class is a group of normalized embeddings around its own direction,
+ * like the crops of one donut, and the queries are new crops of random classes. The Head is DetectorTest.StubHead.
+ */
+public class GalleryIndexTest {
+    private static final int EMBEDDING_SIZE = 256; // the embedding size of DetectorTest.StubHead
+    private static final int PER_CLASS = 20;
+
+    private static float[] noisy(float[] center, float noise, Random random) {
+        float[] embedding = new float[center.length];
+        float norm = 0;
+        for (int k = 0; k < center.length; k++) {
+            embedding[k] = center[k] + noise * (float) random.nextGaussian();
+            norm += embedding[k] * embedding[k];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int k = 0; k < center.length; k++) embedding[k] /= norm;
+        return embedding;
+    }
+
+    private static float[][] centers(int classes, Random random) {
+        float[][] centers = new float[classes][];
+        for (int c = 0; c < classes; c++) centers[c] = noisy(new float[EMBEDDING_SIZE], 1.0f, random);
+        return centers;
+    }
+
+    private static GalleryStore gallery(float[][] centers, Random random) {
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        for (int c = 0; c < centers.length; c++) {
+            float[][] embeds = new float[PER_CLASS][];
+            for (int i = 0; i < PER_CLASS; i++) embeds[i] = noisy(centers[c], 0.05f, random);
+            gallery.addClass("class" + c, embeds);
+        }
+        return gallery;
+    }
+
+    private static float[][] queries(float[][] centers, int n, Random random) {
+        float[][] queries = new float[n][];
+        for (int i = 0; i < n; i++) queries[i] = noisy(centers[random.nextInt(centers.length)], 0.05f, random);
+        return queries;
+    }
+
+    private static SimilarityEngine engine() {
+        return new SimilarityEngine(new DetectorTest.StubHead(), EMBEDDING_SIZE);
+    }
+
+    // The brute force top k of the query, by dot product
+    private static int[] topK(GalleryStore gallery, float[] query, int k) {
+        float[] scores = new float[gallery.size()];
+        for (int i = 0; i < scores.length; i++) scores[i] = gallery.dot(i, query);
+        return ArrayUtils.topK(scores, k);
+    }
+
+    @Test
+    public void search_withEveryListIsTheBruteForceTopK() {
+        Random random = new Random(1);
+        float[][] centers = centers(20, random);
+        GalleryStore gallery = gallery(centers, random);
+        GalleryIndex index = GalleryIndex.build(gallery, 0, 7);
+        assertEquals(20, index.getListCount());
+
+        index.setProbes(index.getListCount());
+        assertEquals(1.0f, index.measureRecall(engine(), queries(centers, 20, random), 10), 0.0f);
+
+        float[] query = queries(centers, 1, random)[0];
+        int[] rows = new int[10];
+        assertEquals(10, index.search(query, 10, rows));
+        assertArrayEquals(topK(gallery, query, 10), rows);
+        assertEquals(gallery.size() + index.getListCount(), index.getLastScanned());
+    }
+
+    @Test
+    public void quantizedGallery_isSearchedInItsEncoding() {
+        Random random = new Random(5);
+        float[][] centers = centers(20, random);
+        GalleryStore gallery = gallery(centers, random).quantize(GalleryStore.Encoding.INT8);
+        GalleryIndex index = GalleryIndex.build(gallery, 0, 7);
+
+        // the rows are scored by the store itself, so every list gives the exact top K of the quantized rows
+        index.setProbes(index.getListCount());
+        float[] query = queries(centers, 1, random)[0];
+        int[] rows = new int[10];
+        assertEquals(10, index.search(query, 10, rows));
+        assertArrayEquals(topK(gallery, query, 10), rows);
+        assertEquals(1.0f, index.measureRecall(engine(), queries(centers, 20, random), 10), 0.0f);
+    }
+
+    @Test
+    public void tune_reachesTheTargetRecall() {
+        Random random = new Random(2);
+        float[][] centers = centers(50, random);
+        GalleryIndex index = GalleryIndex.build(gallery(centers, random), 0, 7);
+
+        SimilarityEngine engine = engine();
+        int probes = index.tune(engine, queries(centers, 50, random), 10, 0.9f);
+        assertTrue(probes < index.getListCount());
+        // new queries keep about the same recall
+        assertTrue(index.measureRecall(engine, queries(centers, 100, random), 10) >= 0.85f);
+    }
+
+    @Test
+    public void search_growsSubLinearlyWithTheGallery() {
+        float[] scanned = new float[2];
+        int[] sizes = new int[]{1000, 16000};
+        for (int s = 0; s < 2; s++) {
+            Random random = new Random(3);
+            float[][] centers = centers(sizes[s] / PER_CLASS, random);
+            GalleryStore gallery = gallery(centers, random);
+            GalleryIndex index = GalleryIndex.build(gallery, 0, 7);
+            index.tune(engine(), queries(centers, 50, random), 10, 0.9f);
+
+            float[][] queries = queries(centers, 50, random);
+            int[] rows = new int[10];
+            for (float[] query : queries) {
+                index.search(query, 10, rows);
+                scanned[s] += index.getLastScanned();
+            }
+            scanned[s] /= queries.length;
+            assertTrue(scanned[s] < gallery.size());
+        }
+        // 16 times more embeddings, about sqrt(16) times more dot products
+        assertTrue(scanned[1] / scanned[0] < 8);
+    }
+
+    @Test
+    public void isStale_afterAGalleryChange() {
+        Random random = new Random(4);
+        float[][] centers = centers(5, random);
+        GalleryStore gallery = gallery(centers, random);
+        GalleryIndex index = GalleryIndex.build(gallery, 0, 7);
+        assertFalse(index.isStale(gallery));
+        gallery.addClass("new", new float[][]{centers[0]});
+        assertTrue(index.isStale(gallery));
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Quantizes the gallery of the app (embeds.csv) and compares the scores with the float ones.
+ */
+public class GalleryStoreTest {
+    private static final File ASSETS = new File("../app/src/main/assets");
+    private static final int EMBEDDING_SIZE = 256;
+
+    private GalleryStore gallery;
+    private float[][] queries;
+
+    @Before
+    public void setUp() throws IOException {
+        gallery = new GalleryStore(EMBEDDING_SIZE);
+        CsvLoader.readGallery(new InputStreamReader(new FileInputStream(new File(ASSETS, "embeds.csv"))),
+                new InputStreamReader(new FileInputStream(new File(ASSETS, "classes.csv"))), gallery);
+
+        // the gallery embeddings, and the same with some noise like new crops
+        Random random = new Random(1);
+        queries = new float[2 * gallery.size()][EMBEDDING_SIZE];
+        for (int i = 0; i < gallery.size(); i++) {
+            gallery.get(i, queries[i]);
+            for (int k = 0; k < EMBEDDING_SIZE; k++) {
+                queries[gallery.size() + i][k] = queries[i][k] * (1 + 0.2f * (float) random.nextGaussian());
+            }
+        }
+    }
+
+    @Test
+    public void halfFloats_roundTrip() {
+        // every half float but the NaNs comes back as it was
+        for (int half = 0; half < 0x10000; half++) {
+            float value = GalleryStore.fromHalf((short) half);
+            if (Float.isNaN(value)) continue;
+            assertEquals(half, GalleryStore.toHalf(value) & 0xffff);
+        }
+        assertEquals(1.0f, GalleryStore.fromHalf(GalleryStore.toHalf(1.0f)), 0.0f);
+        assertEquals(65504.0f, GalleryStore.fromHalf(GalleryStore.toHalf(65504.0f)), 0.0f);
+        assertEquals(Float.POSITIVE_INFINITY, GalleryStore.fromHalf(GalleryStore.toHalf(1e6f)), 0.0f);
+        assertEquals(0x1p-24f, GalleryStore.fromHalf(GalleryStore.toHalf(0x1p-24f)), 0.0f);
+        // ties go to the even mantissa
+        assertEquals(1.0f, GalleryStore.fromHalf(GalleryStore.toHalf(1.0f + 0x1p-11f)), 0.0f);
+        assertEquals(1.0f + 0x1p-9f, GalleryStore.fromHalf(GalleryStore.toHalf(1.0f + 0x1p-10f + 0x1p-11f)), 0.0f);
+    }
+
+    @Test
+    public void concurrentReads_getTheirOwnRows() throws InterruptedException {
+        final float[][] expected = new float[gallery.size()][];
+        for (int row = 0; row < expected.length; row++) expected[row] = gallery.get(row, new float[EMBEDDING_SIZE]);
+
+        // each thread reads the rows in another order, like the Detectors of a pool
+        final AtomicInteger mismatches = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    float[] dst = new float[EMBEDDING_SIZE];
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000 * expected.length; i++) {
+                        int row = (offset * 37 + i * (offset + 1)) % expected.length;
+                        if (!Arrays.equals(expected[row], gallery.get(row, dst))) mismatches.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void fingerprint_changesWithTheContent() {
+        GalleryStore gallery = new GalleryStore(4);
+        gallery.addClass("a", new float[][]{{1, 0, 0, 0}, {0, 1, 0, 0}});
+        long fingerprint = gallery.getFingerprint();
+        assertEquals(fingerprint, gallery.getFingerprint());
+
+        GalleryStore same = new GalleryStore(4);
+        same.addClass("a", new float[][]{{1, 0, 0, 0}, {0, 1, 0, 0}});
+        assertEquals(fingerprint, same.getFingerprint());
+        assertNotEquals(fingerprint, gallery.quantize(GalleryStore.Encoding.INT8).getFingerprint());
+
+        gallery.addClass("b", new float[][]{{0, 0, 1, 0}});
+        assertNotEquals(fingerprint, gallery.getFingerprint());
+    }
+
+    @Test
+    public void quantize_dividesTheMemory() {
+        long bytes = gallery.getBytes();
+        assertEquals(gallery.size() * EMBEDDING_SIZE * 4L, bytes);
+        assertEquals(2.0f, (float) bytes / gallery.quantize(GalleryStore.Encoding.FLOAT16).getBytes(), 0.0f);
+        assertTrue((float) bytes / gallery.quantize(GalleryStore.Encoding.INT8).getBytes() > 3.9f);
+    }
+
+    @Test
+    public void quantizedScores_matchTheFloatScores() {
+        for (GalleryStore.Encoding encoding : new GalleryStore.Encoding[]{GalleryStore.Encoding.FLOAT16, GalleryStore.Encoding.INT8}) {
+            GalleryStore quantized = gallery.quantize(encoding);
+            assertEquals(gallery.getClassCount(), quantized.getClassCount());
+
+            float maxError = 0;
+            int sameBest = 0;
+            float[] row = new float[EMBEDDING_SIZE];
+            for (float[] query : queries) {
+                int best = -1;
+                int quantizedBest = -1;
+                for (int i = 0; i < gallery.size(); i++) {
+                    float score = gallery.dot(i, query);
+                    float quantizedScore = quantized.dot(i, query);
+                    // error on the cosine, the scores close to 0 have no meaningful relative error
+                    float norms = (float) Math.sqrt(dot(query, query) * gallery.dot(i, gallery.get(i, row)));
+                    maxError = Math.max(maxError, Math.abs(quantizedScore - score) / norms);
+                    if (best < 0 || score > gallery.dot(best, query)) best = i;
+                    if (quantizedBest < 0 || quantizedScore > quantized.dot(quantizedBest, query)) quantizedBest = i;
+                    // the kernel and the dequantized row agree
+                    assertEquals(quantizedScore, dot(quantized.get(i, row), query), 1e-3f * Math.max(1, Math.abs(score)));
+                }
+                if (gallery.dot(quantizedBest, query) == gallery.dot(best, query)) sameBest++;
+            }
+            assertEquals(queries.length, sameBest);
+            assertTrue(maxError < (encoding == GalleryStore.Encoding.FLOAT16 ? 2e-4f : 5e-3f));
+        }
+    }
+
+    @Test
+    public void replacingAClass_keepsTheScalesOfTheOtherRows() {
+        GalleryStore quantized = gallery.quantize(GalleryStore.Encoding.INT8);
+        float[] last = quantized.get(quantized.size() - 1, new float[EMBEDDING_SIZE]);
+        String first = quantized.getClassName(0);
+        quantized.addClass(first, new float[][]{queries[0]});
+
+        // the first class moved to the end, the rows after it moved down with their scales
+        assertEquals(first, quantized.getClassName(quantized.getClassCount() - 1));
+        assertArrayEquals(last, quantized.get(quantized.size() - 2, new float[EMBEDDING_SIZE]), 0.0f);
+    }
+
+    @Test
+    public void similarityEngine_streamsTheQuantizedRows() {
+        SimilarityEngine floats = new SimilarityEngine(new DetectorTest.StubHead(), EMBEDDING_SIZE);
+        floats.setGallery(gallery);
+        SimilarityEngine halves = new SimilarityEngine(new DetectorTest.StubHead(), EMBEDDING_SIZE);
+        GalleryStore quantized = gallery.quantize(GalleryStore.Encoding.FLOAT16);
+        halves.setGallery(quantized);
+
+        float[] expected = floats.scoreClasses(queries[0]).clone();
+        float[] actual = halves.scoreClasses(queries[0]);
+        float scale = 0;
+        for (float score : expected) scale = Math.max(scale, Math.abs(score));
+        assertArrayEquals(expected, actual, 1e-3f * scale);
+        assertEquals(gallery.size(), halves.getLastPairCount());
+        assertFalse(halves.isStale(quantized));
+        assertTrue(halves.isStale(gallery));
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int k = 0; k < a.length; k++) sum += a[k] * b[k];
+        return sum;
+    }
+}
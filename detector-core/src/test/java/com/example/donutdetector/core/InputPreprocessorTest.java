@@ -0,0 +1,98 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the normalization tables against the per pixel formulas,
+ * and that a steady state preprocessing does not allocate.
+ */
+public class InputPreprocessorTest {
+    private static final int INPUT_SIZE = 320;
+
+    @Test
+    public void tables_matchPerPixelFormulas() {
+        float[] mobilenet = InputPreprocessor.Normalization.of("mobilenet").table();
+        float[] vgg = InputPreprocessor.Normalization.of("vgg").table();
+        float[] raw = InputPreprocessor.Normalization.of("").table();
+        for (int value = 0; value < 256; value++) {
+            assertEquals((value / 127.5f) - 1.0f, mobilenet[value], 0.0f);
+            assertEquals(value / 255.0f, vgg[value], 0.0f);
+            assertEquals(value * 1.0f, raw[value], 0.0f);
+        }
+    }
+
+    @Test
+    public void process_writesChannelsInRgbOrder() {
+        InputPreprocessor preprocessor = new InputPreprocessor(2, 2, InputPreprocessor.Normalization.RAW);
+        int[] pixels = preprocessor.getPixels();
+        pixels[0] = 0xFF010203;
+        pixels[3] = 0xFF0A0B0C;
+        preprocessor.process(1);
+
+        ByteBuffer input = preprocessor.getInput(2);
+        assertEquals(2 * 2 * 2 * 3 * 4, input.capacity());
+        int slot = preprocessor.getSlotSize();
+        assertEquals(1.0f, preprocessor.getFloats().get(slot), 0.0f);
+        assertEquals(2.0f, preprocessor.getFloats().get(slot + 1), 0.0f);
+        assertEquals(3.0f, preprocessor.getFloats().get(slot + 2), 0.0f);
+        assertEquals(12.0f, preprocessor.getFloats().get(slot + 11), 0.0f);
+        assertSame(input, preprocessor.getInput(2));
+    }
+
+    @Test
+    public void quantizedProcess_writesOneBytePerChannel() {
+        Quantization quantization = new Quantization(1 / 127.5f, 127);
+        InputPreprocessor preprocessor = new InputPreprocessor(2, 2, InputPreprocessor.Normalization.MOBILENET, quantization);
+        assertTrue(preprocessor.isQuantized());
+        int[] pixels = preprocessor.getPixels();
+        pixels[0] = 0xFF0080FF;
+        preprocessor.process(1);
+
+        ByteBuffer input = preprocessor.getInput(2);
+        assertEquals(2 * 2 * 2 * 3, input.capacity());
+        int slot = preprocessor.getSlotSize();
+        float[] table = InputPreprocessor.Normalization.MOBILENET.table();
+        assertEquals(quantization.quantize(table[0x00]), input.get(slot));
+        assertEquals(quantization.quantize(table[0x80]), input.get(slot + 1));
+        assertEquals(quantization.quantize(table[0xFF]), input.get(slot + 2));
+        // the bytes are the normalized values, within half a step
+        for (int value = 0; value < 256; value++) {
+            float dequantized = quantization.dequantize(quantization.quantize(table[value]));
+            assertEquals(table[value], dequantized, quantization.getScale() / 2 + 1e-6f);
+        }
+    }
+
+    @Test
+    public void steadyStateProcess_doesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        InputPreprocessor preprocessor = new InputPreprocessor(INPUT_SIZE, 8, InputPreprocessor.Normalization.MOBILENET);
+        Random random = new Random(42);
+        int[] pixels = preprocessor.getPixels();
+        for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt();
+
+        // warm up, so the JIT compiled code is measured
+        for (int i = 0; i < 200; i++) runOnce(preprocessor);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100; i++) runOnce(preprocessor);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated by 100 steady state calls", 0, allocated);
+    }
+
+    private static void runOnce(InputPreprocessor preprocessor) {
+        preprocessor.ensureBatchSize(8);
+        preprocessor.process(0);
+        preprocessor.process(3);
+        preprocessor.clear(4, 8);
+        preprocessor.getInput(8);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sweep NMS against the O(n^2) tool_nms it replaces, class-agnostic and per class.
+ */
+public class NmsEngineTest {
+    private static final float[] THRESHOLDS = new float[]{0.0f, 0.15f, 0.2f, 0.5f, 0.9f, -0.1f};
+    private static final String[] CLASSES = new String[]{"Donut", "Croissant", "Not sure"};
+
+    @Test
+    public void classAgnostic_matchesPreviousNms() {
+        Random random = new Random(11);
+        NmsEngine engine = new NmsEngine(4);
+        for (int n : new int[]{0, 1, 2, 10, 100, 1000}) {
+            for (float threshold : THRESHOLDS) {
+                float[][] bboxes = randomBoxes(random, n);
+                float[] scores = randomScores(random, n);
+                assertArrayEquals("n=" + n + " threshold=" + threshold,
+                        previousNms(bboxes, scores, threshold, null), run(engine, bboxes, scores, threshold, null));
+            }
+        }
+    }
+
+    @Test
+    public void perClass_matchesPreviousNms() {
+        Random random = new Random(13);
+        NmsEngine engine = new NmsEngine();
+        for (int n : new int[]{1, 10, 300}) {
+            for (float threshold : THRESHOLDS) {
+                float[][] bboxes = randomBoxes(random, n);
+                float[] scores = randomScores(random, n);
+                String[] classes = new String[n];
+                for (int i = 0; i < n; i++) classes[i] = CLASSES[random.nextInt(CLASSES.length)];
+                assertArrayEquals("n=" + n + " threshold=" + threshold,
+                        previousNms(bboxes, scores, threshold, classes), run(engine, bboxes, scores, threshold, classes));
+            }
+        }
+    }
+
+    @Test
+    public void degenerateBoxes_matchPreviousNms() {
+        Random random = new Random(17);
+        NmsEngine engine = new NmsEngine();
+        float[][] bboxes = randomBoxes(random, 200);
+        for (int i = 0; i < bboxes.length; i += 3) bboxes[i][2] = 0.2f;
+        for (int i = 1; i < bboxes.length; i += 5) bboxes[i][3] = -4.0f;
+        float[] scores = randomScores(random, bboxes.length);
+        for (float threshold : THRESHOLDS) {
+            assertArrayEquals(previousNms(bboxes, scores, threshold, null), run(engine, bboxes, scores, threshold, null));
+        }
+    }
+
+    private static int[] run(NmsEngine engine, float[][] bboxes, float[] scores, float threshold, String[] classes) {
+        int[] classIds = null;
+        if (classes != null) {
+            classIds = new int[classes.length];
+            for (int i = 0; i < classes.length; i++) classIds[i] = Arrays.asList(CLASSES).indexOf(classes[i]);
+        }
+        int[] kept = new int[bboxes.length];
+        int counter = engine.run(NmsEngine.flatten(bboxes, null), scores, bboxes.length, threshold, classIds, kept);
+        return Arrays.copyOf(kept, counter);
+    }
+
+    // Boxes of a 320x320 image around a few centers, so many of them overlap
+    private static float[][] randomBoxes(Random random, int n) {
+        float[][] bboxes = new float[n][4];
+        for (int i = 0; i < n; i++) {
+            float center = 40 + 60 * random.nextInt(5);
+            bboxes[i][0] = center + (float) random.nextGaussian() * 20 - 30;
+            bboxes[i][1] = center + (float) random.nextGaussian() * 20 - 30;
+            bboxes[i][2] = 10 + random.nextFloat() * 90;
+            bboxes[i][3] = 10 + random.nextFloat() * 90;
+        }
+        return bboxes;
+    }
+
+    // Scores with ties
+    private static float[] randomScores(Random random, int n) {
+        float[] scores = new float[n];
+        for (int i = 0; i < n; i++) scores[i] = random.nextInt(50) / 50.0f;
+        return scores;
+    }
+
+    // The previous SmartDetector.tool_nms, returning the kept indexes
+    private static int[] previousNms(float[][] bboxes, float[] scores, float threshold, String[] classes) {
+        int counter = 0;
+        double iou_result;
+        String thisClass = "";
+
+        int[] indexes = ArrayUtils.argsort(scores);
+        int[] complete_bool = new int[indexes.length];
+
+        for (int index = indexes.length - 1; index >= 0; index--) {
+            int i = indexes[index];
+            if (classes != null) thisClass = classes[i];
+            if (complete_bool[i] == 0) {
+                complete_bool[i] = 2;
+                counter++;
+
+                BoundingBox bbox = new BoundingBox(Math.round(bboxes[i][0]), Math.round(bboxes[i][1]),
+                        Math.round(bboxes[i][2]), Math.round(bboxes[i][3]));
+                for (int j = 0; j < complete_bool.length; j++) {
+                    if (complete_bool[j] == 1 || complete_bool[j] == 2) continue;
+                    BoundingBox compare_bbox = new BoundingBox(Math.round(bboxes[j][0]), Math.round(bboxes[j][1]),
+                            Math.round(bboxes[j][2]), Math.round(bboxes[j][3]));
+                    iou_result = BoundingBox.IOU(bbox, compare_bbox);
+                    if (iou_result > threshold && complete_bool[j] == 0) {
+                        if (classes == null || classes[j] == thisClass) complete_bool[j] = 1;
+                    }
+                }
+            }
+        }
+
+        int[] res = new int[counter];
+        int y = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (complete_bool[i] == 2) res[y++] = i;
+        }
+        return res;
+    }
+}
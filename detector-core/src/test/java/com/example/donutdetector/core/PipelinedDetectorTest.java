@@ -0,0 +1,195 @@
+package com.example.donutdetector.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pipeline on the stub models of DetectorTest, each model taking STAGE_TIME ms.
+ */
+public class PipelinedDetectorTest {
+    private static final long STAGE_TIME = 20;
+    private static final int IMAGES = 10;
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private DetectorTest fixture;
+    private PipelinedDetector pipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new DetectorTest();
+        fixture.setUp();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            assertTrue(pipeline.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+
+    private Detector detector() {
+        return fixture.detector(new SlowRunner(fixture.new StubRpn(new float[]{0.9f, 0.8f})),
+                new SlowRunner(new DetectorTest.StubEmbedding(false)), new SlowRunner(new DetectorTest.StubHead()));
+    }
+
+    @Test
+    public void results_areTheSequentialOnesInOrder() throws InterruptedException {
+        DetectionResult expected = detector().detect(fixture.pixels);
+        pipeline = new PipelinedDetector(detector(), 2, DIRECT);
+        Recorder recorder = new Recorder(IMAGES);
+        for (int i = 0; i < IMAGES; i++) pipeline.submit(fixture.pixels, recorder.callback(i));
+        assertTrue(recorder.await());
+
+        assertEquals(IMAGES, recorder.order.size());
+        for (int i = 0; i < IMAGES; i++) {
+            assertEquals(i, (int) recorder.order.get(i));
+            DetectionResult result = recorder.results.get(i);
+            assertEquals(expected.size(), result.size());
+            for (int j = 0; j < result.size(); j++) {
+                assertArrayEquals(expected.getBoxes()[j], result.getBoxes()[j], 0.0f);
+                assertEquals(expected.getClasses()[j], result.getClasses()[j]);
+                assertEquals(expected.getScores()[j], result.getScores()[j], 0.0f);
+            }
+        }
+        assertEquals(IMAGES, pipeline.getCompletedCount());
+        assertTrue(pipeline.getLastBBoxesGenerationTime() >= STAGE_TIME);
+        assertTrue(pipeline.getLastEmbeddingGenerationTime() >= STAGE_TIME);
+        assertTrue(pipeline.getLastHeadComparaisonTime() >= STAGE_TIME);
+    }
+
+    @Test
+    public void stages_overlap() throws InterruptedException {
+        Detector detector = detector();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) detector.detect(fixture.pixels);
+        long sequentialTime = System.nanoTime() - startTime;
+
+        pipeline = new PipelinedDetector(detector(), 2, DIRECT);
+        Recorder recorder = new Recorder(IMAGES);
+        startTime = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) pipeline.submit(fixture.pixels, recorder.callback(i));
+        assertTrue(recorder.await());
+        long pipelinedTime = System.nanoTime() - startTime;
+
+        // the Head runs once per box, so it is the slowest stage and bounds the pipeline to about half the sequential time
+        assertTrue("sequential " + sequentialTime / 1_000_000 + " ms, pipelined " + pipelinedTime / 1_000_000 + " ms",
+                pipelinedTime < 0.75 * sequentialTime);
+        assertTrue(pipeline.getThroughput() > 0);
+    }
+
+    @Test
+    public void fullQueue_rejectsTheOfferedImages() throws InterruptedException {
+        pipeline = new PipelinedDetector(detector(), 1, DIRECT);
+        int accepted = 0;
+        for (int i = 0; i < IMAGES; i++) {
+            if (pipeline.offer(fixture.pixels, null)) accepted++;
+        }
+        // one image per stage and one per queue at most
+        assertTrue(accepted < IMAGES);
+        assertTrue(pipeline.getRpnQueueDepth() <= 1);
+    }
+
+    @Test
+    public void failedImage_isReportedAndThePipelineGoesOn() throws InterruptedException {
+        pipeline = new PipelinedDetector(detector(), 2, DIRECT);
+        Recorder recorder = new Recorder(3);
+        pipeline.submit(fixture.pixels, recorder.callback(0));
+        // no pixels, the RPN stage fails
+        pipeline.submit(new int[0], recorder.callback(1));
+        pipeline.submit(fixture.pixels, recorder.callback(2));
+        assertTrue(recorder.await());
+
+        assertEquals(1, recorder.errors.size());
+        assertEquals(2, recorder.results.size());
+    }
+
+    @Test
+    public void shutdown_dropsTheQueuedImages() throws InterruptedException {
+        pipeline = new PipelinedDetector(detector(), 4, DIRECT);
+        Recorder recorder = new Recorder(IMAGES);
+        for (int i = 0; i < 6; i++) pipeline.submit(fixture.pixels, recorder.callback(i));
+        pipeline.shutdown();
+        assertTrue(pipeline.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(recorder.results.isEmpty());
+        try {
+            pipeline.submit(fixture.pixels, recorder.callback(6));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    // Delays a model, also used by DetectorPoolTest
+    static class SlowRunner implements ModelRunner {
+        private final ModelRunner runner;
+
+        SlowRunner(ModelRunner runner) {
+            this.runner = runner;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            runner.resizeInput(index, shape);
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            try {
+                Thread.sleep(STAGE_TIME);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            runner.run(inputs, outputs);
+        }
+
+        public void close() {
+            runner.close();
+        }
+    }
+
+    private static class Recorder {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<DetectionResult> results = Collections.synchronizedList(new ArrayList<DetectionResult>());
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        private final CountDownLatch latch;
+
+        Recorder(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        DetectionExecutor.Callback<DetectionResult> callback(final int index) {
+            return new DetectionExecutor.Callback<DetectionResult>() {
+                public void onResult(DetectionResult result, long queueWaitTime, long latency) {
+                    order.add(index);
+                    results.add(result);
+                    latch.countDown();
+                }
+
+                public void onError(Exception e) {
+                    errors.add(e);
+                    latch.countDown();
+                }
+            };
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "results");
+    }
+
+    private static DetectionResult result(float score) {
+        return new DetectionResult(new float[][]{{1, 2, 3, 4}}, new String[]{"Glazed"}, new float[]{score},
+                0, 0, 0, new long[0], 0, null);
+    }
+
+    @Test
+    public void putThenGet_roundTripsAcrossInstances() throws IOException {
+        ResultCache cache = new ResultCache(directory, 10, 1 << 20);
+        assertNull(cache.get(1));
+        DetectionResult notSure = new DetectionResult(new float[][]{{5, 6, 7, 8}}, new String[]{Detector.NOT_SURE},
+                new float[]{0.1f}, 0, 0, 0, new long[0], 0, null);
+        cache.put(1, result(0.9f));
+        cache.put(2, notSure);
+
+        ResultCache reopened = new ResultCache(directory, 10, 1 << 20);
+        assertEquals(2, reopened.getEntryCount());
+        DetectionResult cached = reopened.get(1);
+        assertTrue(cached.isCached());
+        assertArrayEquals(new float[]{1, 2, 3, 4}, cached.getBoxes()[0], 0.0f);
+        assertEquals("Glazed", cached.getClasses()[0]);
+        assertEquals(0.9f, cached.getScores()[0], 0.0f);
+        assertEquals(0, cached.getTotalTime());
+        // the app compares the class with the constant
+        assertSame(Detector.NOT_SURE, reopened.get(2).getClasses()[0]);
+        assertEquals(2, reopened.getHitCount());
+    }
+
+    @Test
+    public void limits_evictTheLeastRecentlyUsedEntries() throws IOException {
+        ResultCache cache = new ResultCache(directory, 3, 1 << 20);
+        cache.put(1, result(0.1f));
+        cache.put(2, result(0.2f));
+        cache.put(3, result(0.3f));
+        cache.get(1);
+        cache.put(4, result(0.4f));
+
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertEquals(3, directory.listFiles().length);
+
+        // the byte limit
+        long entryBytes = cache.getBytes() / 3;
+        cache.setLimits(10, 2 * entryBytes);
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getBytes() <= 2 * entryBytes);
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void brokenEntry_isAMiss() throws IOException {
+        ResultCache cache = new ResultCache(directory, 10, 1 << 20);
+        cache.put(7, result(0.5f));
+        FileOutputStream broken = new FileOutputStream(directory.listFiles()[0]);
+        broken.write(new byte[]{1, 2, 3});
+        broken.close();
+
+        assertNull(cache.get(7));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void keys_dependOnThePixelsAndTheVersion() {
+        int[] pixels = new int[320 * 320];
+        Random random = new Random(3);
+        for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt();
+        long hash = ResultCache.hash(pixels);
+        assertEquals(hash, ResultCache.hash(pixels.clone()));
+        assertNotEquals(ResultCache.key(hash, 1), ResultCache.key(hash, 2));
+        pixels[12345] ^= 1;
+        assertNotEquals(hash, ResultCache.hash(pixels));
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.donutdetector.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the decoder against the previous get_bboxes loop on the anchors of the assets folder,
+ * and that decoding a frame does not allocate.
+ */
+public class RpnDecoderTest {
+    private static final File ASSETS = new File("../app/src/main/assets");
+    private static final int ANCHOR_DIMENSION = 20;
+    private static final int NUMBER_ANCHORS = 9;
+    private static final int COORDINATES = 4;
+    private static final int RUNS = 1000;
+
+    private int[] anchors;
+    private float[] obj;
+    private float[] box;
+
+    @Before
+    public void setUp() throws IOException {
+        anchors = CsvLoader.readAnchors(new InputStreamReader(new FileInputStream(new File(ASSETS, "anchors.csv"))));
+        Random random = new Random(5);
+        obj = new float[ANCHOR_DIMENSION * ANCHOR_DIMENSION * NUMBER_ANCHORS];
+        box = new float[obj.length * COORDINATES];
+        for (int i = 0; i < obj.length; i++) obj[i] = random.nextFloat();
+        for (int i = 0; i < box.length; i++) box[i] = (float) random.nextGaussian() * 0.3f;
+    }
+
+    @Test
+    public void decode_matchesPreviousLoop() {
+        RpnDecoder decoder = new RpnDecoder(anchors);
+        for (float threshold : new float[]{0.33f, 0.9f, 0.0f, 1.0f}) {
+            float[][] expected = previousDecode(obj, box, threshold);
+            int n = decoder.decode(obj, box, threshold);
+
+            assertEquals(expected.length, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected[i][COORDINATES], decoder.getScores()[i], 0.0f);
+                assertArrayEquals(Arrays.copyOf(expected[i], COORDINATES),
+                        Arrays.copyOfRange(decoder.getBoxes(), COORDINATES * i, COORDINATES * (i + 1)), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void cappedDecode_keepsTheBestScoresInAnchorOrder() {
+        RpnDecoder decoder = new RpnDecoder(anchors);
+        float[][] all = previousDecode(obj, box, 0.33f);
+        float[] allScores = new float[all.length];
+        for (int i = 0; i < all.length; i++) allScores[i] = all[i][COORDINATES];
+        int[] best = ArrayUtils.topK(allScores, 100);
+        Arrays.sort(best);
+
+        decoder.setMaxProposals(100);
+        assertEquals(100, decoder.decode(obj, box, 0.33f));
+        for (int i = 0; i < best.length; i++) {
+            assertEquals(allScores[best[i]], decoder.getScores()[i], 0.0f);
+            assertEquals(all[best[i]][0], decoder.getBoxes()[COORDINATES * i], 0.0f);
+        }
+
+        // under the cap nothing is dropped
+        assertEquals(previousDecode(obj, box, 0.99f).length, decoder.decode(obj, box, 0.99f));
+    }
+
+    @Test
+    public void quantizedDecode_matchesTheDecodeOfTheDequantizedOutputs() {
+        Quantization scores = new Quantization(1 / 255.0f, 0);
+        Quantization offsets = new Quantization(0.01f, 128);
+        ByteBuffer objBytes = ByteBuffer.allocateDirect(obj.length);
+        ByteBuffer boxBytes = ByteBuffer.allocateDirect(box.length);
+        float[] dequantizedObj = new float[obj.length];
+        float[] dequantizedBox = new float[box.length];
+        for (int i = 0; i < obj.length; i++) {
+            objBytes.put(i, scores.quantize(obj[i]));
+            dequantizedObj[i] = scores.dequantize(objBytes.get(i));
+        }
+        for (int i = 0; i < box.length; i++) {
+            boxBytes.put(i, offsets.quantize(box[i]));
+            dequantizedBox[i] = offsets.dequantize(boxBytes.get(i));
+        }
+
+        for (int maxProposals : new int[]{0, 50}) {
+            RpnDecoder expected = new RpnDecoder(anchors);
+            RpnDecoder actual = new RpnDecoder(anchors);
+            expected.setMaxProposals(maxProposals);
+            actual.setMaxProposals(maxProposals);
+            int n = expected.decode(dequantizedObj, dequantizedBox, 0.33f);
+            assertEquals(n, actual.decode(objBytes, scores.table(), boxBytes, offsets.table(), 0.33f));
+            assertArrayEquals(Arrays.copyOf(expected.getScores(), n), Arrays.copyOf(actual.getScores(), n), 0.0f);
+            assertArrayEquals(Arrays.copyOf(expected.getBoxes(), 4 * n), Arrays.copyOf(actual.getBoxes(), 4 * n), 0.0f);
+        }
+    }
+
+    @Test
+    public void steadyStateDecode_doesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        RpnDecoder decoder = new RpnDecoder(anchors);
+        decoder.setMaxProposals(500);
+
+        // warm up, so the JIT compiled code is measured
+        for (int i = 0; i < RUNS; i++) decoder.decode(obj, box, 0.1f);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100; i++) {
+            decoder.decode(obj, box, 0.1f);
+            decoder.decode(obj, box, 0.9f);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated by 200 steady state calls", 0, allocated);
+    }
+
+    // The previous loop of get_bboxes, each row is (cx, cy, w, h, score)
+    private float[][] previousDecode(float[] obj, float[] box, float confidence_threshold) {
+        float[][] bboxes = new float[0][];
+        int starting_index = 0;
+        for (int i = 0; i < ANCHOR_DIMENSION; i++)
+            for (int j = 0; j < ANCHOR_DIMENSION; j++) {
+                int obj_idx = NUMBER_ANCHORS * (i * ANCHOR_DIMENSION + j);
+                int box_idx = NUMBER_ANCHORS * COORDINATES * (i * ANCHOR_DIMENSION + j);
+                float[] obj_ij = Arrays.copyOfRange(obj, obj_idx, obj_idx + NUMBER_ANCHORS);
+                float[] box_ij = Arrays.copyOfRange(box, box_idx, box_idx + NUMBER_ANCHORS * COORDINATES);
+                ArrayList<Integer> indices = new ArrayList<>();
+
+                for (int z = 0; z < obj_ij.length; z++) {
+                    if (obj_ij[z] > confidence_threshold) indices.add(z);
+                }
+                if (!indices.isEmpty()) {
+                    bboxes = Arrays.copyOf(bboxes, bboxes.length + indices.size());
+                    for (int z = 0; z < indices.size(); z++) {
+                        int a = box_idx + indices.get(z) * COORDINATES;
+                        int b = indices.get(z) * COORDINATES;
+                        bboxes[starting_index + z] = new float[]{
+                                box_ij[b] * anchors[a + 2] + anchors[a],
+                                box_ij[b + 1] * anchors[a + 3] + anchors[a + 1],
+                                (float) Math.exp(box_ij[b + 2] + Math.log(anchors[a + 2])),
+                                (float) Math.exp(box_ij[b + 3] + Math.log(anchors[a + 3])),
+                                obj_ij[indices.get(z)]};
+                    }
+                    starting_index += indices.size();
+                }
+            }
+        return bboxes;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.donutdetector.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanResultsFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DetectionResult result(String... classes) {
+        float[][] boxes = new float[classes.length][];
+        float[] scores = new float[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            boxes[i] = new float[]{10 * i, 20.4f, 30.6f, 40};
+            scores[i] = 0.5f + i / 10f;
+        }
+        return new DetectionResult(boxes, classes, scores, 0, 0, 0, new long[0], 0, null);
+    }
+
+    @Test
+    public void writeThenRead_roundTrips() throws IOException {
+        File file = folder.newFile("scan.bin");
+        file.delete();
+        ScanResultsFile results = ScanResultsFile.open(file);
+        results.writeResult("a", result("Glazed", Detector.NOT_SURE));
+        results.writeResult("b", result());
+        results.writeError("c", "broken");
+        results.writeResult("d", result("Glazed", "Chocolate", "Glazed"));
+        results.close();
+
+        final List<String> lines = new ArrayList<>();
+        ScanResultsFile.read(file, new ScanResultsFile.Visitor() {
+            public void onImage(String id, String[] classes, float[] scores, float[][] boxes) {
+                StringBuilder line = new StringBuilder(id);
+                for (int i = 0; i < classes.length; i++) {
+                    line.append(' ').append(classes[i]).append(':').append(scores[i])
+                            .append(':').append((int) boxes[i][0]).append(',').append((int) boxes[i][1])
+                            .append(',').append((int) boxes[i][2]).append(',').append((int) boxes[i][3]);
+                }
+                lines.add(line.toString());
+            }
+
+            public void onError(String id, String message) {
+                lines.add(id + " error " + message);
+            }
+        });
+        assertEquals(4, lines.size());
+        assertEquals("a Glazed:0.5:0,20,31,40 Not sure:0.6:10,20,31,40", lines.get(0));
+        assertEquals("b", lines.get(1));
+        assertEquals("c error broken", lines.get(2));
+        assertEquals("d Glazed:0.5:0,20,31,40 Chocolate:0.6:10,20,31,40 Glazed:0.7:20,20,31,40", lines.get(3));
+
+        // reopening resumes with the same content
+        ScanResultsFile reopened = ScanResultsFile.open(file);
+        assertTrue(reopened.isDone("a") && reopened.isDone("b") && reopened.isDone("c") && reopened.isDone("d"));
+        assertFalse(reopened.isDone("e"));
+        assertEquals(4, reopened.getDoneCount());
+        assertEquals(3, reopened.getImageCount());
+        assertEquals(1, reopened.getErrorCount());
+        assertEquals(5, reopened.getBoxCount());
+        assertEquals(3, (int) reopened.getClassCounts().get("Glazed"));
+        assertEquals(1, (int) reopened.getClassCounts().get("Chocolate"));
+        reopened.close();
+    }
+
+    @Test
+    public void cutRecord_isDroppedAndTheFileAppendsAfterTheLastCompleteOne() throws IOException {
+        File file = new File(folder.getRoot(), "scan.bin");
+        ScanResultsFile results = ScanResultsFile.open(file);
+        results.writeResult("a", result("Glazed"));
+        long complete = file.length();
+        results.writeResult("b", result("Chocolate", "Glazed"));
+        results.close();
+
+        // the app was killed while the image b was written
+        RandomAccessFile cut = new RandomAccessFile(file, "rw");
+        cut.setLength(file.length() - 5);
+        cut.close();
+
+        ScanResultsFile resumed = ScanResultsFile.open(file);
+        assertTrue(resumed.isDone("a"));
+        assertFalse(resumed.isDone("b"));
+        assertEquals(complete + 1 + 2 + "Chocolate".length(), file.length());
+        resumed.writeResult("b", result("Chocolate", "Glazed"));
+        resumed.close();
+
+        ScanResultsFile reopened = ScanResultsFile.open(file);
+        assertEquals(2, reopened.getImageCount());
+        assertEquals(2, (int) reopened.getClassCounts().get("Glazed"));
+        assertEquals(1, (int) reopened.getClassCounts().get("Chocolate"));
+        reopened.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFile_isRejected() throws IOException {
+        File file = folder.newFile("other.bin");
+        RandomAccessFile other = new RandomAccessFile(file, "rw");
+        other.writeLong(42);
+        other.close();
+        ScanResultsFile.open(file);
+    }
+}
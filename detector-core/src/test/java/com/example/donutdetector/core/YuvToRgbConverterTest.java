@@ -0,0 +1,180 @@
+package com.example.donutdetector.core;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the YUV conversion against colors encoded with the BT.601 equations,
+ * for planar and interleaved chroma planes, the rotations and the crop, and that a frame does not allocate.
+ */
+public class YuvToRgbConverterTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 24;
+    private static final int ROW_PADDING = 8;
+    private static final int TOLERANCE = 3;
+
+    // 2x2 blocks of one color, so the chroma subsampling keeps the colors
+    private final int[] rgb = blocks(new Random(3));
+
+    @Test
+    public void planarFrame_matchesTheEncodedColors() {
+        Frame frame = new Frame(rgb, 1);
+        int[] argb = convert(frame, HEIGHT, 0);
+        assertCropEquals(argb, 0);
+    }
+
+    @Test
+    public void interleavedFrame_matchesTheEncodedColors() {
+        Frame frame = new Frame(rgb, 2);
+        int[] argb = convert(frame, HEIGHT, 0);
+        assertCropEquals(argb, 0);
+    }
+
+    @Test
+    public void rotations_turnTheFrameClockwise() {
+        Frame frame = new Frame(rgb, 2);
+        int[] upright = convert(frame, HEIGHT, 0);
+        for (int rotation : new int[]{90, 180, 270}) {
+            int[] rotated = convert(frame, HEIGHT, rotation);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < HEIGHT; x++) {
+                    // rotating the upright image by the same angle
+                    int sx = x, sy = y;
+                    for (int r = 0; r < rotation; r += 90) {
+                        int t = sx;
+                        sx = sy;
+                        sy = HEIGHT - 1 - t;
+                    }
+                    assertEquals("rotation " + rotation + " at " + x + "," + y, upright[sy * HEIGHT + sx], rotated[y * HEIGHT + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void smallerOutput_samplesTheNearestPixels() {
+        Frame frame = new Frame(rgb, 1);
+        int[] full = convert(frame, HEIGHT, 0);
+        int[] half = convert(frame, HEIGHT / 2, 0);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < HEIGHT / 2; x++) assertEquals(full[(2 * y + 1) * HEIGHT + 2 * x + 1], half[y * HEIGHT / 2 + x]);
+        }
+    }
+
+    @Test
+    public void steadyStateConvert_doesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Frame frame = new Frame(rgb, 2);
+        YuvToRgbConverter converter = new YuvToRgbConverter(HEIGHT);
+        int[] argb = new int[HEIGHT * HEIGHT];
+
+        // warm up, so the JIT compiled code is measured
+        for (int i = 0; i < 2000; i++) frame.convert(converter, 90, argb);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100; i++) frame.convert(converter, 90, argb);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated by 100 steady state calls", 0, allocated);
+    }
+
+    private static int[] convert(Frame frame, int outputSize, int rotation) {
+        YuvToRgbConverter converter = new YuvToRgbConverter(outputSize);
+        int[] argb = new int[outputSize * outputSize];
+        frame.convert(converter, rotation, argb);
+        assertEquals((WIDTH - HEIGHT) / 2, converter.getCropX());
+        assertEquals(0, converter.getCropY());
+        assertEquals(HEIGHT, converter.getCropSize());
+        return argb;
+    }
+
+    // The output is the centered square of the frame
+    private void assertCropEquals(int[] argb, int rotation) {
+        int cropX = (WIDTH - HEIGHT) / 2;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < HEIGHT; x++) {
+                int expected = rgb[y * WIDTH + cropX + x];
+                int actual = argb[y * HEIGHT + x];
+                assertEquals(0xFF, actual >>> 24);
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int difference = ((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+                    assertTrue("pixel " + x + "," + y + " off by " + difference, Math.abs(difference) <= TOLERANCE);
+                }
+            }
+        }
+    }
+
+    private static int[] blocks(Random random) {
+        int[] rgb = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y += 2) {
+            for (int x = 0; x < WIDTH; x += 2) {
+                int color = random.nextInt() & 0xFFFFFF;
+                rgb[y * WIDTH + x] = color;
+                rgb[y * WIDTH + x + 1] = color;
+                rgb[(y + 1) * WIDTH + x] = color;
+                rgb[(y + 1) * WIDTH + x + 1] = color;
+            }
+        }
+        return rgb;
+    }
+
+    // A YUV_420_888 frame with padded rows, the chroma is planar (pixel stride 1) or interleaved like NV21 (2)
+    private static class Frame {
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final int yRowStride = WIDTH + ROW_PADDING;
+        final int uvRowStride;
+        final int uvPixelStride;
+
+        Frame(int[] rgb, int uvPixelStride) {
+            this.uvPixelStride = uvPixelStride;
+            this.uvRowStride = (WIDTH / 2) * uvPixelStride + ROW_PADDING;
+            byte[] yBytes = new byte[yRowStride * HEIGHT];
+            byte[] uBytes = new byte[uvRowStride * HEIGHT / 2];
+            byte[] vBytes = new byte[uvRowStride * HEIGHT / 2];
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    int color = rgb[row * WIDTH + col];
+                    int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+                    yBytes[row * yRowStride + col] = (byte) clamp(0.299 * r + 0.587 * g + 0.114 * b);
+                    int uv = (row / 2) * uvRowStride + (col / 2) * uvPixelStride;
+                    uBytes[uv] = (byte) clamp(-0.168736 * r - 0.331264 * g + 0.5 * b + 128);
+                    vBytes[uv] = (byte) clamp(0.5 * r - 0.418688 * g - 0.081312 * b + 128);
+                }
+            }
+            y = ByteBuffer.allocateDirect(yBytes.length);
+            y.put(yBytes).rewind();
+            if (uvPixelStride == 1) {
+                u = ByteBuffer.allocateDirect(uBytes.length);
+                u.put(uBytes).rewind();
+                v = ByteBuffer.allocateDirect(vBytes.length);
+                v.put(vBytes).rewind();
+            } else {
+                // one buffer holding V U V U ..., the U plane starts one byte after the V plane
+                ByteBuffer vu = ByteBuffer.allocateDirect(vBytes.length + 1);
+                for (int i = 0; i < vBytes.length; i += 2) {
+                    vu.put(i, vBytes[i]);
+                    vu.put(i + 1, uBytes[i]);
+                }
+                v = vu.duplicate();
+                vu.position(1);
+                u = vu.slice();
+            }
+        }
+
+        void convert(YuvToRgbConverter converter, int rotation, int[] argb) {
+            converter.convert(y, yRowStride, u, v, uvRowStride, uvPixelStride, WIDTH, HEIGHT, rotation, argb);
+        }
+
+        private static int clamp(double value) {
+            return (int) Math.max(0, Math.min(255, Math.round(value)));
+        }
+    }
+}
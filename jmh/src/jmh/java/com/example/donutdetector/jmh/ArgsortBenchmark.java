@@ -0,0 +1,81 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.ArrayUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the boxed argsort ArrayUtils used to have with the primitive argsort and topK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArgsortBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int proposals;
+
+    @Param({"50"})
+    int k;
+
+    float[] scores;
+    int[] indexes;
+    long[] keys;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        scores = new float[proposals];
+        for (int i = 0; i < proposals; i++) scores[i] = random.nextFloat();
+        indexes = new int[proposals];
+        keys = new long[proposals];
+    }
+
+    @Benchmark
+    public int[] boxedArgsort() {
+        return boxedArgsort(scores, true);
+    }
+
+    @Benchmark
+    public int[] primitiveArgsort() {
+        return ArrayUtils.argsort(scores, true);
+    }
+
+    @Benchmark
+    public int[] primitiveArgsortReusedArrays() {
+        ArrayUtils.argsort(scores, proposals, true, indexes, keys);
+        return indexes;
+    }
+
+    @Benchmark
+    public int[] topK() {
+        return ArrayUtils.topK(scores, k);
+    }
+
+    // The previous implementation of ArrayUtils.argsort, kept as the baseline
+    static int[] boxedArgsort(final float[] a, final boolean ascending) {
+        Integer[] indexes = new Integer[a.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return (ascending ? 1 : -1) * Float.compare(a[i1], a[i2]);
+            }
+        });
+        return ArrayUtils.asArray(indexes);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.GalleryIndex;
+import com.example.donutdetector.core.GalleryStore;
+import com.example.donutdetector.core.SimilarityEngine;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores one box against galleries from the size of the app (147 embeddings in 9 classes) to 50k embeddings
+ * (16 per class): the Head on the whole gallery, the dot products of the whole gallery on the CPU,
+ * and the gallery index of Detector.setIndexing with the Head on its candidates.
+ * The Head is the dot product stand-in of PrefilterBenchmark. The probes of the index are tuned to a class recall of 0.95
+ * in the setup, the Scans counters of indexedHead give the dot products of the index per query as scanned / queries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GalleryBenchmark {
+
+    static final int EMBEDDING_SIZE = PrefilterBenchmark.EMBEDDING_SIZE;
+    static final int PER_CLASS = 16;
+
+    @Param({"147", "1000", "10000", "50000"})
+    int gallerySize;
+
+    @Param({"64"})
+    int candidates;
+
+    GalleryStore gallery;
+    SimilarityEngine engine;
+    GalleryIndex index;
+    float[][] queries;
+    int[] rows;
+    float[] scores;
+    int next = 0;
+
+    // Totals over an iteration, reported by JMH next to the time of indexedHead
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Scans {
+        public long queries;
+        public long scanned;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            queries = 0;
+            scanned = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        int[] classEnds = gallerySize == 147 ? PrefilterBenchmark.CLASS_ENDS : classEnds(gallerySize);
+        gallery = new GalleryStore(EMBEDDING_SIZE, gallerySize);
+        float[][] centers = new float[classEnds.length][];
+        int start = 0;
+        for (int c = 0; c < classEnds.length; c++) {
+            centers[c] = PrefilterBenchmark.gaussian(random, null, 1.0f);
+            float[][] embeds = new float[classEnds[c] - start][];
+            for (int i = 0; i < embeds.length; i++) embeds[i] = PrefilterBenchmark.gaussian(random, centers[c], 0.3f);
+            gallery.addClass("class" + c, embeds);
+            start = classEnds[c];
+        }
+        queries = new float[64][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = PrefilterBenchmark.gaussian(random, centers[random.nextInt(centers.length)], 0.3f);
+        }
+
+        engine = new SimilarityEngine(new PrefilterBenchmark.DotHead(), EMBEDDING_SIZE);
+        engine.setGallery(gallery);
+        index = GalleryIndex.build(gallery, 0, 42);
+        index.tune(engine, queries, candidates, 0.95f);
+        rows = new int[candidates];
+        scores = new float[gallerySize];
+    }
+
+    // PER_CLASS embeddings per class
+    private static int[] classEnds(int size) {
+        int[] classEnds = new int[(size + PER_CLASS - 1) / PER_CLASS];
+        for (int c = 0; c < classEnds.length; c++) classEnds[c] = Math.min(size, (c + 1) * PER_CLASS);
+        return classEnds;
+    }
+
+    @Benchmark
+    public float[] head() {
+        return engine.scoreClasses(queries[next++ & (queries.length - 1)]);
+    }
+
+    @Benchmark
+    public float[] dot() {
+        float[] query = queries[next++ & (queries.length - 1)];
+        for (int row = 0; row < gallerySize; row++) scores[row] = gallery.dot(row, query);
+        return scores;
+    }
+
+    @Benchmark
+    public float[] indexedHead(Scans counters) {
+        float[] query = queries[next++ & (queries.length - 1)];
+        int n = index.search(query, candidates, rows);
+        counters.queries++;
+        counters.scanned += index.getLastScanned();
+        return engine.scoreClasses(query, rows, n, candidates);
+    }
+}
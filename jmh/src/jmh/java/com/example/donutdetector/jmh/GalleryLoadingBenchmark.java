@@ -0,0 +1,91 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.CsvLoader;
+import com.example.donutdetector.core.GalleryFile;
+import com.example.donutdetector.core.GalleryStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a gallery shaped like the one of the app (147 embeddings in 9 classes) with its anchors: from the csv
+ * files of the assets folder, and from the binary GalleryFile, whose rows are wrapped in place.
+ * The files are held in memory, so only the parsing is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GalleryLoadingBenchmark {
+
+    static final int EMBEDDING_SIZE = PrefilterBenchmark.EMBEDDING_SIZE;
+
+    String embedsCsv;
+    String classesCsv;
+    String anchorsCsv;
+    ByteBuffer galleryFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        StringBuilder embeds = new StringBuilder();
+        StringBuilder classes = new StringBuilder();
+        int start = 0;
+        for (int c = 0; c < PrefilterBenchmark.CLASS_ENDS.length; c++) {
+            float[][] rows = new float[PrefilterBenchmark.CLASS_ENDS[c] - start][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = PrefilterBenchmark.gaussian(random, null, 1.0f);
+                for (int k = 0; k < EMBEDDING_SIZE; k++) {
+                    if (k > 0) embeds.append(',');
+                    // the format of numpy.savetxt, like embeds.csv
+                    embeds.append(String.format(Locale.ROOT, "%.18e", rows[i][k]));
+                }
+                embeds.append('\n');
+            }
+            gallery.addClass("class" + c, rows);
+            classes.append(PrefilterBenchmark.CLASS_ENDS[c]).append(",class").append(c).append('\n');
+            start = PrefilterBenchmark.CLASS_ENDS[c];
+        }
+        embedsCsv = embeds.toString();
+        classesCsv = classes.toString();
+
+        int[] anchors = QuantizedInputBenchmark.anchors();
+        StringBuilder anchorsLine = new StringBuilder();
+        for (int i = 0; i < anchors.length; i++) anchorsLine.append(i > 0 ? "," : "").append(anchors[i]);
+        anchorsCsv = anchorsLine.toString();
+
+        // a direct buffer, like the mapped file
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GalleryFile.write(bytes, gallery, anchors);
+        galleryFile = ByteBuffer.allocateDirect(bytes.size()).order(ByteOrder.LITTLE_ENDIAN);
+        galleryFile.put(bytes.toByteArray()).flip();
+    }
+
+    @Benchmark
+    public GalleryStore csv() throws IOException {
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        CsvLoader.readGallery(new StringReader(embedsCsv), new StringReader(classesCsv), gallery);
+        CsvLoader.readAnchors(new StringReader(anchorsCsv));
+        return gallery;
+    }
+
+    @Benchmark
+    public GalleryFile file() throws IOException {
+        return GalleryFile.read(galleryFile);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.InputPreprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pixel normalization of the float models: a 320x320 frame into the RPN input, and a batch of crops of it
+ * resized into the 100x100 embedding input, like Detector.get_embeddings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NormalizationBenchmark {
+
+    static final int INPUT_SIZE_RPN = 320;
+    static final int INPUT_SIZE_EMBD = 100;
+
+    @Param({"MOBILENET", "VGG", "RAW"})
+    InputPreprocessor.Normalization normalization;
+
+    @Param({"NEAREST", "BILINEAR"})
+    InputPreprocessor.Sampling sampling;
+
+    @Param({"16"})
+    int crops;
+
+    InputPreprocessor rpnPreprocessor;
+    InputPreprocessor embdPreprocessor;
+    int[] argb;
+    float[][] bboxes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        argb = new int[INPUT_SIZE_RPN * INPUT_SIZE_RPN];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        rpnPreprocessor = new InputPreprocessor(INPUT_SIZE_RPN, 1, normalization);
+        embdPreprocessor = new InputPreprocessor(INPUT_SIZE_EMBD, crops, normalization);
+
+        // (x, y, w, h) crops of 40 to 160 pixels inside the frame
+        bboxes = new float[crops][];
+        for (int i = 0; i < crops; i++) {
+            float w = 40 + random.nextInt(120);
+            float h = 40 + random.nextInt(120);
+            bboxes[i] = new float[]{random.nextFloat() * (INPUT_SIZE_RPN - w), random.nextFloat() * (INPUT_SIZE_RPN - h), w, h};
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer frame() {
+        rpnPreprocessor.process(argb, 0);
+        return rpnPreprocessor.getInput(1);
+    }
+
+    @Benchmark
+    public ByteBuffer crops() {
+        for (int i = 0; i < crops; i++) {
+            embdPreprocessor.processBox(argb, INPUT_SIZE_RPN, INPUT_SIZE_RPN, bboxes[i], i, sampling);
+        }
+        return embdPreprocessor.getInput(crops);
+    }
+}
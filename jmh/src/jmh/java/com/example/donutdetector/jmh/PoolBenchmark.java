@@ -0,0 +1,160 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.DetectionResult;
+import com.example.donutdetector.core.Detector;
+import com.example.donutdetector.core.DetectorPool;
+import com.example.donutdetector.core.ModelRunner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.donutdetector.jmh.PrefilterBenchmark.EMBEDDING_SIZE;
+
+/**
+ * Detections per second through a DetectorPool of 4 Detectors, from 1, 2, 4 and 8 threads. Each model call of the
+ * stub models waits MODEL_TIME ms, like a model running on the accelerator, so the throughput is the one of the pool
+ * and not of the CPU: it grows with the threads up to the size of the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PoolBenchmark {
+
+    static final int MAX_SIZE = 4;
+    static final long MODEL_TIME = 5;
+    static final int INPUT_SIZE = 320;
+
+    // Two anchors of QuantizedInputBenchmark.anchors() inside the image, which do not overlap
+    static final int[] PROPOSALS = {945, 1890};
+
+    DetectorPool pool;
+    int[] argb;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = new DetectorPool(detector(), new DetectorPool.Factory() {
+            public Detector create() {
+                return detector();
+            }
+        }, MAX_SIZE);
+        Random random = new Random(42);
+        argb = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+    }
+
+    private static Detector detector() {
+        Detector detector = new Detector(new SlowRunner(new StubRpn()), new SlowRunner(new StubEmbedding()),
+                new SlowRunner(new PrefilterBenchmark.DotHead()),
+                Detector.MODEL_PROCESSING_MOBILENET, Detector.MODEL_PROCESSING_OTHERS);
+        detector.setAnchors(QuantizedInputBenchmark.anchors());
+        float[] first = new float[EMBEDDING_SIZE];
+        float[] second = new float[EMBEDDING_SIZE];
+        first[0] = 1.0f;
+        second[1] = 1.0f;
+        detector.putClass("First", new float[][]{first});
+        detector.putClass("Second", new float[][]{second});
+        return detector;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DetectionResult detect1Thread() throws InterruptedException {
+        return pool.detect(argb);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public DetectionResult detect2Threads() throws InterruptedException {
+        return pool.detect(argb);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DetectionResult detect4Threads() throws InterruptedException {
+        return pool.detect(argb);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public DetectionResult detect8Threads() throws InterruptedException {
+        return pool.detect(argb);
+    }
+
+    // Waits MODEL_TIME ms before each call of the model
+    static class SlowRunner implements ModelRunner {
+        private final ModelRunner runner;
+
+        SlowRunner(ModelRunner runner) {
+            this.runner = runner;
+        }
+
+        public void resizeInput(int index, int[] shape) {
+            runner.resizeInput(index, shape);
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            try {
+                Thread.sleep(MODEL_TIME);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            runner.run(inputs, outputs);
+        }
+
+        public void close() {
+            runner.close();
+        }
+    }
+
+    // Proposes the PROPOSALS anchors, the box offsets are 0
+    static class StubRpn implements ModelRunner {
+        public void resizeInput(int index, int[] shape) {
+            throw new IllegalArgumentException("fixed shape");
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            FloatBuffer obj = outputs[0].asFloatBuffer();
+            FloatBuffer box = outputs[1].asFloatBuffer();
+            for (int k = 0; k < obj.capacity(); k++) obj.put(k, k == PROPOSALS[0] ? 0.9f : k == PROPOSALS[1] ? 0.8f : 0.0f);
+            for (int i = 0; i < box.capacity(); i++) box.put(i, 0.0f);
+        }
+
+        public void close() {
+        }
+    }
+
+    // The embedding of every crop is the first unit vector
+    static class StubEmbedding implements ModelRunner {
+        private int batchSize = 1;
+
+        public void resizeInput(int index, int[] shape) {
+            batchSize = shape[0];
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            FloatBuffer output = outputs[0].asFloatBuffer();
+            for (int i = 0; i < batchSize * EMBEDDING_SIZE; i++) output.put(i, i % EMBEDDING_SIZE == 0 ? 1.0f : 0.0f);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.ArrayUtils;
+import com.example.donutdetector.core.BoundingBox;
+import com.example.donutdetector.core.NmsEngine;
+import com.example.donutdetector.core.RpnDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of Detector.get_bboxes after the RPN inference, on synthetic outputs of the 3600 anchors:
+ * the decoding (and the previous loop of get_bboxes as the baseline), the NMS of the proposals (and the previous tool_nms as the baseline), the IOU of every pair
+ * of proposals, the conversion to corners, and the NMS of each class on the boxes kept.
+ * The threshold sets the number of proposals, the counts of the seed 42 are next to its values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PostprocessingBenchmark {
+
+    static final int COORDINATES = 4;
+    static final int CLASSES = 9;
+
+    // 2446, 1207 and 366 proposals, of which the NMS keeps 1296, 801 and 307
+    @Param({"0.33", "0.66", "0.9"})
+    float threshold;
+
+    @Param({"0.5"})
+    float iouThreshold;
+
+    int[] anchors;
+    RpnDecoder decoder;
+    NmsEngine nmsEngine;
+    NmsEngine classNmsEngine;
+    float[] obj;
+    float[] box;
+
+    // Outputs of the decoding, as flat arrays and as the boxes of the previous implementation
+    int proposals;
+    float[] boxes;
+    float[] scores;
+    float[][] bboxes;
+    BoundingBox[] roundedBoxes;
+    int[] kept;
+
+    // The boxes kept by the NMS, with a random class each
+    int counter;
+    float[] keptBoxes;
+    float[] similarities;
+    int[] classIds;
+    int[] classKept;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        anchors = QuantizedInputBenchmark.anchors();
+        int count = anchors.length / COORDINATES;
+        decoder = new RpnDecoder(anchors);
+        obj = new float[count];
+        box = new float[COORDINATES * count];
+        for (int i = 0; i < count; i++) obj[i] = random.nextFloat();
+        for (int i = 0; i < box.length; i++) box[i] = 0.3f * (float) random.nextGaussian();
+
+        proposals = decoder.decode(obj, box, threshold);
+        boxes = Arrays.copyOf(decoder.getBoxes(), COORDINATES * proposals);
+        scores = Arrays.copyOf(decoder.getScores(), proposals);
+        bboxes = new float[proposals][];
+        roundedBoxes = new BoundingBox[proposals];
+        for (int i = 0; i < proposals; i++) {
+            bboxes[i] = Arrays.copyOfRange(boxes, COORDINATES * i, COORDINATES * (i + 1));
+            roundedBoxes[i] = new BoundingBox(Math.round(bboxes[i][0]), Math.round(bboxes[i][1]),
+                    Math.round(bboxes[i][2]), Math.round(bboxes[i][3]));
+        }
+        nmsEngine = new NmsEngine(count);
+        kept = new int[count];
+
+        counter = nmsEngine.run(boxes, scores, proposals, iouThreshold, null, kept);
+        keptBoxes = new float[COORDINATES * counter];
+        similarities = new float[counter];
+        classIds = new int[counter];
+        for (int i = 0; i < counter; i++) {
+            System.arraycopy(boxes, COORDINATES * kept[i], keptBoxes, COORDINATES * i, COORDINATES);
+            similarities[i] = random.nextFloat();
+            classIds[i] = random.nextInt(CLASSES);
+        }
+        classNmsEngine = new NmsEngine(counter);
+        classKept = new int[counter];
+    }
+
+    @Benchmark
+    public int decode() {
+        return decoder.decode(obj, box, threshold);
+    }
+
+    @Benchmark
+    public float[][] previousDecode() {
+        return previousDecode(anchors, obj, box, threshold);
+    }
+
+    @Benchmark
+    public int nms() {
+        return nmsEngine.run(boxes, scores, proposals, iouThreshold, null, kept);
+    }
+
+    @Benchmark
+    public int[] previousNms() {
+        return previousNms(bboxes, scores, iouThreshold);
+    }
+
+    @Benchmark
+    public double iouAllPairs() {
+        double sum = 0;
+        for (int i = 0; i < proposals; i++) {
+            for (int j = i + 1; j < proposals; j++) sum += BoundingBox.IOU(roundedBoxes[i], roundedBoxes[j]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float[][] cxcyToX1y1() {
+        // in place, so each call moves the boxes a bit further, the cost does not depend on the values
+        return BoundingBox.cxcy_to_x1y1(bboxes);
+    }
+
+    @Benchmark
+    public int classNms() {
+        return classNmsEngine.run(keptBoxes, similarities, counter, iouThreshold, classIds, classKept);
+    }
+
+    // The previous loop of get_bboxes, kept as the baseline: each row is (cx, cy, w, h, score)
+    static float[][] previousDecode(int[] anchors, float[] obj, float[] box, float confidence_threshold) {
+        int dimension = QuantizedInputBenchmark.ANCHOR_DIMENSION;
+        int number = QuantizedInputBenchmark.NUMBER_ANCHORS;
+        float[][] bboxes = new float[0][];
+        int starting_index = 0;
+        for (int i = 0; i < dimension; i++)
+            for (int j = 0; j < dimension; j++) {
+                int obj_idx = number * (i * dimension + j);
+                int box_idx = number * COORDINATES * (i * dimension + j);
+                float[] obj_ij = Arrays.copyOfRange(obj, obj_idx, obj_idx + number);
+                float[] box_ij = Arrays.copyOfRange(box, box_idx, box_idx + number * COORDINATES);
+                ArrayList<Integer> indices = new ArrayList<>();
+
+                for (int z = 0; z < obj_ij.length; z++) {
+                    if (obj_ij[z] > confidence_threshold) indices.add(z);
+                }
+                if (!indices.isEmpty()) {
+                    bboxes = Arrays.copyOf(bboxes, bboxes.length + indices.size());
+                    for (int z = 0; z < indices.size(); z++) {
+                        int a = box_idx + indices.get(z) * COORDINATES;
+                        int b = indices.get(z) * COORDINATES;
+                        bboxes[starting_index + z] = new float[]{
+                                box_ij[b] * anchors[a + 2] + anchors[a],
+                                box_ij[b + 1] * anchors[a + 3] + anchors[a + 1],
+                                (float) Math.exp(box_ij[b + 2] + Math.log(anchors[a + 2])),
+                                (float) Math.exp(box_ij[b + 3] + Math.log(anchors[a + 3])),
+                                obj_ij[indices.get(z)]};
+                    }
+                    starting_index += indices.size();
+                }
+            }
+        return bboxes;
+    }
+
+    // The previous SmartDetector.tool_nms without classes, kept as the baseline: a BoundingBox per box and per pair
+    static int[] previousNms(float[][] bboxes, float[] scores, float threshold) {
+        int counter = 0;
+        int[] indexes = ArrayUtils.argsort(scores);
+        int[] complete_bool = new int[indexes.length];
+
+        for (int index = indexes.length - 1; index >= 0; index--) {
+            int i = indexes[index];
+            if (complete_bool[i] != 0) continue;
+            complete_bool[i] = 2;
+            counter++;
+
+            BoundingBox bbox = new BoundingBox(Math.round(bboxes[i][0]), Math.round(bboxes[i][1]),
+                    Math.round(bboxes[i][2]), Math.round(bboxes[i][3]));
+            for (int j = 0; j < complete_bool.length; j++) {
+                if (complete_bool[j] != 0) continue;
+                BoundingBox compare_bbox = new BoundingBox(Math.round(bboxes[j][0]), Math.round(bboxes[j][1]),
+                        Math.round(bboxes[j][2]), Math.round(bboxes[j][3]));
+                if (BoundingBox.IOU(bbox, compare_bbox) > threshold) complete_bool[j] = 1;
+            }
+        }
+
+        int[] res = new int[counter];
+        int y = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (complete_bool[i] == 2) res[y++] = i;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.ClassPrototypes;
+import com.example.donutdetector.core.GalleryStore;
+import com.example.donutdetector.core.ModelRunner;
+import com.example.donutdetector.core.SimilarityEngine;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores one box against a gallery shaped like the one of the app (147 embeddings in 9 classes), with the whole
+ * gallery (topClasses = 0) or with the class prefilter, the Head being a dot product per pair.
+ * The Pairs counters give the boxes and the Head pairs without and with the padding of the batches, the pairs per box
+ * being pairs / boxes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrefilterBenchmark {
+
+    // Class ends of app/src/main/assets/classes.csv
+    static final int[] CLASS_ENDS = {19, 33, 49, 77, 86, 101, 118, 136, 147};
+    static final int EMBEDDING_SIZE = 256;
+
+    @Param({"0", "1", "2", "3"})
+    int topClasses;
+
+    @Param({"3"})
+    int centroids;
+
+    SimilarityEngine engine;
+    ClassPrototypes prototypes;
+    float[][] queries;
+    int next = 0;
+
+    // Totals over an iteration, reported by JMH next to the time of scoreClasses
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Pairs {
+        public long boxes;
+        public long pairs;
+        public long headPairs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            boxes = 0;
+            pairs = 0;
+            headPairs = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        GalleryStore gallery = new GalleryStore(EMBEDDING_SIZE);
+        float[][] centers = new float[CLASS_ENDS.length][];
+        int start = 0;
+        for (int c = 0; c < CLASS_ENDS.length; c++) {
+            centers[c] = gaussian(random, null, 1.0f);
+            float[][] embeds = new float[CLASS_ENDS[c] - start][];
+            for (int i = 0; i < embeds.length; i++) embeds[i] = gaussian(random, centers[c], 0.3f);
+            gallery.addClass("class" + c, embeds);
+            start = CLASS_ENDS[c];
+        }
+        queries = new float[64][];
+        for (int i = 0; i < queries.length; i++) queries[i] = gaussian(random, centers[random.nextInt(centers.length)], 0.3f);
+
+        engine = new SimilarityEngine(new DotHead(), EMBEDDING_SIZE);
+        engine.setGallery(gallery);
+        prototypes = ClassPrototypes.build(gallery, centroids, 7);
+    }
+
+    @Benchmark
+    public float[] scoreClasses(Pairs counters) {
+        float[] query = queries[next++ & (queries.length - 1)];
+        float[] scores = topClasses == 0 ? engine.scoreClasses(query) : engine.scoreClasses(query, prototypes, topClasses);
+        counters.boxes++;
+        counters.pairs += engine.getLastPairCount();
+        counters.headPairs += engine.getLastHeadPairCount();
+        return scores;
+    }
+
+    static float[] gaussian(Random random, float[] center, float sigma) {
+        float[] v = new float[EMBEDDING_SIZE];
+        for (int k = 0; k < EMBEDDING_SIZE; k++) v[k] = (center == null ? 0 : center[k]) + sigma * (float) random.nextGaussian();
+        return v;
+    }
+
+    // A Head comparing each pair by a dot product, its cost grows with the pairs like the model
+    static class DotHead implements ModelRunner {
+        private int count = 1;
+
+        public void resizeInput(int index, int[] shape) {
+            count = shape[0];
+        }
+
+        public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+            FloatBuffer queries = inputs[0].asFloatBuffer();
+            FloatBuffer gallery = inputs[1].asFloatBuffer();
+            FloatBuffer scores = outputs[0].asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                float dot = 0;
+                for (int j = 0; j < EMBEDDING_SIZE; j++) dot += queries.get(i * EMBEDDING_SIZE + j) * gallery.get(i * EMBEDDING_SIZE + j);
+                scores.put(i, dot);
+            }
+        }
+
+        public void close() {
+        }
+    }
+}
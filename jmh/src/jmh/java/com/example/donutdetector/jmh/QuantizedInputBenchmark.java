@@ -0,0 +1,113 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.InputPreprocessor;
+import com.example.donutdetector.core.Quantization;
+import com.example.donutdetector.core.RpnDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Java side of an RPN call with the float model and with the UINT8 one: the preprocessing of a 320x320 frame
+ * into the input tensor, and the decoding of the 20x20x9 anchors outputs, read from the output tensors like
+ * Detector.get_bboxes. The models themselves only run on the device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QuantizedInputBenchmark {
+
+    static final int INPUT_SIZE = 320;
+    static final int ANCHOR_DIMENSION = 20;
+    static final int NUMBER_ANCHORS = 9;
+    static final int COORDINATES = 4;
+
+    @Param({"false", "true"})
+    boolean quantized;
+
+    InputPreprocessor preprocessor;
+    RpnDecoder decoder;
+
+    // Output tensors, floats or bytes
+    ByteBuffer obj;
+    ByteBuffer box;
+    float[] objFloats;
+    float[] boxFloats;
+    float[] objTable;
+    float[] boxTable;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        Quantization input = quantized ? new Quantization(1 / 127.5f, 127) : null;
+        preprocessor = new InputPreprocessor(INPUT_SIZE, 1, InputPreprocessor.Normalization.MOBILENET, input);
+        int[] pixels = preprocessor.getPixels();
+        for (int i = 0; i < pixels.length; i++) pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+
+        int count = ANCHOR_DIMENSION * ANCHOR_DIMENSION * NUMBER_ANCHORS;
+        decoder = new RpnDecoder(anchors());
+
+        Quantization scores = new Quantization(1 / 255.0f, 0);
+        Quantization offsets = new Quantization(0.01f, 128);
+        int valueSize = quantized ? 1 : 4;
+        obj = ByteBuffer.allocateDirect(valueSize * count).order(ByteOrder.nativeOrder());
+        box = ByteBuffer.allocateDirect(valueSize * COORDINATES * count).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            float score = random.nextFloat();
+            if (quantized) obj.put(i, scores.quantize(score));
+            else obj.putFloat(4 * i, score);
+        }
+        for (int i = 0; i < COORDINATES * count; i++) {
+            float offset = 0.3f * (float) random.nextGaussian();
+            if (quantized) box.put(i, offsets.quantize(offset));
+            else box.putFloat(4 * i, offset);
+        }
+        objFloats = new float[count];
+        boxFloats = new float[COORDINATES * count];
+        objTable = scores.table();
+        boxTable = offsets.table();
+    }
+
+    // 3600 anchors of 3 sizes and 3 ratios on a grid of stride 16, like the anchors of the app
+    static int[] anchors() {
+        int count = ANCHOR_DIMENSION * ANCHOR_DIMENSION * NUMBER_ANCHORS;
+        int[] anchors = new int[COORDINATES * count];
+        for (int k = 0; k < count; k++) {
+            int cell = k / NUMBER_ANCHORS;
+            int size = 32 << (k % NUMBER_ANCHORS / 3);
+            anchors[COORDINATES * k] = 16 * (cell % ANCHOR_DIMENSION) + 8;
+            anchors[COORDINATES * k + 1] = 16 * (cell / ANCHOR_DIMENSION) + 8;
+            anchors[COORDINATES * k + 2] = size << (k % 3) >> 1;
+            anchors[COORDINATES * k + 3] = size;
+        }
+        return anchors;
+    }
+
+    @Benchmark
+    public ByteBuffer preprocess() {
+        preprocessor.process(0);
+        return preprocessor.getInput(1);
+    }
+
+    @Benchmark
+    public int decode() {
+        if (quantized) return decoder.decode(obj, objTable, box, boxTable, 0.33f);
+        obj.rewind();
+        box.rewind();
+        obj.asFloatBuffer().get(objFloats);
+        box.asFloatBuffer().get(boxFloats);
+        return decoder.decode(objFloats, boxFloats, 0.33f);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.donutdetector.jmh;
+
+import com.example.donutdetector.core.ResultCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The key of a result cache lookup, which Detector.detect computes for every image: the hash of the 320x320
+ * pixels of the RPN input mixed with the cache version.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResultCacheBenchmark {
+
+    static final int INPUT_SIZE = 320;
+
+    int[] argb;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        argb = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+    }
+
+    @Benchmark
+    public long key() {
+        return ResultCache.key(ResultCache.hash(argb), 1);
+    }
+}